@@ -0,0 +1,563 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Evaluates expressions in double precision first, tracking a bound on how far
+ * each intermediate value can be from what {@link BigDecimalPostfixEvaluator}
+ * would compute. {@link #evaluate(CompiledExpression, BigDecimal[])} returns
+ * the full result: the double if the bound is zero, as it is for integer
+ * arithmetic that fits in a double, and otherwise the BigDecimal result.
+ * {@link #evaluateForDisplay(CompiledExpression, BigDecimal[])} returns the
+ * result rounded to the display {@link MathContext}, and takes the double
+ * whenever everything within the bound rounds to the same display digits.
+ * Both paths strip trailing zeros, so callers can't tell them apart.
+ * <p>
+ * The BigDecimal evaluator rounds every result to its math context, so each
+ * bound also covers that rounding, except for integers small enough that no
+ * math context rounds them. Function bounds cover the error of the double
+ * function and the error of the operand carried through the function's
+ * slope. Tangents and general powers are only bounded for exact operands.
+ * <p>
+ * Instances are thread safe, and count how often the fallback is needed.
+ */
+public class AdaptivePrecisionEvaluator {
+	private static final BigDecimal[] EMPTY_SLOTS = new BigDecimal[0];
+
+	// Covers the rounding of the bound arithmetic itself.
+	private static final double BOUND_SLACK = 1 + 0x1p-40;
+
+	// Where Dekker's exact product error can't overflow or lose bits to
+	// underflow.
+	private static final double MAX_SPLIT_MAGNITUDE = 0x1p995;
+	private static final double MIN_SPLIT_PRODUCT = 0x1p-900;
+	private static final double SPLITTER = 0x1p27 + 1;
+
+	// Integers with this many digits convert to double exactly.
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	// Integers below this are exact doubles with fewer digits than any math
+	// context's precision.
+	private static final double MAX_EXACT_INTEGER = 0x1p53;
+
+	// The powers of ten that are exact doubles.
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private final MathContext displayContext;
+	private final MathContext mathContext;
+	private final double referenceEpsilon;
+	private final AtomicLong evaluationCount = new AtomicLong();
+	private final AtomicLong fallbackCount = new AtomicLong();
+
+	public AdaptivePrecisionEvaluator(MathContext displayContext) {
+		this(displayContext, BigDecimalPostfixEvaluator.DEFAULT_MATH_CONTEXT);
+	}
+
+	/**
+	 * @param mathContext
+	 *            the math context of the BigDecimal evaluator, whose results
+	 *            this matches.
+	 */
+	public AdaptivePrecisionEvaluator(MathContext displayContext, MathContext mathContext) {
+		if (displayContext.getPrecision() == 0) {
+			throw new IllegalArgumentException("Display precision must be limited");
+		} else if (mathContext.getPrecision() < BigDecimalPostfixEvaluator.MIN_PRECISION) {
+			throw new IllegalArgumentException("Math context must have a precision of at least "
+					+ BigDecimalPostfixEvaluator.MIN_PRECISION);
+		}
+
+		this.displayContext = displayContext;
+		this.mathContext = mathContext;
+		// Rounding and BigDecimalMath are within an ulp, and integer powers two;
+		// this is two ulps of the smallest value with the leading digit.
+		this.referenceEpsilon = 2 * Math.pow(10, 1 - mathContext.getPrecision());
+	}
+
+	public MathContext getDisplayContext() {
+		return displayContext;
+	}
+
+	public MathContext getMathContext() {
+		return mathContext;
+	}
+
+	/**
+	 * Returns how many expressions have been evaluated.
+	 */
+	public long getEvaluationCount() {
+		return evaluationCount.get();
+	}
+
+	/**
+	 * Returns how many evaluations had to fall back to BigDecimal.
+	 */
+	public long getFallbackCount() {
+		return fallbackCount.get();
+	}
+
+	/**
+	 * Compiles and evaluates the input to full precision. The optimizer is
+	 * skipped, since it would fold constants with BigDecimals at compile time,
+	 * which is the cost this class avoids.
+	 */
+	public BigDecimal evaluate(String input) throws ParseException {
+		return evaluate(ExpressionCompiler.compileUnoptimized(input, NumberPrecision.BIG_DECIMAL), EMPTY_SLOTS);
+	}
+
+	/**
+	 * Evaluates a program without variables, compiled for
+	 * {@link NumberPrecision#BIG_DECIMAL}, to full precision.
+	 */
+	public BigDecimal evaluate(CompiledExpression compiledExpression) throws ParseException {
+		return evaluate(compiledExpression, EMPTY_SLOTS);
+	}
+
+	/**
+	 * Evaluates a program compiled for {@link NumberPrecision#BIG_DECIMAL},
+	 * and returns what {@link BigDecimalPostfixEvaluator} would, without
+	 * trailing zeros. Nothing is rounded to the display precision, so the
+	 * result can be stored and used again.
+	 */
+	public BigDecimal evaluate(CompiledExpression compiledExpression, BigDecimal[] slots) throws ParseException {
+		final BigDecimalPostfixEvaluator evaluator = new BigDecimalPostfixEvaluator(compiledExpression, mathContext);
+		evaluator.checkSlots(slots.length);
+		evaluationCount.incrementAndGet();
+
+		final double[] bound = new double[2];
+
+		if (evaluateDouble(compiledExpression, slots, bound) && bound[1] == 0) {
+			return stripZeros(new BigDecimal(bound[0]));
+		}
+
+		fallbackCount.incrementAndGet();
+		return stripZeros(evaluator.evaluate(slots));
+	}
+
+	/**
+	 * Compiles and evaluates the input, rounded to the display precision.
+	 */
+	public BigDecimal evaluateForDisplay(String input) throws ParseException {
+		return evaluateForDisplay(ExpressionCompiler.compileUnoptimized(input, NumberPrecision.BIG_DECIMAL),
+				EMPTY_SLOTS);
+	}
+
+	/**
+	 * Evaluates a program compiled for {@link NumberPrecision#BIG_DECIMAL},
+	 * rounded to the display precision. The result is only for showing; it
+	 * has lost digits, and shouldn't be used in further calculations.
+	 */
+	public BigDecimal evaluateForDisplay(CompiledExpression compiledExpression, BigDecimal[] slots)
+			throws ParseException {
+		final BigDecimalPostfixEvaluator evaluator = new BigDecimalPostfixEvaluator(compiledExpression, mathContext);
+		evaluator.checkSlots(slots.length);
+		evaluationCount.incrementAndGet();
+
+		final double[] bound = new double[2];
+
+		if (evaluateDouble(compiledExpression, slots, bound)) {
+			final BigDecimal result = toDisplay(bound[0], bound[1]);
+
+			if (result != null) {
+				return result;
+			}
+		}
+
+		fallbackCount.incrementAndGet();
+		return toDisplay(evaluator.evaluate(slots));
+	}
+
+	/**
+	 * Evaluates the program in double, and stores the result and the bound
+	 * on its error in bound[0] and bound[1]. Returns false if no bound can be
+	 * given.
+	 */
+	private boolean evaluateDouble(CompiledExpression compiledExpression, BigDecimal[] slots, double[] bound) {
+		final int[] opcodes = compiledExpression.opcodes;
+		final int[] operands = compiledExpression.operands;
+		final BigDecimal[] constants = compiledExpression.bigDecimalConstants;
+		final int stackDepth = compiledExpression.maxStackDepth;
+		final int localCount = compiledExpression.localCount;
+
+		// Each value has a bound on its distance from the BigDecimal value.
+		final double[] values = new double[stackDepth];
+		final double[] errors = new double[stackDepth];
+		final double[] localValues = new double[localCount];
+		final double[] localErrors = new double[localCount];
+		int stackPointer = -1;
+
+		for (int pc = 0; pc < opcodes.length; pc++) {
+			final int opcode = opcodes[pc];
+			final int operand = operands[pc];
+
+			switch (opcode) {
+				case Opcode.LOAD_VARIABLE:
+				case Opcode.LOAD_CONSTANT: {
+					final BigDecimal value = opcode == Opcode.LOAD_VARIABLE ? slots[operand] : constants[operand];
+					stackPointer++;
+					values[stackPointer] = value.doubleValue();
+					errors[stackPointer] = loadError(value, values[stackPointer]);
+					break;
+				}
+				case Opcode.LOAD_LOCAL:
+					stackPointer++;
+					values[stackPointer] = localValues[operand];
+					errors[stackPointer] = localErrors[operand];
+					break;
+				case Opcode.STORE_LOCAL:
+					localValues[operand] = values[stackPointer];
+					localErrors[operand] = errors[stackPointer];
+					break;
+				case Opcode.NEGATE:
+					values[stackPointer] = -values[stackPointer];
+					break;
+				case Opcode.ABS:
+					values[stackPointer] = Math.abs(values[stackPointer]);
+					break;
+				case Opcode.SIN:
+				case Opcode.COS:
+				case Opcode.TAN:
+				case Opcode.LN:
+				case Opcode.SQRT:
+				case Opcode.POWER_HALF: {
+					final double x = values[stackPointer];
+					final double xError = errors[stackPointer];
+					final double slope = xError == 0 ? 0 : maximumSlope(opcode, x, xError);
+
+					if (!(slope < Double.POSITIVE_INFINITY)) {
+						return false;
+					}
+
+					final double result = function(opcode, x);
+					values[stackPointer] = result;
+					errors[stackPointer] = roundedError(result, slope * xError + 2 * Math.ulp(result));
+					break;
+				}
+				case Opcode.SQUARE:
+					multiply(values, errors, stackPointer, values[stackPointer], errors[stackPointer]);
+					errors[stackPointer] = roundedError(values[stackPointer], errors[stackPointer]);
+					break;
+				case Opcode.RECIPROCAL: {
+					final double divisor = values[stackPointer];
+					final double divisorError = errors[stackPointer];
+					values[stackPointer] = 1;
+					errors[stackPointer] = 0;
+					divide(values, errors, stackPointer, divisor, divisorError);
+					errors[stackPointer] = roundedError(values[stackPointer], errors[stackPointer]);
+					break;
+				}
+				case Opcode.POWER_INTEGER: {
+					// The BigDecimal evaluator rounds integer powers once, at the
+					// end.
+					double base = values[stackPointer];
+					double baseError = errors[stackPointer];
+					values[stackPointer] = 1;
+					errors[stackPointer] = 0;
+
+					for (int exponent = operand; exponent != 0; exponent >>= 1) {
+						if ((exponent & 1) != 0) {
+							multiply(values, errors, stackPointer, base, baseError);
+						}
+
+						if (exponent > 1) {
+							final double square = base * base;
+							baseError = (2 * Math.abs(base) * baseError + baseError * baseError + productError(base,
+									base, square)) * BOUND_SLACK;
+							base = square;
+						}
+					}
+
+					errors[stackPointer] = roundedError(values[stackPointer], errors[stackPointer]);
+					break;
+				}
+				default: {
+					// The right operand comes from a slot, the constant pool or
+					// the stack.
+					final double b;
+					final double bError;
+					final int arithmetic;
+
+					if (opcode < Opcode.ADD) {
+						final BigDecimal value = opcode < Opcode.ADD_CONSTANT ? slots[operand] : constants[operand];
+						b = value.doubleValue();
+						bError = loadError(value, b);
+						arithmetic = opcode < Opcode.ADD_CONSTANT ? opcode - Opcode.ADD_VARIABLE + Opcode.ADD : opcode
+								- Opcode.ADD_CONSTANT + Opcode.ADD;
+					} else {
+						b = values[stackPointer];
+						bError = errors[stackPointer];
+						arithmetic = opcode;
+						stackPointer--;
+					}
+
+					switch (arithmetic) {
+						case Opcode.ADD:
+							add(values, errors, stackPointer, b, bError);
+							break;
+						case Opcode.SUBTRACT:
+							add(values, errors, stackPointer, -b, bError);
+							break;
+						case Opcode.MULTIPLY:
+							multiply(values, errors, stackPointer, b, bError);
+							break;
+						case Opcode.DIVIDE:
+							divide(values, errors, stackPointer, b, bError);
+							break;
+						case Opcode.POWER:
+							if (errors[stackPointer] != 0 || bError != 0) {
+								return false;
+							}
+
+							values[stackPointer] = Math.pow(values[stackPointer], b);
+							errors[stackPointer] = 2 * Math.ulp(values[stackPointer]);
+							break;
+					}
+
+					errors[stackPointer] = roundedError(values[stackPointer], errors[stackPointer]);
+					break;
+				}
+			}
+
+			// The BigDecimal evaluator can't represent infinities or NaN, and
+			// fails on them; let it.
+			if (!(Math.abs(values[stackPointer]) <= Double.MAX_VALUE)) {
+				return false;
+			}
+		}
+
+		bound[0] = values[0];
+		bound[1] = errors[0];
+		return true;
+	}
+
+	/**
+	 * Returns the display result of a double with the given error bound, or
+	 * null if it can't be proven.
+	 */
+	private BigDecimal toDisplay(double value, double errorBound) {
+		final BigDecimal rounded = roundInDouble(value, errorBound);
+
+		if (rounded != null) {
+			return rounded;
+		}
+
+		final BigDecimal center = new BigDecimal(value);
+
+		if (errorBound == 0) {
+			return toDisplay(center);
+		} else if (!(errorBound < Double.POSITIVE_INFINITY)) {
+			return null;
+		}
+
+		final BigDecimal error = new BigDecimal(errorBound);
+		final BigDecimal low = toDisplay(center.subtract(error));
+		return low.equals(toDisplay(center.add(error))) ? low : null;
+	}
+
+	/**
+	 * Rounds to the display precision in double arithmetic, if every value
+	 * within the error of the center clearly rounds to the same digits. Returns
+	 * null where it can't tell, and the exact check has to decide.
+	 */
+	private BigDecimal roundInDouble(double center, double error) {
+		final int precision = displayContext.getPrecision();
+		final RoundingMode roundingMode = displayContext.getRoundingMode();
+
+		if (center == 0 || precision > MAX_EXACT_DIGITS || (roundingMode != RoundingMode.HALF_UP
+				&& roundingMode != RoundingMode.HALF_EVEN && roundingMode != RoundingMode.HALF_DOWN)) {
+			return null;
+		}
+
+		final double magnitude = Math.abs(center);
+		final int shift = precision - 1 - (int) Math.floor(Math.log10(magnitude));
+
+		if (shift < 0 || shift >= POWERS_OF_TEN.length) {
+			return null;
+		}
+
+		// The shifted center has one integer digit for each display digit.
+		// The margin covers the error and the rounding of the shift itself.
+		final double shifted = magnitude * POWERS_OF_TEN[shift];
+		final double digits = Math.rint(shifted);
+		final double margin = error * POWERS_OF_TEN[shift] * BOUND_SLACK + 2 * Math.ulp(shifted);
+
+		if (digits <= POWERS_OF_TEN[precision - 1] || digits >= POWERS_OF_TEN[precision]
+				|| Math.abs(shifted - digits) + margin >= 0.5) {
+			return null;
+		}
+
+		final long unscaledValue = (long) digits;
+		return BigDecimal.valueOf(center < 0 ? -unscaledValue : unscaledValue, shift).stripTrailingZeros();
+	}
+
+	private BigDecimal toDisplay(BigDecimal value) {
+		return stripZeros(value.round(displayContext));
+	}
+
+	private static BigDecimal stripZeros(BigDecimal value) {
+		return value.signum() == 0 ? BigDecimal.ZERO : value.stripTrailingZeros();
+	}
+
+	/**
+	 * Bounds how far a converted double is from the value it came from.
+	 */
+	private static double conversionError(BigDecimal value, double converted) {
+		final int scale = value.scale();
+
+		if (scale <= 0 && value.precision() - scale <= MAX_EXACT_DIGITS) {
+			return 0;
+		} else if (scale > 0 && scale < POWERS_OF_TEN.length && value.precision() <= MAX_EXACT_DIGITS) {
+			// The conversion is exact if shifting the double back by the scale
+			// gives an integer exactly, as 0.25 does and 0.1 doesn't.
+			final double shifted = converted * POWERS_OF_TEN[scale];
+			return shifted == Math.rint(shifted) && productError(converted, POWERS_OF_TEN[scale], shifted) == 0 ? 0
+					: Math.ulp(converted);
+		}
+
+		return new BigDecimal(converted).compareTo(value) == 0 ? 0 : Math.ulp(converted);
+	}
+
+	/**
+	 * Bounds the error of a value the BigDecimal evaluator loads, which it
+	 * rounds to its math context if it has more digits.
+	 */
+	private double loadError(BigDecimal value, double converted) {
+		final double error = conversionError(value, converted);
+		return value.precision() > mathContext.getPrecision() ? roundedError(converted, error) : error;
+	}
+
+	/**
+	 * Adds the rounding of the BigDecimal result to the error of a value,
+	 * unless it's an integer small enough that no math context rounds it.
+	 */
+	private double roundedError(double value, double error) {
+		if (error == 0 && Math.abs(value) < MAX_EXACT_INTEGER && value == Math.rint(value)) {
+			return 0;
+		}
+
+		return (error + (Math.abs(value) + error) * referenceEpsilon) * BOUND_SLACK;
+	}
+
+	/**
+	 * Bounds the slope of a function over the interval x +/- xError, or returns
+	 * infinity if it's unbounded there or leaves the function's domain.
+	 */
+	private static double maximumSlope(int opcode, double x, double xError) {
+		final double low = x - xError;
+
+		switch (opcode) {
+			case Opcode.SIN:
+			case Opcode.COS:
+				return 1;
+			case Opcode.LN:
+				return low > 0 ? 1 / low * BOUND_SLACK : Double.POSITIVE_INFINITY;
+			case Opcode.SQRT:
+			case Opcode.POWER_HALF:
+				return low > 0 ? 0.5 / Math.sqrt(low) * BOUND_SLACK : Double.POSITIVE_INFINITY;
+			default:
+				return Double.POSITIVE_INFINITY;
+		}
+	}
+
+	private static double function(int opcode, double x) {
+		switch (opcode) {
+			case Opcode.SIN:
+				return Math.sin(x);
+			case Opcode.COS:
+				return Math.cos(x);
+			case Opcode.TAN:
+				return Math.tan(x);
+			case Opcode.LN:
+				return Math.log(x);
+			default:
+				return Math.sqrt(x);
+		}
+	}
+
+	private static void add(double[] values, double[] errors, int index, double b, double bError) {
+		final double a = values[index];
+		final double sum = a + b;
+
+		// Knuth's two-sum gives the exact rounding error.
+		final double bVirtual = sum - a;
+		final double roundingError = (a - (sum - bVirtual)) + (b - bVirtual);
+
+		values[index] = sum;
+		errors[index] = (errors[index] + bError + Math.abs(roundingError)) * BOUND_SLACK;
+	}
+
+	private static void multiply(double[] values, double[] errors, int index, double b, double bError) {
+		final double a = values[index];
+		final double aError = errors[index];
+		final double product = a * b;
+
+		values[index] = product;
+		errors[index] = (Math.abs(a) * bError + Math.abs(b) * aError + aError * bError + productError(a, b, product))
+				* BOUND_SLACK;
+	}
+
+	private static void divide(double[] values, double[] errors, int index, double b, double bError) {
+		final double a = values[index];
+		final double quotient = a / b;
+		final double aError = errors[index];
+		final double divisorError = bError;
+		final double magnitude = Math.abs(b);
+		values[index] = quotient;
+
+		if (aError == 0 && divisorError == 0 && quotient * b == a && productError(quotient, b, a) == 0) {
+			// An exact quotient, as with 10 / 4.
+			errors[index] = 0;
+			return;
+		}
+
+		if (!(divisorError < magnitude)) {
+			// The divisor could be zero.
+			errors[index] = Double.POSITIVE_INFINITY;
+			return;
+		}
+
+		errors[index] = ((Math.abs(a) * divisorError + magnitude * aError) / (magnitude * (magnitude - divisorError))
+				+ 2 * Math.ulp(quotient)) * BOUND_SLACK;
+	}
+
+	/**
+	 * Returns the exact rounding error of a product where Dekker's algorithm
+	 * applies, or otherwise a bound of an ulp.
+	 */
+	private static double productError(double a, double b, double product) {
+		if (a == 0 || b == 0) {
+			return 0;
+		} else if (Math.abs(a) > MAX_SPLIT_MAGNITUDE || Math.abs(b) > MAX_SPLIT_MAGNITUDE
+				|| Math.abs(product) < MIN_SPLIT_PRODUCT) {
+			return Math.ulp(product);
+		}
+
+		double split = SPLITTER * a;
+		final double aHigh = split - (split - a);
+		final double aLow = a - aHigh;
+		split = SPLITTER * b;
+		final double bHigh = split - (split - b);
+		final double bLow = b - bHigh;
+
+		return Math.abs(((aHigh * bHigh - product) + aHigh * bLow + aLow * bHigh) + aLow * bLow);
+	}
+}
@@ -0,0 +1,35 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+/**
+ * How a {@link FunctionCompiler} runs an expression.
+ */
+public enum Backend {
+	/** Runs the switch interpreter of the postfix evaluator. */
+	INTERPRETER,
+
+	/**
+	 * Walks a tree of specialized node objects. This needs no runtime class
+	 * generation, so it's the fast path on Dalvik and ART.
+	 */
+	CLOSURE_TREE,
+
+	/**
+	 * Runs a generated JVM class, or a closure tree where classes can't be
+	 * generated. See {@link BytecodeCompiler}.
+	 */
+	BYTECODE
+}
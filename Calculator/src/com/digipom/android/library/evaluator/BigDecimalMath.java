@@ -0,0 +1,496 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * Elementary functions on BigDecimal to any precision. Each function reduces
+ * its argument to a small range, sums a series or iterates Newton's method with
+ * guard digits, and rounds the result to the given {@link MathContext}, which
+ * must have a limited precision.
+ * <p>
+ * Pi, e, ln 2 and ln 10 are computed once at the highest precision asked for
+ * so far, up to {@link #MAX_CACHED_PRECISION} digits, and rounded for lower
+ * precisions. Trigonometric functions of arguments with more than
+ * {@link #MAX_REDUCTION_DIGITS} integer digits beyond the precision throw,
+ * since reducing them would take pi to as many digits. Powers and
+ * exponentials too large to represent throw, and those too small return zero.
+ */
+public final class BigDecimalMath {
+	private static final int GUARD_DIGITS = 10;
+	private static final double BITS_PER_DIGIT = Math.log(10) / Math.log(2);
+	private static final BigDecimal TWO = BigDecimal.valueOf(2);
+	private static final BigDecimal FOUR = BigDecimal.valueOf(4);
+	private static final BigDecimal HALF = new BigDecimal("0.5");
+	private static final int MAX_EXPONENT = 999999999;
+	/** Constants needing more digits are computed but not kept. */
+	public static final int MAX_CACHED_PRECISION = 1000;
+	/** How many more integer digits than the precision sin and cos accept. */
+	public static final int MAX_REDUCTION_DIGITS = 300;
+
+	private static volatile CachedConstant cachedPi;
+	private static volatile CachedConstant cachedE;
+	private static volatile CachedConstant cachedLn2;
+	private static volatile CachedConstant cachedLn10;
+
+	private BigDecimalMath() {
+	}
+
+	public static BigDecimal pi(MathContext mathContext) {
+		final int precision = checkPrecision(mathContext);
+		CachedConstant cached = cachedPi;
+
+		if (cached == null || cached.precision < precision) {
+			// Machin's formula: pi = 16 atan(1/5) - 4 atan(1/239).
+			final MathContext working = new MathContext(precision + GUARD_DIGITS);
+			final BigDecimal pi = BigDecimal.valueOf(16).multiply(inverseSeries(5, true, working)).subtract(
+					FOUR.multiply(inverseSeries(239, true, working)), working);
+			cached = new CachedConstant(precision, pi);
+
+			if (precision <= MAX_CACHED_PRECISION) {
+				cachedPi = cached;
+			}
+		}
+
+		return cached.value.round(mathContext);
+	}
+
+	public static BigDecimal e(MathContext mathContext) {
+		final int precision = checkPrecision(mathContext);
+		CachedConstant cached = cachedE;
+
+		if (cached == null || cached.precision < precision) {
+			cached = new CachedConstant(precision, expSeries(BigDecimal.ONE, new MathContext(precision
+					+ GUARD_DIGITS)));
+
+			if (precision <= MAX_CACHED_PRECISION) {
+				cachedE = cached;
+			}
+		}
+
+		return cached.value.round(mathContext);
+	}
+
+	private static BigDecimal ln2(MathContext mathContext) {
+		final int precision = mathContext.getPrecision();
+		CachedConstant cached = cachedLn2;
+
+		if (cached == null || cached.precision < precision) {
+			// ln 2 = 2 atanh(1/3).
+			final MathContext working = new MathContext(precision + GUARD_DIGITS);
+			cached = new CachedConstant(precision, TWO.multiply(inverseSeries(3, false, working)));
+
+			if (precision <= MAX_CACHED_PRECISION) {
+				cachedLn2 = cached;
+			}
+		}
+
+		return cached.value.round(mathContext);
+	}
+
+	private static BigDecimal ln10(MathContext mathContext) {
+		final int precision = mathContext.getPrecision();
+		CachedConstant cached = cachedLn10;
+
+		if (cached == null || cached.precision < precision) {
+			// ln 10 = 3 ln 2 + ln 1.25, and ln 1.25 = 2 atanh(1/9).
+			final MathContext working = new MathContext(precision + GUARD_DIGITS);
+			cached = new CachedConstant(precision, BigDecimal.valueOf(3).multiply(ln2(working)).add(
+					TWO.multiply(inverseSeries(9, false, working)), working));
+
+			if (precision <= MAX_CACHED_PRECISION) {
+				cachedLn10 = cached;
+			}
+		}
+
+		return cached.value.round(mathContext);
+	}
+
+	public static BigDecimal sqrt(BigDecimal x, MathContext mathContext) {
+		final int precision = checkPrecision(mathContext);
+
+		if (x.signum() < 0) {
+			throw new ArithmeticException("Square root of a negative number");
+		} else if (x.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		// Start from the double square root of x shifted by an even power of
+		// ten into range, then double the correct digits with each step.
+		final int exponent = exponent(x);
+		final int evenExponent = exponent - (exponent & 1);
+		BigDecimal root = new BigDecimal(Math.sqrt(x.scaleByPowerOfTen(-evenExponent).doubleValue()))
+				.scaleByPowerOfTen(evenExponent / 2);
+		final int targetPrecision = precision + GUARD_DIGITS;
+		int correctDigits = 15;
+
+		do {
+			correctDigits = Math.min(correctDigits * 2, targetPrecision);
+			final MathContext working = new MathContext(correctDigits + 2);
+			root = root.add(x.divide(root, working)).multiply(HALF, working);
+		} while (correctDigits < targetPrecision);
+
+		return root.round(mathContext);
+	}
+
+	public static BigDecimal exp(BigDecimal x, MathContext mathContext) {
+		final int precision = checkPrecision(mathContext);
+
+		if (x.signum() == 0) {
+			return BigDecimal.ONE;
+		}
+
+		if (x.abs().compareTo(BigDecimal.valueOf(MAX_EXPONENT)) > 0) {
+			if (x.signum() < 0) {
+				return BigDecimal.ZERO;
+			}
+
+			throw new ArithmeticException("Overflow");
+		}
+
+		// e^x = e^n e^f, with n the nearest integer to x and |f| <= 1/2.
+		final BigDecimal n = x.setScale(0, RoundingMode.HALF_EVEN);
+		final MathContext working = new MathContext(precision + GUARD_DIGITS + n.precision());
+		BigDecimal result = expSeries(x.subtract(n), working);
+
+		if (n.signum() != 0) {
+			result = result.multiply(e(working).pow(n.intValue(), working), working);
+		}
+
+		return result.round(mathContext);
+	}
+
+	public static BigDecimal ln(BigDecimal x, MathContext mathContext) {
+		final int precision = checkPrecision(mathContext);
+
+		if (x.signum() <= 0) {
+			throw new ArithmeticException("Logarithm of a non-positive number");
+		}
+
+		// x = m 10^exponent, with 0.1 <= m < 1.
+		final int exponent = exponent(x);
+		final MathContext working = new MathContext(precision + GUARD_DIGITS + digits(exponent));
+
+		if (x.compareTo(HALF) > 0 && x.compareTo(TWO) < 0) {
+			// Close to 1, where reducing would cancel.
+			return atanhTimesTwo(x, working).round(mathContext);
+		}
+
+		// Multiplying m by 2^j brings it close to 1, so that
+		// ln x = ln(m 2^j) - j ln 2 + exponent ln 10.
+		final BigDecimal m = x.scaleByPowerOfTen(-exponent);
+		final int j = (int) Math.round(-Math.log(m.doubleValue()) / Math.log(2));
+		final BigDecimal reduced = m.multiply(TWO.pow(j));
+
+		return atanhTimesTwo(reduced, working).subtract(ln2(working).multiply(BigDecimal.valueOf(j)))
+				.add(ln10(working).multiply(BigDecimal.valueOf(exponent))).round(mathContext);
+	}
+
+	public static BigDecimal sin(BigDecimal x, MathContext mathContext) {
+		return sinOrCos(x, mathContext, 0);
+	}
+
+	public static BigDecimal cos(BigDecimal x, MathContext mathContext) {
+		// cos x = sin(x + pi/2).
+		return sinOrCos(x, mathContext, 1);
+	}
+
+	public static BigDecimal tan(BigDecimal x, MathContext mathContext) {
+		final MathContext working = new MathContext(checkPrecision(mathContext) + GUARD_DIGITS);
+		return sin(x, working).divide(cos(x, working), mathContext);
+	}
+
+	/**
+	 * Returns x^y. Integral exponents work for any base; otherwise the base
+	 * can't be negative.
+	 */
+	public static BigDecimal pow(BigDecimal x, BigDecimal y, MathContext mathContext) {
+		final int precision = checkPrecision(mathContext);
+
+		if (y.signum() == 0) {
+			return BigDecimal.ONE;
+		} else if (y.stripTrailingZeros().scale() <= 0 && y.abs().compareTo(BigDecimal.valueOf(MAX_EXPONENT)) <= 0) {
+			return x.pow(y.intValue(), new MathContext(precision + GUARD_DIGITS)).round(mathContext);
+		} else if (x.signum() < 0) {
+			throw new ArithmeticException("Non-integral power of a negative number");
+		} else if (x.signum() == 0) {
+			if (y.signum() < 0) {
+				throw new ArithmeticException("Division by zero");
+			}
+
+			return BigDecimal.ZERO;
+		}
+
+		// x^y = e^(y ln x), where y ln x needs enough digits for the integer
+		// part as well. Its size is estimated in double first, so that results
+		// too large or small for exp are found without computing ln x to as
+		// many digits as y has.
+		final double logMagnitude = log10Magnitude(y) + log10MagnitudeOfLn(x);
+
+		if (logMagnitude > Math.log10(MAX_EXPONENT) + 1) {
+			if ((y.signum() > 0) != (x.compareTo(BigDecimal.ONE) > 0)) {
+				return BigDecimal.ZERO;
+			}
+
+			throw new ArithmeticException("Overflow");
+		}
+
+		final int integerDigits = Math.max(0, (int) Math.ceil(logMagnitude)) + 1;
+		final MathContext working = new MathContext(precision + GUARD_DIGITS + integerDigits);
+		return exp(y.multiply(ln(x, working), working), working).round(mathContext);
+	}
+
+	/**
+	 * Returns sin x if quadrantOffset is 0, or cos x if it's 1.
+	 */
+	private static BigDecimal sinOrCos(BigDecimal x, MathContext mathContext, int quadrantOffset) {
+		final int precision = checkPrecision(mathContext);
+
+		// x = n pi/2 + r with |r| <= pi/4. Pi needs a digit for each integer
+		// digit of x, and more when r is close to 0 and loses digits.
+		final int integerDigits = Math.max(0, exponent(x));
+
+		if (integerDigits > precision + MAX_REDUCTION_DIGITS) {
+			throw new ArithmeticException("Argument too large for trigonometric functions");
+		}
+
+		int workingPrecision = precision + GUARD_DIGITS + integerDigits;
+
+		for (boolean isRetry = false;; isRetry = true) {
+			final MathContext working = new MathContext(workingPrecision);
+			final BigDecimal halfPi = pi(working).multiply(HALF);
+			final BigDecimal n = x.divide(halfPi, working).setScale(0, RoundingMode.HALF_EVEN);
+			final BigDecimal r = x.subtract(halfPi.multiply(n)).round(working);
+			final int lostDigits = -exponent(r);
+
+			if (!isRetry && r.signum() != 0 && lostDigits > 0) {
+				workingPrecision += lostDigits;
+				continue;
+			}
+
+			final int quadrant = (n.remainder(FOUR).intValue() + quadrantOffset) & 3;
+			final BigDecimal result;
+
+			switch (quadrant) {
+				case 0:
+					result = sinSeries(r, working);
+					break;
+				case 1:
+					result = cosSeries(r, working);
+					break;
+				case 2:
+					result = sinSeries(r, working).negate();
+					break;
+				default:
+					result = cosSeries(r, working).negate();
+					break;
+			}
+
+			return result.round(mathContext);
+		}
+	}
+
+	private static BigDecimal sinSeries(BigDecimal x, MathContext mathContext) {
+		if (x.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		final int bits = fractionBits(mathContext, exponent(x));
+		final BigInteger fixedX = toFixed(x, bits);
+		final BigInteger xSquared = multiplyFixed(fixedX, fixedX, bits);
+		BigInteger term = fixedX;
+		BigInteger sum = fixedX;
+
+		for (long k = 1; term.signum() != 0; k++) {
+			term = multiplyFixed(term, xSquared, bits).divide(BigInteger.valueOf(-(2 * k) * (2 * k + 1)));
+			sum = sum.add(term);
+		}
+
+		return fromFixed(sum, bits, mathContext);
+	}
+
+	/**
+	 * Sums cos x for |x| <= pi/4, where the result is at least 0.7.
+	 */
+	private static BigDecimal cosSeries(BigDecimal x, MathContext mathContext) {
+		final int bits = fractionBits(mathContext, 0);
+		final BigInteger fixedX = toFixed(x, bits);
+		final BigInteger xSquared = multiplyFixed(fixedX, fixedX, bits);
+		BigInteger term = BigInteger.ONE.shiftLeft(bits);
+		BigInteger sum = term;
+
+		for (long k = 1; term.signum() != 0; k++) {
+			term = multiplyFixed(term, xSquared, bits).divide(BigInteger.valueOf(-(2 * k - 1) * (2 * k)));
+			sum = sum.add(term);
+		}
+
+		return fromFixed(sum, bits, mathContext);
+	}
+
+	/**
+	 * Sums e^x for |x| <= 1, where the result is at least 1/e.
+	 */
+	private static BigDecimal expSeries(BigDecimal x, MathContext mathContext) {
+		final int bits = fractionBits(mathContext, 1);
+		final BigInteger fixedX = toFixed(x, bits);
+		BigInteger term = BigInteger.ONE.shiftLeft(bits);
+		BigInteger sum = term;
+
+		for (int k = 1; term.signum() != 0; k++) {
+			term = multiplyFixed(term, fixedX, bits).divide(BigInteger.valueOf(k));
+			sum = sum.add(term);
+		}
+
+		return fromFixed(sum, bits, mathContext);
+	}
+
+	/**
+	 * Returns ln x as 2 atanh((x - 1) / (x + 1)), for x close to 1.
+	 */
+	private static BigDecimal atanhTimesTwo(BigDecimal x, MathContext mathContext) {
+		final BigDecimal z = x.subtract(BigDecimal.ONE).divide(x.add(BigDecimal.ONE), mathContext);
+
+		if (z.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		final int bits = fractionBits(mathContext, exponent(z));
+		final BigInteger fixedZ = toFixed(z, bits);
+		final BigInteger zSquared = multiplyFixed(fixedZ, fixedZ, bits);
+		BigInteger power = fixedZ;
+		BigInteger sum = fixedZ;
+
+		for (int k = 1; power.signum() != 0; k++) {
+			power = multiplyFixed(power, zSquared, bits);
+			sum = sum.add(power.divide(BigInteger.valueOf(2 * k + 1)));
+		}
+
+		return fromFixed(sum.shiftLeft(1), bits, mathContext);
+	}
+
+	/**
+	 * Sums atan(1/m), if alternating, or atanh(1/m): the sum over k of
+	 * (+/-1)^k / ((2k + 1) m^(2k + 1)).
+	 */
+	private static BigDecimal inverseSeries(int m, boolean alternating, MathContext mathContext) {
+		final int bits = fractionBits(mathContext, -3);
+		final BigInteger mSquared = BigInteger.valueOf((long) m * m);
+		BigInteger power = BigInteger.ONE.shiftLeft(bits).divide(BigInteger.valueOf(m));
+		BigInteger sum = power;
+
+		for (int k = 1; power.signum() != 0; k++) {
+			power = power.divide(mSquared);
+			final BigInteger term = power.divide(BigInteger.valueOf(2 * k + 1));
+			sum = alternating && (k & 1) != 0 ? sum.subtract(term) : sum.add(term);
+		}
+
+		return fromFixed(sum, bits, mathContext);
+	}
+
+	/**
+	 * Returns the number of fraction bits a fixed point series needs for the
+	 * precision of the math context, for a result of about 10^exponent. Each
+	 * term truncates, so a few more bits cover the accumulated error.
+	 */
+	private static int fractionBits(MathContext mathContext, int exponent) {
+		return (int) Math.ceil((mathContext.getPrecision() - Math.min(exponent, 0)) * BITS_PER_DIGIT) + 16;
+	}
+
+	/**
+	 * Multiplies fixed point values, truncating toward zero so that a series
+	 * of shrinking terms reaches zero whatever their sign.
+	 */
+	private static BigInteger multiplyFixed(BigInteger a, BigInteger b, int bits) {
+		final BigInteger product = a.multiply(b);
+		return product.signum() < 0 ? product.negate().shiftRight(bits).negate() : product.shiftRight(bits);
+	}
+
+	/**
+	 * Returns x * 2^bits, truncated to an integer.
+	 */
+	private static BigInteger toFixed(BigDecimal x, int bits) {
+		return new BigDecimal(x.unscaledValue().shiftLeft(bits), x.scale()).toBigInteger();
+	}
+
+	private static BigDecimal fromFixed(BigInteger value, int bits, MathContext mathContext) {
+		return new BigDecimal(value).divide(new BigDecimal(BigInteger.ONE.shiftLeft(bits)), mathContext);
+	}
+
+	/**
+	 * Returns the exponent of the leading digit plus one, so that x < 10^n.
+	 */
+	private static int exponent(BigDecimal x) {
+		return x.precision() - x.scale();
+	}
+
+	/**
+	 * Returns log10 |x|, roughly, for x other than 0.
+	 */
+	private static double log10Magnitude(BigDecimal x) {
+		final int exponent = exponent(x);
+		return exponent + Math.log10(x.abs().scaleByPowerOfTen(-exponent).doubleValue());
+	}
+
+	/**
+	 * Returns log10 |ln x|, to within about 0.15, for x > 0.
+	 */
+	private static double log10MagnitudeOfLn(BigDecimal x) {
+		final int exponent = exponent(x);
+
+		if (exponent == 0 || exponent == 1) {
+			final BigDecimal distance = x.subtract(BigDecimal.ONE);
+
+			if (distance.signum() == 0) {
+				return Double.NEGATIVE_INFINITY;
+			} else if (distance.abs().compareTo(HALF) < 0) {
+				// ln x is within a factor of 1.4 of x - 1 here, where doubles
+				// would lose it to cancellation.
+				return log10Magnitude(distance);
+			}
+		}
+
+		final double mantissa = x.scaleByPowerOfTen(-exponent).doubleValue();
+		return Math.log10(Math.abs(Math.log(mantissa) + exponent * Math.log(10)));
+	}
+
+	private static int checkPrecision(MathContext mathContext) {
+		if (mathContext.getPrecision() == 0) {
+			throw new IllegalArgumentException("Precision must be limited");
+		}
+
+		return mathContext.getPrecision();
+	}
+
+	/**
+	 * Returns the number of decimal digits in the magnitude of n.
+	 */
+	private static int digits(int n) {
+		return Long.toString(Math.abs((long) n)).length();
+	}
+
+	private static final class CachedConstant {
+		final int precision;
+		final BigDecimal value;
+
+		CachedConstant(int precision, BigDecimal value) {
+			this.precision = precision;
+			this.value = value;
+		}
+	}
+}
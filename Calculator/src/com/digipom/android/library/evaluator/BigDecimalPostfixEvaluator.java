@@ -15,101 +15,454 @@
 package com.digipom.android.library.evaluator;
 
 import java.math.BigDecimal;
+import java.math.MathContext;
 
 import com.digipom.android.library.evaluator.exception.ParseException;
 
 /**
  * This evaluator is far slower than the float or double evaluators.
+ * <p>
+ * Every result is rounded to the evaluator's {@link MathContext}, as are
+ * variables and constants when they're loaded, so values never grow beyond its
+ * precision however long the expression is. Functions and non-integer powers
+ * are computed by {@link BigDecimalMath}.
  */
 public class BigDecimalPostfixEvaluator extends PostfixEvaluator {
-	private final BigDecimal[] operandStack = new BigDecimal[4096];
-	private int stackPointer = -1;
+	/** 34 digits, as for IEEE 754 decimal128. */
+	public static final MathContext DEFAULT_MATH_CONTEXT = MathContext.DECIMAL128;
+
+	/**
+	 * The least precision a math context can have: at least as many digits as
+	 * a double, so the optimizer can fold short constant results that every
+	 * math context holds exactly.
+	 */
+	public static final int MIN_PRECISION = 16;
+
+	private static final BigDecimal[] EMPTY_SLOTS = new BigDecimal[0];
+	private static final int MAX_LONG_DIGITS = 18;
+	private static final int MAX_INTEGER_EXPONENT = 1000;
+
+	private final MathContext mathContext;
+	private final BigDecimal[] constants;
+	private final boolean canUseLongs;
+	private final long[] longConstants;
+	private final boolean[] longConstantFlags;
+	private boolean integerFastPathEnabled = true;
 
 	public BigDecimalPostfixEvaluator(String input) throws ParseException {
-		super(input, NumberPrecision.BIG_DECIMAL);
-	}		
+		this(input, DEFAULT_MATH_CONTEXT);
+	}
+
+	public BigDecimalPostfixEvaluator(String input, MathContext mathContext) throws ParseException {
+		this(ExpressionCompiler.compileUnoptimized(input, NumberPrecision.BIG_DECIMAL), mathContext);
+	}
+
+	public BigDecimalPostfixEvaluator(CompiledExpression compiledExpression) {
+		this(compiledExpression, DEFAULT_MATH_CONTEXT);
+	}
+
+	/**
+	 * The math context must have a precision of at least
+	 * {@link #MIN_PRECISION}. Unlimited precision isn't allowed, since
+	 * quotients like 1 / 3 and functions like sin don't have exact results.
+	 */
+	public BigDecimalPostfixEvaluator(CompiledExpression compiledExpression, MathContext mathContext) {
+		super(compiledExpression, NumberPrecision.BIG_DECIMAL);
+
+		if (mathContext.getPrecision() < MIN_PRECISION) {
+			throw new IllegalArgumentException("Math context must have a precision of at least " + MIN_PRECISION
+					+ ", not " + mathContext.getPrecision());
+		}
+
+		this.mathContext = mathContext;
+		// A long has up to one more digit than the integers it's loaded from.
+		this.canUseLongs = mathContext.getPrecision() > MAX_LONG_DIGITS;
+
+		constants = new BigDecimal[compiledExpression.bigDecimalConstants.length];
+
+		for (int i = 0; i < constants.length; i++) {
+			constants[i] = compiledExpression.bigDecimalConstants[i].round(mathContext);
+		}
+
+		longConstants = new long[constants.length];
+		longConstantFlags = new boolean[constants.length];
+
+		for (int i = 0; i < constants.length; i++) {
+			if (constants[i].scale() == 0 && constants[i].unscaledValue().bitLength() < Long.SIZE) {
+				longConstants[i] = constants[i].longValue();
+				longConstantFlags[i] = true;
+			}
+		}
+	}
+
+	public MathContext getMathContext() {
+		return mathContext;
+	}
+
+	public boolean isIntegerFastPathEnabled() {
+		return integerFastPathEnabled;
+	}
+
+	/**
+	 * Sets whether integer arithmetic runs on longs until a result can't be
+	 * represented exactly, which avoids allocating a BigDecimal for every
+	 * intermediate value. Results are the same either way. On by default, and
+	 * only used when the math context holds every long exactly.
+	 */
+	public void setIntegerFastPathEnabled(boolean integerFastPathEnabled) {
+		this.integerFastPathEnabled = integerFastPathEnabled;
+	}
 
 	public BigDecimal evaluate() throws ParseException {
-		for (final FlatToken token : postfixExpression) {
-			switch (token.type) {
-				case FlatToken.TYPE_IDENTIFIER:
-				case FlatToken.TYPE_NUMBER_LITERAL:
-					operandStack[++stackPointer] = token.bigDecimalValue;
-					break;
-				case FlatToken.TYPE_OPERATOR:
-					if (token.typeEnum == FlatToken.OPERATOR_NEGATE) {
-						final BigDecimal a = operandStack[stackPointer--];
-						operandStack[++stackPointer] = a.negate();
-					} else {
-						final BigDecimal b = operandStack[stackPointer--];
-						final BigDecimal a = operandStack[stackPointer--];
-
-						switch (token.typeEnum) {
-							case FlatToken.OPERATOR_ADD:
-								operandStack[++stackPointer] = a.add(b);
-								break;
-							case FlatToken.OPERATOR_SUBTRACT:
-								operandStack[++stackPointer] = a.subtract(b);
-								break;
-							case FlatToken.OPERATOR_MULTIPLY:
-								operandStack[++stackPointer] = a.multiply(b);
-								break;
-							case FlatToken.OPERATOR_DIVIDE:
-								stackPointer++;
-								try {
-									operandStack[stackPointer] = a.divide(b);
-								} catch (ArithmeticException e) {
-									// Try using double values
-									// TODO: No, should use precision instead.
-									operandStack[stackPointer] = new BigDecimal(a.doubleValue() / b.doubleValue());
-								}
-								
-								break;
-							case FlatToken.OPERATOR_POWER:
-								operandStack[++stackPointer] = new BigDecimal(
-										Math.pow(a.doubleValue(), b.doubleValue()));
-								break;
+		return evaluate(EMPTY_SLOTS);
+	}
+
+	/**
+	 * Evaluates the expression with each variable taking its value from the
+	 * given array, indexed by {@link CompiledExpression#getSlot(String)}.
+	 */
+	public BigDecimal evaluate(BigDecimal[] slots) throws ParseException {
+		checkSlots(slots.length);
+		final BigDecimal[] roundedSlots = roundSlots(slots);
+
+		if (integerFastPathEnabled && canUseLongs) {
+			return evaluateIntegers(roundedSlots);
+		}
+
+		return execute(roundedSlots, new BigDecimal[stackDepth], -1, new BigDecimal[localCount], 0);
+	}
+
+	/**
+	 * Returns the slots rounded to the math context, copying them only if
+	 * any needs rounding.
+	 */
+	private BigDecimal[] roundSlots(BigDecimal[] slots) {
+		final int precision = mathContext.getPrecision();
+		BigDecimal[] roundedSlots = slots;
+
+		for (int i = 0; i < variableCount; i++) {
+			if (slots[i].precision() > precision) {
+				if (roundedSlots == slots) {
+					roundedSlots = slots.clone();
+				}
+
+				roundedSlots[i] = slots[i].round(mathContext);
+			}
+		}
+
+		return roundedSlots;
+	}
+
+	/**
+	 * Runs the program on longs for as long as every value is an integer with
+	 * a scale of zero. Each operation gives the same value and scale as the
+	 * BigDecimal operation it replaces; at the first one that can't, such as
+	 * an overflow or a division with a remainder, the state so far is
+	 * converted and the BigDecimal loop resumes from that instruction.
+	 */
+	private BigDecimal evaluateIntegers(BigDecimal[] slots) {
+		final long[] operandStack = new long[stackDepth];
+		final long[] locals = new long[localCount];
+		int stackPointer = -1;
+
+		for (int pc = 0; pc < opcodes.length; pc++) {
+			final int opcode = opcodes[pc];
+			final int operand = operands[pc];
+
+			if (opcode <= Opcode.STORE_LOCAL) {
+				switch (opcode) {
+					case Opcode.LOAD_VARIABLE:
+						if (!isLongValue(slots[operand])) {
+							return resume(slots, operandStack, stackPointer, locals, pc);
+						}
+
+						operandStack[++stackPointer] = slots[operand].longValue();
+						break;
+					case Opcode.LOAD_CONSTANT:
+						if (!longConstantFlags[operand]) {
+							return resume(slots, operandStack, stackPointer, locals, pc);
+						}
+
+						operandStack[++stackPointer] = longConstants[operand];
+						break;
+					case Opcode.LOAD_LOCAL:
+						operandStack[++stackPointer] = locals[operand];
+						break;
+					case Opcode.STORE_LOCAL:
+						locals[operand] = operandStack[stackPointer];
+						break;
+				}
+			} else if (opcode < Opcode.ADD_VARIABLE) {
+				final long a = operandStack[stackPointer];
+				long result = 0;
+				boolean isExact = true;
+
+				switch (opcode) {
+					case Opcode.NEGATE:
+						result = -a;
+						isExact = a != Long.MIN_VALUE;
+						break;
+					case Opcode.ABS:
+						result = Math.abs(a);
+						isExact = a != Long.MIN_VALUE;
+						break;
+					case Opcode.SQUARE:
+						result = a * a;
+						isExact = !multiplyOverflows(a, a, result);
+						break;
+					case Opcode.RECIPROCAL:
+						result = a;
+						isExact = a == 1 || a == -1;
+						break;
+					case Opcode.POWER_INTEGER:
+						result = 1;
+
+						for (int i = 0; i < operand && isExact; i++) {
+							final long product = result * a;
+							isExact = !multiplyOverflows(result, a, product);
+							result = product;
 						}
+						break;
+					default:
+						// The functions don't give integers.
+						isExact = false;
+						break;
+				}
+
+				if (!isExact) {
+					return resume(slots, operandStack, stackPointer, locals, pc);
+				}
+
+				operandStack[stackPointer] = result;
+			} else {
+				// The right operand comes from a slot, the constant pool or the
+				// stack, and the fused opcodes are in the same order as ADD to
+				// DIVIDE.
+				final long b;
+				final int arithmetic;
+
+				if (opcode < Opcode.ADD_CONSTANT) {
+					if (!isLongValue(slots[operand])) {
+						return resume(slots, operandStack, stackPointer, locals, pc);
 					}
+
+					b = slots[operand].longValue();
+					arithmetic = opcode - Opcode.ADD_VARIABLE + Opcode.ADD;
+				} else if (opcode < Opcode.ADD) {
+					if (!longConstantFlags[operand]) {
+						return resume(slots, operandStack, stackPointer, locals, pc);
+					}
+
+					b = longConstants[operand];
+					arithmetic = opcode - Opcode.ADD_CONSTANT + Opcode.ADD;
+				} else {
+					b = operandStack[stackPointer];
+					arithmetic = opcode;
+				}
+
+				final int target = opcode >= Opcode.ADD ? stackPointer - 1 : stackPointer;
+				final long a = operandStack[target];
+				final long result;
+				final boolean isExact;
+
+				switch (arithmetic) {
+					case Opcode.ADD:
+						result = a + b;
+						isExact = ((a ^ result) & (b ^ result)) >= 0;
+						break;
+					case Opcode.SUBTRACT:
+						result = a - b;
+						isExact = ((a ^ b) & (a ^ result)) >= 0;
+						break;
+					case Opcode.MULTIPLY:
+						result = a * b;
+						isExact = !multiplyOverflows(a, b, result);
+						break;
+					case Opcode.DIVIDE:
+						isExact = b != 0 && a % b == 0 && !(a == Long.MIN_VALUE && b == -1);
+						result = isExact ? a / b : 0;
+						break;
+					default:
+						// The general power goes through BigDecimalMath.
+						result = 0;
+						isExact = false;
+						break;
+				}
+
+				if (!isExact) {
+					return resume(slots, operandStack, stackPointer, locals, pc);
+				}
+
+				stackPointer = target;
+				operandStack[stackPointer] = result;
+			}
+		}
+
+		return BigDecimal.valueOf(operandStack[0]);
+	}
+
+	/**
+	 * Continues a program on BigDecimals from the given instruction, after the
+	 * integer fast path gave up.
+	 */
+	private BigDecimal resume(BigDecimal[] slots, long[] longStack, int stackPointer, long[] longLocals, int pc) {
+		final BigDecimal[] operandStack = new BigDecimal[stackDepth];
+		final BigDecimal[] locals = new BigDecimal[localCount];
+
+		for (int i = 0; i <= stackPointer; i++) {
+			operandStack[i] = BigDecimal.valueOf(longStack[i]);
+		}
+
+		// Locals that haven't been stored yet are stored before they're read.
+		for (int i = 0; i < localCount; i++) {
+			locals[i] = BigDecimal.valueOf(longLocals[i]);
+		}
+
+		return execute(slots, operandStack, stackPointer, locals, pc);
+	}
+
+	/**
+	 * Runs the program from the given instruction, with the given state.
+	 */
+	private BigDecimal execute(BigDecimal[] slots, BigDecimal[] operandStack, int stackPointer, BigDecimal[] locals,
+			int startPc) {
+		for (int pc = startPc; pc < opcodes.length; pc++) {
+			switch (opcodes[pc]) {
+				case Opcode.LOAD_VARIABLE:
+					operandStack[++stackPointer] = slots[operands[pc]];
 					break;
-				case FlatToken.TYPE_PREDEF_FUNCTION:
-					if (token.typeEnum == FlatToken.FUNCTION_POW) {
-						final BigDecimal b = operandStack[stackPointer--];
-						final BigDecimal a = operandStack[stackPointer--];
-						operandStack[++stackPointer] = new BigDecimal(Math.pow(a.doubleValue(), b.doubleValue()));
-					} else {
-						final BigDecimal a = operandStack[stackPointer--];
-
-						switch (token.typeEnum) {
-							case FlatToken.FUNCTION_ABS:
-								operandStack[++stackPointer] = a.abs();
-								break;
-							case FlatToken.FUNCTION_SIN:
-								operandStack[++stackPointer] = new BigDecimal(Math.sin(a.doubleValue()));
-								break;
-							case FlatToken.FUNCTION_COS:
-								operandStack[++stackPointer] = new BigDecimal(Math.cos(a.doubleValue()));
-								break;
-							case FlatToken.FUNCTION_TAN:
-								operandStack[++stackPointer] = new BigDecimal(Math.tan(a.doubleValue()));
-								break;
-							case FlatToken.FUNCTION_LN:
-								operandStack[++stackPointer] = new BigDecimal(Math.log(a.doubleValue()));
-								break;
-							case FlatToken.FUNCTION_SQRT:
-								operandStack[++stackPointer] = new BigDecimal(Math.sqrt(a.doubleValue()));
-								break;
-						}
+				case Opcode.LOAD_CONSTANT:
+					operandStack[++stackPointer] = constants[operands[pc]];
+					break;
+				case Opcode.LOAD_LOCAL:
+					operandStack[++stackPointer] = locals[operands[pc]];
+					break;
+				case Opcode.STORE_LOCAL:
+					locals[operands[pc]] = operandStack[stackPointer];
+					break;
+				case Opcode.NEGATE:
+					operandStack[stackPointer] = operandStack[stackPointer].negate();
+					break;
+				case Opcode.ABS:
+					operandStack[stackPointer] = operandStack[stackPointer].abs();
+					break;
+				case Opcode.SIN:
+					operandStack[stackPointer] = BigDecimalMath.sin(operandStack[stackPointer], mathContext);
+					break;
+				case Opcode.COS:
+					operandStack[stackPointer] = BigDecimalMath.cos(operandStack[stackPointer], mathContext);
+					break;
+				case Opcode.TAN:
+					operandStack[stackPointer] = BigDecimalMath.tan(operandStack[stackPointer], mathContext);
+					break;
+				case Opcode.LN:
+					operandStack[stackPointer] = BigDecimalMath.ln(operandStack[stackPointer], mathContext);
+					break;
+				case Opcode.SQRT:
+					operandStack[stackPointer] = BigDecimalMath.sqrt(operandStack[stackPointer], mathContext);
+					break;
+				case Opcode.SQUARE:
+					operandStack[stackPointer] = operandStack[stackPointer].multiply(operandStack[stackPointer],
+							mathContext);
+					break;
+				case Opcode.RECIPROCAL:
+					operandStack[stackPointer] = BigDecimal.ONE.divide(operandStack[stackPointer], mathContext);
+					break;
+				case Opcode.POWER_HALF:
+					operandStack[stackPointer] = BigDecimalMath.sqrt(operandStack[stackPointer], mathContext);
+					break;
+				case Opcode.POWER_INTEGER:
+					operandStack[stackPointer] = operandStack[stackPointer].pow(operands[pc], mathContext);
+					break;
+				case Opcode.ADD_VARIABLE:
+					operandStack[stackPointer] = operandStack[stackPointer].add(slots[operands[pc]], mathContext);
+					break;
+				case Opcode.SUBTRACT_VARIABLE:
+					operandStack[stackPointer] = operandStack[stackPointer].subtract(slots[operands[pc]], mathContext);
+					break;
+				case Opcode.MULTIPLY_VARIABLE:
+					operandStack[stackPointer] = operandStack[stackPointer].multiply(slots[operands[pc]], mathContext);
+					break;
+				case Opcode.DIVIDE_VARIABLE:
+					operandStack[stackPointer] = operandStack[stackPointer].divide(slots[operands[pc]], mathContext);
+					break;
+				case Opcode.ADD_CONSTANT:
+					operandStack[stackPointer] = operandStack[stackPointer].add(constants[operands[pc]], mathContext);
+					break;
+				case Opcode.SUBTRACT_CONSTANT:
+					operandStack[stackPointer] = operandStack[stackPointer].subtract(constants[operands[pc]],
+							mathContext);
+					break;
+				case Opcode.MULTIPLY_CONSTANT:
+					operandStack[stackPointer] = operandStack[stackPointer].multiply(constants[operands[pc]],
+							mathContext);
+					break;
+				case Opcode.DIVIDE_CONSTANT:
+					operandStack[stackPointer] = operandStack[stackPointer].divide(constants[operands[pc]],
+							mathContext);
+					break;
+				default: {
+					final BigDecimal b = operandStack[stackPointer--];
+					final BigDecimal a = operandStack[stackPointer];
+
+					switch (opcodes[pc]) {
+						case Opcode.ADD:
+							operandStack[stackPointer] = a.add(b, mathContext);
+							break;
+						case Opcode.SUBTRACT:
+							operandStack[stackPointer] = a.subtract(b, mathContext);
+							break;
+						case Opcode.MULTIPLY:
+							operandStack[stackPointer] = a.multiply(b, mathContext);
+							break;
+						case Opcode.DIVIDE:
+							operandStack[stackPointer] = a.divide(b, mathContext);
+							break;
+						case Opcode.POWER:
+							operandStack[stackPointer] = power(a, b);
+							break;
 					}
 					break;
+				}
 			}
 		}
 
-		if (stackPointer != 0) {
-			stackPointer = -1;
-			throw new ParseException("Error evaluating expression");
+		return operandStack[0];
+	}
+
+	/**
+	 * Returns the exponent if raising to it uses
+	 * {@link BigDecimal#pow(int, MathContext)}, as {@link Opcode#POWER_INTEGER}
+	 * does, or -1 if it goes through {@link BigDecimalMath#pow}.
+	 */
+	static int integerExponent(BigDecimal exponent) {
+		if (exponent.signum() == 0) {
+			return 0;
+		} else if (exponent.signum() < 0 || exponent.compareTo(BigDecimal.valueOf(MAX_INTEGER_EXPONENT)) > 0
+				|| exponent.stripTrailingZeros().scale() > 0) {
+			return -1;
+		} else {
+			return exponent.intValue();
 		}
+	}
+
+	private BigDecimal power(BigDecimal a, BigDecimal b) {
+		final int exponent = integerExponent(b);
+		return exponent >= 0 ? a.pow(exponent, mathContext) : BigDecimalMath.pow(a, b, mathContext);
+	}
+
+	/**
+	 * Returns true if the value can be used on the integer fast path. Checking
+	 * the precision rather than the bit length of the unscaled value avoids
+	 * allocating; 19 digit integers are left to the BigDecimal loop.
+	 */
+	private static boolean isLongValue(BigDecimal value) {
+		return value.scale() == 0 && value.precision() <= MAX_LONG_DIGITS;
+	}
 
-		return operandStack[stackPointer--];
+	private static boolean multiplyOverflows(long a, long b, long product) {
+		// Operands that fit in 31 bits can't overflow.
+		return ((Math.abs(a) | Math.abs(b)) >>> 31 != 0)
+				&& ((b != 0 && product / b != a) || (a == Long.MIN_VALUE && b == -1));
 	}
 }
@@ -0,0 +1,447 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.digipom.android.library.evaluator.ClassFileWriter.ByteCode;
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Translates a postfix program into a generated JVM class, so that the JIT
+ * can compile the whole expression as straight-line code: constants are
+ * inlined, {@link Math} is called directly and intermediate values live on the
+ * JVM operand stack or in JVM locals instead of in an array.
+ * <p>
+ * Dalvik and ART can't load JVM class files at runtime. Where class generation
+ * isn't available, or the expression is too large for a single method, the
+ * returned function walks a closure tree instead, as with
+ * {@link Backend#CLOSURE_TREE}, and programs too deep for a closure tree are
+ * interpreted.
+ */
+public class BytecodeCompiler {
+	private static final String MATH = "java/lang/Math";
+	private static final String CLASS_NAME_PREFIX = "com.digipom.android.library.evaluator.generated.Expression";
+	private static final int MAX_CODE_LENGTH = 65535;
+	private static final int FIRST_LOCAL = 2;
+
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	private static class AvailabilityHolder {
+		static final boolean IS_AVAILABLE = checkAvailable();
+
+		private static boolean checkAvailable() {
+			try {
+				final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator("1");
+				return generate(evaluator, false) != null;
+			} catch (Throwable t) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if this runtime can load generated classes.
+	 */
+	public static boolean isAvailable() {
+		return AvailabilityHolder.IS_AVAILABLE;
+	}
+
+	public DoubleExpressionFunction compile(DoublePostfixEvaluator evaluator) throws ParseException {
+		if (isAvailable()) {
+			final Object generated = generate(evaluator, false);
+
+			if (generated != null) {
+				return (DoubleExpressionFunction) generated;
+			}
+		}
+
+		if (FunctionCompiler.isTooDeepForClosureTree(evaluator.compiledExpression)) {
+			return new FunctionCompiler.InterpretedDoubleFunction(evaluator);
+		}
+
+		return new DoubleClosureTree(evaluator.compiledExpression);
+	}
+
+	public FloatExpressionFunction compile(FloatPostfixEvaluator evaluator) throws ParseException {
+		if (isAvailable()) {
+			final Object generated = generate(evaluator, true);
+
+			if (generated != null) {
+				return (FloatExpressionFunction) generated;
+			}
+		}
+
+		if (FunctionCompiler.isTooDeepForClosureTree(evaluator.compiledExpression)) {
+			return new FunctionCompiler.InterpretedFloatFunction(evaluator);
+		}
+
+		return new FloatClosureTree(evaluator.compiledExpression);
+	}
+
+	/**
+	 * Returns a new instance of the generated class, or null if the program
+	 * couldn't be turned into a class.
+	 */
+	private static Object generate(PostfixEvaluator evaluator, boolean isFloat) {
+		try {
+			final String className = CLASS_NAME_PREFIX + classCounter.incrementAndGet();
+			final Class<?> functionInterface = isFloat ? FloatExpressionFunction.class : DoubleExpressionFunction.class;
+			final ClassFileWriter writer = new ClassFileWriter(className.replace('.', '/'),
+					functionInterface.getName().replace('.', '/'));
+			final ByteCode code = new ByteCode();
+
+			final CompiledExpression program = evaluator.compiledExpression;
+
+			for (int pc = 0; pc < program.opcodes.length; pc++) {
+				if (isFloat) {
+					emitFloat(writer, code, program, program.opcodes[pc], program.operands[pc]);
+				} else {
+					emitDouble(writer, code, program, program.opcodes[pc], program.operands[pc]);
+				}
+			}
+
+			code.op(isFloat ? ByteCode.FRETURN : ByteCode.DRETURN);
+
+			if (code.size() > MAX_CODE_LENGTH) {
+				return null;
+			}
+
+			// Doubles take two stack words, and loading a variable briefly
+			// needs two more for the array and index. The float pow sequence
+			// needs room to widen both operands. Locals 0 and 1 are this and
+			// the variables array, and the last local is scratch space for
+			// integer powers.
+			final int maxStack = 2 * evaluator.stackDepth + 4;
+			final int maxLocals = FIRST_LOCAL + (isFloat ? 1 : 2) * (evaluator.localCount + 1);
+			writer.addMethod("apply", isFloat ? "([F)F" : "([D)D", code, maxStack, maxLocals);
+
+			final byte[] classBytes = writer.toByteArray();
+			return new GeneratedClassLoader().define(className, classBytes).getDeclaredConstructor().newInstance();
+		} catch (IOException e) {
+			return null;
+		} catch (InstantiationException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (InvocationTargetException e) {
+			return null;
+		} catch (UnsupportedOperationException e) {
+			// Thrown by Dalvik's ClassLoader.defineClass().
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	private static void emitDouble(ClassFileWriter writer, ByteCode code, CompiledExpression program, int opcode,
+			int operand) throws IOException {
+		final int scratchLocal = FIRST_LOCAL + 2 * program.localCount;
+
+		switch (opcode) {
+			case Opcode.LOAD_VARIABLE:
+				code.op(ByteCode.ALOAD_1);
+				code.pushInt(operand);
+				code.op(ByteCode.DALOAD);
+				break;
+			case Opcode.LOAD_CONSTANT:
+				pushDouble(writer, code, program.doubleConstants[operand]);
+				break;
+			case Opcode.LOAD_LOCAL:
+				code.local(ByteCode.DLOAD, FIRST_LOCAL + 2 * operand);
+				break;
+			case Opcode.STORE_LOCAL:
+				code.op(ByteCode.DUP2);
+				code.local(ByteCode.DSTORE, FIRST_LOCAL + 2 * operand);
+				break;
+			case Opcode.NEGATE:
+				code.op(ByteCode.DNEG);
+				break;
+			case Opcode.ABS:
+				invokeMath(writer, code, "abs", "(D)D");
+				break;
+			case Opcode.SQUARE:
+				code.op(ByteCode.DUP2);
+				code.op(ByteCode.DMUL);
+				break;
+			case Opcode.RECIPROCAL:
+				code.op(ByteCode.DCONST_1);
+				code.op(ByteCode.DUP2_X2);
+				code.op(ByteCode.POP2);
+				code.op(ByteCode.DDIV);
+				break;
+			case Opcode.POWER_HALF: {
+				// x == -Infinity ? Infinity : sqrt(x + 0), as in powerHalf().
+				code.op(ByteCode.DUP2);
+				pushDouble(writer, code, Double.NEGATIVE_INFINITY);
+				code.op(ByteCode.DCMPL);
+				final int notInfinite = code.branch(ByteCode.IFNE);
+				code.op(ByteCode.POP2);
+				pushDouble(writer, code, Double.POSITIVE_INFINITY);
+				final int end = code.branch(ByteCode.GOTO);
+				code.bindBranch(notInfinite);
+				code.op(ByteCode.DCONST_0);
+				code.op(ByteCode.DADD);
+				invokeMath(writer, code, "sqrt", "(D)D");
+				code.bindBranch(end);
+				break;
+			}
+			case Opcode.POWER_INTEGER:
+				emitPowerInteger(code, operand, scratchLocal, ByteCode.DLOAD, ByteCode.DSTORE, ByteCode.DUP2,
+						ByteCode.DMUL);
+				break;
+			case Opcode.ADD_VARIABLE:
+			case Opcode.SUBTRACT_VARIABLE:
+			case Opcode.MULTIPLY_VARIABLE:
+			case Opcode.DIVIDE_VARIABLE:
+				emitDouble(writer, code, program, Opcode.LOAD_VARIABLE, operand);
+				emitDouble(writer, code, program, Opcode.ADD + opcode - Opcode.ADD_VARIABLE, 0);
+				break;
+			case Opcode.ADD_CONSTANT:
+			case Opcode.SUBTRACT_CONSTANT:
+			case Opcode.MULTIPLY_CONSTANT:
+			case Opcode.DIVIDE_CONSTANT:
+				emitDouble(writer, code, program, Opcode.LOAD_CONSTANT, operand);
+				emitDouble(writer, code, program, Opcode.ADD + opcode - Opcode.ADD_CONSTANT, 0);
+				break;
+			case Opcode.ADD:
+				code.op(ByteCode.DADD);
+				break;
+			case Opcode.SUBTRACT:
+				code.op(ByteCode.DSUB);
+				break;
+			case Opcode.MULTIPLY:
+				code.op(ByteCode.DMUL);
+				break;
+			case Opcode.DIVIDE:
+				code.op(ByteCode.DDIV);
+				break;
+			case Opcode.POWER:
+				invokeMath(writer, code, "pow", "(DD)D");
+				break;
+			default:
+				invokeMath(writer, code, mathMethodName(opcode), "(D)D");
+				break;
+		}
+	}
+
+	private static void emitFloat(ClassFileWriter writer, ByteCode code, CompiledExpression program, int opcode,
+			int operand) throws IOException {
+		final int scratchLocal = FIRST_LOCAL + program.localCount;
+
+		switch (opcode) {
+			case Opcode.LOAD_VARIABLE:
+				code.op(ByteCode.ALOAD_1);
+				code.pushInt(operand);
+				code.op(ByteCode.FALOAD);
+				break;
+			case Opcode.LOAD_CONSTANT:
+				pushFloat(writer, code, program.floatConstants[operand]);
+				break;
+			case Opcode.LOAD_LOCAL:
+				code.local(ByteCode.FLOAD, FIRST_LOCAL + operand);
+				break;
+			case Opcode.STORE_LOCAL:
+				code.op(ByteCode.DUP);
+				code.local(ByteCode.FSTORE, FIRST_LOCAL + operand);
+				break;
+			case Opcode.NEGATE:
+				code.op(ByteCode.FNEG);
+				break;
+			case Opcode.ABS:
+				invokeMath(writer, code, "abs", "(F)F");
+				break;
+			case Opcode.SQUARE:
+				code.op(ByteCode.DUP);
+				code.op(ByteCode.FMUL);
+				break;
+			case Opcode.RECIPROCAL:
+				code.op(ByteCode.FCONST_1);
+				code.op(ByteCode.SWAP);
+				code.op(ByteCode.FDIV);
+				break;
+			case Opcode.POWER_HALF: {
+				code.op(ByteCode.DUP);
+				pushFloat(writer, code, Float.NEGATIVE_INFINITY);
+				code.op(ByteCode.FCMPL);
+				final int notInfinite = code.branch(ByteCode.IFNE);
+				code.op(ByteCode.POP);
+				pushFloat(writer, code, Float.POSITIVE_INFINITY);
+				final int end = code.branch(ByteCode.GOTO);
+				code.bindBranch(notInfinite);
+				code.op(ByteCode.FCONST_0);
+				code.op(ByteCode.FADD);
+				code.op(ByteCode.F2D);
+				invokeMath(writer, code, "sqrt", "(D)D");
+				code.op(ByteCode.D2F);
+				code.bindBranch(end);
+				break;
+			}
+			case Opcode.POWER_INTEGER:
+				emitPowerInteger(code, operand, scratchLocal, ByteCode.FLOAD, ByteCode.FSTORE, ByteCode.DUP,
+						ByteCode.FMUL);
+				break;
+			case Opcode.ADD_VARIABLE:
+			case Opcode.SUBTRACT_VARIABLE:
+			case Opcode.MULTIPLY_VARIABLE:
+			case Opcode.DIVIDE_VARIABLE:
+				emitFloat(writer, code, program, Opcode.LOAD_VARIABLE, operand);
+				emitFloat(writer, code, program, Opcode.ADD + opcode - Opcode.ADD_VARIABLE, 0);
+				break;
+			case Opcode.ADD_CONSTANT:
+			case Opcode.SUBTRACT_CONSTANT:
+			case Opcode.MULTIPLY_CONSTANT:
+			case Opcode.DIVIDE_CONSTANT:
+				emitFloat(writer, code, program, Opcode.LOAD_CONSTANT, operand);
+				emitFloat(writer, code, program, Opcode.ADD + opcode - Opcode.ADD_CONSTANT, 0);
+				break;
+			case Opcode.ADD:
+				code.op(ByteCode.FADD);
+				break;
+			case Opcode.SUBTRACT:
+				code.op(ByteCode.FSUB);
+				break;
+			case Opcode.MULTIPLY:
+				code.op(ByteCode.FMUL);
+				break;
+			case Opcode.DIVIDE:
+				code.op(ByteCode.FDIV);
+				break;
+			case Opcode.POWER:
+				emitFloatPow(writer, code);
+				break;
+			default:
+				// Same as the interpreter: widen, call Math, narrow.
+				code.op(ByteCode.F2D);
+				invokeMath(writer, code, mathMethodName(opcode), "(D)D");
+				code.op(ByteCode.D2F);
+				break;
+		}
+	}
+
+	private static void pushDouble(ClassFileWriter writer, ByteCode code, double value) throws IOException {
+		if (Double.doubleToRawLongBits(value) == 0L) {
+			code.op(ByteCode.DCONST_0);
+		} else if (value == 1.0) {
+			code.op(ByteCode.DCONST_1);
+		} else {
+			code.op(ByteCode.LDC2_W);
+			code.u2(writer.doubleConstant(value));
+		}
+	}
+
+	private static void pushFloat(ClassFileWriter writer, ByteCode code, float value) throws IOException {
+		if (Float.floatToRawIntBits(value) == 0) {
+			code.op(ByteCode.FCONST_0);
+		} else if (value == 1.0f) {
+			code.op(ByteCode.FCONST_1);
+		} else if (value == 2.0f) {
+			code.op(ByteCode.FCONST_2);
+		} else {
+			final int index = writer.floatConstant(value);
+
+			if (index <= 0xff) {
+				code.op(ByteCode.LDC);
+				code.u1(index);
+			} else {
+				code.op(ByteCode.LDC_W);
+				code.u2(index);
+			}
+		}
+	}
+
+	/**
+	 * Emits the same sequence of multiplications as powerInteger() in the
+	 * interpreters, keeping the base in a scratch local.
+	 */
+	private static void emitPowerInteger(ByteCode code, int exponent, int scratchLocal, int load, int store, int dup,
+			int multiply) {
+		code.local(store, scratchLocal);
+		boolean hasResult = false;
+
+		while (true) {
+			if ((exponent & 1) != 0) {
+				code.local(load, scratchLocal);
+
+				if (hasResult) {
+					code.op(multiply);
+				}
+
+				hasResult = true;
+			}
+
+			exponent >>= 1;
+
+			if (exponent == 0) {
+				break;
+			}
+
+			code.local(load, scratchLocal);
+			code.op(dup);
+			code.op(multiply);
+			code.local(store, scratchLocal);
+		}
+	}
+
+	private static void emitFloatPow(ClassFileWriter writer, ByteCode code) throws IOException {
+		// Stack is a, b as floats. Widen b, tuck it under a, widen a and swap
+		// the two doubles back into order.
+		code.op(ByteCode.F2D);
+		code.op(ByteCode.DUP2_X1);
+		code.op(ByteCode.POP2);
+		code.op(ByteCode.F2D);
+		code.op(ByteCode.DUP2_X2);
+		code.op(ByteCode.POP2);
+		invokeMath(writer, code, "pow", "(DD)D");
+		code.op(ByteCode.D2F);
+	}
+
+	private static String mathMethodName(int opcode) {
+		switch (opcode) {
+			case Opcode.SIN:
+				return "sin";
+			case Opcode.COS:
+				return "cos";
+			case Opcode.TAN:
+				return "tan";
+			case Opcode.LN:
+				return "log";
+			case Opcode.SQRT:
+				return "sqrt";
+			default:
+				throw new IllegalArgumentException("Unexpected opcode " + opcode);
+		}
+	}
+
+	private static void invokeMath(ClassFileWriter writer, ByteCode code, String name, String descriptor)
+			throws IOException {
+		code.op(ByteCode.INVOKESTATIC);
+		code.u2(writer.methodConstant(MATH, name, descriptor));
+	}
+
+	private static class GeneratedClassLoader extends ClassLoader {
+		GeneratedClassLoader() {
+			super(BytecodeCompiler.class.getClassLoader());
+		}
+
+		Class<?> define(String className, byte[] classBytes) {
+			return defineClass(className, classBytes, 0, classBytes.length);
+		}
+	}
+}
@@ -0,0 +1,341 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of the JVM class file format to emit a final class with a
+ * default constructor and simple methods. The class is written with the Java 5
+ * class file version, so branches don't need stack map frames.
+ */
+class ClassFileWriter {
+	private static final int MAGIC = 0xCAFEBABE;
+	private static final int MAJOR_VERSION = 49;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+
+	private static final String OBJECT = "java/lang/Object";
+
+	private final ByteArrayOutputStream constantPoolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream constantPool = new DataOutputStream(constantPoolBytes);
+	private final Map<String, Integer> constantIndices = new HashMap<String, Integer>();
+	private int constantCount = 1;
+
+	private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+	private final DataOutputStream methods = new DataOutputStream(methodBytes);
+	private int methodCount;
+
+	private final int thisClass;
+	private final int superClass;
+	private final int interfaceClass;
+
+	ClassFileWriter(String internalName, String interfaceInternalName) throws IOException {
+		thisClass = classConstant(internalName);
+		superClass = classConstant(OBJECT);
+		interfaceClass = classConstant(interfaceInternalName);
+
+		final ByteCode constructor = new ByteCode();
+		constructor.op(ByteCode.ALOAD_0);
+		constructor.op(ByteCode.INVOKESPECIAL);
+		constructor.u2(methodConstant(OBJECT, "<init>", "()V"));
+		constructor.op(ByteCode.RETURN);
+		addMethod("<init>", "()V", constructor, 1, 1);
+	}
+
+	int utf8Constant(String value) throws IOException {
+		final String key = "U" + value;
+		Integer index = constantIndices.get(key);
+
+		if (index == null) {
+			constantPool.writeByte(CONSTANT_UTF8);
+			constantPool.writeUTF(value);
+			index = register(key, 1);
+		}
+
+		return index;
+	}
+
+	int classConstant(String internalName) throws IOException {
+		final String key = "C" + internalName;
+		Integer index = constantIndices.get(key);
+
+		if (index == null) {
+			final int nameIndex = utf8Constant(internalName);
+			constantPool.writeByte(CONSTANT_CLASS);
+			constantPool.writeShort(nameIndex);
+			index = register(key, 1);
+		}
+
+		return index;
+	}
+
+	int methodConstant(String owner, String name, String descriptor) throws IOException {
+		final String key = "M" + owner + '.' + name + descriptor;
+		Integer index = constantIndices.get(key);
+
+		if (index == null) {
+			final int ownerIndex = classConstant(owner);
+			final int nameIndex = utf8Constant(name);
+			final int descriptorIndex = utf8Constant(descriptor);
+
+			constantPool.writeByte(CONSTANT_NAME_AND_TYPE);
+			constantPool.writeShort(nameIndex);
+			constantPool.writeShort(descriptorIndex);
+			final int nameAndTypeIndex = register("N" + name + descriptor, 1);
+
+			constantPool.writeByte(CONSTANT_METHODREF);
+			constantPool.writeShort(ownerIndex);
+			constantPool.writeShort(nameAndTypeIndex);
+			index = register(key, 1);
+		}
+
+		return index;
+	}
+
+	int doubleConstant(double value) throws IOException {
+		final String key = "D" + Double.doubleToRawLongBits(value);
+		Integer index = constantIndices.get(key);
+
+		if (index == null) {
+			constantPool.writeByte(CONSTANT_DOUBLE);
+			constantPool.writeDouble(value);
+			// Doubles take up two constant pool entries.
+			index = register(key, 2);
+		}
+
+		return index;
+	}
+
+	int floatConstant(float value) throws IOException {
+		final String key = "F" + Float.floatToRawIntBits(value);
+		Integer index = constantIndices.get(key);
+
+		if (index == null) {
+			constantPool.writeByte(CONSTANT_FLOAT);
+			constantPool.writeFloat(value);
+			index = register(key, 1);
+		}
+
+		return index;
+	}
+
+	private int register(String key, int size) {
+		final int index = constantCount;
+		constantCount += size;
+		constantIndices.put(key, index);
+		return index;
+	}
+
+	void addMethod(String name, String descriptor, ByteCode code, int maxStack, int maxLocals) throws IOException {
+		final int nameIndex = utf8Constant(name);
+		final int descriptorIndex = utf8Constant(descriptor);
+		final int codeAttributeIndex = utf8Constant("Code");
+		final byte[] codeBytes = code.toByteArray();
+
+		methods.writeShort(ACC_PUBLIC);
+		methods.writeShort(nameIndex);
+		methods.writeShort(descriptorIndex);
+		methods.writeShort(1);
+
+		methods.writeShort(codeAttributeIndex);
+		methods.writeInt(12 + codeBytes.length);
+		methods.writeShort(maxStack);
+		methods.writeShort(maxLocals);
+		methods.writeInt(codeBytes.length);
+		methods.write(codeBytes);
+		// No exception table and no code attributes.
+		methods.writeShort(0);
+		methods.writeShort(0);
+
+		methodCount++;
+	}
+
+	byte[] toByteArray() throws IOException {
+		final ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(classBytes);
+
+		out.writeInt(MAGIC);
+		out.writeShort(0);
+		out.writeShort(MAJOR_VERSION);
+		out.writeShort(constantCount);
+		constantPoolBytes.writeTo(out);
+		out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(interfaceClass);
+		// No fields.
+		out.writeShort(0);
+		out.writeShort(methodCount);
+		methodBytes.writeTo(out);
+		// No class attributes.
+		out.writeShort(0);
+		out.flush();
+
+		return classBytes.toByteArray();
+	}
+
+	/** A method body under construction. */
+	static class ByteCode {
+		static final int ICONST_0 = 0x03;
+		static final int FCONST_0 = 0x0b;
+		static final int FCONST_1 = 0x0c;
+		static final int FCONST_2 = 0x0d;
+		static final int DCONST_0 = 0x0e;
+		static final int DCONST_1 = 0x0f;
+		static final int BIPUSH = 0x10;
+		static final int SIPUSH = 0x11;
+		static final int LDC = 0x12;
+		static final int LDC_W = 0x13;
+		static final int LDC2_W = 0x14;
+		static final int FLOAD = 0x17;
+		static final int DLOAD = 0x18;
+		static final int ALOAD_0 = 0x2a;
+		static final int ALOAD_1 = 0x2b;
+		static final int FALOAD = 0x30;
+		static final int DALOAD = 0x31;
+		static final int FSTORE = 0x38;
+		static final int DSTORE = 0x39;
+		static final int POP = 0x57;
+		static final int POP2 = 0x58;
+		static final int DUP = 0x59;
+		static final int DUP2 = 0x5c;
+		static final int DUP2_X1 = 0x5d;
+		static final int DUP2_X2 = 0x5e;
+		static final int SWAP = 0x5f;
+		static final int FADD = 0x62;
+		static final int DADD = 0x63;
+		static final int FSUB = 0x66;
+		static final int DSUB = 0x67;
+		static final int FMUL = 0x6a;
+		static final int DMUL = 0x6b;
+		static final int FDIV = 0x6e;
+		static final int DDIV = 0x6f;
+		static final int FNEG = 0x76;
+		static final int DNEG = 0x77;
+		static final int F2D = 0x8d;
+		static final int D2F = 0x90;
+		static final int FCMPL = 0x95;
+		static final int DCMPL = 0x97;
+		static final int IFNE = 0x9a;
+		static final int GOTO = 0xa7;
+		static final int FRETURN = 0xae;
+		static final int DRETURN = 0xaf;
+		static final int RETURN = 0xb1;
+		static final int INVOKESPECIAL = 0xb7;
+		static final int INVOKESTATIC = 0xb8;
+		static final int WIDE = 0xc4;
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final List<Integer> branchPositions = new ArrayList<Integer>();
+		private final List<Integer> branchTargets = new ArrayList<Integer>();
+
+		void op(int opcode) {
+			bytes.write(opcode);
+		}
+
+		void u1(int value) {
+			bytes.write(value);
+		}
+
+		void u2(int value) {
+			bytes.write(value >>> 8);
+			bytes.write(value);
+		}
+
+		void pushInt(int value) {
+			if (value >= 0 && value <= 5) {
+				op(ICONST_0 + value);
+			} else if (value <= Byte.MAX_VALUE) {
+				op(BIPUSH);
+				u1(value);
+			} else if (value <= Short.MAX_VALUE) {
+				op(SIPUSH);
+				u2(value);
+			} else {
+				throw new IllegalArgumentException("Too many variables: " + value);
+			}
+		}
+
+		/**
+		 * Emits a load or store of a local variable, widening the index if
+		 * it doesn't fit in a byte.
+		 */
+		void local(int opcode, int index) {
+			if (index <= 0xff) {
+				op(opcode);
+				u1(index);
+			} else {
+				op(WIDE);
+				op(opcode);
+				u2(index);
+			}
+		}
+
+		/**
+		 * Emits a branch with its target left blank, and returns its position
+		 * for {@link #bindBranch(int)}.
+		 */
+		int branch(int opcode) {
+			final int position = size();
+			op(opcode);
+			u2(0);
+			branchPositions.add(position);
+			branchTargets.add(-1);
+			return position;
+		}
+
+		/**
+		 * Points the branch at the given position to the next instruction
+		 * emitted.
+		 */
+		void bindBranch(int position) {
+			branchTargets.set(branchPositions.indexOf(position), size());
+		}
+
+		int size() {
+			return bytes.size();
+		}
+
+		byte[] toByteArray() {
+			final byte[] code = bytes.toByteArray();
+
+			for (int i = 0; i < branchPositions.size(); i++) {
+				final int position = branchPositions.get(i);
+				final int offset = branchTargets.get(i) - position;
+				code[position + 1] = (byte) (offset >>> 8);
+				code[position + 2] = (byte) offset;
+			}
+
+			return code;
+		}
+	}
+}
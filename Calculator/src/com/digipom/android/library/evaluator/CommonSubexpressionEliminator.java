@@ -0,0 +1,108 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
+
+/**
+ * Lowers an expression tree to a postfix program that evaluates each distinct
+ * subexpression once. Identical subtrees are merged into a single node, the
+ * first evaluation of a node that is used more than once is stored into a
+ * local, and later uses read the local back.
+ * <p>
+ * Identifiers and literals are cheaper to push again than to store, so they
+ * are never given locals.
+ */
+class CommonSubexpressionEliminator {
+	private final Map<ExpressionNode, ExpressionNode> canonicalNodes = new HashMap<ExpressionNode, ExpressionNode>();
+	private final Map<ExpressionNode, Integer> useCounts = new IdentityHashMap<ExpressionNode, Integer>();
+	private final Map<ExpressionNode, Integer> locals = new IdentityHashMap<ExpressionNode, Integer>();
+	private final List<FlatToken> postfixExpression = new ArrayList<FlatToken>();
+
+	FlatToken[] toPostfix(ExpressionNode root) {
+		final ExpressionNode dag = intern(root);
+		countUses(dag);
+		emit(dag);
+		return postfixExpression.toArray(new FlatToken[postfixExpression.size()]);
+	}
+
+	int getLocalCount() {
+		return locals.size();
+	}
+
+	private ExpressionNode intern(ExpressionNode node) {
+		final ExpressionNode left = node.left != null ? intern(node.left) : null;
+		final ExpressionNode right = node.right != null ? intern(node.right) : null;
+		final ExpressionNode rebuilt = left == node.left && right == node.right ? node : new ExpressionNode(
+				node.token, left, right);
+		final ExpressionNode canonical = canonicalNodes.get(rebuilt);
+
+		if (canonical != null) {
+			return canonical;
+		} else {
+			canonicalNodes.put(rebuilt, rebuilt);
+			return rebuilt;
+		}
+	}
+
+	private void countUses(ExpressionNode node) {
+		final Integer useCount = useCounts.get(node);
+
+		if (useCount != null) {
+			useCounts.put(node, useCount + 1);
+		} else {
+			useCounts.put(node, 1);
+
+			if (node.left != null) {
+				countUses(node.left);
+			}
+
+			if (node.right != null) {
+				countUses(node.right);
+			}
+		}
+	}
+
+	private void emit(ExpressionNode node) {
+		final Integer local = locals.get(node);
+
+		if (local != null) {
+			postfixExpression.add(FlatToken.newLoadLocal(local));
+			return;
+		}
+
+		if (node.left != null) {
+			emit(node.left);
+		}
+
+		if (node.right != null) {
+			emit(node.right);
+		}
+
+		postfixExpression.add(node.token);
+
+		if (node.left != null && useCounts.get(node) > 1) {
+			final int newLocal = locals.size();
+			locals.put(node, newLocal);
+			postfixExpression.add(FlatToken.newStoreLocal(newLocal));
+		}
+	}
+}
@@ -0,0 +1,603 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * An immutable postfix program produced by {@link ExpressionCompiler}. A
+ * compiled expression is never modified after construction, so it can be
+ * shared between threads. Variables are bound by slot at evaluation time, and
+ * evaluation scratch space is allocated per call.
+ * <p>
+ * The program is stored as parallel arrays: an {@link Opcode} and an operand
+ * per instruction, and a pool of the literals it loads in the target
+ * precision. The program is checked once when it's encoded, so evaluators
+ * don't have to check the stack as they run.
+ */
+public final class CompiledExpression {
+	private static final float[] NO_FLOAT_CONSTANTS = new float[0];
+	private static final double[] NO_DOUBLE_CONSTANTS = new double[0];
+	private static final BigDecimal[] NO_BIG_DECIMAL_CONSTANTS = new BigDecimal[0];
+
+	final NumberPrecision numberPrecision;
+	final int[] opcodes;
+	final int[] operands;
+	final float[] floatConstants;
+	final double[] doubleConstants;
+	final BigDecimal[] bigDecimalConstants;
+	final String[] variableNames;
+	final int localCount;
+	final int maxStackDepth;
+	final int removedNodeCount;
+	/** True if the program may use rewrites that aren't exact in its precision. */
+	final boolean relaxedMath;
+
+	private CompiledExpression(NumberPrecision numberPrecision, int[] opcodes, int[] operands,
+			float[] floatConstants, double[] doubleConstants, BigDecimal[] bigDecimalConstants,
+			String[] variableNames, int localCount, int maxStackDepth, int removedNodeCount, boolean relaxedMath) {
+		this.numberPrecision = numberPrecision;
+		this.opcodes = opcodes;
+		this.operands = operands;
+		this.floatConstants = floatConstants;
+		this.doubleConstants = doubleConstants;
+		this.bigDecimalConstants = bigDecimalConstants;
+		this.variableNames = variableNames;
+		this.localCount = localCount;
+		this.maxStackDepth = maxStackDepth;
+		this.removedNodeCount = removedNodeCount;
+		this.relaxedMath = relaxedMath;
+	}
+
+	/**
+	 * Wraps a program that the caller has already checked as
+	 * {@link #encode} would. Null constant pools are taken to be empty.
+	 */
+	static CompiledExpression fromCheckedProgram(NumberPrecision numberPrecision, int[] opcodes, int[] operands,
+			float[] floatConstants, double[] doubleConstants, BigDecimal[] bigDecimalConstants,
+			String[] variableNames, int maxStackDepth) {
+		return new CompiledExpression(numberPrecision, opcodes, operands,
+				floatConstants == null ? NO_FLOAT_CONSTANTS : floatConstants,
+				doubleConstants == null ? NO_DOUBLE_CONSTANTS : doubleConstants,
+				bigDecimalConstants == null ? NO_BIG_DECIMAL_CONSTANTS : bigDecimalConstants, variableNames, 0,
+				maxStackDepth, 0, false);
+	}
+
+	/**
+	 * Wraps a program that was read from outside the evaluator, checking it
+	 * as {@link #encode} would, and also that its opcodes and operands are
+	 * valid. Null constant pools are taken to be empty.
+	 */
+	static CompiledExpression fromUncheckedProgram(NumberPrecision numberPrecision, int[] opcodes, int[] operands,
+			float[] floatConstants, double[] doubleConstants, BigDecimal[] bigDecimalConstants,
+			String[] variableNames, int localCount, int removedNodeCount, boolean relaxedMath) throws ParseException {
+		final float[] floatPool = floatConstants == null ? NO_FLOAT_CONSTANTS : floatConstants;
+		final double[] doublePool = doubleConstants == null ? NO_DOUBLE_CONSTANTS : doubleConstants;
+		final BigDecimal[] bigDecimalPool = bigDecimalConstants == null ? NO_BIG_DECIMAL_CONSTANTS
+				: bigDecimalConstants;
+		final int constantCount = numberPrecision == NumberPrecision.BIG_DECIMAL ? bigDecimalPool.length
+				: (numberPrecision == NumberPrecision.DOUBLE ? doublePool.length : floatPool.length);
+
+		// Every local is stored by an instruction of its own.
+		if (localCount < 0 || localCount > opcodes.length) {
+			throw new ParseException("Bad local count " + localCount);
+		}
+
+		final boolean[] storedLocals = new boolean[localCount];
+		int depth = 0;
+		int maxDepth = 0;
+
+		for (int pc = 0; pc < opcodes.length; pc++) {
+			final int opcode = opcodes[pc];
+			final int operand = operands[pc];
+
+			if (opcode < 0 || opcode > Opcode.POWER) {
+				throw new ParseException("Unknown opcode " + opcode);
+			} else if (Opcode.readsVariable(opcode) && (operand < 0 || operand >= variableNames.length)) {
+				throw new ParseException("Unknown variable slot " + operand);
+			} else if (Opcode.readsConstant(opcode) && (operand < 0 || operand >= constantCount)) {
+				throw new ParseException("Unknown constant " + operand);
+			} else if (opcode == Opcode.POWER_INTEGER && operand < 0) {
+				throw new ParseException("Negative integer exponent " + operand);
+			} else if (opcode == Opcode.LOAD_LOCAL || opcode == Opcode.STORE_LOCAL) {
+				if (operand < 0 || operand >= localCount || (opcode == Opcode.LOAD_LOCAL && !storedLocals[operand])) {
+					throw new ParseException("Unknown local " + operand);
+				}
+				storedLocals[operand] = true;
+			} else if (!Opcode.hasOperand(opcode) && operand != 0) {
+				throw new ParseException("Unexpected operand " + operand);
+			}
+
+			if (depth < Opcode.operandCount(opcode)) {
+				throw new ParseException("Error evaluating expression");
+			}
+
+			depth += Opcode.stackEffect(opcode);
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		if (depth != 1) {
+			throw new ParseException("Error evaluating expression");
+		}
+
+		return new CompiledExpression(numberPrecision, opcodes, operands, floatPool, doublePool, bigDecimalPool,
+				variableNames, localCount, maxDepth, removedNodeCount, relaxedMath);
+	}
+
+	static CompiledExpression encode(NumberPrecision numberPrecision, FlatToken[] postfixExpression,
+			String[] variableNames) throws ParseException {
+		return encode(numberPrecision, postfixExpression, variableNames, 0, 0);
+	}
+
+	/**
+	 * Encodes the given postfix program, throwing if it would underflow the
+	 * stack, leave other than one value on it, or read a variable or local
+	 * that doesn't exist.
+	 */
+	static CompiledExpression encode(NumberPrecision numberPrecision, FlatToken[] postfixExpression,
+			String[] variableNames, int localCount, int removedNodeCount) throws ParseException {
+		final int[] opcodes = new int[postfixExpression.length];
+		final int[] operands = new int[postfixExpression.length];
+		final Map<Object, Integer> constantIndexes = new HashMap<Object, Integer>();
+		final boolean[] storedLocals = new boolean[localCount];
+		int depth = 0;
+		int maxDepth = 0;
+
+		for (int pc = 0; pc < postfixExpression.length; pc++) {
+			final FlatToken token = postfixExpression[pc];
+			final int opcode = opcodeFor(token);
+
+			switch (opcode) {
+				case Opcode.LOAD_VARIABLE:
+					if (token.slot < 0 || token.slot >= variableNames.length) {
+						throw new ParseException("Unknown variable slot " + token.slot);
+					}
+					operands[pc] = token.slot;
+					break;
+				case Opcode.LOAD_CONSTANT:
+					operands[pc] = constantIndexFor(token, numberPrecision, constantIndexes);
+					break;
+				case Opcode.STORE_LOCAL:
+				case Opcode.LOAD_LOCAL:
+					if (token.slot < 0 || token.slot >= localCount
+							|| (opcode == Opcode.LOAD_LOCAL && !storedLocals[token.slot])) {
+						throw new ParseException("Unknown local " + token.slot);
+					}
+					storedLocals[token.slot] = true;
+					operands[pc] = token.slot;
+					break;
+			}
+
+			if (depth < Opcode.operandCount(opcode)) {
+				throw new ParseException("Error evaluating expression");
+			}
+
+			opcodes[pc] = opcode;
+			depth += Opcode.stackEffect(opcode);
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		if (depth != 1) {
+			throw new ParseException("Error evaluating expression");
+		}
+
+		float[] floatConstants = NO_FLOAT_CONSTANTS;
+		double[] doubleConstants = NO_DOUBLE_CONSTANTS;
+		BigDecimal[] bigDecimalConstants = NO_BIG_DECIMAL_CONSTANTS;
+
+		switch (numberPrecision) {
+			case BIG_DECIMAL:
+				bigDecimalConstants = new BigDecimal[constantIndexes.size()];
+				for (final Map.Entry<Object, Integer> entry : constantIndexes.entrySet()) {
+					bigDecimalConstants[entry.getValue()] = (BigDecimal) entry.getKey();
+				}
+				break;
+			case DOUBLE:
+				doubleConstants = new double[constantIndexes.size()];
+				for (final Map.Entry<Object, Integer> entry : constantIndexes.entrySet()) {
+					doubleConstants[entry.getValue()] = Double.longBitsToDouble((Long) entry.getKey());
+				}
+				break;
+			case FLOAT:
+			default:
+				floatConstants = new float[constantIndexes.size()];
+				for (final Map.Entry<Object, Integer> entry : constantIndexes.entrySet()) {
+					floatConstants[entry.getValue()] = Float.intBitsToFloat((Integer) entry.getKey());
+				}
+				break;
+		}
+
+		return new CompiledExpression(numberPrecision, opcodes, operands, floatConstants, doubleConstants,
+				bigDecimalConstants, variableNames, localCount, maxDepth, removedNodeCount, false);
+	}
+
+	/**
+	 * Returns a copy of this expression running a rewritten program, which
+	 * must compute the same thing from the same variables and locals.
+	 */
+	CompiledExpression withProgram(int[] opcodes, int[] operands, float[] floatConstants, double[] doubleConstants,
+			BigDecimal[] bigDecimalConstants, boolean relaxedMath) {
+		int depth = 0;
+		int maxDepth = 0;
+
+		for (final int opcode : opcodes) {
+			depth += Opcode.stackEffect(opcode);
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		return new CompiledExpression(numberPrecision, opcodes, operands, floatConstants, doubleConstants,
+				bigDecimalConstants, variableNames, localCount, maxDepth, removedNodeCount, relaxedMath);
+	}
+
+	/**
+	 * Returns a copy of this expression that uses the given arrays, which must
+	 * be equal to its own, so that equal arrays can be shared.
+	 */
+	CompiledExpression withArrays(int[] opcodes, int[] operands, float[] floatConstants, double[] doubleConstants,
+			BigDecimal[] bigDecimalConstants, String[] variableNames) {
+		return new CompiledExpression(numberPrecision, opcodes, operands, floatConstants, doubleConstants,
+				bigDecimalConstants, variableNames, localCount, maxStackDepth, removedNodeCount, relaxedMath);
+	}
+
+	/**
+	 * Returns a copy of this expression that loads the given constants, which
+	 * must be as many as its own, in its precision. Null pools are taken to be
+	 * empty.
+	 */
+	CompiledExpression withConstants(float[] floatConstants, double[] doubleConstants,
+			BigDecimal[] bigDecimalConstants) {
+		return new CompiledExpression(numberPrecision, opcodes, operands,
+				floatConstants == null ? NO_FLOAT_CONSTANTS : floatConstants,
+				doubleConstants == null ? NO_DOUBLE_CONSTANTS : doubleConstants,
+				bigDecimalConstants == null ? NO_BIG_DECIMAL_CONSTANTS : bigDecimalConstants, variableNames,
+				localCount, maxStackDepth, removedNodeCount, relaxedMath);
+	}
+
+	/**
+	 * Returns this parsed BigDecimal program with its literals read in the
+	 * given precision instead, as the lexer would have read them. Literals
+	 * that round to the same value share a pool entry, as they would when
+	 * parsing, so the result matches parsing in that precision.
+	 */
+	CompiledExpression lowerTo(NumberPrecision targetPrecision) {
+		if (targetPrecision == numberPrecision) {
+			return this;
+		}
+
+		final int[] constantIndexes = new int[bigDecimalConstants.length];
+		float[] newFloatConstants = NO_FLOAT_CONSTANTS;
+		double[] newDoubleConstants = NO_DOUBLE_CONSTANTS;
+		int constantCount = 0;
+
+		if (targetPrecision == NumberPrecision.DOUBLE) {
+			newDoubleConstants = new double[bigDecimalConstants.length];
+		} else {
+			newFloatConstants = new float[bigDecimalConstants.length];
+		}
+
+		for (int i = 0; i < bigDecimalConstants.length; i++) {
+			// Parsing the decimal text rounds once, as the lexer does.
+			final String text = bigDecimalConstants[i].toString();
+			int index = 0;
+
+			if (targetPrecision == NumberPrecision.DOUBLE) {
+				final double value = Double.parseDouble(text);
+
+				while (index < constantCount
+						&& Double.doubleToRawLongBits(newDoubleConstants[index]) != Double.doubleToRawLongBits(value)) {
+					index++;
+				}
+
+				newDoubleConstants[index] = value;
+			} else {
+				final float value = Float.parseFloat(text);
+
+				while (index < constantCount
+						&& Float.floatToRawIntBits(newFloatConstants[index]) != Float.floatToRawIntBits(value)) {
+					index++;
+				}
+
+				newFloatConstants[index] = value;
+			}
+
+			constantIndexes[i] = index;
+			constantCount = Math.max(constantCount, index + 1);
+		}
+
+		final int[] newOperands = new int[operands.length];
+
+		for (int pc = 0; pc < opcodes.length; pc++) {
+			newOperands[pc] = Opcode.readsConstant(opcodes[pc]) ? constantIndexes[operands[pc]] : operands[pc];
+		}
+
+		if (targetPrecision == NumberPrecision.DOUBLE) {
+			final double[] usedDoubleConstants = new double[constantCount];
+			System.arraycopy(newDoubleConstants, 0, usedDoubleConstants, 0, constantCount);
+			newDoubleConstants = usedDoubleConstants;
+		} else {
+			final float[] usedFloatConstants = new float[constantCount];
+			System.arraycopy(newFloatConstants, 0, usedFloatConstants, 0, constantCount);
+			newFloatConstants = usedFloatConstants;
+		}
+
+		return new CompiledExpression(targetPrecision, opcodes, newOperands, newFloatConstants, newDoubleConstants,
+				NO_BIG_DECIMAL_CONSTANTS, variableNames, localCount, maxStackDepth, removedNodeCount, relaxedMath);
+	}
+
+	private static int opcodeFor(FlatToken token) throws ParseException {
+		switch (token.type) {
+			case FlatToken.TYPE_IDENTIFIER:
+				return Opcode.LOAD_VARIABLE;
+			case FlatToken.TYPE_NUMBER_LITERAL:
+				return Opcode.LOAD_CONSTANT;
+			case FlatToken.TYPE_LOAD_LOCAL:
+				return Opcode.LOAD_LOCAL;
+			case FlatToken.TYPE_STORE_LOCAL:
+				return Opcode.STORE_LOCAL;
+			case FlatToken.TYPE_OPERATOR:
+				switch (token.typeEnum) {
+					case FlatToken.OPERATOR_ADD:
+						return Opcode.ADD;
+					case FlatToken.OPERATOR_SUBTRACT:
+						return Opcode.SUBTRACT;
+					case FlatToken.OPERATOR_MULTIPLY:
+						return Opcode.MULTIPLY;
+					case FlatToken.OPERATOR_DIVIDE:
+						return Opcode.DIVIDE;
+					case FlatToken.OPERATOR_POWER:
+						return Opcode.POWER;
+					case FlatToken.OPERATOR_NEGATE:
+						return Opcode.NEGATE;
+				}
+				break;
+			case FlatToken.TYPE_PREDEF_FUNCTION:
+				switch (token.typeEnum) {
+					case FlatToken.FUNCTION_ABS:
+						return Opcode.ABS;
+					case FlatToken.FUNCTION_SIN:
+						return Opcode.SIN;
+					case FlatToken.FUNCTION_COS:
+						return Opcode.COS;
+					case FlatToken.FUNCTION_TAN:
+						return Opcode.TAN;
+					case FlatToken.FUNCTION_POW:
+						return Opcode.POWER;
+					case FlatToken.FUNCTION_LN:
+						return Opcode.LN;
+					case FlatToken.FUNCTION_SQRT:
+						return Opcode.SQRT;
+				}
+				break;
+		}
+
+		throw new ParseException("Unexpected token type " + token.type);
+	}
+
+	/**
+	 * Returns the pool index of a literal, adding it if it isn't already
+	 * there. Literals are pooled by bit pattern, or value and scale for
+	 * BigDecimal, so 0.0 and -0.0 stay distinct.
+	 */
+	private static int constantIndexFor(FlatToken token, NumberPrecision numberPrecision,
+			Map<Object, Integer> constantIndexes) {
+		final Object key;
+
+		switch (numberPrecision) {
+			case BIG_DECIMAL:
+				key = token.bigDecimalValue;
+				break;
+			case DOUBLE:
+				key = Double.doubleToRawLongBits(token.doubleValue);
+				break;
+			case FLOAT:
+			default:
+				key = Float.floatToRawIntBits(token.floatValue);
+				break;
+		}
+
+		Integer index = constantIndexes.get(key);
+
+		if (index == null) {
+			index = constantIndexes.size();
+			constantIndexes.put(key, index);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Decodes the program back into tokens, for passes that work on the
+	 * expression tree.
+	 */
+	FlatToken[] toPostfix() {
+		final List<FlatToken> postfixExpression = new ArrayList<FlatToken>(opcodes.length);
+
+		for (int pc = 0; pc < opcodes.length; pc++) {
+			final int operand = operands[pc];
+
+			switch (opcodes[pc]) {
+				case Opcode.LOAD_VARIABLE:
+					postfixExpression.add(FlatToken.newIdentifier(operand));
+					break;
+				case Opcode.LOAD_CONSTANT:
+					postfixExpression.add(constantToken(operand));
+					break;
+				case Opcode.LOAD_LOCAL:
+					postfixExpression.add(FlatToken.newLoadLocal(operand));
+					break;
+				case Opcode.STORE_LOCAL:
+					postfixExpression.add(FlatToken.newStoreLocal(operand));
+					break;
+				case Opcode.NEGATE:
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_NEGATE));
+					break;
+				case Opcode.ABS:
+					postfixExpression.add(FlatToken.newFunction(FlatToken.FUNCTION_ABS));
+					break;
+				case Opcode.SIN:
+					postfixExpression.add(FlatToken.newFunction(FlatToken.FUNCTION_SIN));
+					break;
+				case Opcode.COS:
+					postfixExpression.add(FlatToken.newFunction(FlatToken.FUNCTION_COS));
+					break;
+				case Opcode.TAN:
+					postfixExpression.add(FlatToken.newFunction(FlatToken.FUNCTION_TAN));
+					break;
+				case Opcode.LN:
+					postfixExpression.add(FlatToken.newFunction(FlatToken.FUNCTION_LN));
+					break;
+				case Opcode.SQRT:
+					postfixExpression.add(FlatToken.newFunction(FlatToken.FUNCTION_SQRT));
+					break;
+				case Opcode.SQUARE:
+					postfixExpression.add(literalToken(2));
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_POWER));
+					break;
+				case Opcode.RECIPROCAL:
+					postfixExpression.add(literalToken(-1));
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_POWER));
+					break;
+				case Opcode.POWER_HALF:
+					postfixExpression.add(literalToken(0.5));
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_POWER));
+					break;
+				case Opcode.POWER_INTEGER:
+					postfixExpression.add(literalToken(operand));
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_POWER));
+					break;
+				case Opcode.ADD_VARIABLE:
+				case Opcode.SUBTRACT_VARIABLE:
+				case Opcode.MULTIPLY_VARIABLE:
+				case Opcode.DIVIDE_VARIABLE:
+					postfixExpression.add(FlatToken.newIdentifier(operand));
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_ADD + opcodes[pc]
+							- Opcode.ADD_VARIABLE));
+					break;
+				case Opcode.ADD_CONSTANT:
+				case Opcode.SUBTRACT_CONSTANT:
+				case Opcode.MULTIPLY_CONSTANT:
+				case Opcode.DIVIDE_CONSTANT:
+					postfixExpression.add(constantToken(operand));
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_ADD + opcodes[pc]
+							- Opcode.ADD_CONSTANT));
+					break;
+				case Opcode.ADD:
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_ADD));
+					break;
+				case Opcode.SUBTRACT:
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_SUBTRACT));
+					break;
+				case Opcode.MULTIPLY:
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_MULTIPLY));
+					break;
+				case Opcode.DIVIDE:
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_DIVIDE));
+					break;
+				case Opcode.POWER:
+					postfixExpression.add(FlatToken.newOperator(FlatToken.OPERATOR_POWER));
+					break;
+			}
+		}
+
+		return postfixExpression.toArray(new FlatToken[postfixExpression.size()]);
+	}
+
+	private FlatToken constantToken(int index) {
+		switch (numberPrecision) {
+			case BIG_DECIMAL:
+				return FlatToken.newBigDecimalLiteral(bigDecimalConstants[index]);
+			case DOUBLE:
+				return FlatToken.newDoubleLiteral(doubleConstants[index]);
+			case FLOAT:
+			default:
+				return FlatToken.newFloatLiteral(floatConstants[index]);
+		}
+	}
+
+	private FlatToken literalToken(double value) {
+		switch (numberPrecision) {
+			case BIG_DECIMAL:
+				return FlatToken.newBigDecimalLiteral(new BigDecimal(value));
+			case DOUBLE:
+				return FlatToken.newDoubleLiteral(value);
+			case FLOAT:
+			default:
+				return FlatToken.newFloatLiteral((float) value);
+		}
+	}
+
+	public NumberPrecision getNumberPrecision() {
+		return numberPrecision;
+	}
+
+	/**
+	 * Returns the number of instructions in the program.
+	 */
+	public int getProgramLength() {
+		return opcodes.length;
+	}
+
+	/**
+	 * Returns the deepest the operand stack gets while evaluating.
+	 */
+	public int getMaxStackDepth() {
+		return maxStackDepth;
+	}
+
+	/**
+	 * Returns the number of locals the program uses to hold subexpressions
+	 * that it computes once and reads more than once.
+	 */
+	public int getLocalCount() {
+		return localCount;
+	}
+
+	/**
+	 * Returns how many nodes the optimizer removed from the parsed expression,
+	 * or 0 if it wasn't run.
+	 */
+	public int getRemovedNodeCount() {
+		return removedNodeCount;
+	}
+
+	public int getVariableCount() {
+		return variableNames.length;
+	}
+
+	public String getVariableName(int slot) {
+		return variableNames[slot];
+	}
+
+	/**
+	 * Returns the slot that holds the given variable, or -1 if the expression
+	 * doesn't reference it. Variable names are case-insensitive.
+	 */
+	public int getSlot(String variableName) {
+		for (int i = 0; i < variableNames.length; i++) {
+			if (variableNames[i].equalsIgnoreCase(variableName)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,288 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Writes compiled expressions to a compact binary library, and reads them
+ * back without lexing or parsing, so that large sets of formulas can be
+ * loaded with one bulk read or from a memory-mapped file.
+ * <p>
+ * A library is big-endian, and starts with a magic number, the format version
+ * and the number of expressions. Each expression then holds its precision and
+ * flags, its variable names, its local count, its constant pool in its own
+ * precision, and its instructions. Instructions take one byte, followed by
+ * their operand only for the opcodes that read one. A program that is read is
+ * checked before it's returned, so a corrupt library can't make an evaluator
+ * misbehave.
+ */
+public final class CompiledExpressionSerializer {
+	/** "CEXP". */
+	private static final int MAGIC = 0x43455850;
+	/** The format version, which changes whenever the layout or opcodes do. */
+	public static final int VERSION = 1;
+
+	private static final int PRECISION_FLOAT = 0;
+	private static final int PRECISION_DOUBLE = 1;
+	private static final int PRECISION_BIG_DECIMAL = 2;
+
+	private static final int FLAG_RELAXED_MATH = 1;
+
+	private static final String CHARSET = "UTF-8";
+
+	private CompiledExpressionSerializer() {
+	}
+
+	/**
+	 * Writes the expressions to the output as a library. The output is
+	 * flushed but not closed.
+	 */
+	public static void write(CompiledExpression[] expressions, OutputStream output) throws IOException {
+		final DataOutputStream dataOutput = new DataOutputStream(new BufferedOutputStream(output));
+		dataOutput.writeInt(MAGIC);
+		dataOutput.writeShort(VERSION);
+		dataOutput.writeInt(expressions.length);
+
+		for (CompiledExpression expression : expressions) {
+			writeExpression(expression, dataOutput);
+		}
+
+		dataOutput.flush();
+	}
+
+	private static void writeExpression(CompiledExpression expression, DataOutputStream dataOutput)
+			throws IOException {
+		dataOutput.writeByte(precisionCode(expression.numberPrecision));
+		dataOutput.writeByte(expression.relaxedMath ? FLAG_RELAXED_MATH : 0);
+		dataOutput.writeShort(expression.variableNames.length);
+
+		for (String variableName : expression.variableNames) {
+			final byte[] bytes = variableName.getBytes(CHARSET);
+			dataOutput.writeShort(bytes.length);
+			dataOutput.write(bytes);
+		}
+
+		dataOutput.writeInt(expression.localCount);
+		dataOutput.writeInt(expression.removedNodeCount);
+
+		switch (expression.numberPrecision) {
+			case BIG_DECIMAL:
+				dataOutput.writeInt(expression.bigDecimalConstants.length);
+
+				for (BigDecimal constant : expression.bigDecimalConstants) {
+					final byte[] unscaledValue = constant.unscaledValue().toByteArray();
+					dataOutput.writeInt(constant.scale());
+					dataOutput.writeInt(unscaledValue.length);
+					dataOutput.write(unscaledValue);
+				}
+				break;
+			case DOUBLE:
+				dataOutput.writeInt(expression.doubleConstants.length);
+
+				for (double constant : expression.doubleConstants) {
+					dataOutput.writeLong(Double.doubleToRawLongBits(constant));
+				}
+				break;
+			case FLOAT:
+			default:
+				dataOutput.writeInt(expression.floatConstants.length);
+
+				for (float constant : expression.floatConstants) {
+					dataOutput.writeInt(Float.floatToRawIntBits(constant));
+				}
+				break;
+		}
+
+		dataOutput.writeInt(expression.opcodes.length);
+
+		for (int pc = 0; pc < expression.opcodes.length; pc++) {
+			dataOutput.writeByte(expression.opcodes[pc]);
+
+			if (Opcode.hasOperand(expression.opcodes[pc])) {
+				dataOutput.writeInt(expression.operands[pc]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a library from the buffer's position, leaving the position after
+	 * it. Throws if the library is truncated, corrupt, or from another version
+	 * of the format.
+	 */
+	public static CompiledExpression[] read(ByteBuffer buffer) throws ParseException {
+		final ByteBuffer input = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+
+		try {
+			if (input.getInt() != MAGIC) {
+				throw new ParseException("Not a compiled expression library");
+			}
+
+			final int version = input.getShort();
+
+			if (version != VERSION) {
+				throw new ParseException("Unsupported compiled expression library version " + version);
+			}
+
+			final CompiledExpression[] expressions = new CompiledExpression[readCount(input, 1)];
+			// Formulas in a library tend to use the same few variable names.
+			final Map<String, String> variableNames = new HashMap<String, String>();
+
+			for (int i = 0; i < expressions.length; i++) {
+				expressions[i] = readExpression(input, variableNames);
+			}
+
+			buffer.position(input.position());
+			return expressions;
+		} catch (BufferUnderflowException e) {
+			throw new ParseException("Truncated compiled expression library", e);
+		}
+	}
+
+	private static CompiledExpression readExpression(ByteBuffer input, Map<String, String> sharedVariableNames)
+			throws ParseException {
+		final NumberPrecision numberPrecision = precisionFor(input.get());
+		final boolean relaxedMath = (input.get() & FLAG_RELAXED_MATH) != 0;
+		final String[] variableNames = new String[input.getShort() & 0xFFFF];
+
+		for (int i = 0; i < variableNames.length; i++) {
+			final String variableName = readString(input);
+			final String sharedVariableName = sharedVariableNames.get(variableName);
+
+			if (sharedVariableName != null) {
+				variableNames[i] = sharedVariableName;
+			} else {
+				variableNames[i] = variableName;
+				sharedVariableNames.put(variableName, variableName);
+			}
+		}
+
+		final int localCount = input.getInt();
+		final int removedNodeCount = input.getInt();
+		float[] floatConstants = null;
+		double[] doubleConstants = null;
+		BigDecimal[] bigDecimalConstants = null;
+
+		switch (numberPrecision) {
+			case BIG_DECIMAL:
+				bigDecimalConstants = new BigDecimal[readCount(input, 8)];
+
+				for (int i = 0; i < bigDecimalConstants.length; i++) {
+					final int scale = input.getInt();
+					final byte[] unscaledValue = new byte[readCount(input, 1)];
+					input.get(unscaledValue);
+
+					if (unscaledValue.length == 0) {
+						throw new ParseException("Corrupt constant");
+					}
+
+					bigDecimalConstants[i] = new BigDecimal(new BigInteger(unscaledValue), scale);
+				}
+				break;
+			case DOUBLE:
+				doubleConstants = new double[readCount(input, 8)];
+
+				for (int i = 0; i < doubleConstants.length; i++) {
+					doubleConstants[i] = Double.longBitsToDouble(input.getLong());
+				}
+				break;
+			case FLOAT:
+			default:
+				floatConstants = new float[readCount(input, 4)];
+
+				for (int i = 0; i < floatConstants.length; i++) {
+					floatConstants[i] = Float.intBitsToFloat(input.getInt());
+				}
+				break;
+		}
+
+		final int[] opcodes = new int[readCount(input, 1)];
+		final int[] operands = new int[opcodes.length];
+
+		for (int pc = 0; pc < opcodes.length; pc++) {
+			opcodes[pc] = input.get() & 0xFF;
+
+			if (Opcode.hasOperand(opcodes[pc])) {
+				operands[pc] = input.getInt();
+			}
+		}
+
+		return CompiledExpression.fromUncheckedProgram(numberPrecision, opcodes, operands, floatConstants,
+				doubleConstants, bigDecimalConstants, variableNames, localCount, removedNodeCount, relaxedMath);
+	}
+
+	/**
+	 * Reads a count of items, each at least the given number of bytes long,
+	 * so a corrupt count fails before anything is allocated for it.
+	 */
+	private static int readCount(ByteBuffer input, int minimumItemSize) throws ParseException {
+		final int count = input.getInt();
+
+		if (count < 0 || (long) count * minimumItemSize > input.remaining()) {
+			throw new ParseException("Corrupt compiled expression library");
+		}
+
+		return count;
+	}
+
+	private static String readString(ByteBuffer input) throws ParseException {
+		final byte[] bytes = new byte[input.getShort() & 0xFFFF];
+		input.get(bytes);
+
+		try {
+			return new String(bytes, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new ParseException(e);
+		}
+	}
+
+	private static int precisionCode(NumberPrecision numberPrecision) {
+		switch (numberPrecision) {
+			case BIG_DECIMAL:
+				return PRECISION_BIG_DECIMAL;
+			case DOUBLE:
+				return PRECISION_DOUBLE;
+			case FLOAT:
+			default:
+				return PRECISION_FLOAT;
+		}
+	}
+
+	private static NumberPrecision precisionFor(int code) throws ParseException {
+		switch (code) {
+			case PRECISION_BIG_DECIMAL:
+				return NumberPrecision.BIG_DECIMAL;
+			case PRECISION_DOUBLE:
+				return NumberPrecision.DOUBLE;
+			case PRECISION_FLOAT:
+				return NumberPrecision.FLOAT;
+			default:
+				throw new ParseException("Unknown precision " + code);
+		}
+	}
+}
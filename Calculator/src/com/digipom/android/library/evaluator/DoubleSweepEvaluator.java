@@ -0,0 +1,150 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.Arrays;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Evaluates an expression at every point of a grid of values for some of its
+ * variables, such as every (x, y) pair of a plot. A subexpression that doesn't
+ * read the innermost variable, such as sin(y) in sin(y) + cos(x), is evaluated
+ * once per step of the outermost loop it depends on rather than once per grid
+ * point. The innermost variable is swept with the batch evaluator.
+ */
+public class DoubleSweepEvaluator {
+	private final SweepPartition partition;
+	private final int variableCount;
+	private final DoublePostfixEvaluator[][] levelEvaluators;
+	private final DoublePostfixEvaluator innerEvaluator;
+	private final boolean[] innerReadsSlot;
+
+	public DoubleSweepEvaluator(String input, String... sweepVariables) throws ParseException {
+		this(new ExpressionCompiler().compile(input, NumberPrecision.DOUBLE), sweepVariables);
+	}
+
+	/**
+	 * Creates an evaluator that sweeps the given variables, outermost first.
+	 * A swept variable that the expression doesn't read is allowed; it only
+	 * adds a dimension to the grid.
+	 */
+	public DoubleSweepEvaluator(CompiledExpression compiledExpression, String... sweepVariables) {
+		partition = new SweepPartition(compiledExpression, sweepVariables);
+		variableCount = compiledExpression.getVariableCount();
+		levelEvaluators = new DoublePostfixEvaluator[partition.levelPrograms.length][];
+
+		for (int level = 0; level < levelEvaluators.length; level++) {
+			levelEvaluators[level] = new DoublePostfixEvaluator[partition.levelPrograms[level].length];
+
+			for (int i = 0; i < levelEvaluators[level].length; i++) {
+				levelEvaluators[level][i] = new DoublePostfixEvaluator(partition.levelPrograms[level][i]);
+			}
+		}
+
+		innerEvaluator = new DoublePostfixEvaluator(partition.innerProgram);
+		innerReadsSlot = new boolean[partition.slotCount];
+
+		for (int pc = 0; pc < innerEvaluator.opcodes.length; pc++) {
+			if (Opcode.readsVariable(innerEvaluator.opcodes[pc])) {
+				innerReadsSlot[innerEvaluator.operands[pc]] = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of subexpressions evaluated outside the innermost
+	 * loop.
+	 */
+	public int getHoistedCount() {
+		return partition.getHoistedCount();
+	}
+
+	/**
+	 * Evaluates the expression with swept variable i taking each value of
+	 * axes[i] in turn, and writes the results to out in row-major order, so
+	 * the last swept variable changes fastest. Variables that aren't swept
+	 * take their values from slots, indexed by
+	 * {@link CompiledExpression#getSlot(String)}.
+	 */
+	public void evaluate(double[] slots, double[][] axes, double[] out) throws ParseException {
+		if (slots.length < variableCount) {
+			throw new IllegalArgumentException("Expected values for " + variableCount + " variables but got "
+					+ slots.length);
+		} else if (axes.length != partition.sweepSlots.length) {
+			throw new IllegalArgumentException("Expected " + partition.sweepSlots.length + " axes but got "
+					+ axes.length);
+		}
+
+		final double[] values = new double[partition.slotCount];
+		System.arraycopy(slots, 0, values, 0, variableCount);
+
+		final int innerAxis = axes.length - 1;
+		final int innerSlot = partition.sweepSlots[innerAxis];
+		final double[][] columns = new double[partition.slotCount][];
+
+		for (int slot = 0; slot < columns.length; slot++) {
+			if (innerReadsSlot[slot]) {
+				columns[slot] = slot == innerSlot ? axes[innerAxis] : new double[axes[innerAxis].length];
+			}
+		}
+
+		final double[][] scratch = new double[innerEvaluator.batchScratchRows()][PostfixEvaluator.BATCH_CHUNK_SIZE];
+
+		evaluateLevel(0, values);
+		sweep(0, axes, values, columns, scratch, out, 0);
+	}
+
+	/**
+	 * Sweeps the given axis and every axis inside it, and returns the index
+	 * in out after the last result written.
+	 */
+	private int sweep(int axis, double[][] axes, double[] values, double[][] columns, double[][] scratch, double[] out,
+			int outIndex) throws ParseException {
+		final int slot = partition.sweepSlots[axis];
+		final double[] axisValues = axes[axis];
+
+		if (axis == axes.length - 1) {
+			for (int i = 0; i < columns.length; i++) {
+				if (columns[i] != null && i != slot) {
+					Arrays.fill(columns[i], values[i]);
+				}
+			}
+
+			innerEvaluator.evaluateRange(columns, 0, axisValues.length, out, outIndex, scratch);
+			return outIndex + axisValues.length;
+		}
+
+		for (final double value : axisValues) {
+			if (slot >= 0) {
+				values[slot] = value;
+			}
+
+			evaluateLevel(axis + 1, values);
+			outIndex = sweep(axis + 1, axes, values, columns, scratch, out, outIndex);
+		}
+
+		return outIndex;
+	}
+
+	private void evaluateLevel(int level, double[] values) throws ParseException {
+		final DoublePostfixEvaluator[] evaluators = levelEvaluators[level];
+		final int[] targets = partition.levelTargets[level];
+
+		for (int i = 0; i < evaluators.length; i++) {
+			values[targets[i]] = evaluators[i].evaluate(values);
+		}
+	}
+}
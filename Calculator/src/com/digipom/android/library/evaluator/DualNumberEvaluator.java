@@ -0,0 +1,306 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Evaluates a double expression together with its partial derivatives with
+ * respect to chosen variables, in one pass, by forward-mode automatic
+ * differentiation. Each stack entry and local is a dual number: its value,
+ * which is computed exactly as {@link DoublePostfixEvaluator} computes it, and
+ * one tangent per chosen variable. Values and tangents are kept in primitive
+ * arrays, with the tangents of stack entry i at [i * n, (i + 1) * n).
+ * <p>
+ * Where a function has no derivative, the result follows the formula: the
+ * derivative of abs at 0 is 0, and of sqrt at 0 is infinite. Terms for
+ * operands that don't vary are left out, so a constant never brings in a slope
+ * that isn't finite: x ^ 2 has a derivative for negative x, and sqrt(0) * x
+ * has one everywhere.
+ * <p>
+ * Instances are thread safe; scratch space is allocated per call.
+ */
+public class DualNumberEvaluator extends PostfixEvaluator {
+	private static final double[] EMPTY_SLOTS = new double[0];
+
+	private final int[] derivativeSlots;
+
+	/**
+	 * @param derivativeSlots
+	 *            the slots of the variables to differentiate with respect to,
+	 *            as found with {@link CompiledExpression#getSlot(String)}.
+	 */
+	public DualNumberEvaluator(CompiledExpression compiledExpression, int... derivativeSlots) {
+		super(compiledExpression, NumberPrecision.DOUBLE);
+
+		for (int slot : derivativeSlots) {
+			if (slot < 0 || slot >= variableCount) {
+				throw new IllegalArgumentException("Unknown variable slot " + slot);
+			}
+		}
+
+		this.derivativeSlots = derivativeSlots.clone();
+	}
+
+	public int getDerivativeCount() {
+		return derivativeSlots.length;
+	}
+
+	public double evaluate(double[] derivatives) throws ParseException {
+		return evaluate(EMPTY_SLOTS, derivatives);
+	}
+
+	/**
+	 * Evaluates the expression with each variable taking its value from the
+	 * given array, and returns its value. The partial derivative with respect
+	 * to the variable in derivativeSlots[i] is written to derivatives[i].
+	 */
+	public double evaluate(double[] slots, double[] derivatives) throws ParseException {
+		final int n = derivativeSlots.length;
+		// One more entry than the program needs, for the right operand of a
+		// fused instruction.
+		return evaluate(slots, derivatives, new double[stackDepth + 1], new double[(stackDepth + 1) * n],
+				new double[localCount], new double[localCount * n]);
+	}
+
+	/**
+	 * Evaluates the expression in the given scratch space, so that callers
+	 * that evaluate in a loop can reuse it. The arrays must hold at least
+	 * {@link CompiledExpression#getMaxStackDepth()} + 1 values and
+	 * {@link CompiledExpression#getLocalCount()} locals, with room for
+	 * {@link #getDerivativeCount()} tangents for each.
+	 */
+	double evaluate(double[] slots, double[] derivatives, double[] values, double[] tangents, double[] localValues,
+			double[] localTangents) throws ParseException {
+		checkSlots(slots.length);
+
+		if (derivatives.length < derivativeSlots.length) {
+			throw new IllegalArgumentException("Expected room for " + derivativeSlots.length
+					+ " derivatives but got " + derivatives.length);
+		}
+
+		final int n = derivativeSlots.length;
+		final double[] constants = compiledExpression.doubleConstants;
+		int top = -1;
+
+		for (int pc = 0; pc < opcodes.length; pc++) {
+			final int opcode = opcodes[pc];
+			final int operand = operands[pc];
+
+			switch (opcode) {
+				case Opcode.LOAD_VARIABLE:
+					loadVariable(slots, operand, values, tangents, ++top);
+					break;
+				case Opcode.LOAD_CONSTANT:
+					loadConstant(constants[operand], values, tangents, ++top);
+					break;
+				case Opcode.LOAD_LOCAL:
+					top++;
+					values[top] = localValues[operand];
+					System.arraycopy(localTangents, operand * n, tangents, top * n, n);
+					break;
+				case Opcode.STORE_LOCAL:
+					localValues[operand] = values[top];
+					System.arraycopy(tangents, top * n, localTangents, operand * n, n);
+					break;
+				case Opcode.ADD_VARIABLE:
+				case Opcode.SUBTRACT_VARIABLE:
+				case Opcode.MULTIPLY_VARIABLE:
+				case Opcode.DIVIDE_VARIABLE:
+					loadVariable(slots, operand, values, tangents, top + 1);
+					applyBinary(Opcode.ADD + opcode - Opcode.ADD_VARIABLE, values, tangents, top);
+					break;
+				case Opcode.ADD_CONSTANT:
+				case Opcode.SUBTRACT_CONSTANT:
+				case Opcode.MULTIPLY_CONSTANT:
+				case Opcode.DIVIDE_CONSTANT:
+					loadConstant(constants[operand], values, tangents, top + 1);
+					applyBinary(Opcode.ADD + opcode - Opcode.ADD_CONSTANT, values, tangents, top);
+					break;
+				default:
+					if (Opcode.operandCount(opcode) == 2) {
+						applyBinary(opcode, values, tangents, --top);
+					} else {
+						applyUnary(opcode, operand, values, tangents, top);
+					}
+					break;
+			}
+		}
+
+		System.arraycopy(tangents, 0, derivatives, 0, n);
+		return values[0];
+	}
+
+	private void loadVariable(double[] slots, int slot, double[] values, double[] tangents, int index) {
+		final int n = derivativeSlots.length;
+		values[index] = slots[slot];
+
+		for (int k = 0; k < n; k++) {
+			tangents[index * n + k] = derivativeSlots[k] == slot ? 1 : 0;
+		}
+	}
+
+	private void loadConstant(double constant, double[] values, double[] tangents, int index) {
+		final int n = derivativeSlots.length;
+		values[index] = constant;
+
+		for (int k = 0; k < n; k++) {
+			tangents[index * n + k] = 0;
+		}
+	}
+
+	/**
+	 * Replaces the dual number at index with the result of the instruction,
+	 * which takes one operand.
+	 */
+	private void applyUnary(int opcode, int operand, double[] values, double[] tangents, int index) {
+		final double x = values[index];
+		final double result;
+		// The derivative of the result with respect to x.
+		final double slope;
+
+		switch (opcode) {
+			case Opcode.NEGATE:
+				result = -x;
+				slope = -1;
+				break;
+			case Opcode.ABS:
+				result = Math.abs(x);
+				slope = Math.signum(x);
+				break;
+			case Opcode.SIN:
+				result = Math.sin(x);
+				slope = Math.cos(x);
+				break;
+			case Opcode.COS:
+				result = Math.cos(x);
+				slope = -Math.sin(x);
+				break;
+			case Opcode.TAN:
+				result = Math.tan(x);
+				slope = 1 + result * result;
+				break;
+			case Opcode.LN:
+				result = Math.log(x);
+				slope = 1 / x;
+				break;
+			case Opcode.SQRT:
+				result = Math.sqrt(x);
+				slope = 0.5 / result;
+				break;
+			case Opcode.SQUARE:
+				result = x * x;
+				slope = 2 * x;
+				break;
+			case Opcode.RECIPROCAL:
+				result = 1 / x;
+				slope = -result * result;
+				break;
+			case Opcode.POWER_HALF:
+				result = DoublePostfixEvaluator.powerHalf(x);
+				slope = 0.5 / result;
+				break;
+			case Opcode.POWER_INTEGER:
+			default:
+				result = DoublePostfixEvaluator.powerInteger(x, operand);
+				slope = operand == 0 ? 0 : operand * DoublePostfixEvaluator.powerInteger(x, operand - 1);
+				break;
+		}
+
+		final int n = derivativeSlots.length;
+		values[index] = result;
+
+		for (int k = index * n; k < (index + 1) * n; k++) {
+			tangents[k] = scale(tangents[k], slope);
+		}
+	}
+
+	/**
+	 * Returns tangent * slope, or 0 if the tangent is 0 whatever the slope.
+	 */
+	private static double scale(double tangent, double slope) {
+		return tangent == 0 ? 0 : tangent * slope;
+	}
+
+	/**
+	 * Replaces the dual number at index with the result of the binary
+	 * instruction, whose right operand is the dual number after it.
+	 */
+	private void applyBinary(int opcode, double[] values, double[] tangents, int index) {
+		final int n = derivativeSlots.length;
+		final double a = values[index];
+		final double b = values[index + 1];
+		final int left = index * n;
+		final int right = left + n;
+
+		switch (opcode) {
+			case Opcode.ADD:
+				values[index] = a + b;
+
+				for (int k = 0; k < n; k++) {
+					tangents[left + k] += tangents[right + k];
+				}
+				break;
+			case Opcode.SUBTRACT:
+				values[index] = a - b;
+
+				for (int k = 0; k < n; k++) {
+					tangents[left + k] -= tangents[right + k];
+				}
+				break;
+			case Opcode.MULTIPLY:
+				values[index] = a * b;
+
+				for (int k = 0; k < n; k++) {
+					tangents[left + k] = scale(tangents[left + k], b) + scale(tangents[right + k], a);
+				}
+				break;
+			case Opcode.DIVIDE: {
+				final double quotient = a / b;
+				values[index] = quotient;
+
+				for (int k = 0; k < n; k++) {
+					final double numerator = tangents[left + k] - scale(tangents[right + k], quotient);
+					tangents[left + k] = numerator == 0 ? 0 : numerator / b;
+				}
+				break;
+			}
+			case Opcode.POWER:
+			default: {
+				final double result = Math.pow(a, b);
+				values[index] = result;
+
+				// Each slope is only computed if its operand varies, so a
+				// constant exponent never brings in ln(a), or its cost.
+				boolean baseVaries = false;
+				boolean exponentVaries = false;
+
+				for (int k = 0; k < n; k++) {
+					baseVaries |= tangents[left + k] != 0;
+					exponentVaries |= tangents[right + k] != 0;
+				}
+
+				final double baseSlope = baseVaries ? b * Math.pow(a, b - 1) : 0;
+				final double exponentSlope = exponentVaries ? result * Math.log(a) : 0;
+
+				for (int k = 0; k < n; k++) {
+					tangents[left + k] = scale(tangents[left + k], baseSlope)
+							+ scale(tangents[right + k], exponentSlope);
+				}
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,476 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Solves f(x) = target for one variable of a double expression, holding the
+ * others at given values. The root is first bracketed, by searching outward
+ * from a guess if no bracket is given, and then found with Brent's method. At
+ * each step a Newton step is tried first, using a derivative from
+ * {@link DualNumberEvaluator}; it's only taken if it stays inside the bracket
+ * and at least halves the step before last, so the solver keeps Brent's
+ * guarantee of convergence while converging quadratically near simple roots.
+ * <p>
+ * Each solve allocates its scratch space once, and evaluates the expression
+ * in it, so iterations don't allocate. Solves can run on several threads at
+ * once, as long as the settings aren't changed at the same time.
+ */
+public class EquationSolver {
+	/**
+	 * The outcome of a solve.
+	 */
+	public static final class Solution {
+		private final double root;
+		private final double residual;
+		private final boolean converged;
+		private final int iterationCount;
+		private final int newtonStepCount;
+		private final int evaluationCount;
+		private final long elapsedNanos;
+
+		Solution(double root, double residual, boolean converged, int iterationCount, int newtonStepCount,
+				int evaluationCount, long elapsedNanos) {
+			this.root = root;
+			this.residual = residual;
+			this.converged = converged;
+			this.iterationCount = iterationCount;
+			this.newtonStepCount = newtonStepCount;
+			this.evaluationCount = evaluationCount;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * Returns the root, or the best estimate found if the solve didn't
+		 * converge.
+		 */
+		public double getRoot() {
+			return root;
+		}
+
+		/**
+		 * Returns f(root) - target.
+		 */
+		public double getResidual() {
+			return residual;
+		}
+
+		/**
+		 * Returns true if the root was found within the tolerances. A bracket
+		 * around a pole converges to the pole, so callers that care should
+		 * also check the residual.
+		 */
+		public boolean isConverged() {
+			return converged;
+		}
+
+		/**
+		 * Returns the number of steps taken after the root was bracketed.
+		 */
+		public int getIterationCount() {
+			return iterationCount;
+		}
+
+		/**
+		 * Returns how many of the steps were Newton steps.
+		 */
+		public int getNewtonStepCount() {
+			return newtonStepCount;
+		}
+
+		/**
+		 * Returns the number of times the expression was evaluated, including
+		 * while searching for a bracket.
+		 */
+		public int getEvaluationCount() {
+			return evaluationCount;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+	}
+
+	private static final double EPSILON = Math.ulp(1.0);
+
+	private final CompiledExpression compiledExpression;
+	private final int slot;
+	private final DoublePostfixEvaluator evaluator;
+	private final DualNumberEvaluator dualNumberEvaluator;
+
+	private double absoluteTolerance = 1e-12;
+	private double relativeTolerance = 4 * EPSILON;
+	private double functionTolerance;
+	private int maximumIterations = 100;
+	private int maximumBracketingSteps = 60;
+	private boolean derivativesEnabled = true;
+
+	/**
+	 * @param slot
+	 *            the slot of the variable to solve for, as found with
+	 *            {@link CompiledExpression#getSlot(String)}.
+	 */
+	public EquationSolver(CompiledExpression compiledExpression, int slot) {
+		this.compiledExpression = compiledExpression;
+		this.slot = slot;
+		this.evaluator = new DoublePostfixEvaluator(compiledExpression);
+		this.dualNumberEvaluator = new DualNumberEvaluator(compiledExpression, slot);
+	}
+
+	public double getAbsoluteTolerance() {
+		return absoluteTolerance;
+	}
+
+	/**
+	 * Sets how close to the root, in x, a solution has to be, together with
+	 * the relative tolerance. Defaults to 1e-12.
+	 */
+	public void setAbsoluteTolerance(double absoluteTolerance) {
+		this.absoluteTolerance = checkTolerance(absoluteTolerance);
+	}
+
+	public double getRelativeTolerance() {
+		return relativeTolerance;
+	}
+
+	/**
+	 * Sets how close to the root a solution has to be, as a fraction of the
+	 * root. Defaults to a few units in the last place.
+	 */
+	public void setRelativeTolerance(double relativeTolerance) {
+		this.relativeTolerance = checkTolerance(relativeTolerance);
+	}
+
+	public double getFunctionTolerance() {
+		return functionTolerance;
+	}
+
+	/**
+	 * Sets how close to the target f(x) has to be for x to be taken as a root
+	 * whatever the bracket. Defaults to 0.
+	 */
+	public void setFunctionTolerance(double functionTolerance) {
+		this.functionTolerance = checkTolerance(functionTolerance);
+	}
+
+	public int getMaximumIterations() {
+		return maximumIterations;
+	}
+
+	/**
+	 * Sets the most steps a solve takes once the root is bracketed. Defaults
+	 * to 100.
+	 */
+	public void setMaximumIterations(int maximumIterations) {
+		this.maximumIterations = checkCount(maximumIterations);
+	}
+
+	public int getMaximumBracketingSteps() {
+		return maximumBracketingSteps;
+	}
+
+	/**
+	 * Sets how many times the search for a bracket doubles its reach on each
+	 * side of the guess. Defaults to 60.
+	 */
+	public void setMaximumBracketingSteps(int maximumBracketingSteps) {
+		this.maximumBracketingSteps = checkCount(maximumBracketingSteps);
+	}
+
+	public boolean isDerivativesEnabled() {
+		return derivativesEnabled;
+	}
+
+	/**
+	 * Sets whether Newton steps are tried. Without them each evaluation is
+	 * cheaper, but more are needed. Enabled by default.
+	 */
+	public void setDerivativesEnabled(boolean derivativesEnabled) {
+		this.derivativesEnabled = derivativesEnabled;
+	}
+
+	/**
+	 * Solves for the variable, searching outward from the guess for a
+	 * bracket. The other variables take their values from the given array,
+	 * which isn't changed. The solution isn't converged if no sign change is
+	 * found.
+	 */
+	public Solution solve(double[] slots, double target, double guess) throws ParseException {
+		final long startTime = System.nanoTime();
+		final Solve solve = new Solve(slots, target);
+		final double fGuess = solve.evaluate(guess);
+
+		if (fGuess == 0 || Math.abs(fGuess) <= solve.functionTolerance) {
+			return solve.solution(guess, fGuess, true, startTime);
+		}
+
+		// Expand outward on both sides, keeping the last point with a value
+		// on each side, until f changes sign between neighbouring points.
+		double step = Math.max(Math.abs(guess) * 0.01, 0.01);
+		double lower = guess;
+		double fLower = fGuess;
+		double upper = guess;
+		double fUpper = fGuess;
+
+		for (int i = 0; i < solve.maximumBracketingSteps; i++) {
+			final double above = guess + step;
+			final double fAbove = solve.evaluate(above);
+
+			if (changesSign(fUpper, fAbove)) {
+				return solve.solveBracketed(upper, fUpper, above, fAbove, solve.derivative, startTime);
+			} else if (!Double.isNaN(fAbove)) {
+				upper = above;
+				fUpper = fAbove;
+			}
+
+			final double below = guess - step;
+			final double fBelow = solve.evaluate(below);
+
+			if (changesSign(fLower, fBelow)) {
+				return solve.solveBracketed(lower, fLower, below, fBelow, solve.derivative, startTime);
+			} else if (!Double.isNaN(fBelow)) {
+				lower = below;
+				fLower = fBelow;
+			}
+
+			step *= 2;
+		}
+
+		return solve.failure(startTime);
+	}
+
+	/**
+	 * Solves for the variable between lower and upper, where f - target must
+	 * change sign. The solution isn't converged if it doesn't.
+	 */
+	public Solution solve(double[] slots, double target, double lower, double upper) throws ParseException {
+		final long startTime = System.nanoTime();
+		final Solve solve = new Solve(slots, target);
+		final double fLower = solve.evaluate(lower);
+		final double fUpper = solve.evaluate(upper);
+
+		if (fLower == 0 || fUpper == 0 || changesSign(fLower, fUpper)) {
+			return solve.solveBracketed(lower, fLower, upper, fUpper, solve.derivative, startTime);
+		}
+
+		return solve.failure(startTime);
+	}
+
+	private static boolean changesSign(double first, double second) {
+		return !Double.isNaN(first) && !Double.isNaN(second) && (first < 0) != (second < 0);
+	}
+
+	private static double checkTolerance(double tolerance) {
+		if (!(tolerance >= 0)) {
+			throw new IllegalArgumentException("Tolerance must not be negative: " + tolerance);
+		}
+
+		return tolerance;
+	}
+
+	private static int checkCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("Count must be positive: " + count);
+		}
+
+		return count;
+	}
+
+	/**
+	 * The state of one solve: a copy of the settings and variables, the
+	 * scratch space the expression is evaluated in, and the counts.
+	 */
+	private final class Solve {
+		final double target;
+		final double absoluteTolerance = EquationSolver.this.absoluteTolerance;
+		final double relativeTolerance = EquationSolver.this.relativeTolerance;
+		final double functionTolerance = EquationSolver.this.functionTolerance;
+		final int maximumIterations = EquationSolver.this.maximumIterations;
+		final int maximumBracketingSteps = EquationSolver.this.maximumBracketingSteps;
+		final boolean derivativesEnabled = EquationSolver.this.derivativesEnabled;
+
+		final double[] variables;
+		final double[] derivatives = new double[1];
+		final double[] values;
+		final double[] tangents;
+		final double[] locals;
+		final double[] localTangents;
+
+		/** The derivative at the last point evaluated, or NaN. */
+		double derivative = Double.NaN;
+		/** The point with the smallest residual so far, for a failed solve. */
+		double bestX = Double.NaN;
+		double bestResidual = Double.NaN;
+		int iterationCount;
+		int newtonStepCount;
+		int evaluationCount;
+
+		Solve(double[] slots, double target) {
+			this.target = target;
+			this.variables = slots.clone();
+
+			// Sized for the dual number evaluator, which needs the most.
+			final int stackDepth = compiledExpression.maxStackDepth + 1;
+			final int localCount = compiledExpression.localCount;
+			values = new double[stackDepth];
+			tangents = new double[stackDepth];
+			locals = new double[localCount];
+			localTangents = new double[localCount];
+		}
+
+		/**
+		 * Returns f(x) - target, and sets the derivative if derivatives are
+		 * enabled.
+		 */
+		double evaluate(double x) throws ParseException {
+			variables[slot] = x;
+			evaluationCount++;
+			final double residual;
+
+			if (derivativesEnabled) {
+				residual = dualNumberEvaluator.evaluate(variables, derivatives, values, tangents, locals,
+						localTangents) - target;
+				derivative = derivatives[0];
+			} else {
+				residual = evaluator.evaluate(variables, values, locals) - target;
+			}
+
+			if (!Double.isNaN(residual) && !(Math.abs(bestResidual) <= Math.abs(residual))) {
+				bestX = x;
+				bestResidual = residual;
+			}
+
+			return residual;
+		}
+
+		/**
+		 * Brent's method on a bracket, with a Newton step tried first at each
+		 * step. b is the best estimate so far, c is on the other side of the
+		 * root, and a is the previous b. The points can be in either order; dfb
+		 * is the derivative at b, or NaN if it isn't known.
+		 */
+		Solution solveBracketed(double a, double fa, double b, double fb, double dfb, long startTime)
+				throws ParseException {
+			double dfa = Double.NaN;
+			double c = b;
+			double fc = fb;
+			double dfc = dfb;
+			double d = b - a;
+			double e = d;
+
+			while (iterationCount < maximumIterations) {
+				if ((fb > 0) == (fc > 0) && fb != 0) {
+					c = a;
+					fc = fa;
+					dfc = dfa;
+					d = b - a;
+					e = d;
+				}
+
+				if (Math.abs(fc) < Math.abs(fb)) {
+					a = b;
+					b = c;
+					c = a;
+					fa = fb;
+					fb = fc;
+					fc = fa;
+					dfa = dfb;
+					dfb = dfc;
+					dfc = dfa;
+				}
+
+				final double tolerance = 2 * EPSILON * Math.abs(b) + 0.5 * (absoluteTolerance + relativeTolerance
+						* Math.abs(b));
+				final double halfInterval = 0.5 * (c - b);
+
+				if (Math.abs(halfInterval) <= tolerance || fb == 0 || Math.abs(fb) <= functionTolerance) {
+					return solution(b, fb, true, startTime);
+				}
+
+				iterationCount++;
+				final double newtonStep = -fb / dfb;
+
+				// Take the Newton step if it lands strictly between b and c,
+				// and converges at least as fast as bisection would.
+				if (newtonStep / halfInterval > 0 && Math.abs(newtonStep) < Math.abs(2 * halfInterval)
+						&& Math.abs(newtonStep) < Math.abs(0.5 * e)) {
+					e = d;
+					d = newtonStep;
+					newtonStepCount++;
+				} else if (Math.abs(e) >= tolerance && Math.abs(fa) > Math.abs(fb)) {
+					// Interpolate: secant if there are two points, inverse
+					// quadratic if there are three.
+					final double s = fb / fa;
+					double p;
+					double q;
+
+					if (a == c) {
+						p = 2 * halfInterval * s;
+						q = 1 - s;
+					} else {
+						final double ratioA = fa / fc;
+						final double ratioB = fb / fc;
+						p = s * (2 * halfInterval * ratioA * (ratioA - ratioB) - (b - a) * (ratioB - 1));
+						q = (ratioA - 1) * (ratioB - 1) * (s - 1);
+					}
+
+					if (p > 0) {
+						q = -q;
+					}
+
+					p = Math.abs(p);
+
+					if (2 * p < Math.min(3 * halfInterval * q - Math.abs(tolerance * q), Math.abs(e * q))) {
+						e = d;
+						d = p / q;
+					} else {
+						d = halfInterval;
+						e = d;
+					}
+				} else {
+					d = halfInterval;
+					e = d;
+				}
+
+				a = b;
+				fa = fb;
+				dfa = dfb;
+				b += Math.abs(d) > tolerance ? d : (halfInterval > 0 ? tolerance : -tolerance);
+				fb = evaluate(b);
+				dfb = derivative;
+
+				if (Double.isNaN(fb)) {
+					return failure(startTime);
+				}
+			}
+
+			return failure(startTime);
+		}
+
+		/**
+		 * Returns an unconverged solution at the point with the smallest
+		 * residual seen.
+		 */
+		Solution failure(long startTime) {
+			return solution(bestX, bestResidual, false, startTime);
+		}
+
+		Solution solution(double root, double residual, boolean converged, long startTime) {
+			return new Solution(root, residual, converged, iterationCount, newtonStepCount, evaluationCount,
+					System.nanoTime() - startTime);
+		}
+	}
+}
@@ -0,0 +1,475 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Keeps the most recently used compiled expressions, so that compiling the
+ * same input again is a lookup. Inputs are keyed by their normalized text:
+ * lower case, without the whitespace the lexer ignores, so "SIN(X) + 1" and
+ * "sin(x)+1" share an entry.
+ * <p>
+ * Inputs that differ in more than text are parsed and put in canonical form
+ * by {@link ExpressionCanonicalizer}, so "y + x" finds the program compiled
+ * for "x+y", and only new structures are optimized. The variables of a cached
+ * program are in canonical order, so their slots should be found with
+ * {@link CompiledExpression#getSlot(String)}. Programs also share equal
+ * instruction, constant and name arrays, so similar formulas that only differ
+ * in their constants keep one copy of their instructions.
+ * <p>
+ * Instances are thread safe. Lookups don't lock; compiling an input that isn't
+ * cached takes a lock while the entry is added. Once the cache is full, each
+ * new entry replaces one that hasn't been used since the last time the
+ * replacement scan passed it, which approximates least recently used.
+ */
+public class ExpressionCache {
+	/** Spellings of one program that are found without parsing. */
+	private static final int MAX_TEXT_KEYS_PER_ENTRY = 4;
+
+	private static class Entry {
+		final ProgramKey programKey;
+		final CompiledExpression compiledExpression;
+		/** Guarded by the cache. */
+		final List<String> textKeys = new ArrayList<String>(1);
+		/** Set when the entry is used, and cleared by the replacement scan. */
+		volatile boolean referenced;
+
+		Entry(ProgramKey programKey, CompiledExpression compiledExpression) {
+			this.programKey = programKey;
+			this.compiledExpression = compiledExpression;
+		}
+	}
+
+	/**
+	 * Compares canonical programs by content.
+	 */
+	private static class ProgramKey {
+		final CompiledExpression program;
+		final int hashCode;
+
+		ProgramKey(CompiledExpression program) {
+			this.program = program;
+
+			int hashCode = program.numberPrecision.hashCode();
+			hashCode = 31 * hashCode + Arrays.hashCode(program.opcodes);
+			hashCode = 31 * hashCode + Arrays.hashCode(program.operands);
+			hashCode = 31 * hashCode + Arrays.hashCode(program.floatConstants);
+			hashCode = 31 * hashCode + Arrays.hashCode(program.doubleConstants);
+			hashCode = 31 * hashCode + Arrays.hashCode(program.bigDecimalConstants);
+			hashCode = 31 * hashCode + Arrays.hashCode(program.variableNames);
+			this.hashCode = hashCode;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof ProgramKey)) {
+				return false;
+			}
+
+			final CompiledExpression other = ((ProgramKey) object).program;
+			return hashCode == object.hashCode() && program.numberPrecision == other.numberPrecision
+					&& Arrays.equals(program.opcodes, other.opcodes) && Arrays.equals(program.operands, other.operands)
+					&& Arrays.equals(program.floatConstants, other.floatConstants)
+					&& Arrays.equals(program.doubleConstants, other.doubleConstants)
+					&& Arrays.equals(program.bigDecimalConstants, other.bigDecimalConstants)
+					&& Arrays.equals(program.variableNames, other.variableNames);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	/**
+	 * An array shared by the cached programs, compared by content, with the
+	 * number of programs that use it.
+	 */
+	private static class SharedArray {
+		final Object array;
+		final int hashCode;
+		int useCount;
+
+		SharedArray(Object array) {
+			this.array = array;
+
+			if (array instanceof int[]) {
+				hashCode = Arrays.hashCode((int[]) array);
+			} else if (array instanceof float[]) {
+				hashCode = Arrays.hashCode((float[]) array);
+			} else if (array instanceof double[]) {
+				hashCode = Arrays.hashCode((double[]) array);
+			} else {
+				hashCode = Arrays.hashCode((Object[]) array);
+			}
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof SharedArray) || hashCode != object.hashCode()) {
+				return false;
+			}
+
+			final Object other = ((SharedArray) object).array;
+
+			if (array instanceof int[]) {
+				return other instanceof int[] && Arrays.equals((int[]) array, (int[]) other);
+			} else if (array instanceof float[]) {
+				return other instanceof float[] && Arrays.equals((float[]) array, (float[]) other);
+			} else if (array instanceof double[]) {
+				return other instanceof double[] && Arrays.equals((double[]) array, (double[]) other);
+			} else {
+				return array.getClass() == other.getClass() && Arrays.equals((Object[]) array, (Object[]) other);
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private final ExpressionCompiler compiler = new ExpressionCompiler();
+	private final int maximumSize;
+	private final Map<NumberPrecision, ConcurrentHashMap<String, Entry>> entries;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong canonicalHitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	// Guarded by this.
+	private final Map<ProgramKey, Entry> programEntries = new HashMap<ProgramKey, Entry>();
+	private final Map<SharedArray, SharedArray> sharedArrays = new HashMap<SharedArray, SharedArray>();
+	private final Entry[] ring;
+	private int ringSize;
+	private int hand;
+
+	public ExpressionCache(int maximumSize) {
+		this(new ExpressionCompiler(), maximumSize);
+	}
+
+	/**
+	 * @param compiler
+	 *            the compiler whose settings this cache compiles with. They
+	 *            are copied, so later changes to it don't affect the cache.
+	 */
+	public ExpressionCache(ExpressionCompiler compiler, int maximumSize) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+		}
+
+		this.compiler.setOptimizationEnabled(compiler.isOptimizationEnabled());
+		this.compiler.setRelaxedMathEnabled(compiler.isRelaxedMathEnabled());
+		this.maximumSize = maximumSize;
+		this.ring = new Entry[maximumSize];
+
+		// Filled here and only read afterwards, so it's safe to share.
+		entries = new EnumMap<NumberPrecision, ConcurrentHashMap<String, Entry>>(NumberPrecision.class);
+
+		for (NumberPrecision numberPrecision : NumberPrecision.values()) {
+			entries.put(numberPrecision, new ConcurrentHashMap<String, Entry>());
+		}
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * Returns the compiled input, compiling and caching it if neither it nor
+	 * an equivalent input is cached already. Inputs that don't compile aren't
+	 * cached.
+	 */
+	public CompiledExpression compile(CharSequence input, NumberPrecision numberPrecision) throws ParseException {
+		final String textKey = normalize(input);
+		final Entry entry = entries.get(numberPrecision).get(textKey);
+
+		if (entry != null) {
+			hitCount.incrementAndGet();
+			markReferenced(entry);
+			return entry.compiledExpression;
+		}
+
+		final CompiledExpression canonicalExpression;
+
+		try {
+			canonicalExpression = ExpressionCanonicalizer.canonicalize(
+					new ShuntingYardParser(textKey, numberPrecision).parse(), compiler.isRelaxedMathEnabled());
+		} catch (ParseException e) {
+			missCount.incrementAndGet();
+			throw e;
+		}
+
+		final ProgramKey programKey = new ProgramKey(canonicalExpression);
+		final Entry canonicalEntry = findCanonical(programKey, textKey);
+
+		if (canonicalEntry != null) {
+			canonicalHitCount.incrementAndGet();
+			markReferenced(canonicalEntry);
+			return canonicalEntry.compiledExpression;
+		}
+
+		missCount.incrementAndGet();
+		return add(programKey, textKey, compiler.optimize(canonicalExpression));
+	}
+
+	private static void markReferenced(Entry entry) {
+		// Writing only when it changes keeps hot entries' cache lines shared
+		// between threads.
+		if (!entry.referenced) {
+			entry.referenced = true;
+		}
+	}
+
+	/**
+	 * Returns the entry for the canonical program, adding the text as another
+	 * way to find it, or null if the program isn't cached.
+	 */
+	private synchronized Entry findCanonical(ProgramKey programKey, String textKey) {
+		final Entry entry = programEntries.get(programKey);
+
+		if (entry != null) {
+			addTextKey(entry, textKey);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Adds an entry for the compiled program, replacing an unreferenced entry
+	 * if the cache is full, and returns the program. If another thread added
+	 * the same program first, its entry is used instead.
+	 */
+	private synchronized CompiledExpression add(ProgramKey programKey, String textKey,
+			CompiledExpression compiledExpression) {
+		final Entry existingEntry = programEntries.get(programKey);
+
+		if (existingEntry != null) {
+			addTextKey(existingEntry, textKey);
+			return existingEntry.compiledExpression;
+		}
+
+		if (ringSize < maximumSize) {
+			ring[ringSize++] = entry(programKey, compiledExpression);
+			addTextKey(ring[ringSize - 1], textKey);
+			return ring[ringSize - 1].compiledExpression;
+		}
+
+		while (ring[hand].referenced) {
+			ring[hand].referenced = false;
+			hand = (hand + 1) % maximumSize;
+		}
+
+		remove(ring[hand]);
+		evictionCount.incrementAndGet();
+
+		final Entry entry = entry(programKey, compiledExpression);
+		ring[hand] = entry;
+		hand = (hand + 1) % maximumSize;
+		addTextKey(entry, textKey);
+		return entry.compiledExpression;
+	}
+
+	/**
+	 * Creates and registers an entry whose program uses the shared arrays.
+	 */
+	private Entry entry(ProgramKey programKey, CompiledExpression compiledExpression) {
+		final CompiledExpression sharingExpression = compiledExpression.withArrays(
+				(int[]) share(compiledExpression.opcodes), (int[]) share(compiledExpression.operands),
+				(float[]) share(compiledExpression.floatConstants),
+				(double[]) share(compiledExpression.doubleConstants),
+				(BigDecimal[]) share(compiledExpression.bigDecimalConstants),
+				(String[]) share(compiledExpression.variableNames));
+		final Entry entry = new Entry(programKey, sharingExpression);
+		programEntries.put(programKey, entry);
+		return entry;
+	}
+
+	private void addTextKey(Entry entry, String textKey) {
+		if (entry.textKeys.size() < MAX_TEXT_KEYS_PER_ENTRY) {
+			entry.textKeys.add(textKey);
+			entries.get(entry.compiledExpression.numberPrecision).put(textKey, entry);
+		}
+	}
+
+	private void remove(Entry entry) {
+		final ConcurrentHashMap<String, Entry> precisionEntries = entries.get(entry.compiledExpression.numberPrecision);
+
+		for (String textKey : entry.textKeys) {
+			precisionEntries.remove(textKey);
+		}
+
+		programEntries.remove(entry.programKey);
+		final CompiledExpression compiledExpression = entry.compiledExpression;
+		release(compiledExpression.opcodes);
+		release(compiledExpression.operands);
+		release(compiledExpression.floatConstants);
+		release(compiledExpression.doubleConstants);
+		release(compiledExpression.bigDecimalConstants);
+		release(compiledExpression.variableNames);
+	}
+
+	/**
+	 * Returns the shared array equal to the given one, which becomes the
+	 * shared array if there isn't one yet.
+	 */
+	private Object share(Object array) {
+		final SharedArray key = new SharedArray(array);
+		SharedArray sharedArray = sharedArrays.get(key);
+
+		if (sharedArray == null) {
+			sharedArray = key;
+			sharedArrays.put(key, key);
+		}
+
+		sharedArray.useCount++;
+		return sharedArray.array;
+	}
+
+	private void release(Object array) {
+		final SharedArray sharedArray = sharedArrays.get(new SharedArray(array));
+
+		if (--sharedArray.useCount == 0) {
+			sharedArrays.remove(sharedArray);
+		}
+	}
+
+	/**
+	 * Removes every entry. The counters are kept.
+	 */
+	public synchronized void clear() {
+		for (ConcurrentHashMap<String, Entry> precisionEntries : entries.values()) {
+			precisionEntries.clear();
+		}
+
+		programEntries.clear();
+		sharedArrays.clear();
+
+		for (int i = 0; i < ringSize; i++) {
+			ring[i] = null;
+		}
+
+		ringSize = 0;
+		hand = 0;
+	}
+
+	/**
+	 * Returns the number of cached programs.
+	 */
+	public synchronized int size() {
+		return ringSize;
+	}
+
+	/**
+	 * Returns how many inputs were found by their text.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns how many inputs were parsed and found to be equivalent to a
+	 * cached program, and so weren't optimized again.
+	 */
+	public long getCanonicalHitCount() {
+		return canonicalHitCount.get();
+	}
+
+	/**
+	 * Returns how many distinct arrays the cached programs use between them.
+	 */
+	synchronized int getSharedArrayCount() {
+		return sharedArrays.size();
+	}
+
+	/**
+	 * Returns how many inputs had to be compiled.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Returns how many entries have been replaced to make room for others.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * Returns the input in lower case, without leading or trailing whitespace,
+	 * and without whitespace next to a symbol. Whitespace between letters,
+	 * digits or decimal points separates tokens, so it's kept as one space.
+	 * Returns the input itself if it's already normalized.
+	 */
+	static String normalize(CharSequence input) {
+		if (input instanceof String && isNormalized(input)) {
+			return (String) input;
+		}
+
+		final StringBuilder builder = new StringBuilder(input.length());
+		boolean pendingSpace = false;
+
+		for (int i = 0; i < input.length(); i++) {
+			final char c = input.charAt(i);
+
+			if (Character.isWhitespace(c)) {
+				pendingSpace = builder.length() > 0 && isPartOfWord(builder.charAt(builder.length() - 1));
+			} else {
+				if (pendingSpace && isPartOfWord(c)) {
+					builder.append(' ');
+				}
+
+				builder.append(Character.toLowerCase(c));
+				pendingSpace = false;
+			}
+		}
+
+		return builder.toString();
+	}
+
+	private static boolean isNormalized(CharSequence input) {
+		for (int i = 0; i < input.length(); i++) {
+			final char c = input.charAt(i);
+
+			if (Character.isWhitespace(c)) {
+				// Only a single space between two word characters survives.
+				if (c != ' ' || i == 0 || i == input.length() - 1 || !isPartOfWord(input.charAt(i - 1))
+						|| !isPartOfWord(input.charAt(i + 1))) {
+					return false;
+				}
+			} else if (Character.toLowerCase(c) != c) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean isPartOfWord(char c) {
+		return Character.isLetterOrDigit(c) || c == '.';
+	}
+}
@@ -0,0 +1,202 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Rewrites a parsed program into a canonical form, so that programs that
+ * differ only in the order of the operands of + and * compile to identical
+ * arrays. Operands are put in a fixed structural order, in which variables
+ * are compared by name, and variables are then given slots in order of first
+ * appearance in the result.
+ * <p>
+ * Swapping the operands of + or * never changes a result in any precision.
+ * Regrouping a chain such as x + y + z can, so chains are only flattened and
+ * sorted as a whole with relaxed float and double math.
+ * <p>
+ * Programs deeper than {@link ExpressionNode#MAX_DEPTH} are left as they are.
+ */
+class ExpressionCanonicalizer {
+	private final String[] variableNames;
+	private final boolean reassociate;
+	private final Comparator<ExpressionNode> structuralOrder = new Comparator<ExpressionNode>() {
+		@Override
+		public int compare(ExpressionNode first, ExpressionNode second) {
+			return compareNodes(first, second);
+		}
+	};
+
+	private ExpressionCanonicalizer(String[] variableNames, boolean reassociate) {
+		this.variableNames = variableNames;
+		this.reassociate = reassociate;
+	}
+
+	/**
+	 * Returns the canonical form of an unoptimized program. Its variables may
+	 * be in a different order, so they should be found by name.
+	 */
+	static CompiledExpression canonicalize(CompiledExpression parsedExpression, boolean relaxedMath)
+			throws ParseException {
+		final FlatToken[] parsedPostfixExpression = parsedExpression.toPostfix();
+
+		if (ExpressionNode.depth(parsedPostfixExpression) > ExpressionNode.MAX_DEPTH) {
+			return parsedExpression;
+		}
+
+		final boolean reassociate = relaxedMath && parsedExpression.numberPrecision != NumberPrecision.BIG_DECIMAL;
+		final ExpressionCanonicalizer canonicalizer = new ExpressionCanonicalizer(parsedExpression.variableNames,
+				reassociate);
+		final ExpressionNode tree = canonicalizer.canonicalize(ExpressionNode.fromPostfix(parsedPostfixExpression));
+		final FlatToken[] postfixExpression = tree.toPostfix();
+
+		// Renumber the variables in order of first appearance.
+		final int[] newSlots = new int[parsedExpression.variableNames.length];
+		Arrays.fill(newSlots, -1);
+		final List<String> newVariableNames = new ArrayList<String>(newSlots.length);
+
+		for (int i = 0; i < postfixExpression.length; i++) {
+			final FlatToken token = postfixExpression[i];
+
+			if (token.type == FlatToken.TYPE_IDENTIFIER) {
+				if (newSlots[token.slot] < 0) {
+					newSlots[token.slot] = newVariableNames.size();
+					newVariableNames.add(parsedExpression.variableNames[token.slot]);
+				}
+
+				postfixExpression[i] = FlatToken.newIdentifier(newSlots[token.slot]);
+			}
+		}
+
+		return CompiledExpression.encode(parsedExpression.numberPrecision, postfixExpression,
+				newVariableNames.toArray(new String[newVariableNames.size()]));
+	}
+
+	private ExpressionNode canonicalize(ExpressionNode node) {
+		if (node.left == null) {
+			return node;
+		}
+
+		final boolean isCommutative = node.isOperator(FlatToken.OPERATOR_ADD)
+				|| node.isOperator(FlatToken.OPERATOR_MULTIPLY);
+
+		if (isCommutative && reassociate) {
+			final List<ExpressionNode> operands = new ArrayList<ExpressionNode>();
+			collectChain(node, node.token.typeEnum, operands);
+			Collections.sort(operands, structuralOrder);
+
+			ExpressionNode chain = operands.get(0);
+
+			for (int i = 1; i < operands.size(); i++) {
+				chain = new ExpressionNode(node.token, chain, operands.get(i));
+			}
+
+			return chain;
+		}
+
+		final ExpressionNode left = canonicalize(node.left);
+		final ExpressionNode right = node.right != null ? canonicalize(node.right) : null;
+
+		if (isCommutative && compareNodes(left, right) > 0) {
+			return new ExpressionNode(node.token, right, left);
+		} else if (left == node.left && right == node.right) {
+			return node;
+		} else {
+			return new ExpressionNode(node.token, left, right);
+		}
+	}
+
+	/**
+	 * Adds the canonical operands of a chain of the given operator.
+	 */
+	private void collectChain(ExpressionNode node, int operator, List<ExpressionNode> operands) {
+		if (node.isOperator(operator)) {
+			collectChain(node.left, operator, operands);
+			collectChain(node.right, operator, operands);
+		} else {
+			operands.add(canonicalize(node));
+		}
+	}
+
+	/**
+	 * A total order in which nodes compare equal only if they compute the
+	 * same thing from variables with the same names.
+	 */
+	private int compareNodes(ExpressionNode first, ExpressionNode second) {
+		if (first == second) {
+			return 0;
+		} else if (first == null || second == null) {
+			return first == null ? -1 : 1;
+		}
+
+		int result = compareTokens(first.token, second.token);
+
+		if (result == 0) {
+			result = compareNodes(first.left, second.left);
+		}
+
+		if (result == 0) {
+			result = compareNodes(first.right, second.right);
+		}
+
+		return result;
+	}
+
+	private int compareTokens(FlatToken first, FlatToken second) {
+		if (first.type != second.type) {
+			return first.type < second.type ? -1 : 1;
+		} else if (first.typeEnum != second.typeEnum) {
+			return first.typeEnum < second.typeEnum ? -1 : 1;
+		} else if (first.type == FlatToken.TYPE_IDENTIFIER) {
+			return variableNames[first.slot].compareTo(variableNames[second.slot]);
+		} else if (first.type != FlatToken.TYPE_NUMBER_LITERAL) {
+			return 0;
+		}
+
+		final int firstFloatBits = Float.floatToRawIntBits(first.floatValue);
+		final int secondFloatBits = Float.floatToRawIntBits(second.floatValue);
+
+		if (firstFloatBits != secondFloatBits) {
+			return firstFloatBits < secondFloatBits ? -1 : 1;
+		}
+
+		final long firstDoubleBits = Double.doubleToRawLongBits(first.doubleValue);
+		final long secondDoubleBits = Double.doubleToRawLongBits(second.doubleValue);
+
+		if (firstDoubleBits != secondDoubleBits) {
+			return firstDoubleBits < secondDoubleBits ? -1 : 1;
+		} else if (first.bigDecimalValue == null || second.bigDecimalValue == null) {
+			return 0;
+		}
+
+		final int result = first.bigDecimalValue.compareTo(second.bigDecimalValue);
+
+		if (result != 0) {
+			return result;
+		} else {
+			// 2 and 2.0 are equal in value but not in scale.
+			final int firstScale = first.bigDecimalValue.scale();
+			final int secondScale = second.bigDecimalValue.scale();
+			return firstScale < secondScale ? -1 : (firstScale == secondScale ? 0 : 1);
+		}
+	}
+}
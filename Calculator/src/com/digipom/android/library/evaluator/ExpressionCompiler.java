@@ -0,0 +1,116 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Lexes and parses an input string into a {@link CompiledExpression}. The
+ * result can be shared by any number of evaluators, so an expression only has
+ * to be parsed once no matter how many times it is evaluated.
+ * <p>
+ * Each distinct variable is resolved to an integer slot at compile time; every
+ * occurrence of that variable reads the same slot when evaluating.
+ * <p>
+ * By default the parsed expression is also optimized: constant subexpressions
+ * are folded and identities such as x * 1 = x are applied, as long as they
+ * don't change the result in the target precision. Repeated subexpressions are
+ * then evaluated once and kept in locals, and common instruction sequences are
+ * replaced by single instructions. Optimizing costs several times as much as
+ * parsing, so evaluators constructed straight from a string don't optimize.
+ * <p>
+ * Relaxed math additionally allows float and double rewrites that can change
+ * the last bits of a result, such as computing x ^ 3 as x * x * x. It is off by
+ * default.
+ */
+public class ExpressionCompiler {
+	private boolean optimizationEnabled = true;
+	private boolean relaxedMathEnabled;
+
+	public boolean isOptimizationEnabled() {
+		return optimizationEnabled;
+	}
+
+	public void setOptimizationEnabled(boolean optimizationEnabled) {
+		this.optimizationEnabled = optimizationEnabled;
+	}
+
+	public boolean isRelaxedMathEnabled() {
+		return relaxedMathEnabled;
+	}
+
+	public void setRelaxedMathEnabled(boolean relaxedMathEnabled) {
+		this.relaxedMathEnabled = relaxedMathEnabled;
+	}
+
+	public CompiledExpression compile(CharSequence input, NumberPrecision numberPrecision) throws ParseException {
+		return optimize(new ShuntingYardParser(input, numberPrecision).parse());
+	}
+
+	/**
+	 * Compiles without optimizing, for programs that are only evaluated once
+	 * or a few times and would never earn back the cost.
+	 */
+	static CompiledExpression compileUnoptimized(CharSequence input, NumberPrecision numberPrecision)
+			throws ParseException {
+		return new ShuntingYardParser(input, numberPrecision).parse();
+	}
+
+	/**
+	 * Parses the input once, keeping its literals exact, so that it can then
+	 * be compiled in any precision without parsing it again. The parsed
+	 * expression compiles with a copy of this compiler's current settings.
+	 */
+	public ParsedExpression parse(CharSequence input) throws ParseException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		compiler.setOptimizationEnabled(optimizationEnabled);
+		compiler.setRelaxedMathEnabled(relaxedMathEnabled);
+		return new ParsedExpression(compiler, new ShuntingYardParser(input, NumberPrecision.BIG_DECIMAL).parse());
+	}
+
+	/**
+	 * Applies the optimizations that are enabled to a program from
+	 * {@link ShuntingYardParser}.
+	 */
+	CompiledExpression optimize(CompiledExpression parsedExpression) throws ParseException {
+		if (!optimizationEnabled) {
+			return parsedExpression;
+		}
+
+		final NumberPrecision numberPrecision = parsedExpression.numberPrecision;
+		final FlatToken[] parsedPostfixExpression = parsedExpression.toPostfix();
+
+		if (ExpressionNode.depth(parsedPostfixExpression) > ExpressionNode.MAX_DEPTH) {
+			// Too deep for the tree passes; the peephole pass doesn't recurse.
+			return new PeepholeOptimizer(relaxedMathEnabled).optimize(parsedExpression);
+		}
+
+		// The parser has checked the program, so it always forms a tree.
+		final ExpressionNode tree = ExpressionNode.fromPostfix(parsedPostfixExpression);
+		final ExpressionNode optimizedTree = new ExpressionOptimizer(numberPrecision).optimize(tree);
+		final CommonSubexpressionEliminator eliminator = new CommonSubexpressionEliminator();
+		final FlatToken[] postfixExpression = eliminator.toPostfix(optimizedTree);
+		final int localCount = eliminator.getLocalCount();
+
+		// Every instruction except a store evaluates one node.
+		final int removedNodeCount = tree.size() - (postfixExpression.length - localCount);
+
+		final CompiledExpression compiledExpression = CompiledExpression.encode(numberPrecision, postfixExpression,
+				parsedExpression.variableNames, localCount, removedNodeCount);
+
+		return new PeepholeOptimizer(relaxedMathEnabled).optimize(compiledExpression);
+	}
+}
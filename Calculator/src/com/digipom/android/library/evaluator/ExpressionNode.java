@@ -0,0 +1,195 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
+
+/**
+ * A node of the expression tree used between parsing and the final postfix
+ * program. Leaves are identifiers and literals; every other node is an
+ * operator or function applied to one or two operands. Nodes are immutable,
+ * and two nodes are equal if they compute the same thing from the same
+ * operands, so identical subtrees can be shared.
+ */
+class ExpressionNode {
+	/**
+	 * The deepest tree that passes over trees take. They recurse once per
+	 * level, so deeper programs, such as long chains of sums, are left as
+	 * they are rather than risk overflowing the stack.
+	 */
+	static final int MAX_DEPTH = 256;
+
+	final FlatToken token;
+	final ExpressionNode left;
+	final ExpressionNode right;
+
+	private final int hashCode;
+
+	ExpressionNode(FlatToken token) {
+		this(token, null, null);
+	}
+
+	ExpressionNode(FlatToken token, ExpressionNode operand) {
+		this(token, operand, null);
+	}
+
+	ExpressionNode(FlatToken token, ExpressionNode left, ExpressionNode right) {
+		this.token = token;
+		this.left = left;
+		this.right = right;
+
+		int hashCode = token.equivalenceHashCode();
+		hashCode = 31 * hashCode + (left != null ? left.hashCode : 0);
+		hashCode = 31 * hashCode + (right != null ? right.hashCode : 0);
+		this.hashCode = hashCode;
+	}
+
+	/**
+	 * Builds a tree from a postfix program, or returns null if the program
+	 * doesn't leave exactly one value on the stack. Reads of a local become
+	 * references to the node that was stored there.
+	 */
+	static ExpressionNode fromPostfix(FlatToken[] postfixExpression) {
+		final ExpressionNode[] stack = new ExpressionNode[postfixExpression.length];
+		final ExpressionNode[] locals = new ExpressionNode[postfixExpression.length];
+		int stackPointer = -1;
+
+		for (final FlatToken token : postfixExpression) {
+			final int arity = token.arity();
+
+			if (stackPointer + 1 < arity) {
+				return null;
+			}
+
+			if (token.type == FlatToken.TYPE_STORE_LOCAL) {
+				if (stackPointer < 0) {
+					return null;
+				}
+
+				locals[token.slot] = stack[stackPointer];
+			} else if (token.type == FlatToken.TYPE_LOAD_LOCAL) {
+				if (locals[token.slot] == null) {
+					return null;
+				}
+
+				stack[++stackPointer] = locals[token.slot];
+			} else if (arity == 0) {
+				stack[++stackPointer] = new ExpressionNode(token);
+			} else if (arity == 1) {
+				stack[stackPointer] = new ExpressionNode(token, stack[stackPointer]);
+			} else {
+				final ExpressionNode right = stack[stackPointer--];
+				stack[stackPointer] = new ExpressionNode(token, stack[stackPointer], right);
+			}
+		}
+
+		return stackPointer == 0 ? stack[0] : null;
+	}
+
+	/**
+	 * Returns the depth of the tree that {@link #fromPostfix} would build,
+	 * without building it.
+	 */
+	static int depth(FlatToken[] postfixExpression) {
+		final int[] stack = new int[postfixExpression.length];
+		final int[] locals = new int[postfixExpression.length];
+		int stackPointer = -1;
+		int maxDepth = 0;
+
+		for (final FlatToken token : postfixExpression) {
+			final int arity = token.arity();
+
+			if (token.type == FlatToken.TYPE_STORE_LOCAL) {
+				locals[token.slot] = stack[stackPointer];
+			} else if (token.type == FlatToken.TYPE_LOAD_LOCAL) {
+				stack[++stackPointer] = locals[token.slot];
+			} else if (arity == 0) {
+				stack[++stackPointer] = 1;
+			} else if (arity == 1) {
+				stack[stackPointer]++;
+			} else {
+				final int right = stack[stackPointer--];
+				stack[stackPointer] = Math.max(stack[stackPointer], right) + 1;
+			}
+
+			maxDepth = Math.max(maxDepth, stack[stackPointer]);
+		}
+
+		return maxDepth;
+	}
+
+	FlatToken[] toPostfix() {
+		final List<FlatToken> postfixExpression = new ArrayList<FlatToken>();
+		appendPostfix(postfixExpression);
+		return postfixExpression.toArray(new FlatToken[postfixExpression.size()]);
+	}
+
+	private void appendPostfix(List<FlatToken> postfixExpression) {
+		if (left != null) {
+			left.appendPostfix(postfixExpression);
+		}
+
+		if (right != null) {
+			right.appendPostfix(postfixExpression);
+		}
+
+		postfixExpression.add(token);
+	}
+
+	/**
+	 * Returns the number of nodes in this tree, counting shared subtrees once
+	 * per use.
+	 */
+	int size() {
+		return 1 + (left != null ? left.size() : 0) + (right != null ? right.size() : 0);
+	}
+
+	boolean isLiteral() {
+		return token.type == FlatToken.TYPE_NUMBER_LITERAL;
+	}
+
+	boolean isOperator(int operator) {
+		return token.type == FlatToken.TYPE_OPERATOR && token.typeEnum == operator;
+	}
+
+	boolean isFunction(int function) {
+		return token.type == FlatToken.TYPE_PREDEF_FUNCTION && token.typeEnum == function;
+	}
+
+	@Override
+	public boolean equals(Object object) {
+		if (this == object) {
+			return true;
+		} else if (!(object instanceof ExpressionNode)) {
+			return false;
+		}
+
+		final ExpressionNode other = (ExpressionNode) object;
+		return hashCode == other.hashCode && token.isEquivalentTo(other.token) && equals(left, other.left)
+				&& equals(right, other.right);
+	}
+
+	private static boolean equals(ExpressionNode first, ExpressionNode second) {
+		return first == null ? second == null : first.equals(second);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+}
@@ -0,0 +1,233 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+
+import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Simplifies an expression tree before it's lowered to a postfix program.
+ * <p>
+ * Constant subtrees are folded by running them through the evaluator for the
+ * target precision, so a folded value is exactly what evaluation would have
+ * produced. Algebraic identities are only applied where they give the same
+ * result as the original expression for every input, down to the sign of a
+ * zero and the scale of a BigDecimal. So x + 0 = x is never used: it's wrong
+ * for x = -0.0 in floating point, and changes the scale of 1E+3 in decimal.
+ * x - 0 = x is only used in floating point.
+ * <p>
+ * In BigDecimal, every operation rounds to the math context of whichever
+ * evaluator runs the program, so a constant subtree is only folded when its
+ * result is short enough to be exact in any math context. For the same reason
+ * operations aren't reordered, since that can change how results round.
+ */
+class ExpressionOptimizer {
+	private static final String[] NO_VARIABLES = new String[0];
+
+	private final NumberPrecision numberPrecision;
+	private final boolean isDecimal;
+
+	ExpressionOptimizer(NumberPrecision numberPrecision) {
+		this.numberPrecision = numberPrecision;
+		this.isDecimal = numberPrecision == NumberPrecision.BIG_DECIMAL;
+	}
+
+	ExpressionNode optimize(ExpressionNode node) {
+		if (node.left == null) {
+			return node;
+		}
+
+		final ExpressionNode left = optimize(node.left);
+		final ExpressionNode right = node.right != null ? optimize(node.right) : null;
+		final ExpressionNode rebuilt = left == node.left && right == node.right ? node : new ExpressionNode(
+				node.token, left, right);
+
+		if (left.isLiteral() && (right == null || right.isLiteral()) && isWorthFolding(rebuilt)) {
+			final ExpressionNode folded = fold(rebuilt);
+
+			if (folded != null) {
+				return folded;
+			}
+		}
+
+		return simplify(rebuilt);
+	}
+
+	/**
+	 * Applies identities to a node whose operands are already simplified.
+	 * Every rewrite makes the tree smaller, so this always terminates.
+	 */
+	private ExpressionNode simplify(ExpressionNode node) {
+		final ExpressionNode left = node.left;
+		final ExpressionNode right = node.right;
+
+		if (node.token.type == FlatToken.TYPE_OPERATOR) {
+			switch (node.token.typeEnum) {
+				case FlatToken.OPERATOR_NEGATE:
+					if (left.isOperator(FlatToken.OPERATOR_NEGATE)) {
+						return left.left;
+					}
+					break;
+				case FlatToken.OPERATOR_ADD:
+					if (right.isOperator(FlatToken.OPERATOR_NEGATE)) {
+						return simplify(binary(FlatToken.OPERATOR_SUBTRACT, left, right.left));
+					} else if (left.isOperator(FlatToken.OPERATOR_NEGATE)) {
+						return simplify(binary(FlatToken.OPERATOR_SUBTRACT, right, left.left));
+					}
+					break;
+				case FlatToken.OPERATOR_SUBTRACT:
+					if (!isDecimal && isLiteral(right, 0)) {
+						return left;
+					} else if (right.isOperator(FlatToken.OPERATOR_NEGATE)) {
+						return simplify(binary(FlatToken.OPERATOR_ADD, left, right.left));
+					}
+					break;
+				case FlatToken.OPERATOR_MULTIPLY:
+					if (isLiteral(right, 1)) {
+						return left;
+					} else if (isLiteral(left, 1)) {
+						return right;
+					} else if (isLiteral(right, -1)) {
+						return simplify(negate(left));
+					} else if (isLiteral(left, -1)) {
+						return simplify(negate(right));
+					} else if (left.isOperator(FlatToken.OPERATOR_NEGATE)
+							&& right.isOperator(FlatToken.OPERATOR_NEGATE)) {
+						return simplify(binary(FlatToken.OPERATOR_MULTIPLY, left.left, right.left));
+					}
+					break;
+				case FlatToken.OPERATOR_DIVIDE:
+					if (isLiteral(right, 1)) {
+						return left;
+					} else if (left.isOperator(FlatToken.OPERATOR_NEGATE)
+							&& right.isOperator(FlatToken.OPERATOR_NEGATE)) {
+						return simplify(binary(FlatToken.OPERATOR_DIVIDE, left.left, right.left));
+					}
+					break;
+				case FlatToken.OPERATOR_POWER:
+					if (isLiteral(right, 1)) {
+						return left;
+					}
+					break;
+			}
+		} else if (node.token.type == FlatToken.TYPE_PREDEF_FUNCTION) {
+			switch (node.token.typeEnum) {
+				case FlatToken.FUNCTION_POW:
+					if (isLiteral(right, 1)) {
+						return left;
+					}
+					break;
+				case FlatToken.FUNCTION_ABS:
+					if (left.isFunction(FlatToken.FUNCTION_ABS)) {
+						return left;
+					} else if (left.isOperator(FlatToken.OPERATOR_NEGATE)) {
+						return simplify(new ExpressionNode(node.token, left.left));
+					}
+					break;
+			}
+		}
+
+		return node;
+	}
+
+	/**
+	 * Returns false for decimal operations whose results are almost never
+	 * short enough to fold, such as sin(1) or 2 ^ 0.5. Finding that out means
+	 * computing them to full precision, which costs far more than the compile.
+	 */
+	private boolean isWorthFolding(ExpressionNode node) {
+		if (!isDecimal) {
+			return true;
+		}
+
+		final FlatToken token = node.token;
+
+		if (token.type == FlatToken.TYPE_PREDEF_FUNCTION) {
+			return token.typeEnum == FlatToken.FUNCTION_ABS
+					|| (token.typeEnum == FlatToken.FUNCTION_POW && isInteger(node.right));
+		}
+
+		return token.typeEnum != FlatToken.OPERATOR_POWER || isInteger(node.right);
+	}
+
+	private static boolean isInteger(ExpressionNode node) {
+		final BigDecimal value = node.token.bigDecimalValue;
+		return value.signum() == 0 || value.scale() <= 0 || value.stripTrailingZeros().scale() <= 0;
+	}
+
+	/**
+	 * Evaluates a subtree with only literal leaves, or returns null if
+	 * evaluating it fails. Failures are left for evaluation time so they're
+	 * reported the same way as before.
+	 */
+	private ExpressionNode fold(ExpressionNode node) {
+		try {
+			final CompiledExpression constant = CompiledExpression.encode(numberPrecision, node.toPostfix(),
+					NO_VARIABLES);
+
+			switch (numberPrecision) {
+				case BIG_DECIMAL: {
+					// A result shorter than the evaluator's precision wasn't
+					// rounded, and fits in every math context.
+					final BigDecimal value = new BigDecimalPostfixEvaluator(constant).evaluate();
+					return value.precision() <= BigDecimalPostfixEvaluator.MIN_PRECISION ? new ExpressionNode(
+							FlatToken.newBigDecimalLiteral(value)) : null;
+				}
+				case DOUBLE:
+					return new ExpressionNode(FlatToken.newDoubleLiteral(new DoublePostfixEvaluator(constant)
+							.evaluate()));
+				case FLOAT:
+				default:
+					return new ExpressionNode(FlatToken.newFloatLiteral(new FloatPostfixEvaluator(constant)
+							.evaluate()));
+			}
+		} catch (ParseException e) {
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the node is a literal equal to value. For float and
+	 * double the comparison is on the bit pattern, so -0.0 doesn't match 0.
+	 * Decimal literals also have to match in scale, so 1.0 doesn't match 1.
+	 */
+	private boolean isLiteral(ExpressionNode node, int value) {
+		if (!node.isLiteral()) {
+			return false;
+		}
+
+		switch (numberPrecision) {
+			case BIG_DECIMAL:
+				return node.token.bigDecimalValue.equals(BigDecimal.valueOf(value));
+			case DOUBLE:
+				return Double.doubleToRawLongBits(node.token.doubleValue) == Double.doubleToRawLongBits(value);
+			case FLOAT:
+			default:
+				return Float.floatToRawIntBits(node.token.floatValue) == Float.floatToRawIntBits(value);
+		}
+	}
+
+	private static ExpressionNode binary(int operator, ExpressionNode left, ExpressionNode right) {
+		return new ExpressionNode(FlatToken.newOperator(operator), left, right);
+	}
+
+	private static ExpressionNode negate(ExpressionNode operand) {
+		return new ExpressionNode(FlatToken.newOperator(FlatToken.OPERATOR_NEGATE), operand);
+	}
+}
@@ -0,0 +1,212 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+import com.digipom.android.library.evaluator.lexer.Lexer;
+
+/**
+ * Caches parsed programs by their shape: the input's tokens with every number
+ * literal left out, so "1250*1.07^5" and "1300*1.07^6" share a template.
+ * Compiling an input lexes it once to find its shape and collect its literals,
+ * and on a hit binds the literals to the template's constant pool instead of
+ * parsing it again.
+ * <p>
+ * Every literal has its own constant in a template, in order of appearance.
+ * Templates aren't optimized, since folding and strength reduction depend on
+ * the values of the literals, so this suits inputs that are evaluated once,
+ * such as keypad entries. Variables are named as in the input that created
+ * the template, which may differ in case.
+ * <p>
+ * Instances are thread safe. Each precision keeps up to the maximum size of
+ * templates, and replaces the least recently used one when full.
+ */
+public class ExpressionTemplateCache {
+	private final int maximumSize;
+	// Guarded by this.
+	private final Map<NumberPrecision, Map<String, CompiledExpression>> templates;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public ExpressionTemplateCache(final int maximumSize) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+		}
+
+		this.maximumSize = maximumSize;
+		templates = new EnumMap<NumberPrecision, Map<String, CompiledExpression>>(NumberPrecision.class);
+
+		for (NumberPrecision numberPrecision : NumberPrecision.values()) {
+			templates.put(numberPrecision, new LinkedHashMap<String, CompiledExpression>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+					return size() > maximumSize;
+				}
+			});
+		}
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * Returns the input compiled without optimization, binding its literals to
+	 * a cached template of the same shape, or parsing it and caching its
+	 * template if there isn't one. Inputs that don't compile aren't cached.
+	 */
+	public CompiledExpression compile(CharSequence input, NumberPrecision numberPrecision) throws ParseException {
+		final Lexer lexer = new Lexer(input, numberPrecision);
+		final StringBuilder shape = new StringBuilder(input.length());
+		// Every literal takes at least one character.
+		final float[] floatConstants = numberPrecision == NumberPrecision.FLOAT ? new float[input.length()] : null;
+		final double[] doubleConstants = numberPrecision == NumberPrecision.DOUBLE ? new double[input.length()]
+				: null;
+		final BigDecimal[] bigDecimalConstants = numberPrecision == NumberPrecision.BIG_DECIMAL ? new BigDecimal[input
+				.length()] : null;
+		int constantCount = 0;
+		int kind;
+
+		while ((kind = lexer.next()) != Lexer.KIND_EOF) {
+			switch (kind) {
+				case Lexer.KIND_NUMBER:
+					shape.append('#');
+
+					if (floatConstants != null) {
+						floatConstants[constantCount] = lexer.getFloatValue();
+					} else if (doubleConstants != null) {
+						doubleConstants[constantCount] = lexer.getDoubleValue();
+					} else {
+						bigDecimalConstants[constantCount] = lexer.getBigDecimalValue();
+					}
+
+					constantCount++;
+					break;
+				case Lexer.KIND_IDENTIFIER:
+					// Identifiers are made of letters, so they can't run into
+					// the other tokens.
+					shape.append('$').append(lexer.getIdentifier().name).append(';');
+					break;
+				case Lexer.KIND_FUNCTION:
+					shape.append((char) ('a' + lexer.getFunction().ordinal()));
+					break;
+				case Lexer.KIND_OPERATOR:
+					shape.append((char) ('0' + lexer.getOperator().ordinal()));
+					break;
+				case Lexer.KIND_OPEN_PARENTHESIS:
+					shape.append('(');
+					break;
+				case Lexer.KIND_CLOSE_PARENTHESIS:
+					shape.append(')');
+					break;
+				case Lexer.KIND_COMMA:
+					shape.append(',');
+					break;
+			}
+		}
+
+		final String shapeKey = shape.toString();
+		CompiledExpression template;
+
+		synchronized (this) {
+			template = templates.get(numberPrecision).get(shapeKey);
+		}
+
+		if (template != null) {
+			hitCount.incrementAndGet();
+		} else {
+			missCount.incrementAndGet();
+			template = new ShuntingYardParser(input, numberPrecision, false).parse();
+
+			synchronized (this) {
+				templates.get(numberPrecision).put(shapeKey, template);
+			}
+		}
+
+		return template.withConstants(copyOf(floatConstants, constantCount), copyOf(doubleConstants, constantCount),
+				copyOf(bigDecimalConstants, constantCount));
+	}
+
+	public synchronized void clear() {
+		for (Map<String, CompiledExpression> precisionTemplates : templates.values()) {
+			precisionTemplates.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of cached templates, in all precisions.
+	 */
+	public synchronized int size() {
+		int size = 0;
+
+		for (Map<String, CompiledExpression> precisionTemplates : templates.values()) {
+			size += precisionTemplates.size();
+		}
+
+		return size;
+	}
+
+	/**
+	 * Returns how many inputs were bound to a cached template.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns how many inputs had to be parsed.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	private static float[] copyOf(float[] array, int length) {
+		if (array == null) {
+			return null;
+		}
+
+		final float[] copy = new float[length];
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+
+	private static double[] copyOf(double[] array, int length) {
+		if (array == null) {
+			return null;
+		}
+
+		final double[] copy = new double[length];
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+
+	private static BigDecimal[] copyOf(BigDecimal[] array, int length) {
+		if (array == null) {
+			return null;
+		}
+
+		final BigDecimal[] copy = new BigDecimal[length];
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+}
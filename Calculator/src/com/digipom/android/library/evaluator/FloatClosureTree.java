@@ -0,0 +1,754 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import android.util.FloatMath;
+
+/**
+ * A compiled expression as a tree of small node objects, with one class per
+ * operation and operand shape. Each node calls its children directly, so there
+ * is no operand stack and no switch on opcodes, and unlike generated bytecode
+ * this runs on Dalvik and ART.
+ * <p>
+ * Children are evaluated left to right, which is program order, so the node
+ * that stores a local always runs before the nodes that load it. Results are
+ * identical to {@link FloatPostfixEvaluator#evaluate(float[])}.
+ */
+final class FloatClosureTree implements FloatExpressionFunction {
+	private static final float[] NO_LOCALS = new float[0];
+
+	private final Node root;
+	private final int localCount;
+
+	FloatClosureTree(CompiledExpression compiledExpression) {
+		this.root = build(compiledExpression);
+		this.localCount = compiledExpression.localCount;
+	}
+
+	@Override
+	public float apply(float[] variables) {
+		return root.evaluate(variables, localCount == 0 ? NO_LOCALS : new float[localCount]);
+	}
+
+	private static Node build(CompiledExpression compiledExpression) {
+		final int[] opcodes = compiledExpression.opcodes;
+		final int[] operands = compiledExpression.operands;
+		final float[] constants = compiledExpression.floatConstants;
+		final Node[] nodeStack = new Node[compiledExpression.maxStackDepth];
+		int stackPointer = -1;
+
+		for (int pc = 0; pc < opcodes.length; pc++) {
+			final int operand = operands[pc];
+
+			switch (opcodes[pc]) {
+				case Opcode.LOAD_VARIABLE:
+					nodeStack[++stackPointer] = new Variable(operand);
+					break;
+				case Opcode.LOAD_CONSTANT:
+					nodeStack[++stackPointer] = new Constant(constants[operand]);
+					break;
+				case Opcode.LOAD_LOCAL:
+					nodeStack[++stackPointer] = new LoadLocal(operand);
+					break;
+				case Opcode.STORE_LOCAL:
+					nodeStack[stackPointer] = new StoreLocal(nodeStack[stackPointer], operand);
+					break;
+				case Opcode.NEGATE:
+					nodeStack[stackPointer] = new Negate(nodeStack[stackPointer]);
+					break;
+				case Opcode.ABS:
+					nodeStack[stackPointer] = new Abs(nodeStack[stackPointer]);
+					break;
+				case Opcode.SIN:
+					nodeStack[stackPointer] = new Sin(nodeStack[stackPointer]);
+					break;
+				case Opcode.COS:
+					nodeStack[stackPointer] = new Cos(nodeStack[stackPointer]);
+					break;
+				case Opcode.TAN:
+					nodeStack[stackPointer] = new Tan(nodeStack[stackPointer]);
+					break;
+				case Opcode.LN:
+					nodeStack[stackPointer] = new Ln(nodeStack[stackPointer]);
+					break;
+				case Opcode.SQRT:
+					nodeStack[stackPointer] = new Sqrt(nodeStack[stackPointer]);
+					break;
+				case Opcode.RECIPROCAL:
+					nodeStack[stackPointer] = new Reciprocal(nodeStack[stackPointer]);
+					break;
+				case Opcode.POWER_HALF:
+					nodeStack[stackPointer] = new PowerHalf(nodeStack[stackPointer]);
+					break;
+				case Opcode.SQUARE:
+					nodeStack[stackPointer] = new Square(nodeStack[stackPointer]);
+					break;
+				case Opcode.POWER_INTEGER:
+					nodeStack[stackPointer] = new PowerInteger(nodeStack[stackPointer], operand);
+					break;
+				case Opcode.ADD_VARIABLE:
+					nodeStack[stackPointer] = add(nodeStack[stackPointer], new Variable(operand));
+					break;
+				case Opcode.ADD_CONSTANT:
+					nodeStack[stackPointer] = add(nodeStack[stackPointer], new Constant(constants[operand]));
+					break;
+				case Opcode.SUBTRACT_VARIABLE:
+					nodeStack[stackPointer] = subtract(nodeStack[stackPointer], new Variable(operand));
+					break;
+				case Opcode.SUBTRACT_CONSTANT:
+					nodeStack[stackPointer] = subtract(nodeStack[stackPointer], new Constant(constants[operand]));
+					break;
+				case Opcode.MULTIPLY_VARIABLE:
+					nodeStack[stackPointer] = multiply(nodeStack[stackPointer], new Variable(operand));
+					break;
+				case Opcode.MULTIPLY_CONSTANT:
+					nodeStack[stackPointer] = multiply(nodeStack[stackPointer], new Constant(constants[operand]));
+					break;
+				case Opcode.DIVIDE_VARIABLE:
+					nodeStack[stackPointer] = divide(nodeStack[stackPointer], new Variable(operand));
+					break;
+				case Opcode.DIVIDE_CONSTANT:
+					nodeStack[stackPointer] = divide(nodeStack[stackPointer], new Constant(constants[operand]));
+					break;
+				case Opcode.ADD:
+					stackPointer--;
+					nodeStack[stackPointer] = add(nodeStack[stackPointer], nodeStack[stackPointer + 1]);
+					break;
+				case Opcode.SUBTRACT:
+					stackPointer--;
+					nodeStack[stackPointer] = subtract(nodeStack[stackPointer], nodeStack[stackPointer + 1]);
+					break;
+				case Opcode.MULTIPLY:
+					stackPointer--;
+					nodeStack[stackPointer] = multiply(nodeStack[stackPointer], nodeStack[stackPointer + 1]);
+					break;
+				case Opcode.DIVIDE:
+					stackPointer--;
+					nodeStack[stackPointer] = divide(nodeStack[stackPointer], nodeStack[stackPointer + 1]);
+					break;
+				case Opcode.POWER:
+					stackPointer--;
+					nodeStack[stackPointer] = new Power(nodeStack[stackPointer], nodeStack[stackPointer + 1]);
+					break;
+			}
+		}
+
+		return nodeStack[0];
+	}
+
+	/**
+	 * Returns the most specific node for the operand shapes.
+	 */
+	private static Node add(Node left, Node right) {
+		if (left instanceof Variable) {
+			final int leftSlot = ((Variable) left).slot;
+
+			if (right instanceof Variable) {
+				return new AddVariableVariable(leftSlot, ((Variable) right).slot);
+			} else if (right instanceof Constant) {
+				return new AddVariableConstant(leftSlot, ((Constant) right).value);
+			}
+		}
+
+		if (right instanceof Variable) {
+			return new AddVariable(left, ((Variable) right).slot);
+		} else if (right instanceof Constant) {
+			return new AddConstant(left, ((Constant) right).value);
+		}
+
+		return new Add(left, right);
+	}
+
+	private static Node subtract(Node left, Node right) {
+		if (left instanceof Variable) {
+			final int leftSlot = ((Variable) left).slot;
+
+			if (right instanceof Variable) {
+				return new SubtractVariableVariable(leftSlot, ((Variable) right).slot);
+			} else if (right instanceof Constant) {
+				return new SubtractVariableConstant(leftSlot, ((Constant) right).value);
+			}
+		}
+
+		if (right instanceof Variable) {
+			return new SubtractVariable(left, ((Variable) right).slot);
+		} else if (right instanceof Constant) {
+			return new SubtractConstant(left, ((Constant) right).value);
+		}
+
+		return new Subtract(left, right);
+	}
+
+	private static Node multiply(Node left, Node right) {
+		if (left instanceof Variable) {
+			final int leftSlot = ((Variable) left).slot;
+
+			if (right instanceof Variable) {
+				return new MultiplyVariableVariable(leftSlot, ((Variable) right).slot);
+			} else if (right instanceof Constant) {
+				return new MultiplyVariableConstant(leftSlot, ((Constant) right).value);
+			}
+		}
+
+		if (right instanceof Variable) {
+			return new MultiplyVariable(left, ((Variable) right).slot);
+		} else if (right instanceof Constant) {
+			return new MultiplyConstant(left, ((Constant) right).value);
+		}
+
+		return new Multiply(left, right);
+	}
+
+	private static Node divide(Node left, Node right) {
+		if (left instanceof Variable) {
+			final int leftSlot = ((Variable) left).slot;
+
+			if (right instanceof Variable) {
+				return new DivideVariableVariable(leftSlot, ((Variable) right).slot);
+			} else if (right instanceof Constant) {
+				return new DivideVariableConstant(leftSlot, ((Constant) right).value);
+			}
+		}
+
+		if (right instanceof Variable) {
+			return new DivideVariable(left, ((Variable) right).slot);
+		} else if (right instanceof Constant) {
+			return new DivideConstant(left, ((Constant) right).value);
+		}
+
+		return new Divide(left, right);
+	}
+
+	private abstract static class Node {
+		abstract float evaluate(float[] variables, float[] locals);
+	}
+
+	private static final class Variable extends Node {
+		final int slot;
+
+		Variable(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return variables[slot];
+		}
+	}
+
+	private static final class Constant extends Node {
+		final float value;
+
+		Constant(float value) {
+			this.value = value;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return value;
+		}
+	}
+
+	private static final class LoadLocal extends Node {
+		private final int index;
+
+		LoadLocal(int index) {
+			this.index = index;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return locals[index];
+		}
+	}
+
+	private static final class StoreLocal extends Node {
+		private final Node child;
+		private final int index;
+
+		StoreLocal(Node child, int index) {
+			this.child = child;
+			this.index = index;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			final float value = child.evaluate(variables, locals);
+			locals[index] = value;
+			return value;
+		}
+	}
+
+	private static final class Negate extends Node {
+		private final Node child;
+
+		Negate(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return -child.evaluate(variables, locals);
+		}
+	}
+
+	private static final class Abs extends Node {
+		private final Node child;
+
+		Abs(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return Math.abs(child.evaluate(variables, locals));
+		}
+	}
+
+	private static final class Sin extends Node {
+		private final Node child;
+
+		Sin(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return FloatMath.sin(child.evaluate(variables, locals));
+		}
+	}
+
+	private static final class Cos extends Node {
+		private final Node child;
+
+		Cos(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return FloatMath.cos(child.evaluate(variables, locals));
+		}
+	}
+
+	private static final class Tan extends Node {
+		private final Node child;
+
+		Tan(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return (float) Math.tan(child.evaluate(variables, locals));
+		}
+	}
+
+	private static final class Ln extends Node {
+		private final Node child;
+
+		Ln(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return (float) Math.log(child.evaluate(variables, locals));
+		}
+	}
+
+	private static final class Sqrt extends Node {
+		private final Node child;
+
+		Sqrt(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return FloatMath.sqrt(child.evaluate(variables, locals));
+		}
+	}
+
+	private static final class Reciprocal extends Node {
+		private final Node child;
+
+		Reciprocal(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return 1 / child.evaluate(variables, locals);
+		}
+	}
+
+	private static final class PowerHalf extends Node {
+		private final Node child;
+
+		PowerHalf(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return FloatPostfixEvaluator.powerHalf(child.evaluate(variables, locals));
+		}
+	}
+
+	private static final class Square extends Node {
+		private final Node child;
+
+		Square(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			final float value = child.evaluate(variables, locals);
+			return value * value;
+		}
+	}
+
+	private static final class PowerInteger extends Node {
+		private final Node child;
+		private final int exponent;
+
+		PowerInteger(Node child, int exponent) {
+			this.child = child;
+			this.exponent = exponent;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return FloatPostfixEvaluator.powerInteger(child.evaluate(variables, locals), exponent);
+		}
+	}
+
+	private static final class Power extends Node {
+		private final Node left;
+		private final Node right;
+
+		Power(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return (float) Math.pow(left.evaluate(variables, locals), right.evaluate(variables, locals));
+		}
+	}
+
+	private static final class Add extends Node {
+		private final Node left;
+		private final Node right;
+
+		Add(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) + right.evaluate(variables, locals);
+		}
+	}
+
+	private static final class AddVariable extends Node {
+		private final Node left;
+		private final int rightSlot;
+
+		AddVariable(Node left, int rightSlot) {
+			this.left = left;
+			this.rightSlot = rightSlot;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) + variables[rightSlot];
+		}
+	}
+
+	private static final class AddConstant extends Node {
+		private final Node left;
+		private final float right;
+
+		AddConstant(Node left, float right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) + right;
+		}
+	}
+
+	private static final class AddVariableVariable extends Node {
+		private final int leftSlot;
+		private final int rightSlot;
+
+		AddVariableVariable(int leftSlot, int rightSlot) {
+			this.leftSlot = leftSlot;
+			this.rightSlot = rightSlot;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return variables[leftSlot] + variables[rightSlot];
+		}
+	}
+
+	private static final class AddVariableConstant extends Node {
+		private final int leftSlot;
+		private final float right;
+
+		AddVariableConstant(int leftSlot, float right) {
+			this.leftSlot = leftSlot;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return variables[leftSlot] + right;
+		}
+	}
+
+	private static final class Subtract extends Node {
+		private final Node left;
+		private final Node right;
+
+		Subtract(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) - right.evaluate(variables, locals);
+		}
+	}
+
+	private static final class SubtractVariable extends Node {
+		private final Node left;
+		private final int rightSlot;
+
+		SubtractVariable(Node left, int rightSlot) {
+			this.left = left;
+			this.rightSlot = rightSlot;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) - variables[rightSlot];
+		}
+	}
+
+	private static final class SubtractConstant extends Node {
+		private final Node left;
+		private final float right;
+
+		SubtractConstant(Node left, float right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) - right;
+		}
+	}
+
+	private static final class SubtractVariableVariable extends Node {
+		private final int leftSlot;
+		private final int rightSlot;
+
+		SubtractVariableVariable(int leftSlot, int rightSlot) {
+			this.leftSlot = leftSlot;
+			this.rightSlot = rightSlot;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return variables[leftSlot] - variables[rightSlot];
+		}
+	}
+
+	private static final class SubtractVariableConstant extends Node {
+		private final int leftSlot;
+		private final float right;
+
+		SubtractVariableConstant(int leftSlot, float right) {
+			this.leftSlot = leftSlot;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return variables[leftSlot] - right;
+		}
+	}
+
+	private static final class Multiply extends Node {
+		private final Node left;
+		private final Node right;
+
+		Multiply(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) * right.evaluate(variables, locals);
+		}
+	}
+
+	private static final class MultiplyVariable extends Node {
+		private final Node left;
+		private final int rightSlot;
+
+		MultiplyVariable(Node left, int rightSlot) {
+			this.left = left;
+			this.rightSlot = rightSlot;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) * variables[rightSlot];
+		}
+	}
+
+	private static final class MultiplyConstant extends Node {
+		private final Node left;
+		private final float right;
+
+		MultiplyConstant(Node left, float right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) * right;
+		}
+	}
+
+	private static final class MultiplyVariableVariable extends Node {
+		private final int leftSlot;
+		private final int rightSlot;
+
+		MultiplyVariableVariable(int leftSlot, int rightSlot) {
+			this.leftSlot = leftSlot;
+			this.rightSlot = rightSlot;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return variables[leftSlot] * variables[rightSlot];
+		}
+	}
+
+	private static final class MultiplyVariableConstant extends Node {
+		private final int leftSlot;
+		private final float right;
+
+		MultiplyVariableConstant(int leftSlot, float right) {
+			this.leftSlot = leftSlot;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return variables[leftSlot] * right;
+		}
+	}
+
+	private static final class Divide extends Node {
+		private final Node left;
+		private final Node right;
+
+		Divide(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) / right.evaluate(variables, locals);
+		}
+	}
+
+	private static final class DivideVariable extends Node {
+		private final Node left;
+		private final int rightSlot;
+
+		DivideVariable(Node left, int rightSlot) {
+			this.left = left;
+			this.rightSlot = rightSlot;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) / variables[rightSlot];
+		}
+	}
+
+	private static final class DivideConstant extends Node {
+		private final Node left;
+		private final float right;
+
+		DivideConstant(Node left, float right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return left.evaluate(variables, locals) / right;
+		}
+	}
+
+	private static final class DivideVariableVariable extends Node {
+		private final int leftSlot;
+		private final int rightSlot;
+
+		DivideVariableVariable(int leftSlot, int rightSlot) {
+			this.leftSlot = leftSlot;
+			this.rightSlot = rightSlot;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return variables[leftSlot] / variables[rightSlot];
+		}
+	}
+
+	private static final class DivideVariableConstant extends Node {
+		private final int leftSlot;
+		private final float right;
+
+		DivideVariableConstant(int leftSlot, float right) {
+			this.leftSlot = leftSlot;
+			this.right = right;
+		}
+
+		@Override
+		float evaluate(float[] variables, float[] locals) {
+			return variables[leftSlot] / right;
+		}
+	}
+}
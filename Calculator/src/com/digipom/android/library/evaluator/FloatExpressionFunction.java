@@ -0,0 +1,24 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+/**
+ * A compiled expression evaluated in float precision. Variables are read from
+ * the given array by slot, as with {@link FloatPostfixEvaluator#evaluate(float[])}.
+ * Implementations are stateless and can be called from any thread.
+ */
+public interface FloatExpressionFunction {
+	float apply(float[] variables);
+}
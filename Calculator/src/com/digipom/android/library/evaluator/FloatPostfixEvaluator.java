@@ -14,90 +14,375 @@
 
 package com.digipom.android.library.evaluator;
 
+import java.util.Arrays;
+
 import android.util.FloatMath;
 
 import com.digipom.android.library.evaluator.exception.ParseException;
 
 public class FloatPostfixEvaluator extends PostfixEvaluator {
-	private final float[] operandStack = new float[4096];
-	private int stackPointer = -1;
-	
+	private static final float[] EMPTY_SLOTS = new float[0];
+
 	public FloatPostfixEvaluator(String input) throws ParseException {
 		super(input, NumberPrecision.FLOAT);
 	}
 
+	public FloatPostfixEvaluator(CompiledExpression compiledExpression) {
+		super(compiledExpression, NumberPrecision.FLOAT);
+	}
+
 	public float evaluate() throws ParseException {
-		for (final FlatToken token : postfixExpression) {
-			switch (token.type) {
-				case FlatToken.TYPE_IDENTIFIER:
-				case FlatToken.TYPE_NUMBER_LITERAL:
-					operandStack[++stackPointer] = token.floatValue;
-					break;
-				case FlatToken.TYPE_OPERATOR:
-					if (token.typeEnum == FlatToken.OPERATOR_NEGATE) {
-						final float a = operandStack[stackPointer--];
-						operandStack[++stackPointer] = -a;
-					} else {
-						final float b = operandStack[stackPointer--];
-						final float a = operandStack[stackPointer--];
-
-						switch (token.typeEnum) {
-							case FlatToken.OPERATOR_ADD:
-								operandStack[++stackPointer] = a + b;
-								break;
-							case FlatToken.OPERATOR_SUBTRACT:
-								operandStack[++stackPointer] = a - b;
-								break;
-							case FlatToken.OPERATOR_MULTIPLY:
-								operandStack[++stackPointer] = a * b;
-								break;
-							case FlatToken.OPERATOR_DIVIDE:
-								operandStack[++stackPointer] = a / b;
-								break;
-							case FlatToken.OPERATOR_POWER:
-								operandStack[++stackPointer] = (float) Math.pow(a, b);
-								break;
-						}
-					}
+		return evaluate(EMPTY_SLOTS);
+	}
+
+	/**
+	 * Evaluates the expression with each variable taking its value from the
+	 * given array, indexed by {@link CompiledExpression#getSlot(String)}.
+	 */
+	public float evaluate(float[] slots) throws ParseException {
+		checkSlots(slots.length);
+
+		final float[] constants = compiledExpression.floatConstants;
+		final float[] operandStack = new float[stackDepth];
+		final float[] locals = new float[localCount];
+		int stackPointer = -1;
+
+		for (int pc = 0; pc < opcodes.length; pc++) {
+			switch (opcodes[pc]) {
+				case Opcode.LOAD_VARIABLE:
+					operandStack[++stackPointer] = slots[operands[pc]];
 					break;
-				case FlatToken.TYPE_PREDEF_FUNCTION:
-					if (token.typeEnum == FlatToken.FUNCTION_POW) {
-						final float b = operandStack[stackPointer--];
-						final float a = operandStack[stackPointer--];
-						operandStack[++stackPointer] = (float) Math.pow(a, b);
-					} else {
-						final float a = operandStack[stackPointer--];
-
-						switch (token.typeEnum) {
-							case FlatToken.FUNCTION_ABS:
-								operandStack[++stackPointer] = Math.abs(a);
-								break;
-							case FlatToken.FUNCTION_SIN:
-								operandStack[++stackPointer] = FloatMath.sin(a);
-								break;
-							case FlatToken.FUNCTION_COS:
-								operandStack[++stackPointer] = FloatMath.cos(a);
-								break;
-							case FlatToken.FUNCTION_TAN:
-								operandStack[++stackPointer] = (float) Math.tan(a);
-								break;
-							case FlatToken.FUNCTION_LN:
-								operandStack[++stackPointer] = (float) Math.log(a);
-								break;
-							case FlatToken.FUNCTION_SQRT:
-								operandStack[++stackPointer] = FloatMath.sqrt(a);
-								break;
-						}
-					}
+				case Opcode.LOAD_CONSTANT:
+					operandStack[++stackPointer] = constants[operands[pc]];
+					break;
+				case Opcode.LOAD_LOCAL:
+					operandStack[++stackPointer] = locals[operands[pc]];
+					break;
+				case Opcode.STORE_LOCAL:
+					locals[operands[pc]] = operandStack[stackPointer];
+					break;
+				case Opcode.NEGATE:
+					operandStack[stackPointer] = -operandStack[stackPointer];
+					break;
+				case Opcode.ABS:
+					operandStack[stackPointer] = Math.abs(operandStack[stackPointer]);
+					break;
+				case Opcode.SIN:
+					operandStack[stackPointer] = FloatMath.sin(operandStack[stackPointer]);
+					break;
+				case Opcode.COS:
+					operandStack[stackPointer] = FloatMath.cos(operandStack[stackPointer]);
+					break;
+				case Opcode.TAN:
+					operandStack[stackPointer] = (float) Math.tan(operandStack[stackPointer]);
+					break;
+				case Opcode.LN:
+					operandStack[stackPointer] = (float) Math.log(operandStack[stackPointer]);
+					break;
+				case Opcode.SQRT:
+					operandStack[stackPointer] = FloatMath.sqrt(operandStack[stackPointer]);
+					break;
+				case Opcode.SQUARE:
+					operandStack[stackPointer] *= operandStack[stackPointer];
+					break;
+				case Opcode.RECIPROCAL:
+					operandStack[stackPointer] = 1 / operandStack[stackPointer];
+					break;
+				case Opcode.POWER_HALF:
+					operandStack[stackPointer] = powerHalf(operandStack[stackPointer]);
+					break;
+				case Opcode.POWER_INTEGER:
+					operandStack[stackPointer] = powerInteger(operandStack[stackPointer], operands[pc]);
+					break;
+				case Opcode.ADD_VARIABLE:
+					operandStack[stackPointer] += slots[operands[pc]];
+					break;
+				case Opcode.SUBTRACT_VARIABLE:
+					operandStack[stackPointer] -= slots[operands[pc]];
+					break;
+				case Opcode.MULTIPLY_VARIABLE:
+					operandStack[stackPointer] *= slots[operands[pc]];
+					break;
+				case Opcode.DIVIDE_VARIABLE:
+					operandStack[stackPointer] /= slots[operands[pc]];
+					break;
+				case Opcode.ADD_CONSTANT:
+					operandStack[stackPointer] += constants[operands[pc]];
+					break;
+				case Opcode.SUBTRACT_CONSTANT:
+					operandStack[stackPointer] -= constants[operands[pc]];
+					break;
+				case Opcode.MULTIPLY_CONSTANT:
+					operandStack[stackPointer] *= constants[operands[pc]];
+					break;
+				case Opcode.DIVIDE_CONSTANT:
+					operandStack[stackPointer] /= constants[operands[pc]];
+					break;
+				case Opcode.ADD:
+					stackPointer--;
+					operandStack[stackPointer] += operandStack[stackPointer + 1];
+					break;
+				case Opcode.SUBTRACT:
+					stackPointer--;
+					operandStack[stackPointer] -= operandStack[stackPointer + 1];
+					break;
+				case Opcode.MULTIPLY:
+					stackPointer--;
+					operandStack[stackPointer] *= operandStack[stackPointer + 1];
+					break;
+				case Opcode.DIVIDE:
+					stackPointer--;
+					operandStack[stackPointer] /= operandStack[stackPointer + 1];
+					break;
+				case Opcode.POWER:
+					stackPointer--;
+					operandStack[stackPointer] = (float) Math.pow(operandStack[stackPointer],
+							operandStack[stackPointer + 1]);
 					break;
 			}
 		}
 
-		if (stackPointer != 0) {
-			stackPointer = -1;
-			throw new ParseException("Error evaluating expression");
+		return operandStack[0];
+	}
+
+	/**
+	 * Evaluates the expression for each of the first rowCount rows, reading
+	 * the value of each variable from columns[slot][row] and writing the
+	 * result to out[row]. The program is run one instruction at a time over
+	 * chunks of rows, so instruction dispatch is paid once per chunk instead
+	 * of once per row.
+	 */
+	public void evaluate(float[][] columns, int rowCount, float[] out) throws ParseException {
+		checkSlots(columns.length);
+		evaluateRange(columns, 0, rowCount, out, 0, new float[batchScratchRows()][BATCH_CHUNK_SIZE]);
+	}
+
+	/**
+	 * Evaluates rows [fromRow, toRow), writing the result of each row to
+	 * out[outOffset + row]. The scratch array holds the operand stack in its
+	 * first {@link #stackDepth} rows and the locals after that.
+	 */
+	void evaluateRange(float[][] columns, int fromRow, int toRow, float[] out, int outOffset,
+			float[][] operandStack) {
+		final float[] constants = compiledExpression.floatConstants;
+
+		for (int chunkStart = fromRow; chunkStart < toRow; chunkStart += BATCH_CHUNK_SIZE) {
+			final int n = Math.min(BATCH_CHUNK_SIZE, toRow - chunkStart);
+			int stackPointer = -1;
+
+			for (int pc = 0; pc < opcodes.length; pc++) {
+				final int opcode = opcodes[pc];
+
+				if (opcode <= Opcode.STORE_LOCAL) {
+					switch (opcode) {
+						case Opcode.LOAD_VARIABLE:
+							System.arraycopy(columns[operands[pc]], chunkStart, operandStack[++stackPointer], 0, n);
+							break;
+						case Opcode.LOAD_CONSTANT:
+							Arrays.fill(operandStack[++stackPointer], 0, n, constants[operands[pc]]);
+							break;
+						case Opcode.LOAD_LOCAL:
+							System.arraycopy(operandStack[stackDepth + operands[pc]], 0, operandStack[++stackPointer],
+									0, n);
+							break;
+						case Opcode.STORE_LOCAL:
+							System.arraycopy(operandStack[stackPointer], 0, operandStack[stackDepth + operands[pc]], 0,
+									n);
+							break;
+					}
+				} else if (opcode < Opcode.ADD) {
+					final float[] a = operandStack[stackPointer];
+
+					switch (opcode) {
+						case Opcode.NEGATE:
+							for (int i = 0; i < n; i++) {
+								a[i] = -a[i];
+							}
+							break;
+						case Opcode.ABS:
+							for (int i = 0; i < n; i++) {
+								a[i] = Math.abs(a[i]);
+							}
+							break;
+						case Opcode.SIN:
+							for (int i = 0; i < n; i++) {
+								a[i] = FloatMath.sin(a[i]);
+							}
+							break;
+						case Opcode.COS:
+							for (int i = 0; i < n; i++) {
+								a[i] = FloatMath.cos(a[i]);
+							}
+							break;
+						case Opcode.TAN:
+							for (int i = 0; i < n; i++) {
+								a[i] = (float) Math.tan(a[i]);
+							}
+							break;
+						case Opcode.LN:
+							for (int i = 0; i < n; i++) {
+								a[i] = (float) Math.log(a[i]);
+							}
+							break;
+						case Opcode.SQRT:
+							for (int i = 0; i < n; i++) {
+								a[i] = FloatMath.sqrt(a[i]);
+							}
+							break;
+						case Opcode.SQUARE:
+							for (int i = 0; i < n; i++) {
+								a[i] *= a[i];
+							}
+							break;
+						case Opcode.RECIPROCAL:
+							for (int i = 0; i < n; i++) {
+								a[i] = 1 / a[i];
+							}
+							break;
+						case Opcode.POWER_HALF:
+							for (int i = 0; i < n; i++) {
+								a[i] = powerHalf(a[i]);
+							}
+							break;
+						case Opcode.POWER_INTEGER: {
+							final int exponent = operands[pc];
+
+							for (int i = 0; i < n; i++) {
+								a[i] = powerInteger(a[i], exponent);
+							}
+							break;
+						}
+						case Opcode.ADD_VARIABLE: {
+							final float[] column = columns[operands[pc]];
+
+							for (int i = 0; i < n; i++) {
+								a[i] += column[chunkStart + i];
+							}
+							break;
+						}
+						case Opcode.SUBTRACT_VARIABLE: {
+							final float[] column = columns[operands[pc]];
+
+							for (int i = 0; i < n; i++) {
+								a[i] -= column[chunkStart + i];
+							}
+							break;
+						}
+						case Opcode.MULTIPLY_VARIABLE: {
+							final float[] column = columns[operands[pc]];
+
+							for (int i = 0; i < n; i++) {
+								a[i] *= column[chunkStart + i];
+							}
+							break;
+						}
+						case Opcode.DIVIDE_VARIABLE: {
+							final float[] column = columns[operands[pc]];
+
+							for (int i = 0; i < n; i++) {
+								a[i] /= column[chunkStart + i];
+							}
+							break;
+						}
+						case Opcode.ADD_CONSTANT: {
+							final float b = constants[operands[pc]];
+
+							for (int i = 0; i < n; i++) {
+								a[i] += b;
+							}
+							break;
+						}
+						case Opcode.SUBTRACT_CONSTANT: {
+							final float b = constants[operands[pc]];
+
+							for (int i = 0; i < n; i++) {
+								a[i] -= b;
+							}
+							break;
+						}
+						case Opcode.MULTIPLY_CONSTANT: {
+							final float b = constants[operands[pc]];
+
+							for (int i = 0; i < n; i++) {
+								a[i] *= b;
+							}
+							break;
+						}
+						case Opcode.DIVIDE_CONSTANT: {
+							final float b = constants[operands[pc]];
+
+							for (int i = 0; i < n; i++) {
+								a[i] /= b;
+							}
+							break;
+						}
+					}
+				} else {
+					final float[] b = operandStack[stackPointer--];
+					final float[] a = operandStack[stackPointer];
+
+					switch (opcode) {
+						case Opcode.ADD:
+							for (int i = 0; i < n; i++) {
+								a[i] += b[i];
+							}
+							break;
+						case Opcode.SUBTRACT:
+							for (int i = 0; i < n; i++) {
+								a[i] -= b[i];
+							}
+							break;
+						case Opcode.MULTIPLY:
+							for (int i = 0; i < n; i++) {
+								a[i] *= b[i];
+							}
+							break;
+						case Opcode.DIVIDE:
+							for (int i = 0; i < n; i++) {
+								a[i] /= b[i];
+							}
+							break;
+						case Opcode.POWER:
+							for (int i = 0; i < n; i++) {
+								a[i] = (float) Math.pow(a[i], b[i]);
+							}
+							break;
+					}
+				}
+			}
+
+			System.arraycopy(operandStack[0], 0, out, outOffset + chunkStart, n);
 		}
+	}
 
-		return operandStack[stackPointer--];
-	}		
+	/**
+	 * Returns x ^ 0.5 as {@link Math#pow(double, double)} defines it, which
+	 * differs from the square root for -0 and -Infinity.
+	 */
+	static float powerHalf(float x) {
+		return x == Float.NEGATIVE_INFINITY ? Float.POSITIVE_INFINITY : FloatMath.sqrt(x + 0);
+	}
+
+	/**
+	 * Raises x to a non-negative integer power by repeated squaring. The
+	 * bytecode backend multiplies in the same order.
+	 */
+	static float powerInteger(float x, int exponent) {
+		float result = 1;
+		float base = x;
+
+		while (true) {
+			if ((exponent & 1) != 0) {
+				result *= base;
+			}
+
+			exponent >>= 1;
+
+			if (exponent == 0) {
+				return result;
+			}
+
+			base *= base;
+		}
+	}
 }
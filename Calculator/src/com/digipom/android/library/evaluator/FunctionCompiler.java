@@ -0,0 +1,117 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Turns an evaluator into a {@link DoubleExpressionFunction} or
+ * {@link FloatExpressionFunction} run by the selected {@link Backend}. All
+ * backends give the same results, bit for bit.
+ * <p>
+ * Closure trees evaluate recursively, so programs nested deeper than
+ * {@link ExpressionNode#MAX_DEPTH} are always run by the interpreter.
+ */
+public class FunctionCompiler {
+	private final BytecodeCompiler bytecodeCompiler = new BytecodeCompiler();
+	private Backend backend = Backend.BYTECODE;
+
+	public FunctionCompiler() {
+	}
+
+	public FunctionCompiler(Backend backend) {
+		setBackend(backend);
+	}
+
+	public Backend getBackend() {
+		return backend;
+	}
+
+	public void setBackend(Backend backend) {
+		if (backend == null) {
+			throw new IllegalArgumentException("Backend can't be null");
+		}
+
+		this.backend = backend;
+	}
+
+	public DoubleExpressionFunction compile(DoublePostfixEvaluator evaluator) throws ParseException {
+		switch (backend) {
+			case INTERPRETER:
+				return new InterpretedDoubleFunction(evaluator);
+			case CLOSURE_TREE:
+				return isTooDeepForClosureTree(evaluator.compiledExpression) ? new InterpretedDoubleFunction(
+						evaluator) : new DoubleClosureTree(evaluator.compiledExpression);
+			default:
+				return bytecodeCompiler.compile(evaluator);
+		}
+	}
+
+	public FloatExpressionFunction compile(FloatPostfixEvaluator evaluator) throws ParseException {
+		switch (backend) {
+			case INTERPRETER:
+				return new InterpretedFloatFunction(evaluator);
+			case CLOSURE_TREE:
+				return isTooDeepForClosureTree(evaluator.compiledExpression) ? new InterpretedFloatFunction(
+						evaluator) : new FloatClosureTree(evaluator.compiledExpression);
+			default:
+				return bytecodeCompiler.compile(evaluator);
+		}
+	}
+
+	/**
+	 * Returns true if evaluating the program as a closure tree could
+	 * overflow the stack.
+	 */
+	static boolean isTooDeepForClosureTree(CompiledExpression compiledExpression) {
+		return ExpressionNode.depth(compiledExpression.toPostfix()) > ExpressionNode.MAX_DEPTH;
+	}
+
+	static class InterpretedDoubleFunction implements DoubleExpressionFunction {
+		private final DoublePostfixEvaluator evaluator;
+
+		InterpretedDoubleFunction(DoublePostfixEvaluator evaluator) {
+			this.evaluator = evaluator;
+		}
+
+		@Override
+		public double apply(double[] variables) {
+			try {
+				return evaluator.evaluate(variables);
+			} catch (ParseException e) {
+				// Can't happen: the program was checked when it was encoded.
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	static class InterpretedFloatFunction implements FloatExpressionFunction {
+		private final FloatPostfixEvaluator evaluator;
+
+		InterpretedFloatFunction(FloatPostfixEvaluator evaluator) {
+			this.evaluator = evaluator;
+		}
+
+		@Override
+		public float apply(float[] variables) {
+			try {
+				return evaluator.evaluate(variables);
+			} catch (ParseException e) {
+				// Can't happen: the program was checked when it was encoded.
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+/**
+ * The instruction set of a {@link CompiledExpression}. An instruction is an
+ * opcode and an int operand, which only the loads, stores, fused operators and
+ * {@link #POWER_INTEGER} read. Opcodes are ordered by how many values they
+ * pop, so the stack effect of an instruction can be found with a comparison.
+ * <p>
+ * The fused and strength-reduced instructions are only produced by
+ * {@link PeepholeOptimizer}.
+ */
+final class Opcode {
+	/** Pushes the variable in slot operand. */
+	static final int LOAD_VARIABLE = 0;
+	/** Pushes entry operand of the constant pool. */
+	static final int LOAD_CONSTANT = 1;
+	/** Pushes local operand. */
+	static final int LOAD_LOCAL = 2;
+	/** Copies the top of the stack into local operand, without popping it. */
+	static final int STORE_LOCAL = 3;
+
+	static final int NEGATE = 4;
+	static final int ABS = 5;
+	static final int SIN = 6;
+	static final int COS = 7;
+	static final int TAN = 8;
+	static final int LN = 9;
+	static final int SQRT = 10;
+
+	/** x * x, which is what x ^ 2 computes. */
+	static final int SQUARE = 11;
+	/** 1 / x. */
+	static final int RECIPROCAL = 12;
+	/** x ^ 0.5: the square root of x, except that -0 gives 0 and -Infinity gives Infinity. */
+	static final int POWER_HALF = 13;
+	/** Raises the top of the stack to the integer power operand. */
+	static final int POWER_INTEGER = 14;
+
+	// Binary operators whose right operand is the variable in slot operand.
+	static final int ADD_VARIABLE = 15;
+	static final int SUBTRACT_VARIABLE = 16;
+	static final int MULTIPLY_VARIABLE = 17;
+	static final int DIVIDE_VARIABLE = 18;
+
+	// Binary operators whose right operand is entry operand of the constant pool.
+	static final int ADD_CONSTANT = 19;
+	static final int SUBTRACT_CONSTANT = 20;
+	static final int MULTIPLY_CONSTANT = 21;
+	static final int DIVIDE_CONSTANT = 22;
+
+	static final int ADD = 23;
+	static final int SUBTRACT = 24;
+	static final int MULTIPLY = 25;
+	static final int DIVIDE = 26;
+	static final int POWER = 27;
+
+	private Opcode() {
+	}
+
+	/**
+	 * Returns the number of values the instruction needs on the stack.
+	 */
+	static int operandCount(int opcode) {
+		if (opcode <= LOAD_LOCAL) {
+			return 0;
+		} else if (opcode < ADD) {
+			return 1;
+		} else {
+			return 2;
+		}
+	}
+
+	/**
+	 * Returns how much the instruction changes the depth of the stack.
+	 */
+	static int stackEffect(int opcode) {
+		if (opcode <= LOAD_LOCAL) {
+			return 1;
+		} else if (opcode < ADD) {
+			return 0;
+		} else {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns true if the instruction reads the variable in slot operand.
+	 */
+	static boolean readsVariable(int opcode) {
+		return opcode == LOAD_VARIABLE || (opcode >= ADD_VARIABLE && opcode <= DIVIDE_VARIABLE);
+	}
+
+	/**
+	 * Returns true if the instruction reads entry operand of the constant pool.
+	 */
+	static boolean readsConstant(int opcode) {
+		return opcode == LOAD_CONSTANT || (opcode >= ADD_CONSTANT && opcode <= DIVIDE_CONSTANT);
+	}
+
+	/**
+	 * Returns true if the instruction reads its operand, which is otherwise 0.
+	 */
+	static boolean hasOperand(int opcode) {
+		return opcode <= STORE_LOCAL || (opcode >= POWER_INTEGER && opcode <= DIVIDE_CONSTANT);
+	}
+}
@@ -0,0 +1,188 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Splits a batch evaluation into row ranges and evaluates them on an
+ * {@link ExecutorService}. Each task works on its own slice of the output
+ * array with its own operand stack and locals, so no locking is needed. The
+ * calling thread evaluates the last range itself rather than sitting idle.
+ * <p>
+ * An evaluation doesn't return, even by throwing, until no task is writing to
+ * the output: if one range fails, ranges that haven't started are skipped and
+ * ranges that have are waited for.
+ * <p>
+ * The executor is owned by the caller, so evaluations can share a pool with
+ * other work; this class never shuts it down.
+ */
+public class ParallelBatchEvaluator {
+	public static final int DEFAULT_SPLIT_THRESHOLD = 16384;
+
+	private final ExecutorService executor;
+	private final int splitThreshold;
+
+	public ParallelBatchEvaluator(ExecutorService executor) {
+		this(executor, DEFAULT_SPLIT_THRESHOLD);
+	}
+
+	/**
+	 * @param splitThreshold
+	 *            the number of rows evaluated by each task. Smaller values
+	 *            balance load better; larger values cost less in scheduling.
+	 */
+	public ParallelBatchEvaluator(ExecutorService executor, int splitThreshold) {
+		if (splitThreshold < 1) {
+			throw new IllegalArgumentException("Split threshold must be at least 1: " + splitThreshold);
+		}
+
+		this.executor = executor;
+		this.splitThreshold = splitThreshold;
+	}
+
+	public void evaluate(final DoublePostfixEvaluator evaluator, final double[][] columns, int rowCount,
+			final double[] out) throws ParseException, InterruptedException {
+		evaluator.checkSlots(columns.length);
+
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		final AtomicBoolean abandoned = new AtomicBoolean();
+		int fromRow = 0;
+
+		try {
+			for (; fromRow + splitThreshold < rowCount; fromRow += splitThreshold) {
+				final int taskFromRow = fromRow;
+				final int taskToRow = fromRow + splitThreshold;
+
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws ParseException {
+						if (!abandoned.get()) {
+							evaluator.evaluateRange(columns, taskFromRow, taskToRow, out, 0, newDoubleStack(evaluator));
+						}
+
+						return null;
+					}
+				}));
+			}
+
+			evaluator.evaluateRange(columns, fromRow, rowCount, out, 0, newDoubleStack(evaluator));
+			awaitAll(futures);
+		} finally {
+			abandonAll(futures, abandoned);
+		}
+	}
+
+	public void evaluate(final FloatPostfixEvaluator evaluator, final float[][] columns, int rowCount,
+			final float[] out) throws ParseException, InterruptedException {
+		evaluator.checkSlots(columns.length);
+
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		final AtomicBoolean abandoned = new AtomicBoolean();
+		int fromRow = 0;
+
+		try {
+			for (; fromRow + splitThreshold < rowCount; fromRow += splitThreshold) {
+				final int taskFromRow = fromRow;
+				final int taskToRow = fromRow + splitThreshold;
+
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws ParseException {
+						if (!abandoned.get()) {
+							evaluator.evaluateRange(columns, taskFromRow, taskToRow, out, 0, newFloatStack(evaluator));
+						}
+
+						return null;
+					}
+				}));
+			}
+
+			evaluator.evaluateRange(columns, fromRow, rowCount, out, 0, newFloatStack(evaluator));
+			awaitAll(futures);
+		} finally {
+			abandonAll(futures, abandoned);
+		}
+	}
+
+	private static double[][] newDoubleStack(PostfixEvaluator evaluator) {
+		return new double[evaluator.batchScratchRows()][PostfixEvaluator.BATCH_CHUNK_SIZE];
+	}
+
+	private static float[][] newFloatStack(PostfixEvaluator evaluator) {
+		return new float[evaluator.batchScratchRows()][PostfixEvaluator.BATCH_CHUNK_SIZE];
+	}
+
+	private static void awaitAll(List<Future<Void>> futures) throws ParseException, InterruptedException {
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+
+				if (cause instanceof ParseException) {
+					throw (ParseException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				} else {
+					throw new ParseException(cause);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes tasks that haven't started skip their range, and waits for those
+	 * that have. Does nothing after a successful evaluation, when every task
+	 * has already finished. Cancelling the futures instead would let running
+	 * tasks go on writing to the output after we return.
+	 */
+	private static void abandonAll(List<Future<Void>> futures, AtomicBoolean abandoned) {
+		abandoned.set(true);
+		boolean interrupted = false;
+
+		for (Future<Void> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					// Already thrown, or superseded by the exception that got
+					// us here.
+					break;
+				} catch (CancellationException e) {
+					break;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * An expression parsed once by {@link ExpressionCompiler#parse}, with its
+ * literals kept as exact decimals, that can be compiled in any
+ * {@link NumberPrecision}. Lowering rounds the literals to the target
+ * precision before anything is folded, so each compiled expression is the
+ * same as compiling the input in that precision. Each precision is lowered and
+ * optimized the first time it's asked for, and then kept, so a quick double
+ * preview followed by an exact BigDecimal result costs one parse.
+ * <p>
+ * Parsed expressions can be shared between threads.
+ */
+public final class ParsedExpression {
+	private final ExpressionCompiler compiler;
+	/** The unoptimized program, with BigDecimal literals. */
+	private final CompiledExpression exactExpression;
+	private final AtomicReferenceArray<CompiledExpression> compiledExpressions;
+
+	ParsedExpression(ExpressionCompiler compiler, CompiledExpression exactExpression) {
+		this.compiler = compiler;
+		this.exactExpression = exactExpression;
+		this.compiledExpressions = new AtomicReferenceArray<CompiledExpression>(NumberPrecision.values().length);
+	}
+
+	/**
+	 * Returns the expression compiled in the given precision, compiling it
+	 * the first time.
+	 */
+	public CompiledExpression compile(NumberPrecision numberPrecision) throws ParseException {
+		final int index = numberPrecision.ordinal();
+		final CompiledExpression compiledExpression = compiledExpressions.get(index);
+
+		if (compiledExpression != null) {
+			return compiledExpression;
+		}
+
+		// If threads race, they all get the first one's result.
+		compiledExpressions.compareAndSet(index, null, compiler.optimize(exactExpression.lowerTo(numberPrecision)));
+		return compiledExpressions.get(index);
+	}
+
+	/**
+	 * Returns true if the expression has already been compiled in the given
+	 * precision.
+	 */
+	public boolean isCompiled(NumberPrecision numberPrecision) {
+		return compiledExpressions.get(numberPrecision.ordinal()) != null;
+	}
+}
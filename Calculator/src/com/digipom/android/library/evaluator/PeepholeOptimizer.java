@@ -0,0 +1,244 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+
+/**
+ * Rewrites short instruction sequences of an encoded program into single,
+ * cheaper instructions:
+ * <ul>
+ * <li>A load of a variable or constant followed by +, -, * or / becomes one
+ * instruction that reads its right operand directly.</li>
+ * <li>For float and double, x ^ 2 and x ^ 0.5 become a multiply and a square
+ * root, which is what {@link Math#pow(double, double)} computes for those
+ * exponents, and x ^ 1 is dropped. Division by a power of two becomes
+ * multiplication by its reciprocal, which is exact.</li>
+ * <li>For BigDecimal, a small non-negative integer power is computed with
+ * {@link BigDecimal#pow(int, java.math.MathContext)}, without loading the
+ * exponent.</li>
+ * </ul>
+ * With relaxed math, float and double integer powers also become
+ * multiplication chains, x ^ -1 becomes a division, and division by any
+ * constant becomes multiplication by its reciprocal. Those rewrites can change
+ * the last bits of a result: Math.pow() is only required to be within an ulp,
+ * and some JVMs don't return 1 / x for x ^ -1.
+ */
+final class PeepholeOptimizer {
+	private static final int MAX_CHAIN_EXPONENT = 64;
+
+	/** Results of {@link #reducePower}, other than an opcode. */
+	private static final int KEEP = -1;
+	private static final int IDENTITY = -2;
+
+	private final boolean relaxedMath;
+
+	private float[] floatConstants;
+	private double[] doubleConstants;
+
+	PeepholeOptimizer(boolean relaxedMath) {
+		this.relaxedMath = relaxedMath;
+	}
+
+	CompiledExpression optimize(CompiledExpression program) {
+		final NumberPrecision numberPrecision = program.numberPrecision;
+		final int[] opcodes = program.opcodes;
+		final int[] operands = program.operands;
+		final int[] newOpcodes = new int[opcodes.length];
+		final int[] newOperands = new int[opcodes.length];
+		int length = 0;
+
+		floatConstants = program.floatConstants;
+		doubleConstants = program.doubleConstants;
+
+		for (int pc = 0; pc < opcodes.length; pc++) {
+			final int opcode = opcodes[pc];
+			final int operand = operands[pc];
+			final int next = pc + 1 < opcodes.length ? opcodes[pc + 1] : -1;
+
+			if (opcode == Opcode.LOAD_CONSTANT && next == Opcode.POWER) {
+				final int power = reducePower(program, operand);
+
+				if (power == IDENTITY) {
+					pc++;
+					continue;
+				} else if (power != KEEP) {
+					newOpcodes[length] = power;
+					newOperands[length++] = power == Opcode.POWER_INTEGER ? integerExponent(program, operand) : 0;
+					pc++;
+					continue;
+				}
+			} else if (opcode == Opcode.LOAD_CONSTANT && next >= Opcode.ADD && next <= Opcode.DIVIDE) {
+				if (next == Opcode.DIVIDE && numberPrecision != NumberPrecision.BIG_DECIMAL) {
+					final int reciprocal = reciprocalConstant(numberPrecision, operand);
+
+					if (reciprocal >= 0) {
+						newOpcodes[length] = Opcode.MULTIPLY_CONSTANT;
+						newOperands[length++] = reciprocal;
+						pc++;
+						continue;
+					}
+				}
+
+				newOpcodes[length] = Opcode.ADD_CONSTANT + next - Opcode.ADD;
+				newOperands[length++] = operand;
+				pc++;
+				continue;
+			} else if (opcode == Opcode.LOAD_VARIABLE && next >= Opcode.ADD && next <= Opcode.DIVIDE) {
+				newOpcodes[length] = Opcode.ADD_VARIABLE + next - Opcode.ADD;
+				newOperands[length++] = operand;
+				pc++;
+				continue;
+			}
+
+			newOpcodes[length] = opcode;
+			newOperands[length++] = operand;
+		}
+
+		return program.withProgram(copyOf(newOpcodes, length), copyOf(newOperands, length), floatConstants,
+				doubleConstants, program.bigDecimalConstants, relaxedMath || program.relaxedMath);
+	}
+
+	/**
+	 * Returns the instruction that replaces raising to the given constant,
+	 * {@link #IDENTITY} if the power can be dropped or {@link #KEEP} if it has
+	 * to stay as it is.
+	 */
+	private int reducePower(CompiledExpression program, int constant) {
+		switch (program.numberPrecision) {
+			case BIG_DECIMAL:
+				return integerExponent(program, constant) >= 0 ? Opcode.POWER_INTEGER : KEEP;
+			case DOUBLE:
+			case FLOAT:
+			default:
+				final double exponent = program.numberPrecision == NumberPrecision.DOUBLE ? doubleConstants[constant]
+						: floatConstants[constant];
+
+				if (exponent == 1.0) {
+					return IDENTITY;
+				} else if (exponent == 2.0) {
+					return Opcode.SQUARE;
+				} else if (exponent == 0.5) {
+					return Opcode.POWER_HALF;
+				} else if (relaxedMath && exponent == -1.0) {
+					return Opcode.RECIPROCAL;
+				} else if (relaxedMath && integerExponent(program, constant) >= 0) {
+					return Opcode.POWER_INTEGER;
+				} else {
+					return KEEP;
+				}
+		}
+	}
+
+	/**
+	 * Returns the constant as an exponent small enough to compute by
+	 * multiplication, or -1 if it isn't one.
+	 */
+	private int integerExponent(CompiledExpression program, int constant) {
+		if (program.numberPrecision == NumberPrecision.BIG_DECIMAL) {
+			return BigDecimalPostfixEvaluator.integerExponent(program.bigDecimalConstants[constant]);
+		}
+
+		final double exponent = program.numberPrecision == NumberPrecision.DOUBLE ? doubleConstants[constant]
+				: floatConstants[constant];
+
+		if (exponent >= 2 && exponent <= MAX_CHAIN_EXPONENT && exponent == Math.floor(exponent)) {
+			return (int) exponent;
+		} else {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the pool index of the reciprocal of a constant divisor, adding
+	 * it to the pool if needed, or -1 if dividing can't be replaced by
+	 * multiplying.
+	 */
+	private int reciprocalConstant(NumberPrecision numberPrecision, int constant) {
+		if (numberPrecision == NumberPrecision.DOUBLE) {
+			final double divisor = doubleConstants[constant];
+			final double reciprocal = 1.0 / divisor;
+
+			if (!isPowerOfTwo(divisor) && !(relaxedMath && isFiniteNonZero(reciprocal))) {
+				return -1;
+			}
+
+			for (int i = 0; i < doubleConstants.length; i++) {
+				if (Double.doubleToRawLongBits(doubleConstants[i]) == Double.doubleToRawLongBits(reciprocal)) {
+					return i;
+				}
+			}
+
+			doubleConstants = copyOf(doubleConstants, doubleConstants.length + 1);
+			doubleConstants[doubleConstants.length - 1] = reciprocal;
+			return doubleConstants.length - 1;
+		} else {
+			final float divisor = floatConstants[constant];
+			final float reciprocal = 1.0f / divisor;
+
+			if (!isPowerOfTwo(divisor) && !(relaxedMath && isFiniteNonZero(reciprocal))) {
+				return -1;
+			}
+
+			for (int i = 0; i < floatConstants.length; i++) {
+				if (Float.floatToRawIntBits(floatConstants[i]) == Float.floatToRawIntBits(reciprocal)) {
+					return i;
+				}
+			}
+
+			floatConstants = copyOf(floatConstants, floatConstants.length + 1);
+			floatConstants[floatConstants.length - 1] = reciprocal;
+			return floatConstants.length - 1;
+		}
+	}
+
+	/**
+	 * Returns true if value is a normal power of two, whose reciprocal is
+	 * always exactly representable.
+	 */
+	private static boolean isPowerOfTwo(double value) {
+		final long bits = Double.doubleToRawLongBits(value);
+		final long exponent = (bits >>> 52) & 0x7ff;
+		return (bits & 0xfffffffffffffL) == 0 && exponent != 0 && exponent != 0x7ff;
+	}
+
+	private static boolean isPowerOfTwo(float value) {
+		final int bits = Float.floatToRawIntBits(value);
+		final int exponent = (bits >>> 23) & 0xff;
+		return (bits & 0x7fffff) == 0 && exponent != 0 && exponent != 0xff;
+	}
+
+	private static boolean isFiniteNonZero(double value) {
+		return value != 0 && !Double.isInfinite(value) && !Double.isNaN(value);
+	}
+
+	private static int[] copyOf(int[] array, int length) {
+		final int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	private static double[] copyOf(double[] array, int length) {
+		final double[] copy = new double[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	private static float[] copyOf(float[] array, int length) {
+		final float[] copy = new float[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+}
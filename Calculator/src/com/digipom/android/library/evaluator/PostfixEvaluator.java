@@ -15,27 +15,22 @@
 package com.digipom.android.library.evaluator;
 
 import java.math.BigDecimal;
-import java.util.List;
 
 import com.digipom.android.library.evaluator.exception.ParseException;
-import com.digipom.android.library.evaluator.lexer.BigDecimalNumberLiteral;
-import com.digipom.android.library.evaluator.lexer.DoubleNumberLiteral;
-import com.digipom.android.library.evaluator.lexer.FloatNumberLiteral;
-import com.digipom.android.library.evaluator.lexer.Identifier;
-import com.digipom.android.library.evaluator.lexer.NumberLiteral;
-import com.digipom.android.library.evaluator.lexer.Operator;
-import com.digipom.android.library.evaluator.lexer.PredefinedFunction;
-import com.digipom.android.library.evaluator.lexer.Token;
 
 public abstract class PostfixEvaluator {
-	static class FlatToken {
-		static final FlatToken UNDEFINED = new FlatToken();
+	/** Number of rows processed per instruction by the batch evaluators. */
+	static final int BATCH_CHUNK_SIZE = 256;
 
-		static final int TYPE_UNDEFINED = 0;
+	static class FlatToken {
 		static final int TYPE_IDENTIFIER = 1;
 		static final int TYPE_NUMBER_LITERAL = 2;
 		static final int TYPE_OPERATOR = 3;
 		static final int TYPE_PREDEF_FUNCTION = 4;
+		/** Copies the top of the stack into local slot, without popping it. */
+		static final int TYPE_STORE_LOCAL = 5;
+		/** Pushes the value of local slot. */
+		static final int TYPE_LOAD_LOCAL = 6;
 
 		static final int OPERATOR_ADD = 0;
 		static final int OPERATOR_SUBTRACT = 1;
@@ -55,109 +50,146 @@ public abstract class PostfixEvaluator {
 		final int type;
 
 		int typeEnum;
-		String name;
+		int slot;
 		float floatValue;
 		double doubleValue;
 		BigDecimal bigDecimalValue;
 
-		private FlatToken() {
-			type = TYPE_UNDEFINED;
+		private FlatToken(int type, int typeEnum) {
+			this.type = type;
+			this.typeEnum = typeEnum;
+		}
+
+		static FlatToken newIdentifier(int slot) {
+			final FlatToken token = new FlatToken(TYPE_IDENTIFIER, 0);
+			token.slot = slot;
+			return token;
+		}
+
+		static FlatToken newOperator(int operator) {
+			return new FlatToken(TYPE_OPERATOR, operator);
+		}
+
+		static FlatToken newFunction(int function) {
+			return new FlatToken(TYPE_PREDEF_FUNCTION, function);
+		}
+
+		static FlatToken newStoreLocal(int local) {
+			final FlatToken token = new FlatToken(TYPE_STORE_LOCAL, 0);
+			token.slot = local;
+			return token;
+		}
+
+		static FlatToken newLoadLocal(int local) {
+			final FlatToken token = new FlatToken(TYPE_LOAD_LOCAL, 0);
+			token.slot = local;
+			return token;
+		}
+
+		static FlatToken newFloatLiteral(float value) {
+			final FlatToken token = new FlatToken(TYPE_NUMBER_LITERAL, 0);
+			token.floatValue = value;
+			return token;
+		}
+
+		static FlatToken newDoubleLiteral(double value) {
+			final FlatToken token = new FlatToken(TYPE_NUMBER_LITERAL, 0);
+			token.doubleValue = value;
+			return token;
+		}
+
+		static FlatToken newBigDecimalLiteral(BigDecimal value) {
+			final FlatToken token = new FlatToken(TYPE_NUMBER_LITERAL, 0);
+			token.bigDecimalValue = value;
+			return token;
+		}
+
+		/**
+		 * Returns true if this token does the same thing as other. Literals
+		 * match on their bit pattern, or value and scale for BigDecimal.
+		 */
+		boolean isEquivalentTo(FlatToken other) {
+			return type == other.type && typeEnum == other.typeEnum && slot == other.slot
+					&& Float.floatToRawIntBits(floatValue) == Float.floatToRawIntBits(other.floatValue)
+					&& Double.doubleToRawLongBits(doubleValue) == Double.doubleToRawLongBits(other.doubleValue)
+					&& (bigDecimalValue == null ? other.bigDecimalValue == null : bigDecimalValue
+							.equals(other.bigDecimalValue));
+		}
+
+		int equivalenceHashCode() {
+			int hashCode = type;
+			hashCode = 31 * hashCode + typeEnum;
+			hashCode = 31 * hashCode + slot;
+			hashCode = 31 * hashCode + Float.floatToRawIntBits(floatValue);
+			final long doubleBits = Double.doubleToRawLongBits(doubleValue);
+			hashCode = 31 * hashCode + (int) (doubleBits ^ (doubleBits >>> 32));
+			hashCode = 31 * hashCode + (bigDecimalValue == null ? 0 : bigDecimalValue.hashCode());
+			return hashCode;
 		}
 
-		FlatToken(Token fromToken, NumberPrecision numberPrecision) throws ParseException {
-			if (fromToken instanceof Identifier) {
-				type = TYPE_IDENTIFIER;
-				name = ((Identifier) fromToken).name;
-			} else if (fromToken instanceof NumberLiteral) {
-				type = TYPE_NUMBER_LITERAL;
-
-				switch (numberPrecision) {
-					case BIG_DECIMAL:
-						bigDecimalValue = ((BigDecimalNumberLiteral) fromToken).value;
-						break;
-					case DOUBLE:
-						doubleValue = ((DoubleNumberLiteral) fromToken).value;
-						break;
-					case FLOAT:
-					default:
-						floatValue = ((FloatNumberLiteral) fromToken).value;
-						break;
-				}
-			} else if (fromToken instanceof Operator) {
-				type = TYPE_OPERATOR;
-
-				switch ((Operator) fromToken) {
-					case ADD:
-						typeEnum = OPERATOR_ADD;
-						break;
-					case SUBTRACT:
-						typeEnum = OPERATOR_SUBTRACT;
-						break;
-					case MULTIPLY:
-						typeEnum = OPERATOR_MULTIPLY;
-						break;
-					case DIVIDE:
-						typeEnum = OPERATOR_DIVIDE;
-						break;
-					case POWER:
-						typeEnum = OPERATOR_POWER;
-						break;
-					case NEGATION:
-						typeEnum = OPERATOR_NEGATE;
-						break;
-				}
-			} else if (fromToken instanceof PredefinedFunction) {
-				type = TYPE_PREDEF_FUNCTION;
-
-				switch ((PredefinedFunction) fromToken) {
-					case ABS:
-						typeEnum = FUNCTION_ABS;
-						break;
-					case SIN:
-						typeEnum = FUNCTION_SIN;
-						break;
-					case COS:
-						typeEnum = FUNCTION_COS;
-						break;
-					case TAN:
-						typeEnum = FUNCTION_TAN;
-						break;
-					case POW:
-						typeEnum = FUNCTION_POW;
-						break;
-					case LN:
-						typeEnum = FUNCTION_LN;
-						break;
-					case SQRT:
-						typeEnum = FUNCTION_SQRT;
-						break;
-				}
-			} else {
-				throw new ParseException("Unexpected token " + fromToken);
+		/**
+		 * Returns the number of operands this token pops from the stack.
+		 */
+		int arity() {
+			switch (type) {
+				case TYPE_OPERATOR:
+					return typeEnum == OPERATOR_NEGATE ? 1 : 2;
+				case TYPE_PREDEF_FUNCTION:
+					return typeEnum == FUNCTION_POW ? 2 : 1;
+				default:
+					return 0;
 			}
 		}
 	}
 
-	protected final FlatToken[] postfixExpression;	
+	protected final CompiledExpression compiledExpression;
+	protected final int[] opcodes;
+	protected final int[] operands;
+	protected final int variableCount;
+	protected final int localCount;
+	protected final int stackDepth;
 
 	PostfixEvaluator(String input, NumberPrecision numberPrecision) throws ParseException {
-		final List<Token> parsedExpression = new ShuntingYardParser(input, numberPrecision).parse();
-
-		postfixExpression = new FlatToken[parsedExpression.size()];
-		int counter = 0;
+		this(ExpressionCompiler.compileUnoptimized(input, numberPrecision), numberPrecision);
+	}
 
-		for (Token token : parsedExpression) {
-			postfixExpression[counter++] = new FlatToken(token, numberPrecision);
+	PostfixEvaluator(CompiledExpression compiledExpression, NumberPrecision numberPrecision) {
+		if (compiledExpression.numberPrecision != numberPrecision) {
+			throw new IllegalArgumentException("Expression was compiled for " + compiledExpression.numberPrecision
+					+ ", not " + numberPrecision);
 		}
+
+		this.compiledExpression = compiledExpression;
+		this.opcodes = compiledExpression.opcodes;
+		this.operands = compiledExpression.operands;
+		this.variableCount = compiledExpression.variableNames.length;
+		this.localCount = compiledExpression.localCount;
+		this.stackDepth = compiledExpression.maxStackDepth;
 	}
 
-	FlatToken getIdentifier(String name) {
-		for (final FlatToken token : postfixExpression) {
-			if (token.type == FlatToken.TYPE_IDENTIFIER && token.name.equalsIgnoreCase(name)) {
-				return token;
-			}
-		}
+	public CompiledExpression getCompiledExpression() {
+		return compiledExpression;
+	}
+
+	/**
+	 * Convenience for {@link CompiledExpression#getSlot(String)}.
+	 */
+	public int getSlot(String variableName) {
+		return compiledExpression.getSlot(variableName);
+	}
 
-		return FlatToken.UNDEFINED;
-	}			
+	/**
+	 * Returns the number of chunk-sized rows a batch evaluation needs: the
+	 * operand stack, followed by one row per local.
+	 */
+	int batchScratchRows() {
+		return stackDepth + localCount;
+	}
+
+	void checkSlots(int slotCount) {
+		if (slotCount < variableCount) {
+			throw new IllegalArgumentException("Expected values for " + variableCount + " variables but got "
+					+ slotCount);
+		}
+	}
 }
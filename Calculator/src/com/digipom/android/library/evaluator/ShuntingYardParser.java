@@ -14,103 +14,303 @@
 
 package com.digipom.android.library.evaluator;
 
-import java.util.ArrayList;
-import java.util.EmptyStackException;
-import java.util.List;
-import java.util.Stack;
+import java.math.BigDecimal;
 
 import com.digipom.android.library.evaluator.exception.ParseException;
-import com.digipom.android.library.evaluator.lexer.Identifier;
 import com.digipom.android.library.evaluator.lexer.Lexer;
-import com.digipom.android.library.evaluator.lexer.NumberLiteral;
 import com.digipom.android.library.evaluator.lexer.Operator;
-import com.digipom.android.library.evaluator.lexer.Parenthesis;
-import com.digipom.android.library.evaluator.lexer.PredefinedFunction;
-import com.digipom.android.library.evaluator.lexer.Separator;
-import com.digipom.android.library.evaluator.lexer.Token;
 import com.digipom.android.library.evaluator.lexer.Operator.Associativity;
+import com.digipom.android.library.evaluator.lexer.PredefinedFunction;
 
+/**
+ * Compiles an expression into an unoptimized {@link CompiledExpression} in one
+ * pass over the lexer's tokens, with the shunting-yard algorithm. Operands are
+ * written to the program as they're read; operators and functions wait on an
+ * int stack until their operands have been written. The program is checked as
+ * it's written, as {@link CompiledExpression#encode} would check it.
+ */
 public class ShuntingYardParser {
+	// Stack entries are an operator's ordinal, FUNCTION_ENTRY plus a
+	// function's ordinal, or OPEN_PARENTHESIS_ENTRY.
+	private static final int OPEN_PARENTHESIS_ENTRY = -1;
+	private static final int FUNCTION_ENTRY = 16;
+
+	private static final Operator[] OPERATORS = Operator.values();
+	private static final int[] OPERATOR_OPCODES = new int[OPERATORS.length];
+	private static final int[] FUNCTION_OPCODES = new int[PredefinedFunction.values().length];
+
+	static {
+		for (Operator operator : OPERATORS) {
+			OPERATOR_OPCODES[operator.ordinal()] = opcodeFor(operator);
+		}
+
+		for (PredefinedFunction function : PredefinedFunction.values()) {
+			FUNCTION_OPCODES[function.ordinal()] = opcodeFor(function);
+		}
+	}
+
 	private final Lexer lexer;
-	private final List<Token> outputList = new ArrayList<Token>();
-	private final Stack<Token> stack = new Stack<Token>();
+	private final NumberPrecision numberPrecision;
+	private final boolean poolConstants;
 
-	private Token nextToken;
+	// No token writes more than one instruction or pushes more than one
+	// entry, and every token takes at least one character, so the input
+	// length bounds everything.
+	private final int[] opcodes;
+	private final int[] operands;
+	private final int[] stack;
+	private int programLength;
+	private int stackSize;
+	private int depth;
+	private int maxDepth;
 
-	ShuntingYardParser(String input, NumberPrecision numberPrecision) throws ParseException {
-		this.lexer = new Lexer(input, numberPrecision);
-		consume();
+	private float[] floatConstants;
+	private double[] doubleConstants;
+	private BigDecimal[] bigDecimalConstants;
+	private int constantCount;
+
+	ShuntingYardParser(CharSequence input, NumberPrecision numberPrecision) {
+		this(input, numberPrecision, true);
 	}
 
-	List<Token> parse() throws ParseException {
-		while (nextToken != Token.EOF) {
-			if (nextToken instanceof NumberLiteral || nextToken instanceof Identifier) {
-				outputList.add(nextToken);
-			} else if (nextToken instanceof PredefinedFunction || nextToken == Parenthesis.OPEN) {
-				stack.push(nextToken);
-			} else if (nextToken == Separator.COMMA) {
-				try {
-					popToLeftParenthesisToOutput();
-				} catch (EmptyStackException e) {
-					throw new ParseException("Misplaced comma or mis-matched parenthesis.");
-				}
-			} else if (nextToken instanceof Operator) {
-				final Operator o1 = (Operator) nextToken;
+	/**
+	 * @param poolConstants
+	 *            false to give every literal its own constant, in order of
+	 *            appearance, even if it has the same value as another.
+	 */
+	ShuntingYardParser(CharSequence input, NumberPrecision numberPrecision, boolean poolConstants) {
+		this.lexer = new Lexer(input, numberPrecision);
+		this.numberPrecision = numberPrecision;
+		this.poolConstants = poolConstants;
+		this.opcodes = new int[input.length()];
+		this.operands = new int[input.length()];
+		this.stack = new int[input.length()];
+
+		switch (numberPrecision) {
+			case BIG_DECIMAL:
+				bigDecimalConstants = new BigDecimal[input.length()];
+				break;
+			case DOUBLE:
+				doubleConstants = new double[input.length()];
+				break;
+			case FLOAT:
+			default:
+				floatConstants = new float[input.length()];
+				break;
+		}
+	}
 
-				while (!stack.isEmpty() && stack.peek() instanceof Operator) {
-					final Operator o2 = (Operator) stack.peek();
+	CompiledExpression parse() throws ParseException {
+		int kind;
 
-					if ((o1.associativity == Associativity.LEFT && o1.precedence <= o2.precedence)
-					 || (o1.associativity == Associativity.RIGHT && o1.precedence < o2.precedence)) {
-						popStackTopToOutput();
-					} else {
-						break;
+		while ((kind = lexer.next()) != Lexer.KIND_EOF) {
+			switch (kind) {
+				case Lexer.KIND_NUMBER:
+					write(Opcode.LOAD_CONSTANT, constantIndex());
+					break;
+				case Lexer.KIND_IDENTIFIER:
+					write(Opcode.LOAD_VARIABLE, lexer.getIdentifierIndex());
+					break;
+				case Lexer.KIND_FUNCTION:
+					stack[stackSize++] = FUNCTION_ENTRY + lexer.getFunction().ordinal();
+					break;
+				case Lexer.KIND_OPEN_PARENTHESIS:
+					stack[stackSize++] = OPEN_PARENTHESIS_ENTRY;
+					break;
+				case Lexer.KIND_COMMA:
+					if (!popToOpenParenthesis()) {
+						throw new ParseException("Misplaced comma or mis-matched parenthesis.");
+					}
+					break;
+				case Lexer.KIND_OPERATOR:
+					pushOperator(lexer.getOperator());
+					break;
+				case Lexer.KIND_CLOSE_PARENTHESIS:
+					if (!popToOpenParenthesis()) {
+						throw new ParseException("Mis-matched parenthesis.");
 					}
-				}
 
-				stack.push(nextToken);
-			} else if (nextToken == Parenthesis.CLOSE) {
-				try {
-					popToLeftParenthesisToOutput();
-				} catch (EmptyStackException e) {
-					throw new ParseException("Mis-matched parenthesis.");
-				}
+					// Drop the open parenthesis, and write the function it
+					// belongs to, if any.
+					stackSize--;
 
-				// Pop the left parenthesis from the stack, but not to the
-				// output queue.
-				stack.pop();
+					if (stackSize > 0 && stack[stackSize - 1] >= FUNCTION_ENTRY) {
+						popToProgram();
+					}
+					break;
+			}
+		}
 
-				if (!stack.isEmpty() && stack.peek() instanceof PredefinedFunction) {
-					popStackTopToOutput();
-				}
+		while (stackSize > 0) {
+			if (stack[stackSize - 1] == OPEN_PARENTHESIS_ENTRY) {
+				throw new ParseException("Mis-matched parenthesis.");
 			}
 
-			consume();
+			popToProgram();
 		}
 
-		while (!stack.isEmpty()) {
-			if (stack.peek() instanceof Parenthesis) {
-				throw new ParseException("Mis-matched parenthesis.");
+		if (depth != 1) {
+			throw new ParseException("Error evaluating expression");
+		}
+
+		final int[] programOpcodes = new int[programLength];
+		final int[] programOperands = new int[programLength];
+		System.arraycopy(opcodes, 0, programOpcodes, 0, programLength);
+		System.arraycopy(operands, 0, programOperands, 0, programLength);
+
+		float[] usedFloatConstants = null;
+		double[] usedDoubleConstants = null;
+		BigDecimal[] usedBigDecimalConstants = null;
+
+		switch (numberPrecision) {
+			case BIG_DECIMAL:
+				usedBigDecimalConstants = new BigDecimal[constantCount];
+				System.arraycopy(bigDecimalConstants, 0, usedBigDecimalConstants, 0, constantCount);
+				break;
+			case DOUBLE:
+				usedDoubleConstants = new double[constantCount];
+				System.arraycopy(doubleConstants, 0, usedDoubleConstants, 0, constantCount);
+				break;
+			case FLOAT:
+			default:
+				usedFloatConstants = new float[constantCount];
+				System.arraycopy(floatConstants, 0, usedFloatConstants, 0, constantCount);
+				break;
+		}
+
+		return CompiledExpression.fromCheckedProgram(numberPrecision, programOpcodes, programOperands,
+				usedFloatConstants, usedDoubleConstants, usedBigDecimalConstants, lexer.getIdentifierNames(), maxDepth);
+	}
+
+	private void pushOperator(Operator operator) throws ParseException {
+		while (stackSize > 0 && stack[stackSize - 1] >= 0 && stack[stackSize - 1] < FUNCTION_ENTRY) {
+			final int stackPrecedence = OPERATORS[stack[stackSize - 1]].precedence;
+
+			if ((operator.associativity == Associativity.LEFT && operator.precedence <= stackPrecedence)
+					|| (operator.associativity == Associativity.RIGHT && operator.precedence < stackPrecedence)) {
+				popToProgram();
 			} else {
-				popStackTopToOutput();
+				break;
 			}
 		}
 
-		return outputList;
+		stack[stackSize++] = operator.ordinal();
+	}
+
+	/**
+	 * Writes everything above the innermost open parenthesis, leaving the
+	 * parenthesis on the stack. Returns false if there isn't one.
+	 */
+	private boolean popToOpenParenthesis() throws ParseException {
+		while (stackSize > 0 && stack[stackSize - 1] != OPEN_PARENTHESIS_ENTRY) {
+			popToProgram();
+		}
+
+		return stackSize > 0;
 	}
 
-	private void popStackTopToOutput() {
-		outputList.add(stack.pop());
+	private void popToProgram() throws ParseException {
+		final int entry = stack[--stackSize];
+		write(entry >= FUNCTION_ENTRY ? FUNCTION_OPCODES[entry - FUNCTION_ENTRY] : OPERATOR_OPCODES[entry], 0);
 	}
 
-	private void popToLeftParenthesisToOutput() throws EmptyStackException {
-		while (stack.peek() != Parenthesis.OPEN) {
-			popStackTopToOutput();
+	private void write(int opcode, int operand) throws ParseException {
+		if (depth < Opcode.operandCount(opcode)) {
+			throw new ParseException("Error evaluating expression");
+		}
+
+		opcodes[programLength] = opcode;
+		operands[programLength] = operand;
+		programLength++;
+		depth += Opcode.stackEffect(opcode);
+		maxDepth = Math.max(maxDepth, depth);
+	}
+
+	/**
+	 * Returns the pool index of the current literal, adding it if it isn't
+	 * already there. As in {@link CompiledExpression#encode}, literals are
+	 * pooled by bit pattern, or value and scale for BigDecimal. Expressions
+	 * have few literals, so the pool is searched in order.
+	 */
+	private int constantIndex() {
+		final int poolSize = poolConstants ? constantCount : 0;
+
+		switch (numberPrecision) {
+			case BIG_DECIMAL: {
+				final BigDecimal value = lexer.getBigDecimalValue();
+
+				for (int i = 0; i < poolSize; i++) {
+					if (bigDecimalConstants[i].equals(value)) {
+						return i;
+					}
+				}
+
+				bigDecimalConstants[constantCount] = value;
+				return constantCount++;
+			}
+			case DOUBLE: {
+				final long bits = Double.doubleToRawLongBits(lexer.getDoubleValue());
+
+				for (int i = 0; i < poolSize; i++) {
+					if (Double.doubleToRawLongBits(doubleConstants[i]) == bits) {
+						return i;
+					}
+				}
+
+				doubleConstants[constantCount] = lexer.getDoubleValue();
+				return constantCount++;
+			}
+			case FLOAT:
+			default: {
+				final int bits = Float.floatToRawIntBits(lexer.getFloatValue());
+
+				for (int i = 0; i < poolSize; i++) {
+					if (Float.floatToRawIntBits(floatConstants[i]) == bits) {
+						return i;
+					}
+				}
+
+				floatConstants[constantCount] = lexer.getFloatValue();
+				return constantCount++;
+			}
 		}
+	}
 
+	private static int opcodeFor(Operator operator) {
+		switch (operator) {
+			case ADD:
+				return Opcode.ADD;
+			case SUBTRACT:
+				return Opcode.SUBTRACT;
+			case MULTIPLY:
+				return Opcode.MULTIPLY;
+			case DIVIDE:
+				return Opcode.DIVIDE;
+			case POWER:
+				return Opcode.POWER;
+			case NEGATION:
+			default:
+				return Opcode.NEGATE;
+		}
 	}
 
-	private void consume() throws ParseException {
-		nextToken = lexer.nextToken();
+	private static int opcodeFor(PredefinedFunction function) {
+		switch (function) {
+			case ABS:
+				return Opcode.ABS;
+			case SIN:
+				return Opcode.SIN;
+			case COS:
+				return Opcode.COS;
+			case TAN:
+				return Opcode.TAN;
+			case POW:
+				return Opcode.POWER;
+			case LN:
+				return Opcode.LN;
+			case SQRT:
+			default:
+				return Opcode.SQRT;
+		}
 	}
 }
@@ -0,0 +1,193 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Splits a compiled expression by variable dependency for a nested sweep over
+ * some of its variables, given outermost first. Level 0 holds subexpressions
+ * that read no swept variable, and level i holds those that read swept
+ * variable i - 1 but none inside it. Each level is evaluated once per step of
+ * its loop; the innermost level is the rest of the expression.
+ * <p>
+ * A hoisted subexpression is stored in an extra variable slot after the slots
+ * of the original expression, and the levels inside it read it from there.
+ */
+final class SweepPartition {
+	final int[] sweepSlots;
+	final int slotCount;
+	/** The hoisted subexpressions of each level, outermost first. */
+	final CompiledExpression[][] levelPrograms;
+	/** The slot each hoisted subexpression is stored in. */
+	final int[][] levelTargets;
+	final CompiledExpression innerProgram;
+
+	private final int[] slotLevels;
+	private final Map<ExpressionNode, Integer> nodeLevels = new HashMap<ExpressionNode, Integer>();
+	private final Map<ExpressionNode, ExpressionNode> rewrittenNodes = new HashMap<ExpressionNode, ExpressionNode>();
+	private final Map<ExpressionNode, Integer> hoistedSlots = new HashMap<ExpressionNode, Integer>();
+	private final List<List<ExpressionNode>> hoistedTrees = new ArrayList<List<ExpressionNode>>();
+	private final List<List<Integer>> hoistedTargets = new ArrayList<List<Integer>>();
+	private int nextSlot;
+
+	SweepPartition(CompiledExpression compiledExpression, String[] sweepVariables) {
+		if (sweepVariables.length == 0) {
+			throw new IllegalArgumentException("At least one variable must be swept");
+		}
+
+		final int variableCount = compiledExpression.getVariableCount();
+		sweepSlots = new int[sweepVariables.length];
+		slotLevels = new int[variableCount];
+
+		for (int i = 0; i < sweepVariables.length; i++) {
+			sweepSlots[i] = compiledExpression.getSlot(sweepVariables[i]);
+
+			for (int j = 0; j < i; j++) {
+				if (sweepVariables[j].equalsIgnoreCase(sweepVariables[i])) {
+					throw new IllegalArgumentException("Variable " + sweepVariables[i] + " is swept twice");
+				}
+			}
+
+			if (sweepSlots[i] >= 0) {
+				slotLevels[sweepSlots[i]] = i + 1;
+			}
+		}
+
+		final int innerLevel = sweepVariables.length;
+
+		for (int level = 0; level < innerLevel; level++) {
+			hoistedTrees.add(new ArrayList<ExpressionNode>());
+			hoistedTargets.add(new ArrayList<Integer>());
+		}
+
+		nextSlot = variableCount;
+		final ExpressionNode innerTree = hoist(ExpressionNode.fromPostfix(compiledExpression.toPostfix()), innerLevel);
+		slotCount = nextSlot;
+
+		final String[] slotNames = new String[slotCount];
+
+		for (int slot = 0; slot < slotCount; slot++) {
+			slotNames[slot] = slot < variableCount ? compiledExpression.getVariableName(slot) : "#" + slot;
+		}
+
+		final NumberPrecision numberPrecision = compiledExpression.getNumberPrecision();
+		final boolean relaxedMath = compiledExpression.relaxedMath;
+		levelPrograms = new CompiledExpression[innerLevel][];
+		levelTargets = new int[innerLevel][];
+
+		for (int level = 0; level < innerLevel; level++) {
+			final List<ExpressionNode> trees = hoistedTrees.get(level);
+			levelPrograms[level] = new CompiledExpression[trees.size()];
+			levelTargets[level] = new int[trees.size()];
+
+			for (int i = 0; i < trees.size(); i++) {
+				levelPrograms[level][i] = lower(trees.get(i), numberPrecision, slotNames, relaxedMath);
+				levelTargets[level][i] = hoistedTargets.get(level).get(i);
+			}
+		}
+
+		innerProgram = lower(innerTree, numberPrecision, slotNames, relaxedMath);
+	}
+
+	/**
+	 * Returns the number of subexpressions moved out of the innermost level.
+	 */
+	int getHoistedCount() {
+		return slotCount - slotLevels.length;
+	}
+
+	/**
+	 * Returns the node with every subexpression that belongs to an outer level
+	 * replaced by a read of its slot. If the node itself belongs outside the
+	 * enclosing level, the result is a read of its own slot.
+	 */
+	private ExpressionNode hoist(ExpressionNode node, int enclosingLevel) {
+		if (node.left == null) {
+			return node;
+		}
+
+		final int level = levelOf(node);
+		ExpressionNode rewritten = rewrittenNodes.get(node);
+
+		if (rewritten == null) {
+			final ExpressionNode left = hoist(node.left, level);
+			final ExpressionNode right = node.right != null ? hoist(node.right, level) : null;
+			rewritten = left == node.left && right == node.right ? node : new ExpressionNode(node.token, left, right);
+			rewrittenNodes.put(node, rewritten);
+		}
+
+		if (level == enclosingLevel) {
+			return rewritten;
+		}
+
+		Integer slot = hoistedSlots.get(node);
+
+		if (slot == null) {
+			slot = nextSlot++;
+			hoistedSlots.put(node, slot);
+			hoistedTrees.get(level).add(rewritten);
+			hoistedTargets.get(level).add(slot);
+		}
+
+		return new ExpressionNode(FlatToken.newIdentifier(slot));
+	}
+
+	private int levelOf(ExpressionNode node) {
+		if (node.token.type == FlatToken.TYPE_IDENTIFIER) {
+			return slotLevels[node.token.slot];
+		} else if (node.left == null) {
+			return 0;
+		}
+
+		Integer level = nodeLevels.get(node);
+
+		if (level == null) {
+			level = levelOf(node.left);
+
+			if (node.right != null) {
+				level = Math.max(level, levelOf(node.right));
+			}
+
+			nodeLevels.put(node, level);
+		}
+
+		return level;
+	}
+
+	/**
+	 * Lowers a level to a program. Fused instructions were decoded into
+	 * separate tokens, so the peephole pass is run again.
+	 */
+	private static CompiledExpression lower(ExpressionNode tree, NumberPrecision numberPrecision, String[] slotNames,
+			boolean relaxedMath) {
+		final CommonSubexpressionEliminator eliminator = new CommonSubexpressionEliminator();
+		final FlatToken[] postfixExpression = eliminator.toPostfix(tree);
+
+		try {
+			return new PeepholeOptimizer(relaxedMath).optimize(CompiledExpression.encode(numberPrecision,
+					postfixExpression, slotNames, eliminator.getLocalCount(), 0));
+		} catch (ParseException e) {
+			// Can't happen: the tree came from a program that was already checked.
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+/**
+ * Receives tier transitions from the functions of a {@link TieredCompiler}.
+ * Called on the thread that did the recompilation.
+ */
+public interface TierListener {
+	/**
+	 * Called after a function has started running in a new tier.
+	 *
+	 * @param evaluationCount
+	 *            approximately how many times the function had been evaluated
+	 *            when the recompilation started
+	 * @param compileNanos
+	 *            how long the recompilation took
+	 */
+	void onTierChanged(String input, Backend fromTier, Backend toTier, long evaluationCount, long compileNanos);
+}
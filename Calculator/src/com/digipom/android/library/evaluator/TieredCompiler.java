@@ -0,0 +1,121 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Compiles expressions into functions that pick their own backend. A new
+ * function runs the unoptimized program in the interpreter, which is cheapest
+ * to compile. Once it has been evaluated often enough, it is recompiled in the
+ * background with the optimizer and a closure tree, and later with bytecode
+ * where that's available. The new program is swapped in atomically, and
+ * because the optimizer never changes results without relaxed math, callers
+ * can't tell the tiers apart except by speed.
+ */
+public class TieredCompiler {
+	public static final int DEFAULT_CLOSURE_TREE_THRESHOLD = 200;
+	public static final int DEFAULT_BYTECODE_THRESHOLD = 20000;
+
+	private static class ExecutorHolder {
+		static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "TieredCompiler");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	private int closureTreeThreshold = DEFAULT_CLOSURE_TREE_THRESHOLD;
+	private int bytecodeThreshold = DEFAULT_BYTECODE_THRESHOLD;
+	private Executor executor;
+	private TierListener tierListener;
+
+	public int getClosureTreeThreshold() {
+		return closureTreeThreshold;
+	}
+
+	/**
+	 * Sets how many evaluations it takes for a function to be recompiled into
+	 * an optimized closure tree.
+	 */
+	public void setClosureTreeThreshold(int closureTreeThreshold) {
+		if (closureTreeThreshold < 1) {
+			throw new IllegalArgumentException("Threshold must be positive: " + closureTreeThreshold);
+		}
+
+		this.closureTreeThreshold = closureTreeThreshold;
+	}
+
+	public int getBytecodeThreshold() {
+		return bytecodeThreshold;
+	}
+
+	/**
+	 * Sets how many evaluations it takes for a function to be recompiled into
+	 * bytecode. Ignored where {@link BytecodeCompiler#isAvailable()} is false.
+	 */
+	public void setBytecodeThreshold(int bytecodeThreshold) {
+		if (bytecodeThreshold < 1) {
+			throw new IllegalArgumentException("Threshold must be positive: " + bytecodeThreshold);
+		}
+
+		this.bytecodeThreshold = bytecodeThreshold;
+	}
+
+	/**
+	 * Returns the executor that recompiles hot functions. By default this is a
+	 * single shared low priority thread.
+	 */
+	public Executor getExecutor() {
+		return executor != null ? executor : ExecutorHolder.EXECUTOR;
+	}
+
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public TierListener getTierListener() {
+		return tierListener;
+	}
+
+	public void setTierListener(TierListener tierListener) {
+		this.tierListener = tierListener;
+	}
+
+	/**
+	 * Compiles the input for double precision. The function keeps the
+	 * thresholds, executor and listener set at this point.
+	 */
+	public TieredDoubleFunction compileDouble(String input) throws ParseException {
+		return new TieredDoubleFunction(input, this);
+	}
+
+	/**
+	 * Compiles the input for float precision. The function keeps the
+	 * thresholds, executor and listener set at this point.
+	 */
+	public TieredFloatFunction compileFloat(String input) throws ParseException {
+		return new TieredFloatFunction(input, this);
+	}
+}
@@ -0,0 +1,41 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * A float precision function that moves to faster backends as it gets hot.
+ * See {@link TieredCompiler}. Can be called from any thread.
+ */
+public final class TieredFloatFunction extends TieredFunction implements FloatExpressionFunction {
+	private volatile FloatExpressionFunction function;
+
+	TieredFloatFunction(String input, TieredCompiler settings) throws ParseException {
+		super(input, NumberPrecision.FLOAT, settings);
+		install(getInterpretedProgram(), Backend.INTERPRETER);
+	}
+
+	@Override
+	public float apply(float[] variables) {
+		countEvaluation();
+		return function.apply(variables);
+	}
+
+	@Override
+	void install(CompiledExpression program, Backend backend) throws ParseException {
+		function = new FunctionCompiler(backend).compile(new FloatPostfixEvaluator(program));
+	}
+}
@@ -0,0 +1,159 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * The evaluation counting and tier promotion shared by
+ * {@link TieredDoubleFunction} and {@link TieredFloatFunction}.
+ * <p>
+ * The counter is deliberately not synchronized: a lost increment only delays
+ * a promotion, while an atomic counter would make every evaluation contend
+ * when the function is shared between threads. The threshold is volatile, so
+ * that once a promotion raises it callers stop scheduling promotions. At most
+ * one promotion is in flight at a time. Programs too deep for a closure tree
+ * stay interpreted.
+ */
+abstract class TieredFunction {
+	private final String input;
+	private final NumberPrecision numberPrecision;
+	private final CompiledExpression interpretedProgram;
+	private final int closureTreeThreshold;
+	private final int bytecodeThreshold;
+	private final Executor executor;
+	private final TierListener tierListener;
+	private final AtomicBoolean promoting = new AtomicBoolean();
+	private final Runnable promotion = new Runnable() {
+		@Override
+		public void run() {
+			promote();
+		}
+	};
+
+	private volatile Backend tier = Backend.INTERPRETER;
+	private long evaluationCount;
+	private volatile long nextThreshold;
+
+	TieredFunction(String input, NumberPrecision numberPrecision, TieredCompiler settings) throws ParseException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		compiler.setOptimizationEnabled(false);
+
+		this.input = input;
+		this.numberPrecision = numberPrecision;
+		this.interpretedProgram = compiler.compile(input, numberPrecision);
+		this.closureTreeThreshold = settings.getClosureTreeThreshold();
+		this.bytecodeThreshold = settings.getBytecodeThreshold();
+		this.executor = settings.getExecutor();
+		this.tierListener = settings.getTierListener();
+		// Programs too deep for a closure tree would only be interpreted again.
+		this.nextThreshold = FunctionCompiler.isTooDeepForClosureTree(interpretedProgram) ? Long.MAX_VALUE
+				: closureTreeThreshold;
+	}
+
+	/**
+	 * Returns the backend the function currently runs on.
+	 */
+	public Backend getTier() {
+		return tier;
+	}
+
+	/**
+	 * Returns approximately how many times the function has been evaluated.
+	 */
+	public long getEvaluationCount() {
+		return evaluationCount;
+	}
+
+	public int getVariableCount() {
+		return interpretedProgram.getVariableCount();
+	}
+
+	/**
+	 * Returns the slot of the given variable, which is the same in every tier.
+	 */
+	public int getSlot(String variableName) {
+		return interpretedProgram.getSlot(variableName);
+	}
+
+	CompiledExpression getInterpretedProgram() {
+		return interpretedProgram;
+	}
+
+	/**
+	 * Counts an evaluation, and schedules a promotion when the next threshold
+	 * is crossed.
+	 */
+	final void countEvaluation() {
+		if (++evaluationCount >= nextThreshold && promoting.compareAndSet(false, true)) {
+			try {
+				executor.execute(promotion);
+			} catch (RejectedExecutionException e) {
+				// Keep evaluating in the current tier, and try again after as
+				// many evaluations again.
+				nextThreshold = Math.max(nextThreshold, evaluationCount * 2);
+				promoting.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Recompiles into the next tier. Runs on the executor.
+	 */
+	private void promote() {
+		final Backend fromTier = tier;
+		final long count = evaluationCount;
+		final boolean bytecodeDue = count >= bytecodeThreshold && BytecodeCompiler.isAvailable();
+		final Backend toTier = bytecodeDue ? Backend.BYTECODE : Backend.CLOSURE_TREE;
+
+		try {
+			if (toTier == fromTier) {
+				return;
+			}
+
+			final long start = System.nanoTime();
+			install(new ExpressionCompiler().compile(input, numberPrecision), toTier);
+			tier = toTier;
+
+			final long compileNanos = System.nanoTime() - start;
+			nextThreshold = toTier == Backend.CLOSURE_TREE && BytecodeCompiler.isAvailable() ? Math.max(
+					bytecodeThreshold, count + 1) : Long.MAX_VALUE;
+
+			if (tierListener != null) {
+				tierListener.onTierChanged(input, fromTier, toTier, count, compileNanos);
+			}
+		} catch (ParseException e) {
+			// Can't happen: the input already compiled for the interpreter.
+			// Stay in the current tier.
+			nextThreshold = Long.MAX_VALUE;
+		} catch (RuntimeException e) {
+			// Stay in the current tier rather than fail again on every
+			// later evaluation.
+			nextThreshold = Long.MAX_VALUE;
+		} finally {
+			promoting.set(false);
+		}
+	}
+
+	/**
+	 * Atomically replaces the running program with the given one, run by the
+	 * given backend.
+	 */
+	abstract void install(CompiledExpression program, Backend backend) throws ParseException;
+}
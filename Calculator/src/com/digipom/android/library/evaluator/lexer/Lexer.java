@@ -15,32 +15,74 @@
 package com.digipom.android.library.evaluator.lexer;
 
 import java.math.BigDecimal;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.digipom.android.library.evaluator.NumberPrecision;
 import com.digipom.android.library.evaluator.exception.ParseException;
 
+/**
+ * Splits an expression into tokens. The input is scanned in place: function
+ * names are matched case-insensitively without copying, and number literals
+ * are parsed straight from the characters. Only the first occurrence of each
+ * identifier allocates its name.
+ * <p>
+ * {@link #next()} returns the kind of each token, and leaves its value in the
+ * lexer to be read with the getters, so number literals don't allocate either.
+ * {@link #nextToken()} returns the same tokens as {@link Token} objects.
+ */
 public class Lexer {
+	public static final int KIND_EOF = 0;
+	/** A number literal, read with {@link #getFloatValue()} and its siblings. */
+	public static final int KIND_NUMBER = 1;
+	/** A variable, read with {@link #getIdentifier()}. */
+	public static final int KIND_IDENTIFIER = 2;
+	/** A predefined function, read with {@link #getFunction()}. */
+	public static final int KIND_FUNCTION = 3;
+	/** An operator, read with {@link #getOperator()}. */
+	public static final int KIND_OPERATOR = 4;
+	public static final int KIND_OPEN_PARENTHESIS = 5;
+	public static final int KIND_CLOSE_PARENTHESIS = 6;
+	public static final int KIND_COMMA = 7;
+
 	private static final char EOF_CHAR = (char) -1;
 
-	private final Map<String, PredefinedFunction> predefinedFunctions = new HashMap<String, PredefinedFunction>();
-	private final Map<String, Identifier> previouslyFoundIdentifiers = new HashMap<String, Identifier>();
-	private final String input;
+	/** Largest unscaled value that can take another digit without overflow. */
+	private static final long MAX_UNSCALED_BEFORE_DIGIT = (Long.MAX_VALUE - 9) / 10;
+
+	/** Exponents beyond this are handed to the string parsers as they are. */
+	private static final int MAX_EXPONENT = 100000000;
+
+	/** Integers up to 2^53 and 2^24 are exact in double and float. */
+	private static final long MAX_EXACT_DOUBLE = 1L << 53;
+	private static final long MAX_EXACT_FLOAT = 1L << 24;
+
+	/** Powers of ten that are exact in double, and in float up to 10^10. */
+	private static final double[] DOUBLE_POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+			1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	private static final float[] FLOAT_POWERS_OF_TEN = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f,
+			1e9f, 1e10f };
+
+	private final List<Identifier> previouslyFoundIdentifiers = new ArrayList<Identifier>();
+	private final CharSequence input;
 	private final NumberPrecision numberPrecision;
 
 	private int currentPosition;
 	private int maxPosition;
 	private char currentCharacter;
-	private Token currentToken;
 
-	public Lexer(String input, NumberPrecision numberPrecision) {
-		this.input = input.trim().toLowerCase();
-		this.numberPrecision = numberPrecision;
+	private int currentKind = KIND_EOF;
+	private float floatValue;
+	private double doubleValue;
+	private BigDecimal bigDecimalValue;
+	private int identifierIndex;
+	private PredefinedFunction function;
+	private Operator operator;
 
-		for (PredefinedFunction predefinedFunction : PredefinedFunction.values()) {
-			predefinedFunctions.put(predefinedFunction.name().toLowerCase(), predefinedFunction);
-		}
+	public Lexer(CharSequence input, NumberPrecision numberPrecision) {
+		this.input = input;
+		this.numberPrecision = numberPrecision;
 
 		currentPosition = 0;
 		maxPosition = input.length() - 1;
@@ -48,25 +90,124 @@ public class Lexer {
 		peek();
 	}
 
+	/**
+	 * Lexes the array in place. It must not change until lexing is done.
+	 */
+	public Lexer(char[] input, NumberPrecision numberPrecision) {
+		this(CharBuffer.wrap(input), numberPrecision);
+	}
+
 	private void peek() {
 		currentCharacter = currentPosition <= maxPosition ? input.charAt(currentPosition) : EOF_CHAR;
 	}
 
-	public Token nextToken() throws ParseException {
+	/**
+	 * Reads the next token and returns its kind, one of the KIND constants.
+	 */
+	public int next() throws ParseException {
+		while (isWhitespace()) {
+			consume();
+		}
+
 		if (isEOF()) {
-			currentToken = Token.EOF;
-		} else if (isWhitespace()) {
-			skipWhitespace();
-			return nextToken();
+			currentKind = KIND_EOF;
 		} else if (isDigit()) {
-			currentToken = tokenizeNumberLiteral();
+			currentKind = tokenizeNumberLiteral();
 		} else if (isPartOfIdentifier()) {
-			currentToken = tokenizeIdentifierOrPredefinedFunction();
+			currentKind = tokenizeIdentifierOrPredefinedFunction();
 		} else {
-			currentToken = tokenizeSymbol();
+			currentKind = tokenizeSymbol();
 		}
 
-		return currentToken;
+		return currentKind;
+	}
+
+	public Token nextToken() throws ParseException {
+		switch (next()) {
+			case KIND_NUMBER:
+				switch (numberPrecision) {
+					case BIG_DECIMAL:
+						return new BigDecimalNumberLiteral(bigDecimalValue);
+					case DOUBLE:
+						return new DoubleNumberLiteral(doubleValue);
+					case FLOAT:
+					default:
+						return new FloatNumberLiteral(floatValue);
+				}
+			case KIND_IDENTIFIER:
+				return getIdentifier();
+			case KIND_FUNCTION:
+				return function;
+			case KIND_OPERATOR:
+				return operator;
+			case KIND_OPEN_PARENTHESIS:
+				return Parenthesis.OPEN;
+			case KIND_CLOSE_PARENTHESIS:
+				return Parenthesis.CLOSE;
+			case KIND_COMMA:
+				return Separator.COMMA;
+			case KIND_EOF:
+			default:
+				return Token.EOF;
+		}
+	}
+
+	/**
+	 * Returns the value of the current number literal, when lexing for
+	 * {@link NumberPrecision#FLOAT}.
+	 */
+	public float getFloatValue() {
+		return floatValue;
+	}
+
+	/**
+	 * Returns the value of the current number literal, when lexing for
+	 * {@link NumberPrecision#DOUBLE}.
+	 */
+	public double getDoubleValue() {
+		return doubleValue;
+	}
+
+	/**
+	 * Returns the value of the current number literal, when lexing for
+	 * {@link NumberPrecision#BIG_DECIMAL}.
+	 */
+	public BigDecimal getBigDecimalValue() {
+		return bigDecimalValue;
+	}
+
+	public Identifier getIdentifier() {
+		return previouslyFoundIdentifiers.get(identifierIndex);
+	}
+
+	/**
+	 * Returns the index of the current identifier among the distinct
+	 * identifiers found so far, in order of first appearance.
+	 */
+	public int getIdentifierIndex() {
+		return identifierIndex;
+	}
+
+	/**
+	 * Returns the names of the distinct identifiers found so far, in order of
+	 * first appearance.
+	 */
+	public String[] getIdentifierNames() {
+		final String[] names = new String[previouslyFoundIdentifiers.size()];
+
+		for (int i = 0; i < names.length; i++) {
+			names[i] = previouslyFoundIdentifiers.get(i).name;
+		}
+
+		return names;
+	}
+
+	public PredefinedFunction getFunction() {
+		return function;
+	}
+
+	public Operator getOperator() {
+		return operator;
 	}
 
 	private boolean isEOF() {
@@ -77,12 +218,6 @@ public class Lexer {
 		return Character.isWhitespace(currentCharacter);
 	}
 
-	private void skipWhitespace() {
-		do {
-			consume();
-		} while (isWhitespace());
-	}
-
 	private void consume() {
 		currentPosition++;
 		peek();
@@ -92,52 +227,130 @@ public class Lexer {
 		return Character.isDigit(currentCharacter);
 	}
 
-	private boolean isPartOfNumber() {
-		return Character.isDigit(currentCharacter) || currentCharacter == '.';
-	}
+	/**
+	 * Reads digits, an optional fraction and an optional exponent, which
+	 * must be signed, as in 1.5E+3. Up to 18 significant digits are gathered
+	 * into a long with a scale; longer literals, and results that may not be
+	 * exact, are parsed from their text instead.
+	 */
+	private int tokenizeNumberLiteral() throws ParseException {
+		final int startPosition = currentPosition;
+		long unscaledValue = 0;
+		int scale = 0;
+		boolean fitsInLong = true;
+		boolean isInFraction = false;
+
+		while (true) {
+			if (isDigit()) {
+				if (unscaledValue > MAX_UNSCALED_BEFORE_DIGIT) {
+					fitsInLong = false;
+				} else {
+					unscaledValue = unscaledValue * 10 + Character.digit(currentCharacter, 10);
+				}
 
-	private Token tokenizeNumberLiteral() throws ParseException {
-		int startPosition = currentPosition;
-		boolean isInScientificNotation = false;
+				if (isInFraction) {
+					scale++;
+				}
+			} else if (currentCharacter == '.' && !isInFraction) {
+				isInFraction = true;
+			} else {
+				break;
+			}
 
-		do {
 			consume();
+		}
 
-			if (currentCharacter == 'E' || currentCharacter == 'e') {
-				isInScientificNotation = true;
+		if (currentCharacter == '.') {
+			throw new ParseException("Invalid number " + input.subSequence(startPosition, currentPosition + 1)
+					+ ": more than one decimal point");
+		}
+
+		int exponent = 0;
+
+		if (currentCharacter == 'E' || currentCharacter == 'e') {
+			consume();
+			final boolean isNegative = currentCharacter == '-';
+
+			if (currentCharacter == '+' || currentCharacter == '-') {
 				consume();
+			} else {
+				throw new ParseException("Invalid scientific number around "
+						+ input.subSequence(startPosition, currentPosition) + ": expected '+' or '-'");
+			}
 
-				if (currentCharacter == '+' || currentCharacter == '-') {
-					consume();
+			if (!isDigit()) {
+				throw new ParseException("Invalid scientific number around "
+						+ input.subSequence(startPosition, currentPosition) + ": expected a digit");
+			}
+
+			do {
+				if (exponent < MAX_EXPONENT) {
+					exponent = exponent * 10 + Character.digit(currentCharacter, 10);
 				} else {
-					throw new ParseException("Invalid scientific number around "
-							+ input.substring(startPosition, currentCharacter) + ": expected '+' or '-'");
+					fitsInLong = false;
 				}
 
-				while (isDigit()) {
-					consume();
-				}
+				consume();
+			} while (isDigit());
+
+			if (isNegative) {
+				exponent = -exponent;
 			}
-		} while (isPartOfNumber());
+		}
 
+		if (!fitsInLong || !setNumberValue(unscaledValue, exponent - scale)) {
+			parseNumberValue(input.subSequence(startPosition, currentPosition).toString());
+		}
+
+		return KIND_NUMBER;
+	}
+
+	/**
+	 * Sets the value to unscaledValue * 10^exponent, unless the floating-point
+	 * result would take more than one rounding, in which case this returns
+	 * false.
+	 */
+	private boolean setNumberValue(long unscaledValue, int exponent) {
 		switch (numberPrecision) {
 			case BIG_DECIMAL:
-				return new BigDecimalNumberLiteral(new BigDecimal(input.substring(startPosition, currentPosition)));
+				bigDecimalValue = BigDecimal.valueOf(unscaledValue, -exponent);
+				return true;
 			case DOUBLE:
-				if (isInScientificNotation) {
-					return new DoubleNumberLiteral(
-							new BigDecimal(input.substring(startPosition, currentPosition)).doubleValue());
-				} else {
-					return new DoubleNumberLiteral(Double.parseDouble(input.substring(startPosition, currentPosition)));
+				if (unscaledValue <= MAX_EXACT_DOUBLE && Math.abs(exponent) < DOUBLE_POWERS_OF_TEN.length) {
+					final double value = unscaledValue;
+					doubleValue = exponent < 0 ? value / DOUBLE_POWERS_OF_TEN[-exponent] : value
+							* DOUBLE_POWERS_OF_TEN[exponent];
+					return true;
 				}
+				return false;
 			default:
 			case FLOAT:
-				if (isInScientificNotation) {
-					return new FloatNumberLiteral(
-							new BigDecimal(input.substring(startPosition, currentPosition)).floatValue());
-				} else {
-					return new FloatNumberLiteral(Float.parseFloat(input.substring(startPosition, currentPosition)));
+				if (unscaledValue <= MAX_EXACT_FLOAT && Math.abs(exponent) < FLOAT_POWERS_OF_TEN.length) {
+					final float value = unscaledValue;
+					floatValue = exponent < 0 ? value / FLOAT_POWERS_OF_TEN[-exponent] : value
+							* FLOAT_POWERS_OF_TEN[exponent];
+					return true;
 				}
+				return false;
+		}
+	}
+
+	private void parseNumberValue(String text) throws ParseException {
+		try {
+			switch (numberPrecision) {
+				case BIG_DECIMAL:
+					bigDecimalValue = new BigDecimal(text);
+					break;
+				case DOUBLE:
+					doubleValue = Double.parseDouble(text);
+					break;
+				default:
+				case FLOAT:
+					floatValue = Float.parseFloat(text);
+					break;
+			}
+		} catch (NumberFormatException e) {
+			throw new ParseException("Invalid number " + text);
 		}
 	}
 
@@ -145,60 +358,119 @@ public class Lexer {
 		return Character.isLetter(currentCharacter);
 	}
 
-	private Token tokenizeIdentifierOrPredefinedFunction() {
-		int startPosition = currentPosition;
+	private int tokenizeIdentifierOrPredefinedFunction() {
+		final int startPosition = currentPosition;
 
 		do {
 			consume();
 		} while (isPartOfIdentifier());
 
-		final String value = input.substring(startPosition, currentPosition);
-
-		final PredefinedFunction predefinedFunction = predefinedFunctions.get(value);
+		final int length = currentPosition - startPosition;
+		function = lookUpFunction(input, startPosition, length);
 
-		if (predefinedFunction != null) {
-			return predefinedFunction;
-		} else {
-			final Identifier identifier = previouslyFoundIdentifiers.get(value);
+		if (function != null) {
+			return KIND_FUNCTION;
+		}
 
-			if (identifier != null) {
-				return identifier;
-			} else {
-				final Identifier newIdentifier = new Identifier(value);
-				previouslyFoundIdentifiers.put(value, newIdentifier);
-				return newIdentifier;
+		for (int i = 0; i < previouslyFoundIdentifiers.size(); i++) {
+			if (matchesIgnoringCase(input, startPosition, length, previouslyFoundIdentifiers.get(i).name)) {
+				identifierIndex = i;
+				return KIND_IDENTIFIER;
 			}
+		}
+
+		final char[] name = new char[length];
 
+		for (int i = 0; i < length; i++) {
+			name[i] = Character.toLowerCase(input.charAt(startPosition + i));
 		}
+
+		identifierIndex = previouslyFoundIdentifiers.size();
+		previouslyFoundIdentifiers.add(new Identifier(new String(name)));
+		return KIND_IDENTIFIER;
 	}
 
-	private Token tokenizeSymbol() throws ParseException {
+	/**
+	 * Returns the function named by the given characters in any case, or null
+	 * if they don't name one.
+	 */
+	private static PredefinedFunction lookUpFunction(CharSequence input, int start, int length) {
+		switch (length) {
+			case 2:
+				return matchesIgnoringCase(input, start, length, "ln") ? PredefinedFunction.LN : null;
+			case 3:
+				switch (Character.toLowerCase(input.charAt(start))) {
+					case 'a':
+						return matchesIgnoringCase(input, start, length, "abs") ? PredefinedFunction.ABS : null;
+					case 'c':
+						return matchesIgnoringCase(input, start, length, "cos") ? PredefinedFunction.COS : null;
+					case 'p':
+						return matchesIgnoringCase(input, start, length, "pow") ? PredefinedFunction.POW : null;
+					case 's':
+						return matchesIgnoringCase(input, start, length, "sin") ? PredefinedFunction.SIN : null;
+					case 't':
+						return matchesIgnoringCase(input, start, length, "tan") ? PredefinedFunction.TAN : null;
+					default:
+						return null;
+				}
+			case 4:
+				return matchesIgnoringCase(input, start, length, "sqrt") ? PredefinedFunction.SQRT : null;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Returns true if the given characters, lowercased, are equal to name,
+	 * which is in lower case.
+	 */
+	private static boolean matchesIgnoringCase(CharSequence input, int start, int length, String name) {
+		if (length != name.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < length; i++) {
+			if (Character.toLowerCase(input.charAt(start + i)) != name.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private int tokenizeSymbol() throws ParseException {
 		final char symbol = currentCharacter;
 		consume();
 
-		if (symbol == '+') {
-			return Operator.ADD;
-		} else if (symbol == '-') {
-			if (currentToken instanceof NumberLiteral || currentToken instanceof Identifier
-					|| currentToken instanceof PredefinedFunction) {
-				return Operator.SUBTRACT;
-			} else {
-				return Operator.NEGATION;
-			}
-		} else if (symbol == '*') {
-			return Operator.MULTIPLY;
-		} else if (symbol == '/') {
-			return Operator.DIVIDE;
-		} else if (symbol == '^') {
-			return Operator.POWER;
-		} else if (symbol == '(') {
-			return Parenthesis.OPEN;
-		} else if (symbol == ')') {
-			return Parenthesis.CLOSE;
-		} else if (symbol == ',') {
-			return Separator.COMMA;
-		} else {
-			throw new ParseException("tokenizeSymbol(): Could not recognize symbol " + symbol);
+		switch (symbol) {
+			case '+':
+				return operator(Operator.ADD);
+			case '-':
+				if (currentKind == KIND_NUMBER || currentKind == KIND_IDENTIFIER || currentKind == KIND_FUNCTION
+						|| currentKind == KIND_CLOSE_PARENTHESIS) {
+					return operator(Operator.SUBTRACT);
+				} else {
+					return operator(Operator.NEGATION);
+				}
+			case '*':
+				return operator(Operator.MULTIPLY);
+			case '/':
+				return operator(Operator.DIVIDE);
+			case '^':
+				return operator(Operator.POWER);
+			case '(':
+				return KIND_OPEN_PARENTHESIS;
+			case ')':
+				return KIND_CLOSE_PARENTHESIS;
+			case ',':
+				return KIND_COMMA;
+			default:
+				throw new ParseException("tokenizeSymbol(): Could not recognize symbol " + symbol);
 		}
 	}
+
+	private int operator(Operator operator) {
+		this.operator = operator;
+		return KIND_OPERATOR;
+	}
 }
@@ -19,12 +19,15 @@ import static com.digipom.calculator.logic.Calculator.ExpressionState.EDIT;
 import static com.digipom.calculator.logic.Calculator.ExpressionState.ERROR;
 
 import java.math.BigDecimal;
+import java.math.MathContext;
 import java.util.EnumMap;
 
 import android.content.Context;
 import android.util.Log;
 
-import com.digipom.android.library.evaluator.BigDecimalPostfixEvaluator;
+import com.digipom.android.library.evaluator.AdaptivePrecisionEvaluator;
+import com.digipom.android.library.evaluator.ExpressionTemplateCache;
+import com.digipom.android.library.evaluator.NumberPrecision;
 import com.digipom.android.library.evaluator.builder.ExpressionBuilder;
 import com.digipom.android.library.evaluator.exception.ParseException;
 import com.digipom.android.library.evaluator.lexer.Operator;
@@ -36,12 +39,22 @@ import com.digipom.calculator.config.LoggerConfig;
 public class Calculator {
 	private static final String TAG = "Calculator";
 
+	/** Display precision for the evaluator. Answers are kept at full precision, since they're reused. */
+	private static final MathContext DISPLAY_CONTEXT = new MathContext(12);
+
+	/** Enough for the shapes of the answers and stored expressions that get recalled. */
+	private static final int EXPRESSION_CACHE_SIZE = 64;
+
 	private final Context context;
 
 	/** Calculator internals. */
 	
 	private final InputBuffer inputBuffer = new InputBuffer();
 	private final Memory memory = new Memory();
+	private final AdaptivePrecisionEvaluator evaluator = new AdaptivePrecisionEvaluator(DISPLAY_CONTEXT);
+	// Templates aren't optimized, which is what the evaluator wants: folding
+	// constants would evaluate them in BigDecimal, which the evaluator avoids.
+	private final ExpressionTemplateCache expressionCache = new ExpressionTemplateCache(EXPRESSION_CACHE_SIZE);
 
 	/** Command definitions. */
 
@@ -308,9 +321,17 @@ public class Calculator {
 					String validatedInput = inputBuffer.validateExpressionAndGet();
 
 					if (input.equals(validatedInput)) {
-						final BigDecimal result = new BigDecimalPostfixEvaluator(input).evaluate();
+						final BigDecimal result = evaluator.evaluate(expressionCache.compile(input,
+								NumberPrecision.BIG_DECIMAL));
 						memory.addAnswer(result);
 						inputBuffer.setExpression(result.toPlainString());
+
+						if (LoggerConfig.ON) {
+							Log.v(TAG, "BigDecimal fallbacks: " + evaluator.getFallbackCount() + " of "
+									+ evaluator.getEvaluationCount() + ", template cache hits: "
+									+ expressionCache.getHitCount() + " of "
+									+ (expressionCache.getHitCount() + expressionCache.getMissCount()));
+						}
 					}
 				}
 			} catch (ParseException pe) {
@@ -0,0 +1,329 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.EmptyStackException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
+import com.digipom.android.library.evaluator.exception.ParseException;
+import com.digipom.android.library.evaluator.lexer.BigDecimalNumberLiteral;
+import com.digipom.android.library.evaluator.lexer.DoubleNumberLiteral;
+import com.digipom.android.library.evaluator.lexer.FloatNumberLiteral;
+import com.digipom.android.library.evaluator.lexer.Identifier;
+import com.digipom.android.library.evaluator.lexer.NumberLiteral;
+import com.digipom.android.library.evaluator.lexer.Operator;
+import com.digipom.android.library.evaluator.lexer.Operator.Associativity;
+import com.digipom.android.library.evaluator.lexer.Parenthesis;
+import com.digipom.android.library.evaluator.lexer.PredefinedFunction;
+import com.digipom.android.library.evaluator.lexer.Separator;
+import com.digipom.android.library.evaluator.lexer.Token;
+
+/**
+ * A copy of the original compile pipeline, kept for benchmarks: a lexer that
+ * builds a Token object per token from substrings, a shunting-yard parser over
+ * a Token list and a java.util.Stack, and a conversion of the Token list to
+ * FlatTokens. Identifiers get slots in order of first appearance, as the
+ * original symbol table gave them.
+ */
+final class BaselinePipeline {
+	private BaselinePipeline() {
+	}
+
+	static FlatToken[] compile(String input, NumberPrecision numberPrecision) throws ParseException {
+		final List<Token> parsedExpression = parse(new Lexer(input, numberPrecision));
+		final Map<Identifier, Integer> slots = new HashMap<Identifier, Integer>();
+		final FlatToken[] postfixExpression = new FlatToken[parsedExpression.size()];
+		int counter = 0;
+
+		for (Token token : parsedExpression) {
+			postfixExpression[counter++] = toFlatToken(token, numberPrecision, slots);
+		}
+
+		return postfixExpression;
+	}
+
+	private static List<Token> parse(Lexer lexer) throws ParseException {
+		final List<Token> outputList = new ArrayList<Token>();
+		final Stack<Token> stack = new Stack<Token>();
+		Token nextToken = lexer.nextToken();
+
+		while (nextToken != Token.EOF) {
+			if (nextToken instanceof NumberLiteral || nextToken instanceof Identifier) {
+				outputList.add(nextToken);
+			} else if (nextToken instanceof PredefinedFunction || nextToken == Parenthesis.OPEN) {
+				stack.push(nextToken);
+			} else if (nextToken == Separator.COMMA) {
+				try {
+					popToLeftParenthesis(stack, outputList);
+				} catch (EmptyStackException e) {
+					throw new ParseException("Misplaced comma or mis-matched parenthesis.");
+				}
+			} else if (nextToken instanceof Operator) {
+				final Operator o1 = (Operator) nextToken;
+
+				while (!stack.isEmpty() && stack.peek() instanceof Operator) {
+					final Operator o2 = (Operator) stack.peek();
+
+					if ((o1.associativity == Associativity.LEFT && o1.precedence <= o2.precedence)
+							|| (o1.associativity == Associativity.RIGHT && o1.precedence < o2.precedence)) {
+						outputList.add(stack.pop());
+					} else {
+						break;
+					}
+				}
+
+				stack.push(nextToken);
+			} else if (nextToken == Parenthesis.CLOSE) {
+				try {
+					popToLeftParenthesis(stack, outputList);
+				} catch (EmptyStackException e) {
+					throw new ParseException("Mis-matched parenthesis.");
+				}
+
+				stack.pop();
+
+				if (!stack.isEmpty() && stack.peek() instanceof PredefinedFunction) {
+					outputList.add(stack.pop());
+				}
+			}
+
+			nextToken = lexer.nextToken();
+		}
+
+		while (!stack.isEmpty()) {
+			if (stack.peek() instanceof Parenthesis) {
+				throw new ParseException("Mis-matched parenthesis.");
+			} else {
+				outputList.add(stack.pop());
+			}
+		}
+
+		return outputList;
+	}
+
+	private static void popToLeftParenthesis(Stack<Token> stack, List<Token> outputList) {
+		while (stack.peek() != Parenthesis.OPEN) {
+			outputList.add(stack.pop());
+		}
+	}
+
+	private static FlatToken toFlatToken(Token token, NumberPrecision numberPrecision, Map<Identifier, Integer> slots)
+			throws ParseException {
+		if (token instanceof Identifier) {
+			Integer slot = slots.get(token);
+
+			if (slot == null) {
+				slot = slots.size();
+				slots.put((Identifier) token, slot);
+			}
+
+			return FlatToken.newIdentifier(slot);
+		} else if (token instanceof NumberLiteral) {
+			switch (numberPrecision) {
+				case BIG_DECIMAL:
+					return FlatToken.newBigDecimalLiteral(((BigDecimalNumberLiteral) token).value);
+				case DOUBLE:
+					return FlatToken.newDoubleLiteral(((DoubleNumberLiteral) token).value);
+				case FLOAT:
+				default:
+					return FlatToken.newFloatLiteral(((FloatNumberLiteral) token).value);
+			}
+		} else if (token instanceof Operator) {
+			switch ((Operator) token) {
+				case ADD:
+					return FlatToken.newOperator(FlatToken.OPERATOR_ADD);
+				case SUBTRACT:
+					return FlatToken.newOperator(FlatToken.OPERATOR_SUBTRACT);
+				case MULTIPLY:
+					return FlatToken.newOperator(FlatToken.OPERATOR_MULTIPLY);
+				case DIVIDE:
+					return FlatToken.newOperator(FlatToken.OPERATOR_DIVIDE);
+				case POWER:
+					return FlatToken.newOperator(FlatToken.OPERATOR_POWER);
+				case NEGATION:
+				default:
+					return FlatToken.newOperator(FlatToken.OPERATOR_NEGATE);
+			}
+		} else if (token instanceof PredefinedFunction) {
+			switch ((PredefinedFunction) token) {
+				case ABS:
+					return FlatToken.newFunction(FlatToken.FUNCTION_ABS);
+				case SIN:
+					return FlatToken.newFunction(FlatToken.FUNCTION_SIN);
+				case COS:
+					return FlatToken.newFunction(FlatToken.FUNCTION_COS);
+				case TAN:
+					return FlatToken.newFunction(FlatToken.FUNCTION_TAN);
+				case POW:
+					return FlatToken.newFunction(FlatToken.FUNCTION_POW);
+				case LN:
+					return FlatToken.newFunction(FlatToken.FUNCTION_LN);
+				case SQRT:
+				default:
+					return FlatToken.newFunction(FlatToken.FUNCTION_SQRT);
+			}
+		}
+
+		throw new ParseException("Unexpected token " + token);
+	}
+
+	private static final class Lexer {
+		private static final char EOF_CHAR = (char) -1;
+
+		private final Map<String, PredefinedFunction> predefinedFunctions = new HashMap<String, PredefinedFunction>();
+		private final Map<String, Identifier> previouslyFoundIdentifiers = new HashMap<String, Identifier>();
+		private final String input;
+		private final NumberPrecision numberPrecision;
+
+		private int currentPosition;
+		private final int maxPosition;
+		private char currentCharacter;
+		private Token currentToken;
+
+		Lexer(String input, NumberPrecision numberPrecision) {
+			this.input = input.trim().toLowerCase();
+			this.numberPrecision = numberPrecision;
+
+			for (PredefinedFunction predefinedFunction : PredefinedFunction.values()) {
+				predefinedFunctions.put(predefinedFunction.name().toLowerCase(), predefinedFunction);
+			}
+
+			maxPosition = this.input.length() - 1;
+			peek();
+		}
+
+		private void peek() {
+			currentCharacter = currentPosition <= maxPosition ? input.charAt(currentPosition) : EOF_CHAR;
+		}
+
+		private void consume() {
+			currentPosition++;
+			peek();
+		}
+
+		Token nextToken() throws ParseException {
+			while (Character.isWhitespace(currentCharacter)) {
+				consume();
+			}
+
+			if (currentCharacter == EOF_CHAR) {
+				currentToken = Token.EOF;
+			} else if (Character.isDigit(currentCharacter)) {
+				currentToken = tokenizeNumberLiteral();
+			} else if (Character.isLetter(currentCharacter)) {
+				currentToken = tokenizeIdentifierOrPredefinedFunction();
+			} else {
+				currentToken = tokenizeSymbol();
+			}
+
+			return currentToken;
+		}
+
+		private Token tokenizeNumberLiteral() throws ParseException {
+			final int startPosition = currentPosition;
+			boolean isInScientificNotation = false;
+
+			do {
+				consume();
+
+				if (currentCharacter == 'e') {
+					isInScientificNotation = true;
+					consume();
+
+					if (currentCharacter == '+' || currentCharacter == '-') {
+						consume();
+					} else {
+						throw new ParseException("Invalid scientific number: expected '+' or '-'");
+					}
+
+					while (Character.isDigit(currentCharacter)) {
+						consume();
+					}
+				}
+			} while (Character.isDigit(currentCharacter) || currentCharacter == '.');
+
+			final String text = input.substring(startPosition, currentPosition);
+
+			switch (numberPrecision) {
+				case BIG_DECIMAL:
+					return new BigDecimalNumberLiteral(new BigDecimal(text));
+				case DOUBLE:
+					return new DoubleNumberLiteral(isInScientificNotation ? new BigDecimal(text).doubleValue()
+							: Double.parseDouble(text));
+				case FLOAT:
+				default:
+					return new FloatNumberLiteral(isInScientificNotation ? new BigDecimal(text).floatValue() : Float
+							.parseFloat(text));
+			}
+		}
+
+		private Token tokenizeIdentifierOrPredefinedFunction() {
+			final int startPosition = currentPosition;
+
+			do {
+				consume();
+			} while (Character.isLetter(currentCharacter));
+
+			final String value = input.substring(startPosition, currentPosition);
+			final PredefinedFunction predefinedFunction = predefinedFunctions.get(value);
+
+			if (predefinedFunction != null) {
+				return predefinedFunction;
+			}
+
+			Identifier identifier = previouslyFoundIdentifiers.get(value);
+
+			if (identifier == null) {
+				identifier = new Identifier(value);
+				previouslyFoundIdentifiers.put(value, identifier);
+			}
+
+			return identifier;
+		}
+
+		private Token tokenizeSymbol() throws ParseException {
+			final char symbol = currentCharacter;
+			consume();
+
+			switch (symbol) {
+				case '+':
+					return Operator.ADD;
+				case '-':
+					return currentToken instanceof NumberLiteral || currentToken instanceof Identifier
+							|| currentToken instanceof PredefinedFunction ? Operator.SUBTRACT : Operator.NEGATION;
+				case '*':
+					return Operator.MULTIPLY;
+				case '/':
+					return Operator.DIVIDE;
+				case '^':
+					return Operator.POWER;
+				case '(':
+					return Parenthesis.OPEN;
+				case ')':
+					return Parenthesis.CLOSE;
+				case ',':
+					return Separator.COMMA;
+				default:
+					throw new ParseException("Could not recognize symbol " + symbol);
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestAdaptivePrecisionEvaluator extends TestCase {
+	private static final MathContext DISPLAY_CONTEXT = new MathContext(12);
+
+	private static final String[] LITERALS = { "0", "1", "2", "3", "7", "10", "12", "100", "0.1", "0.2", "0.5", "2.5",
+			"12.75", "0.333", "1000000", "123456789" };
+	private static final String[] FUNCTIONS = { "sin", "cos", "tan", "ln", "sqrt", "abs" };
+
+	private final AdaptivePrecisionEvaluator evaluator = new AdaptivePrecisionEvaluator(DISPLAY_CONTEXT);
+
+	public void testMatchesBigDecimal() throws ParseException {
+		final Random random = new Random(42);
+
+		for (int i = 0; i < 3000; i++) {
+			assertMatchesBigDecimal(randomExpression(random, 3));
+		}
+
+		// Most keypad expressions shouldn't need BigDecimal.
+		assertTrue(evaluator.getFallbackCount() * 2 < evaluator.getEvaluationCount());
+	}
+
+	public void testFallbackCounted() throws ParseException {
+		assertEquals(new BigDecimal("0.3"), evaluator.evaluateForDisplay("0.1 + 0.2"));
+		assertEquals(new BigDecimal("413"), evaluator.evaluateForDisplay("12*34+5"));
+		assertEquals(new BigDecimal("0.333333333333"), evaluator.evaluateForDisplay("1 / 3"));
+		assertEquals(0, evaluator.getFallbackCount());
+
+		// A tie at the display precision can't be settled from doubles.
+		assertMatchesBigDecimal("1 + 0.000000000005");
+		assertEquals(1, evaluator.getFallbackCount());
+		assertEquals(4, evaluator.getEvaluationCount());
+	}
+
+	public void testFullPrecision() throws ParseException {
+		// Exact integer arithmetic is taken from doubles, and never rounded.
+		assertEquals("123456789012345", evaluator.evaluate("123456789012345").toPlainString());
+		assertEquals("899999999999991", evaluator.evaluate("99999999999999*9").toPlainString());
+		assertEquals(0, evaluator.getFallbackCount());
+
+		assertEquals("1152921504606846976", evaluator.evaluate("2^60").toPlainString());
+		assertEquals(new BigDecimalPostfixEvaluator("1 / 3").evaluate(), evaluator.evaluate("1 / 3"));
+
+		final Random random = new Random(7);
+
+		for (int i = 0; i < 1000; i++) {
+			final String expression = randomExpression(random, 3);
+			BigDecimal expected;
+
+			try {
+				expected = new BigDecimalPostfixEvaluator(expression).evaluate();
+			} catch (RuntimeException e) {
+				continue;
+			}
+
+			assertEquals(expression, 0, expected.compareTo(evaluator.evaluate(expression)));
+		}
+	}
+
+	public void testFailuresMatchBigDecimal() throws ParseException {
+		assertMatchesBigDecimal("1 / 0");
+		assertMatchesBigDecimal("sqrt(-1)");
+		assertMatchesBigDecimal("ln(0)");
+	}
+
+	private void assertMatchesBigDecimal(String expression) throws ParseException {
+		BigDecimal expected = null;
+		RuntimeException expectedException = null;
+
+		try {
+			expected = new BigDecimalPostfixEvaluator(expression).evaluate().round(DISPLAY_CONTEXT);
+			expected = expected.signum() == 0 ? BigDecimal.ZERO : expected.stripTrailingZeros();
+		} catch (RuntimeException e) {
+			expectedException = e;
+		}
+
+		try {
+			assertEquals(expression, expected, evaluator.evaluateForDisplay(expression));
+			assertNull(expression, expectedException);
+		} catch (RuntimeException e) {
+			assertNotNull(expression, expectedException);
+			assertEquals(expression, expectedException.getClass(), e.getClass());
+		}
+	}
+
+	private static String randomExpression(Random random, int depth) {
+		final int choice = depth == 0 ? 0 : random.nextInt(8);
+
+		if (choice <= 1) {
+			return LITERALS[random.nextInt(LITERALS.length)];
+		} else if (choice == 2) {
+			return FUNCTIONS[random.nextInt(FUNCTIONS.length)] + "(" + randomExpression(random, depth - 1) + ")";
+		} else if (choice == 3) {
+			return "(" + randomExpression(random, depth - 1) + ")^" + (random.nextInt(4) + 1);
+		}
+
+		final String left = randomExpression(random, depth - 1);
+		final String right = randomExpression(random, depth - 1);
+		// A minus right after a closing parenthesis is read as a negation.
+		final String operators = left.endsWith(")") ? "+*/" : "+-*/";
+		return "(" + left + " " + operators.charAt(random.nextInt(operators.length())) + " " + right + ")";
+	}
+}
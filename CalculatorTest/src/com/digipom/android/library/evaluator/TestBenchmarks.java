@@ -0,0 +1,516 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+/**
+ * Rough timings for the evaluation strategies, written to the log. Each
+ * benchmark also checks that the strategies agree, so these double as tests.
+ */
+public class TestBenchmarks extends TestCase {
+	private static final String TAG = "TestBenchmarks";
+
+	private static final int RESOLUTION = 256;
+	private static final int ITERATIONS = 5;
+
+	private static final String[] FORMULAS = { "x + y", "sin(y) + cos(x)", "pow(abs(cos(x) + cos(y)), 0.5)",
+			"abs(cos(x) + cos(y)) ^ 0.5", "x^2 * y^2" };
+
+	public void testBatchVersusPerRow() throws ParseException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+
+		for (String formula : FORMULAS) {
+			final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(compiler.compile(formula,
+					NumberPrecision.DOUBLE));
+			final int xSlot = evaluator.getSlot("x");
+			final int ySlot = evaluator.getSlot("y");
+
+			final int rowCount = RESOLUTION * RESOLUTION;
+			final double[][] columns = new double[2][rowCount];
+			final double[] batchOut = new double[rowCount];
+			final double[] perRowOut = new double[rowCount];
+
+			for (int y = 0; y < RESOLUTION; y++) {
+				for (int x = 0; x < RESOLUTION; x++) {
+					columns[xSlot][y * RESOLUTION + x] = x;
+					columns[ySlot][y * RESOLUTION + x] = y;
+				}
+			}
+
+			long perRowNanos = Long.MAX_VALUE;
+			long batchNanos = Long.MAX_VALUE;
+
+			for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+				// The same nested loop as the testCombos() helpers.
+				long start = System.nanoTime();
+				final double[] slots = new double[2];
+
+				for (int y = 0; y < RESOLUTION; y++) {
+					slots[ySlot] = y;
+
+					for (int x = 0; x < RESOLUTION; x++) {
+						slots[xSlot] = x;
+						perRowOut[y * RESOLUTION + x] = evaluator.evaluate(slots);
+					}
+				}
+
+				perRowNanos = Math.min(perRowNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				evaluator.evaluate(columns, rowCount, batchOut);
+				batchNanos = Math.min(batchNanos, System.nanoTime() - start);
+			}
+
+			for (int row = 0; row < rowCount; row++) {
+				assertEquals(perRowOut[row], batchOut[row], 0);
+			}
+
+			report(formula, "per-row", perRowNanos, "batch", batchNanos);
+		}
+	}
+
+	public void testSweepVersusBatch() throws ParseException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		final double[] axis = new double[RESOLUTION];
+
+		for (int i = 0; i < RESOLUTION; i++) {
+			axis[i] = i;
+		}
+
+		for (String formula : FORMULAS) {
+			final CompiledExpression compiledExpression = compiler.compile(formula, NumberPrecision.DOUBLE);
+			final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(compiledExpression);
+			final DoubleSweepEvaluator sweepEvaluator = new DoubleSweepEvaluator(compiledExpression, "y", "x");
+			final int xSlot = evaluator.getSlot("x");
+			final int ySlot = evaluator.getSlot("y");
+
+			final int rowCount = RESOLUTION * RESOLUTION;
+			final double[] batchOut = new double[rowCount];
+			final double[] sweepOut = new double[rowCount];
+			final double[][] axes = { axis, axis };
+
+			long batchNanos = Long.MAX_VALUE;
+			long sweepNanos = Long.MAX_VALUE;
+
+			for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+				// Filling the columns is part of what a sweep saves.
+				long start = System.nanoTime();
+				final double[][] columns = new double[2][rowCount];
+
+				for (int y = 0; y < RESOLUTION; y++) {
+					for (int x = 0; x < RESOLUTION; x++) {
+						columns[xSlot][y * RESOLUTION + x] = x;
+						columns[ySlot][y * RESOLUTION + x] = y;
+					}
+				}
+
+				evaluator.evaluate(columns, rowCount, batchOut);
+				batchNanos = Math.min(batchNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				sweepEvaluator.evaluate(new double[2], axes, sweepOut);
+				sweepNanos = Math.min(sweepNanos, System.nanoTime() - start);
+			}
+
+			for (int row = 0; row < rowCount; row++) {
+				assertEquals(batchOut[row], sweepOut[row], 0);
+			}
+
+			report(formula + " (" + sweepEvaluator.getHoistedCount() + " hoisted)", "batch", batchNanos, "sweep",
+					sweepNanos);
+		}
+	}
+
+	public void testBytecodeVersusInterpreter() throws ParseException {
+		Log.i(TAG, "Bytecode generation available: " + BytecodeCompiler.isAvailable());
+		compareWithInterpreter(Backend.BYTECODE, "bytecode");
+	}
+
+	public void testClosureTreeVersusInterpreter() throws ParseException {
+		// Run on a device this times ART, where closure trees are the fast path.
+		Log.i(TAG, "VM: " + System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version"));
+		compareWithInterpreter(Backend.CLOSURE_TREE, "closure tree");
+	}
+
+	public void testAdaptiveVersusBigDecimal() throws ParseException {
+		final String[] keypadFormulas = { "12*34+5", "1/3", "0.1+0.2", "sqrt(2)*sqrt(2)", "ln(10)/ln(2)",
+				"2^10 + 3.75", "(1+0.05)^12 * 1000", "sin(0.5) + cos(0.5)" };
+		final AdaptivePrecisionEvaluator adaptiveEvaluator = new AdaptivePrecisionEvaluator(new MathContext(12));
+		final int repetitions = 200;
+
+		for (String formula : keypadFormulas) {
+			long bigDecimalNanos = Long.MAX_VALUE;
+			long adaptiveNanos = Long.MAX_VALUE;
+
+			for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+				// As the equals command does, including the compile.
+				long start = System.nanoTime();
+
+				for (int i = 0; i < repetitions; i++) {
+					new BigDecimalPostfixEvaluator(formula).evaluate();
+				}
+
+				bigDecimalNanos = Math.min(bigDecimalNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+
+				for (int i = 0; i < repetitions; i++) {
+					adaptiveEvaluator.evaluate(formula);
+				}
+
+				adaptiveNanos = Math.min(adaptiveNanos, System.nanoTime() - start);
+			}
+
+			report(formula, "BigDecimal", bigDecimalNanos, "adaptive", adaptiveNanos);
+		}
+
+		Log.i(TAG, "BigDecimal fallbacks: " + adaptiveEvaluator.getFallbackCount() + " of "
+				+ adaptiveEvaluator.getEvaluationCount());
+	}
+
+	public void testDecimalFunctionPrecision() throws ParseException {
+		final String[] decimalFormulas = { "sin(1.234)", "cos(123.4)", "ln(12345.6789)", "sqrt(2)", "1.5^2.7" };
+		final int repetitions = 100;
+
+		for (String formula : decimalFormulas) {
+			final BigDecimalPostfixEvaluator defaultEvaluator = new BigDecimalPostfixEvaluator(formula);
+			final BigDecimalPostfixEvaluator hundredDigitEvaluator = new BigDecimalPostfixEvaluator(formula,
+					new MathContext(100));
+			long defaultNanos = Long.MAX_VALUE;
+			long hundredDigitNanos = Long.MAX_VALUE;
+
+			for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+				long start = System.nanoTime();
+
+				for (int i = 0; i < repetitions; i++) {
+					defaultEvaluator.evaluate();
+				}
+
+				defaultNanos = Math.min(defaultNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+
+				for (int i = 0; i < repetitions; i++) {
+					hundredDigitEvaluator.evaluate();
+				}
+
+				hundredDigitNanos = Math.min(hundredDigitNanos, System.nanoTime() - start);
+			}
+
+			// The shorter result is the longer one rounded.
+			assertEquals(formula, defaultEvaluator.evaluate(), hundredDigitEvaluator.evaluate().round(
+					BigDecimalPostfixEvaluator.DEFAULT_MATH_CONTEXT));
+			report(formula, "34 digits", defaultNanos, "100 digits", hundredDigitNanos);
+		}
+	}
+
+	public void testCompileThroughput() throws ParseException {
+		final String[] formulas = { "x + y", "sin(y) + cos(x)", "pow(abs(cos(x) + cos(y)), 0.5)",
+				"abs(cos(x) + cos(y)) ^ 0.5", "x^2 * y^2", "12*34+5", "1/3", "0.1+0.2", "sqrt(2)*sqrt(2)",
+				"ln(10)/ln(2)", "2^10 + 3.75", "(1+0.05)^12 * 1000", "sin(0.5) + cos(0.5)" };
+		final ExpressionCompiler unoptimizedCompiler = new ExpressionCompiler();
+		unoptimizedCompiler.setOptimizationEnabled(false);
+		final ExpressionCompiler optimizingCompiler = new ExpressionCompiler();
+		final int repetitions = 500;
+		final long compileCount = (long) repetitions * formulas.length;
+
+		for (NumberPrecision numberPrecision : NumberPrecision.values()) {
+			// Both pipelines produce the same program, except that pow(a, b)
+			// now compiles to the ^ operator.
+			for (String formula : formulas) {
+				final FlatToken[] expected = BaselinePipeline.compile(formula, numberPrecision);
+				final FlatToken[] actual = unoptimizedCompiler.compile(formula, numberPrecision).toPostfix();
+				assertEquals(formula, expected.length, actual.length);
+
+				for (int i = 0; i < expected.length; i++) {
+					if (expected[i].type == FlatToken.TYPE_PREDEF_FUNCTION
+							&& expected[i].typeEnum == FlatToken.FUNCTION_POW) {
+						expected[i] = FlatToken.newOperator(FlatToken.OPERATOR_POWER);
+					}
+
+					assertTrue(formula, expected[i].isEquivalentTo(actual[i]));
+				}
+			}
+
+			long baselineNanos = Long.MAX_VALUE;
+			long unoptimizedNanos = Long.MAX_VALUE;
+			long optimizingNanos = Long.MAX_VALUE;
+
+			for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+				long start = System.nanoTime();
+
+				for (int i = 0; i < repetitions; i++) {
+					for (String formula : formulas) {
+						BaselinePipeline.compile(formula, numberPrecision);
+					}
+				}
+
+				baselineNanos = Math.min(baselineNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+
+				for (int i = 0; i < repetitions; i++) {
+					for (String formula : formulas) {
+						unoptimizedCompiler.compile(formula, numberPrecision);
+					}
+				}
+
+				unoptimizedNanos = Math.min(unoptimizedNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+
+				for (int i = 0; i < repetitions; i++) {
+					for (String formula : formulas) {
+						optimizingCompiler.compile(formula, numberPrecision);
+					}
+				}
+
+				optimizingNanos = Math.min(optimizingNanos, System.nanoTime() - start);
+			}
+
+			report(numberPrecision.toString(), "baseline pipeline", baselineNanos, "compiler", unoptimizedNanos);
+			Log.i(TAG, numberPrecision + " compiles per second: " + compileCount * 1000000000L
+					/ Math.max(1, baselineNanos) + " baseline, " + compileCount * 1000000000L
+					/ Math.max(1, unoptimizedNanos) + " unoptimized, " + compileCount * 1000000000L
+					/ Math.max(1, optimizingNanos) + " optimized");
+		}
+	}
+
+	public void testLoadVersusCompile() throws ParseException, IOException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		final String[] library = new String[10000];
+
+		for (int i = 0; i < library.length; i++) {
+			library[i] = FORMULAS[i % FORMULAS.length] + " * " + i;
+		}
+
+		for (NumberPrecision numberPrecision : NumberPrecision.values()) {
+			final CompiledExpression[] expressions = new CompiledExpression[library.length];
+			long compileNanos = Long.MAX_VALUE;
+			long loadNanos = Long.MAX_VALUE;
+
+			for (int i = 0; i < library.length; i++) {
+				expressions[i] = compiler.compile(library[i], numberPrecision);
+			}
+
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			CompiledExpressionSerializer.write(expressions, output);
+			final ByteBuffer buffer = ByteBuffer.wrap(output.toByteArray());
+
+			for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+				long start = System.nanoTime();
+
+				for (int i = 0; i < library.length; i++) {
+					compiler.compile(library[i], numberPrecision);
+				}
+
+				compileNanos = Math.min(compileNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				buffer.rewind();
+				final CompiledExpression[] loadedExpressions = CompiledExpressionSerializer.read(buffer);
+				loadNanos = Math.min(loadNanos, System.nanoTime() - start);
+
+				assertEquals(library.length, loadedExpressions.length);
+			}
+
+			Log.i(TAG, numberPrecision + " library of " + library.length + " formulas (" + buffer.capacity()
+					+ " bytes): compiled in " + compileNanos / 1000 + "us, loaded in " + loadNanos / 1000 + "us");
+		}
+	}
+
+	/**
+	 * Replays keypad entries that retype a few shapes with different numbers,
+	 * as the calculator compiles them, with and without templates.
+	 */
+	public void testTemplatesOnKeypadTrace() throws ParseException {
+		final String[] trace = new String[2000];
+
+		for (int i = 0; i < trace.length; i++) {
+			switch (i % 4) {
+				case 0:
+					trace[i] = (1000 + i) + "*1.07^" + (i % 30);
+					break;
+				case 1:
+					trace[i] = "(1+0.0" + (i % 9 + 1) + ")^12*" + i;
+					break;
+				case 2:
+					trace[i] = i + "/3+" + (i % 7) + ".25";
+					break;
+				default:
+					trace[i] = "sqrt(" + i + ")*sqrt(2)";
+					break;
+			}
+		}
+
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		compiler.setOptimizationEnabled(false);
+		long textCacheNanos = Long.MAX_VALUE;
+		long templateCacheNanos = Long.MAX_VALUE;
+		ExpressionCache textCache = null;
+		ExpressionTemplateCache templateCache = null;
+
+		for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+			textCache = new ExpressionCache(compiler, 64);
+			long start = System.nanoTime();
+
+			for (String input : trace) {
+				textCache.compile(input, NumberPrecision.BIG_DECIMAL);
+			}
+
+			textCacheNanos = Math.min(textCacheNanos, System.nanoTime() - start);
+
+			templateCache = new ExpressionTemplateCache(64);
+			start = System.nanoTime();
+
+			for (String input : trace) {
+				templateCache.compile(input, NumberPrecision.BIG_DECIMAL);
+			}
+
+			templateCacheNanos = Math.min(templateCacheNanos, System.nanoTime() - start);
+		}
+
+		assertEquals(trace.length - 4, templateCache.getHitCount());
+		Log.i(TAG, "Keypad trace of " + trace.length + " entries: text cache " + textCacheNanos / 1000 + "us, "
+				+ (textCache.getHitCount() + textCache.getCanonicalHitCount()) + " hits; template cache "
+				+ templateCacheNanos / 1000 + "us, " + templateCache.getHitCount() + " hits");
+	}
+
+	public void testDualNumbersVersusFiniteDifferences() throws ParseException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		final int points = 20000;
+		final double step = 1e-6;
+
+		for (String formula : FORMULAS) {
+			final CompiledExpression compiledExpression = compiler.compile(formula, NumberPrecision.DOUBLE);
+			final int x = compiledExpression.getSlot("x");
+			final int y = compiledExpression.getSlot("y");
+			final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(compiledExpression);
+			final DualNumberEvaluator dualNumberEvaluator = new DualNumberEvaluator(compiledExpression, x, y);
+			final double[] slots = new double[2];
+			final double[] derivatives = new double[2];
+			long differenceNanos = Long.MAX_VALUE;
+			long dualNumberNanos = Long.MAX_VALUE;
+			double differenceSum = 0;
+			double dualNumberSum = 0;
+
+			for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+				differenceSum = 0;
+				dualNumberSum = 0;
+				long start = System.nanoTime();
+
+				// Central differences: two more evaluations per variable.
+				for (int i = 0; i < points; i++) {
+					slots[x] = 0.1 + i * 1e-4;
+					slots[y] = 0.7 - i * 1e-5;
+					differenceSum += evaluator.evaluate(slots);
+
+					for (int slot = 0; slot < 2; slot++) {
+						final double saved = slots[slot];
+						slots[slot] = saved + step;
+						final double above = evaluator.evaluate(slots);
+						slots[slot] = saved - step;
+						final double below = evaluator.evaluate(slots);
+						slots[slot] = saved;
+						differenceSum += (above - below) / (2 * step);
+					}
+				}
+
+				differenceNanos = Math.min(differenceNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+
+				for (int i = 0; i < points; i++) {
+					slots[x] = 0.1 + i * 1e-4;
+					slots[y] = 0.7 - i * 1e-5;
+					dualNumberSum += dualNumberEvaluator.evaluate(slots, derivatives) + derivatives[0] + derivatives[1];
+				}
+
+				dualNumberNanos = Math.min(dualNumberNanos, System.nanoTime() - start);
+			}
+
+			assertEquals(formula, dualNumberSum, differenceSum, 1e-3 * Math.abs(dualNumberSum));
+			report(formula, "finite differences", differenceNanos, "dual numbers", dualNumberNanos);
+		}
+	}
+
+	/**
+	 * Times the per-row interpreter against functions from the given backend,
+	 * both called through {@link DoubleExpressionFunction}.
+	 */
+	private static void compareWithInterpreter(Backend backend, String backendName) throws ParseException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		final FunctionCompiler interpreterCompiler = new FunctionCompiler(Backend.INTERPRETER);
+		final FunctionCompiler functionCompiler = new FunctionCompiler(backend);
+
+		for (String formula : FORMULAS) {
+			final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(compiler.compile(formula,
+					NumberPrecision.DOUBLE));
+			final DoubleExpressionFunction interpreter = interpreterCompiler.compile(evaluator);
+			final DoubleExpressionFunction function = functionCompiler.compile(evaluator);
+			final int xSlot = evaluator.getSlot("x");
+			final int ySlot = evaluator.getSlot("y");
+			final double[] sums = new double[2];
+
+			long interpreterNanos = Long.MAX_VALUE;
+			long functionNanos = Long.MAX_VALUE;
+
+			for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+				long start = System.nanoTime();
+				sums[0] = sumGrid(interpreter, xSlot, ySlot);
+				interpreterNanos = Math.min(interpreterNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				sums[1] = sumGrid(function, xSlot, ySlot);
+				functionNanos = Math.min(functionNanos, System.nanoTime() - start);
+			}
+
+			assertEquals(sums[0], sums[1], 0);
+			report(formula, "interpreter", interpreterNanos, backendName, functionNanos);
+		}
+	}
+
+	private static double sumGrid(DoubleExpressionFunction function, int xSlot, int ySlot) {
+		final double[] slots = new double[2];
+		double sum = 0;
+
+		for (int y = 0; y < RESOLUTION; y++) {
+			slots[ySlot] = y;
+
+			for (int x = 0; x < RESOLUTION; x++) {
+				slots[xSlot] = x;
+				sum += function.apply(slots);
+			}
+		}
+
+		return sum;
+	}
+
+	private static void report(String formula, String baselineName, long baselineNanos, String candidateName,
+			long candidateNanos) {
+		Log.i(TAG, formula + ": " + baselineName + " " + baselineNanos / 1000 + "us, " + candidateName + " "
+				+ candidateNanos / 1000 + "us (" + (baselineNanos * 100 / Math.max(1, candidateNanos)) + "%)");
+	}
+}
@@ -15,10 +15,11 @@
 package com.digipom.android.library.evaluator;
 
 import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
 
 import junit.framework.TestCase;
 
-import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
 import com.digipom.android.library.evaluator.exception.ParseException;
 
 public class TestBigDecimalEvaluator extends TestCase {
@@ -156,22 +157,148 @@ public class TestBigDecimalEvaluator extends TestCase {
 		});
 	}
 
+	public void testIntegerFastPathMatchesBigDecimal() throws ParseException {
+		final String[] formulas = { "12*34+5", "x * y - 7", "x / y", "x / 4 + y", "-x * abs(y)", "x^2 + y^3",
+				"(x + y) * (x + y) / 2", "x * 3000000000 * 3000000000 + y", "x - 9223372036854775807 - y",
+				"x / 3 * 3", "x * 1.5", "sqrt(x) + y", "x^y", "1 / x", "x^(-1)" };
+		final BigDecimal[] values = { BigDecimal.ZERO, BigDecimal.ONE, new BigDecimal(-1), new BigDecimal(12),
+				new BigDecimal("1.0"), new BigDecimal("2.5"), new BigDecimal(Long.MAX_VALUE),
+				new BigDecimal(Long.MIN_VALUE), new BigDecimal("1E+3"), new BigDecimal("123456789012345678901") };
+		final ExpressionCompiler unoptimizedCompiler = new ExpressionCompiler();
+		unoptimizedCompiler.setOptimizationEnabled(false);
+
+		for (ExpressionCompiler compiler : new ExpressionCompiler[] { new ExpressionCompiler(), unoptimizedCompiler }) {
+			for (String formula : formulas) {
+				final CompiledExpression compiledExpression = compiler.compile(formula, NumberPrecision.BIG_DECIMAL);
+				final BigDecimalPostfixEvaluator expected = new BigDecimalPostfixEvaluator(compiledExpression);
+				final BigDecimalPostfixEvaluator actual = new BigDecimalPostfixEvaluator(compiledExpression);
+				expected.setIntegerFastPathEnabled(false);
+				final BigDecimal[] slots = new BigDecimal[compiledExpression.getVariableCount()];
+
+				for (BigDecimal x : values) {
+					for (BigDecimal y : values) {
+						bind(slots, expected.getSlot("x"), x);
+						bind(slots, expected.getSlot("y"), y);
+						assertSameResult(formula + " at " + x + ", " + y, expected, actual, slots);
+					}
+				}
+			}
+		}
+	}
+
+	public void testDivisionRoundsToMathContext() throws ParseException {
+		assertEquals(new BigDecimal("0.3333333333333333333333333333333333"), new BigDecimalPostfixEvaluator("1 / 3")
+				.evaluate());
+		assertEquals(new BigDecimal("0.66666666666666666667"), new BigDecimalPostfixEvaluator("2 / 3",
+				new MathContext(20)).evaluate());
+		assertEquals(new BigDecimal("0.66666666666666666666"), new BigDecimalPostfixEvaluator("2 / 3",
+				new MathContext(20, RoundingMode.DOWN)).evaluate());
+		// Exact quotients keep their natural scale.
+		assertEquals(new BigDecimal("2.5"), new BigDecimalPostfixEvaluator("10 / 4").evaluate());
+
+		try {
+			new BigDecimalPostfixEvaluator("1 / (2 - 2)").evaluate();
+			fail();
+		} catch (ArithmeticException expected) {
+		}
+	}
+
+	public void testPowersRoundToMathContext() throws ParseException {
+		final MathContext mathContext = new MathContext(20);
+		final BigDecimalPostfixEvaluator evaluator = new BigDecimalPostfixEvaluator("x^40 + pow(x, 40) * 0",
+				mathContext);
+		final BigDecimal three = BigDecimal.valueOf(3);
+		assertEquals(three.pow(40, mathContext), evaluator.evaluate(new BigDecimal[] { three }));
+		assertEquals(new BigDecimal("1024"), new BigDecimalPostfixEvaluator("2^10").evaluate());
+	}
+
+	public void testResultsStayWithinPrecision() throws ParseException {
+		final StringBuilder formula = new StringBuilder("x");
+
+		for (int i = 0; i < 200; i++) {
+			formula.append(i % 2 == 0 ? " * x" : " / 7 + x");
+		}
+
+		final BigDecimal result = new BigDecimalPostfixEvaluator(formula.toString()).evaluate(new BigDecimal[] {
+				new BigDecimal("1.000000000000000000000000000000000000001") });
+		assertTrue(result.toString(), result.precision() <= BigDecimalPostfixEvaluator.DEFAULT_MATH_CONTEXT
+				.getPrecision());
+	}
+
+	public void testMathContextMustHoldADouble() throws ParseException {
+		try {
+			new BigDecimalPostfixEvaluator("1 / 3", new MathContext(BigDecimalPostfixEvaluator.MIN_PRECISION - 1));
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		try {
+			new BigDecimalPostfixEvaluator("1 / 3", MathContext.UNLIMITED);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	public void testShortMathContextMatchesWithoutIntegerFastPath() throws ParseException {
+		// Longs have more digits than this math context, so they'd round.
+		final MathContext mathContext = new MathContext(BigDecimalPostfixEvaluator.MIN_PRECISION);
+		final BigDecimal[] slots = { new BigDecimal(123456789) };
+
+		for (String formula : new String[] { "x * x", "x * 3000000000 + 1", "x^2 - 1" }) {
+			final CompiledExpression compiledExpression = new ExpressionCompiler().compile(formula,
+					NumberPrecision.BIG_DECIMAL);
+			final BigDecimalPostfixEvaluator expected = new BigDecimalPostfixEvaluator(compiledExpression, mathContext);
+			expected.setIntegerFastPathEnabled(false);
+			assertSameResult(formula, expected, new BigDecimalPostfixEvaluator(compiledExpression, mathContext),
+					slots);
+			assertTrue(formula, expected.evaluate(slots).precision() <= mathContext.getPrecision());
+		}
+	}
+
+	private static void assertSameResult(String message, BigDecimalPostfixEvaluator expected,
+			BigDecimalPostfixEvaluator actual, BigDecimal[] slots) throws ParseException {
+		BigDecimal expectedResult = null;
+		RuntimeException expectedException = null;
+
+		try {
+			expectedResult = expected.evaluate(slots);
+		} catch (RuntimeException e) {
+			expectedException = e;
+		}
+
+		try {
+			// Equal value and scale.
+			assertEquals(message, expectedResult, actual.evaluate(slots));
+			assertNull(message, expectedException);
+		} catch (RuntimeException e) {
+			assertNotNull(message, expectedException);
+			assertEquals(message, expectedException.getClass(), e.getClass());
+		}
+	}
+
 	private void testCombos(int range, BigDecimalPostfixEvaluator evaluator,
 			ZCommand zCommand) throws ParseException {
-		FlatToken yIdentifier = evaluator.getIdentifier("y");
-		FlatToken xIdentifier = evaluator.getIdentifier("x");
+		final BigDecimal[] slots = new BigDecimal[evaluator.getCompiledExpression().getVariableCount()];
+		final int ySlot = evaluator.getSlot("y");
+		final int xSlot = evaluator.getSlot("x");
 
 		for (int y = 0; y < range; y++) {
-			yIdentifier.bigDecimalValue = BigDecimal.valueOf(y);
+			bind(slots, ySlot, BigDecimal.valueOf(y));
 
 			for (int x = 0; x < range; x++) {
-				xIdentifier.bigDecimalValue = BigDecimal.valueOf(x);
+				bind(slots, xSlot, BigDecimal.valueOf(x));
 
 				assertEquals(
 						zCommand.execute(new BigDecimal(x), new BigDecimal(y))
-								.doubleValue(), evaluator.evaluate()
+								.doubleValue(), evaluator.evaluate(slots)
 								.doubleValue(), 0.001);
 			}
 		}
 	}
+
+	private static void bind(BigDecimal[] slots, int slot, BigDecimal value) {
+		if (slot >= 0) {
+			slots[slot] = value;
+		}
+	}
 }
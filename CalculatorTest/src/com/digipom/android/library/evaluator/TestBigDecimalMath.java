@@ -0,0 +1,204 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestBigDecimalMath extends TestCase {
+	private static final MathContext[] CONTEXTS = { new MathContext(20), new MathContext(50), new MathContext(100) };
+
+	// To 100 digits.
+	private static final String PI = "3.1415926535897932384626433832795028841971693993751"
+			+ "0582097494459230781640628620899862803482534211706798";
+	private static final String E = "2.7182818284590452353602874713526624977572470936999"
+			+ "5957496696762772407663035354759457138217852516642743";
+	private static final String LN_2 = "0.69314718055994530941723212145817656807550013436025"
+			+ "5254120680009493393621969694715605863326996418687542";
+	private static final String SQRT_2 = "1.4142135623730950488016887242096980785696718753769"
+			+ "4807317667973799073247846210703885038753432764157274";
+	private static final String SIN_1 = "0.8414709848078965066525023216302989996225630607983"
+			+ "710656727517099919104043912396689486397435430526959";
+	private static final String TAN_1_5 = "14.10141994717171938764608365198775644565954357723"
+			+ "586186612326758608969627041415526864870292630944229";
+	private static final String LN_10 = "2.302585092994045684017991454684364207601101488628"
+			+ "772976033327900967572609677352480235997205089598298";
+	private static final String LN_123456_789 = "11.72364648718588098113995898391011158691037737513"
+			+ "408304708510624218949963822429433694812480492150780";
+	private static final String EXP_100 = "26881171418161354484126255515800135873611118.77374"
+			+ "192241519160861528028703490956491415887109721984571";
+	private static final String POW_1_5_2_5 = "2.755675960631075360471944584044127815961690915738"
+			+ "753894486779138157330424639479404857341862242720264";
+	private static final String SIN_355 = "-0.00003014435335948844921433028000865009959025580706"
+			+ "632464910578984824067353836547271283531023670003403843";
+	private static final String COS_1E20 = "0.7639704044417283004001468027378811228344734417470"
+			+ "044806221890669465897391978234615763701769050965599";
+	private static final String LN_1_PLUS_1E_40 = "9.99999999999999999999999999999999999999950000000000"
+			+ "0000000000000000000000000000033333333333333333333E-41";
+	private static final String LN_1E_50 = "-115.1292546497022842008995727342182103800550744314"
+			+ "386488016663950483786304838676240117998602544799149";
+
+	public void testConstants() {
+		for (MathContext mathContext : CONTEXTS) {
+			assertWithinUlp(PI, BigDecimalMath.pi(mathContext), mathContext);
+			assertWithinUlp(E, BigDecimalMath.e(mathContext), mathContext);
+			assertWithinUlp(LN_2, BigDecimalMath.ln(BigDecimal.valueOf(2), mathContext), mathContext);
+		}
+
+		// Lower precisions are rounded from the cached value.
+		assertEquals(new BigDecimal("3.1416"), BigDecimalMath.pi(new MathContext(5)));
+	}
+
+	public void testFunctions() {
+		for (MathContext mathContext : CONTEXTS) {
+			assertWithinUlp(SQRT_2, BigDecimalMath.sqrt(BigDecimal.valueOf(2), mathContext), mathContext);
+			assertWithinUlp(SQRT_2, BigDecimalMath.pow(BigDecimal.valueOf(2), new BigDecimal("0.5"), mathContext),
+					mathContext);
+			assertWithinUlp(SIN_1, BigDecimalMath.sin(BigDecimal.ONE, mathContext), mathContext);
+			assertWithinUlp(TAN_1_5, BigDecimalMath.tan(new BigDecimal("1.5"), mathContext), mathContext);
+			assertWithinUlp(LN_10, BigDecimalMath.ln(BigDecimal.TEN, mathContext), mathContext);
+			assertWithinUlp(LN_123456_789, BigDecimalMath.ln(new BigDecimal("123456.789"), mathContext), mathContext);
+			assertWithinUlp(EXP_100, BigDecimalMath.exp(BigDecimal.valueOf(100), mathContext), mathContext);
+			assertWithinUlp(POW_1_5_2_5,
+					BigDecimalMath.pow(new BigDecimal("1.5"), new BigDecimal("2.5"), mathContext), mathContext);
+		}
+	}
+
+	public void testArgumentsThatLoseDigitsToReduction() {
+		for (MathContext mathContext : CONTEXTS) {
+			// 355 is close to 113 pi, and 1e20 needs 20 more digits of pi.
+			assertWithinUlp(SIN_355, BigDecimalMath.sin(BigDecimal.valueOf(355), mathContext), mathContext);
+			assertWithinUlp(COS_1E20, BigDecimalMath.cos(new BigDecimal("1e20"), mathContext), mathContext);
+			assertWithinUlp(LN_1_PLUS_1E_40,
+					BigDecimalMath.ln(new BigDecimal("1.0000000000000000000000000000000000000001"), mathContext),
+					mathContext);
+			assertWithinUlp(LN_1E_50, BigDecimalMath.ln(new BigDecimal("1e-50"), mathContext), mathContext);
+		}
+	}
+
+	public void testSpecialCases() {
+		final MathContext mathContext = MathContext.DECIMAL64;
+		assertEquals(BigDecimal.ZERO, BigDecimalMath.sqrt(BigDecimal.ZERO, mathContext));
+		assertEquals(BigDecimal.ONE, BigDecimalMath.exp(BigDecimal.ZERO, mathContext));
+		assertEquals(0, BigDecimalMath.ln(BigDecimal.ONE, mathContext).signum());
+		assertEquals(0, BigDecimalMath.sin(BigDecimal.ZERO, mathContext).signum());
+		assertEquals(0, BigDecimal.ONE.compareTo(BigDecimalMath.cos(BigDecimal.ZERO, mathContext)));
+		assertEquals(0, BigDecimal.valueOf(-8).compareTo(BigDecimalMath.pow(BigDecimal.valueOf(-2), BigDecimal
+				.valueOf(3), mathContext)));
+		assertEquals(0, new BigDecimal("0.25").compareTo(BigDecimalMath.pow(BigDecimal.valueOf(2), BigDecimal
+				.valueOf(-2), mathContext)));
+		assertEquals(BigDecimal.ZERO, BigDecimalMath.pow(BigDecimal.ZERO, new BigDecimal("0.5"), mathContext));
+
+		assertArithmeticException("ln of 0", new Runnable() {
+			public void run() {
+				BigDecimalMath.ln(BigDecimal.ZERO, MathContext.DECIMAL64);
+			}
+		});
+		assertArithmeticException("sqrt of -1", new Runnable() {
+			public void run() {
+				BigDecimalMath.sqrt(BigDecimal.ONE.negate(), MathContext.DECIMAL64);
+			}
+		});
+		assertArithmeticException("-8 ^ 0.5", new Runnable() {
+			public void run() {
+				BigDecimalMath.pow(BigDecimal.valueOf(-8), new BigDecimal("0.5"), MathContext.DECIMAL64);
+			}
+		});
+		assertArithmeticException("0 ^ -0.5", new Runnable() {
+			public void run() {
+				BigDecimalMath.pow(BigDecimal.ZERO, new BigDecimal("-0.5"), MathContext.DECIMAL64);
+			}
+		});
+		assertArithmeticException("sin(1e+20000)", new Runnable() {
+			public void run() {
+				BigDecimalMath.sin(new BigDecimal("1e+20000"), MathContext.DECIMAL64);
+			}
+		});
+
+		try {
+			BigDecimalMath.pi(MathContext.UNLIMITED);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	public void testHugeExponents() throws ParseException {
+		final MathContext mathContext = MathContext.DECIMAL64;
+		final BigDecimal huge = new BigDecimal("1e+20000");
+		final long start = System.nanoTime();
+
+		assertArithmeticException("2 ^ 1e+20000", new Runnable() {
+			public void run() {
+				BigDecimalMath.pow(BigDecimal.valueOf(2), huge, mathContext);
+			}
+		});
+		assertArithmeticException("e ^ 1e+20000", new Runnable() {
+			public void run() {
+				BigDecimalMath.exp(huge, mathContext);
+			}
+		});
+		assertArithmeticException("2 ^ (10 ^ 20000)", new Runnable() {
+			public void run() {
+				try {
+					new BigDecimalPostfixEvaluator("2 ^ (10 ^ 20000)").evaluate();
+				} catch (ParseException e) {
+					throw new AssertionError(e);
+				}
+			}
+		});
+		assertEquals(BigDecimal.ZERO, BigDecimalMath.pow(BigDecimal.valueOf(2), huge.negate(), mathContext));
+		assertEquals(BigDecimal.ZERO, BigDecimalMath.pow(new BigDecimal("0.5"), huge, mathContext));
+		assertEquals(BigDecimal.ZERO, BigDecimalMath.exp(huge.negate(), mathContext));
+		assertEquals(BigDecimal.ONE, BigDecimalMath.pow(BigDecimal.ONE, huge, mathContext));
+
+		// Failing is quick, rather than taking ln to 20000 digits first.
+		assertTrue(System.nanoTime() - start < 1000000000L);
+
+		// y ln x is small even though y isn't.
+		final MathContext thirtyDigits = new MathContext(30);
+		assertWithinUlp(E, BigDecimalMath.pow(new BigDecimal("1.0000000000000000000000000000000000000001"),
+				new BigDecimal("1e+40"), thirtyDigits), thirtyDigits);
+	}
+
+	public void testEvaluatorUsesMathContext() throws ParseException {
+		final MathContext mathContext = new MathContext(60);
+		final BigDecimalPostfixEvaluator evaluator = new BigDecimalPostfixEvaluator("sin(x)^2 + cos(x)^2 + ln(x)",
+				mathContext);
+		final BigDecimal result = evaluator.evaluate(new BigDecimal[] { BigDecimal.ONE });
+		assertEquals(mathContext, evaluator.getMathContext());
+		assertTrue(result.toString(), result.subtract(BigDecimal.ONE).abs().compareTo(new BigDecimal("1e-58")) < 0);
+
+		assertWithinUlp(SQRT_2, new BigDecimalPostfixEvaluator("2^0.5 + 0 * pow(3, 1.5)", mathContext).evaluate(),
+				mathContext);
+	}
+
+	private static void assertWithinUlp(String expected, BigDecimal actual, MathContext mathContext) {
+		final BigDecimal rounded = new BigDecimal(expected).round(mathContext);
+		final BigDecimal difference = actual.subtract(rounded).abs();
+		assertTrue("Expected " + rounded + " but was " + actual, difference.compareTo(rounded.ulp()) <= 0);
+	}
+
+	private static void assertArithmeticException(String message, Runnable runnable) {
+		try {
+			runnable.run();
+			fail(message);
+		} catch (ArithmeticException expected) {
+		}
+	}
+}
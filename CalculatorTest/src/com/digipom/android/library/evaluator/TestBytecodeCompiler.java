@@ -0,0 +1,91 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestBytecodeCompiler extends TestCase {
+	private static final int RESOLUTION = 16;
+
+	private static final String[] FORMULAS = { "x + y", "sin(y) + cos(x)", "pow(abs(cos(x) + cos(y)), 0.5)",
+			"abs(cos(x) + cos(y)) ^ 0.5", "x^y^2", "x^2 * y^2", "-3^2", "1 + 2 - -x * 0 + x / (y + 1)",
+			"tan(x) * ln(y + 1) / sqrt(x + y + 1)", "a + b + c + d + e + f + g + h + x * y" };
+
+	public void testDoubleMatchesInterpreter() throws ParseException {
+		final BytecodeCompiler compiler = new BytecodeCompiler();
+
+		for (String formula : FORMULAS) {
+			final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(formula);
+			final DoubleExpressionFunction function = compiler.compile(evaluator);
+			final double[] slots = new double[evaluator.getCompiledExpression().getVariableCount()];
+
+			for (int y = 0; y < RESOLUTION; y++) {
+				for (int x = 0; x < RESOLUTION; x++) {
+					for (int slot = 0; slot < slots.length; slot++) {
+						slots[slot] = slot % 2 == 0 ? x : y;
+					}
+
+					assertEquals(formula, evaluator.evaluate(slots), function.apply(slots), 0);
+				}
+			}
+		}
+	}
+
+	public void testFloatMatchesInterpreter() throws ParseException {
+		final BytecodeCompiler compiler = new BytecodeCompiler();
+
+		for (String formula : FORMULAS) {
+			final FloatPostfixEvaluator evaluator = new FloatPostfixEvaluator(formula);
+			final FloatExpressionFunction function = compiler.compile(evaluator);
+			final float[] slots = new float[evaluator.getCompiledExpression().getVariableCount()];
+
+			for (int y = 0; y < RESOLUTION; y++) {
+				for (int x = 0; x < RESOLUTION; x++) {
+					for (int slot = 0; slot < slots.length; slot++) {
+						slots[slot] = slot % 2 == 0 ? x : y;
+					}
+
+					assertEquals(formula, evaluator.evaluate(slots), function.apply(slots), 0);
+				}
+			}
+		}
+	}
+
+	public void testDeepExpressions() throws ParseException {
+		// Too large for a single method, and too deep for a closure tree.
+		final StringBuilder input = new StringBuilder("1");
+
+		for (int i = 0; i < 20000; i++) {
+			input.append("+x");
+		}
+
+		final BytecodeCompiler compiler = new BytecodeCompiler();
+		assertEquals(10001.0, compiler.compile(new DoublePostfixEvaluator(input.toString())).apply(
+				new double[] { 0.5 }), 0);
+		assertEquals(10001.0f, compiler.compile(new FloatPostfixEvaluator(input.toString())).apply(
+				new float[] { 0.5f }), 0);
+	}
+
+	public void testMalformedProgramRejected() throws ParseException {
+		try {
+			new BytecodeCompiler().compile(new DoublePostfixEvaluator("pow(x)"));
+			fail();
+		} catch (ParseException e) {
+			// Expected
+		}
+	}
+}
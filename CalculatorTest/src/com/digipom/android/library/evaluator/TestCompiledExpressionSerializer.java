@@ -0,0 +1,145 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestCompiledExpressionSerializer extends TestCase {
+	private static final String[] FORMULAS = { "1", "-0.0 + x", "sin(x) * sin(x) + y", "(a + b) ^ 2 / 2.50",
+			"abs(cos(x) + cos(y)) ^ 0.5", "x ^ 7 - 1 / x", "ln(rate) * sqrt(2)" };
+
+	public void testRoundTrip() throws ParseException, IOException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		compiler.setRelaxedMathEnabled(true);
+
+		for (NumberPrecision numberPrecision : NumberPrecision.values()) {
+			final CompiledExpression[] expressions = new CompiledExpression[FORMULAS.length];
+
+			for (int i = 0; i < FORMULAS.length; i++) {
+				expressions[i] = compiler.compile(FORMULAS[i], numberPrecision);
+			}
+
+			final CompiledExpression[] readExpressions = CompiledExpressionSerializer.read(ByteBuffer
+					.wrap(toBytes(expressions)));
+			assertEquals(expressions.length, readExpressions.length);
+
+			for (int i = 0; i < expressions.length; i++) {
+				assertSameProgram(expressions[i], readExpressions[i]);
+			}
+		}
+	}
+
+	public void testReadExpressionsEvaluate() throws ParseException, IOException {
+		final CompiledExpression[] expressions = { new ExpressionCompiler().compile("(a + b) ^ 2 / 2.50",
+				NumberPrecision.BIG_DECIMAL) };
+		final CompiledExpression readExpression = CompiledExpressionSerializer.read(ByteBuffer
+				.wrap(toBytes(expressions)))[0];
+
+		final BigDecimal[] slots = new BigDecimal[2];
+		slots[readExpression.getSlot("a")] = BigDecimal.ONE;
+		slots[readExpression.getSlot("b")] = new BigDecimal(4);
+		assertEquals(0, BigDecimal.TEN.compareTo(new BigDecimalPostfixEvaluator(readExpression).evaluate(slots)));
+
+		final CompiledExpression[] doubleExpressions = { new ExpressionCompiler().compile("-0.0 * x",
+				NumberPrecision.DOUBLE) };
+		final double result = new DoublePostfixEvaluator(CompiledExpressionSerializer.read(ByteBuffer
+				.wrap(toBytes(doubleExpressions)))[0]).evaluate(new double[] { 3 });
+		assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(result));
+	}
+
+	public void testReadAdvancesPosition() throws ParseException, IOException {
+		final CompiledExpression[] expressions = { new ExpressionCompiler().compile("x + 1", NumberPrecision.FLOAT) };
+		final byte[] library = toBytes(expressions);
+		final ByteBuffer buffer = ByteBuffer.allocate(library.length * 2 + 3);
+		buffer.put(new byte[3]).put(library).put(library);
+		buffer.position(3);
+
+		CompiledExpressionSerializer.read(buffer);
+		assertEquals(3 + library.length, buffer.position());
+		CompiledExpressionSerializer.read(buffer);
+		assertEquals(buffer.limit(), buffer.position());
+	}
+
+	public void testCorruptLibrariesAreRejected() throws ParseException, IOException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		compiler.setOptimizationEnabled(false);
+		final CompiledExpression[] expressions = { compiler.compile("sin(x) * sin(x) + y", NumberPrecision.DOUBLE) };
+		final byte[] library = toBytes(expressions);
+
+		// Every truncation fails.
+		for (int length = 0; length < library.length; length++) {
+			final byte[] truncated = new byte[length];
+			System.arraycopy(library, 0, truncated, 0, length);
+			assertRejected(truncated);
+		}
+
+		// So do a bad magic number, version, precision or opcode.
+		for (int offset : new int[] { 0, 5, 10 }) {
+			final byte[] corrupt = library.clone();
+			corrupt[offset] = 0x7F;
+			assertRejected(corrupt);
+		}
+
+		assertEquals(Opcode.ADD, library[library.length - 1]);
+		final byte[] badOpcode = library.clone();
+		badOpcode[badOpcode.length - 1] = (byte) (Opcode.POWER + 1);
+		assertRejected(badOpcode);
+
+		// The program is checked before it's used. Ending it with a negation
+		// instead of the addition leaves two values on the stack.
+		final byte[] unbalanced = library.clone();
+		unbalanced[unbalanced.length - 1] = (byte) Opcode.NEGATE;
+		assertRejected(unbalanced);
+	}
+
+	private static void assertRejected(byte[] library) {
+		try {
+			CompiledExpressionSerializer.read(ByteBuffer.wrap(library));
+			fail();
+		} catch (ParseException e) {
+			// Expected
+		}
+	}
+
+	private static byte[] toBytes(CompiledExpression[] expressions) throws IOException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		CompiledExpressionSerializer.write(expressions, output);
+		return output.toByteArray();
+	}
+
+	private static void assertSameProgram(CompiledExpression expected, CompiledExpression actual) {
+		assertEquals(expected.numberPrecision, actual.numberPrecision);
+		assertTrue(Arrays.equals(expected.opcodes, actual.opcodes));
+		assertTrue(Arrays.equals(expected.operands, actual.operands));
+		assertTrue(Arrays.equals(expected.floatConstants, actual.floatConstants));
+		assertTrue(Arrays.equals(expected.doubleConstants, actual.doubleConstants));
+		assertTrue(Arrays.equals(expected.variableNames, actual.variableNames));
+		assertEquals(expected.localCount, actual.localCount);
+		assertEquals(expected.maxStackDepth, actual.maxStackDepth);
+		assertEquals(expected.removedNodeCount, actual.removedNodeCount);
+		assertEquals(expected.relaxedMath, actual.relaxedMath);
+
+		// BigDecimal.equals also compares scales.
+		assertTrue(Arrays.equals(expected.bigDecimalConstants, actual.bigDecimalConstants));
+	}
+}
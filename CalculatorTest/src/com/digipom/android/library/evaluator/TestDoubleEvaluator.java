@@ -16,7 +16,6 @@ package com.digipom.android.library.evaluator;
 
 import junit.framework.TestCase;
 
-import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
 import com.digipom.android.library.evaluator.exception.ParseException;
 
 public class TestDoubleEvaluator extends TestCase {
@@ -127,18 +126,143 @@ public class TestDoubleEvaluator extends TestCase {
 		});
 	}
 	
+	public void testRepeatedVariableSharesSlot() throws ParseException {
+		DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator("x + X * x");
+		assertEquals(1, evaluator.getCompiledExpression().getVariableCount());
+
+		testCombos(RESOLUTION, evaluator,  new ZCommand() {
+
+			@Override
+			public double execute(double x, double y) {
+				return x + x * x;
+			}
+		});
+	}
+
+	public void testMissingSlots() throws ParseException {
+		DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator("x + y");
+
+		try {
+			evaluator.evaluate(new double[1]);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testSharedCompiledExpression() throws Exception {
+		final CompiledExpression compiledExpression = new ExpressionCompiler().compile("sin(y) + cos(x)",
+				NumberPrecision.DOUBLE);
+		final Thread[] threads = new Thread[4];
+		final Throwable[] failures = new Throwable[threads.length];
+
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						testCombos(RESOLUTION, new DoublePostfixEvaluator(compiledExpression), new ZCommand() {
+
+							@Override
+							public double execute(double x, double y) {
+								return Math.sin(y) + Math.cos(x);
+							}
+						});
+					} catch (Throwable t) {
+						failures[index] = t;
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			assertNull(failures[i]);
+		}
+	}
+
+	public void testCompiledExpressionPrecisionMismatch() throws ParseException {
+		final CompiledExpression compiledExpression = new ExpressionCompiler().compile("x + y", NumberPrecision.FLOAT);
+
+		try {
+			new DoublePostfixEvaluator(compiledExpression);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testStackDepthComputedAtCompileTime() throws ParseException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		compiler.setOptimizationEnabled(false);
+		final CompiledExpression compiledExpression = compiler.compile("1 + 2 * (3 + 4 * x)", NumberPrecision.DOUBLE);
+
+		assertEquals(9, compiledExpression.getProgramLength());
+		assertEquals(5, compiledExpression.getMaxStackDepth());
+
+		final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(compiledExpression);
+		final double[] slots = new double[1];
+		slots[evaluator.getSlot("x")] = 2;
+		assertEquals(23.0, evaluator.evaluate(slots), 0);
+	}
+
+	public void testMalformedExpressionRejectedAtCompileTime() {
+		try {
+			new ExpressionCompiler().compile("pow(x)", NumberPrecision.DOUBLE);
+			fail();
+		} catch (ParseException e) {
+			// Expected
+		}
+	}
+
+	public void testBatchEvaluate() throws ParseException {
+		final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator("x / y - pow(abs(cos(x) + cos(y)), 0.5)");
+		final int xSlot = evaluator.getSlot("x");
+		final int ySlot = evaluator.getSlot("y");
+
+		// Use a row count that isn't a multiple of the chunk size.
+		final int rowCount = RESOLUTION * RESOLUTION * 3 + 7;
+		final double[][] columns = new double[2][rowCount];
+		final double[] out = new double[rowCount];
+
+		for (int row = 0; row < rowCount; row++) {
+			columns[xSlot][row] = row % RESOLUTION;
+			columns[ySlot][row] = row / RESOLUTION + 1;
+		}
+
+		evaluator.evaluate(columns, rowCount, out);
+
+		final double[] slots = new double[2];
+
+		for (int row = 0; row < rowCount; row++) {
+			slots[xSlot] = columns[xSlot][row];
+			slots[ySlot] = columns[ySlot][row];
+			assertEquals(evaluator.evaluate(slots), out[row], 0);
+		}
+	}
+
 	private void testCombos(int range, DoublePostfixEvaluator evaluator, ZCommand zCommand) throws ParseException {
-		FlatToken yIdentifier = evaluator.getIdentifier("y");
-		FlatToken xIdentifier = evaluator.getIdentifier("x");
+		final double[] slots = new double[evaluator.getCompiledExpression().getVariableCount()];
+		final int ySlot = evaluator.getSlot("y");
+		final int xSlot = evaluator.getSlot("x");
 		
 		for (int y = 0; y < range; y++) {			
-			yIdentifier.doubleValue = y;
+			bind(slots, ySlot, y);
 			
 			for (int x = 0; x < range; x++) {				
-				xIdentifier.doubleValue = x;
+				bind(slots, xSlot, x);
 				 				
-				assertEquals(zCommand.execute(x, y), evaluator.evaluate(), 0.001);
+				assertEquals(zCommand.execute(x, y), evaluator.evaluate(slots), 0.001);
 			}
 		}
-	}	
+	}
+
+	private static void bind(double[] slots, int slot, double value) {
+		if (slot >= 0) {
+			slots[slot] = value;
+		}
+	}
 }
@@ -0,0 +1,107 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestDualNumberEvaluator extends TestCase {
+	private static final double X = 1.3;
+	private static final double Y = 0.4;
+
+	public void testDerivativesOfEachOperation() throws ParseException {
+		assertDerivatives("x * y + sin(x)", Y + Math.cos(X), X);
+		assertDerivatives("x ^ 3 - 2 / x", 3 * X * X + 2 / (X * X), 0);
+		assertDerivatives("pow(x, y)", Y * Math.pow(X, Y - 1), Math.pow(X, Y) * Math.log(X));
+		assertDerivatives("sqrt(x) + x ^ 0.5 + ln(y)", 1 / Math.sqrt(X), 1 / Y);
+		assertDerivatives("abs(x - y) * tan(y)", Math.tan(Y), -Math.tan(Y) + (X - Y) / (Math.cos(Y) * Math.cos(Y)));
+		assertDerivatives("sin(x) * sin(x) + cos(x) / y", 2 * Math.sin(X) * Math.cos(X) - Math.sin(X) / Y,
+				-Math.cos(X) / (Y * Y));
+		assertDerivatives("(x + 1) / (y - 2) - -x", 1 / (Y - 2) + 1, -(X + 1) / ((Y - 2) * (Y - 2)));
+		assertDerivatives("x ^ 2 * 3 + 1 / (x * y) + y ^ (-1)", 6 * X - 1 / (X * X * Y),
+				-1 / (X * Y * Y) - 1 / (Y * Y));
+		assertDerivatives("2 ^ x - abs(-y) * 4 + 5", Math.pow(2, X) * Math.log(2), -4);
+	}
+
+	public void testConstantsDontBringInUndefinedSlopes() throws ParseException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		compiler.setOptimizationEnabled(false);
+		final CompiledExpression compiledExpression = compiler.compile("x ^ 2 + sqrt(0) * x", NumberPrecision.DOUBLE);
+		final double[] derivatives = new double[1];
+
+		assertEquals(4.0, new DualNumberEvaluator(compiledExpression, 0).evaluate(new double[] { -2 }, derivatives));
+		assertEquals(-4.0, derivatives[0], 0);
+	}
+
+	public void testOnlyChosenSlotsAreDifferentiated() throws ParseException {
+		final CompiledExpression compiledExpression = new ExpressionCompiler().compile("a * b * c",
+				NumberPrecision.DOUBLE);
+		final int a = compiledExpression.getSlot("a");
+		final int b = compiledExpression.getSlot("b");
+		final int c = compiledExpression.getSlot("c");
+		final double[] slots = new double[3];
+		slots[a] = 2;
+		slots[b] = 3;
+		slots[c] = 5;
+
+		final DualNumberEvaluator evaluator = new DualNumberEvaluator(compiledExpression, c, a);
+		final double[] derivatives = new double[2];
+		assertEquals(30.0, evaluator.evaluate(slots, derivatives), 0);
+		assertEquals(6.0, derivatives[0], 0);
+		assertEquals(15.0, derivatives[1], 0);
+
+		assertEquals(7.0, new DualNumberEvaluator(new ExpressionCompiler().compile("3 + 4", NumberPrecision.DOUBLE))
+				.evaluate(new double[0]), 0);
+
+		try {
+			new DualNumberEvaluator(compiledExpression, 3);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Checks the value and both partial derivatives of a formula in x and y,
+	 * compiled without optimization, with it, and with relaxed math.
+	 */
+	private static void assertDerivatives(String formula, double expectedDx, double expectedDy)
+			throws ParseException {
+		for (int settings = 0; settings < 3; settings++) {
+			final ExpressionCompiler compiler = new ExpressionCompiler();
+			compiler.setOptimizationEnabled(settings > 0);
+			compiler.setRelaxedMathEnabled(settings > 1);
+
+			final CompiledExpression compiledExpression = compiler.compile(formula, NumberPrecision.DOUBLE);
+			final int x = compiledExpression.getSlot("x");
+			final int y = compiledExpression.getSlot("y");
+			final double[] slots = new double[compiledExpression.getVariableCount()];
+			slots[x] = X;
+
+			if (y >= 0) {
+				slots[y] = Y;
+			}
+
+			final double[] derivatives = new double[2];
+			final double value = new DualNumberEvaluator(compiledExpression, y >= 0 ? new int[] { x, y }
+					: new int[] { x }).evaluate(slots, derivatives);
+
+			assertEquals(formula, new DoublePostfixEvaluator(compiledExpression).evaluate(slots), value, 0);
+			assertEquals(formula, expectedDx, derivatives[0], 1e-12 * Math.max(1, Math.abs(expectedDx)));
+			assertEquals(formula, expectedDy, derivatives[1], 1e-12 * Math.max(1, Math.abs(expectedDy)));
+		}
+	}
+}
@@ -0,0 +1,153 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.EquationSolver.Solution;
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestEquationSolver extends TestCase {
+	public void testSolvesFromAGuess() throws ParseException {
+		assertRoot("x ^ 2", 2, 1, Math.sqrt(2));
+		assertRoot("cos(x) - x", 0, 0, 0.7390851332151607);
+		assertRoot("x ^ 3 - 2 * x - 5", 0, 10, 2.0945514815423265);
+		// ln is NaN below 0, which the bracket search steps over.
+		assertRoot("ln(x)", 1, 0.5, Math.E);
+	}
+
+	public void testSolvesOnABracket() throws ParseException {
+		final EquationSolver solver = newSolver("x ^ 3 - 2 * x - 5");
+		final Solution solution = solver.solve(new double[1], 0, 2, 3);
+
+		assertTrue(solution.isConverged());
+		assertEquals(2.0945514815423265, solution.getRoot(), 1e-12);
+		assertEquals(0, solution.getResidual(), 1e-10);
+	}
+
+	public void testOtherVariablesComeFromSlots() throws ParseException {
+		final CompiledExpression compiledExpression = new ExpressionCompiler().compile("a * x + b",
+				NumberPrecision.DOUBLE);
+		final double[] slots = new double[3];
+		slots[compiledExpression.getSlot("a")] = 4;
+		slots[compiledExpression.getSlot("b")] = -2;
+
+		final EquationSolver solver = new EquationSolver(compiledExpression, compiledExpression.getSlot("x"));
+		final Solution solution = solver.solve(slots, 10, 0);
+		assertTrue(solution.isConverged());
+		assertEquals(3, solution.getRoot(), 1e-12);
+
+		// The slots aren't changed.
+		assertEquals(0.0, slots[compiledExpression.getSlot("x")]);
+	}
+
+	public void testNewtonStepsNeedFewerEvaluations() throws ParseException {
+		final EquationSolver solver = newSolver("x ^ 3 - 2 * x - 5");
+		final Solution withDerivatives = solver.solve(new double[1], 0, 0, 10);
+
+		solver.setDerivativesEnabled(false);
+		final Solution withoutDerivatives = solver.solve(new double[1], 0, 0, 10);
+
+		assertTrue(withDerivatives.isConverged());
+		assertTrue(withoutDerivatives.isConverged());
+		assertEquals(withDerivatives.getRoot(), withoutDerivatives.getRoot(), 1e-12);
+		assertTrue(withDerivatives.getNewtonStepCount() > 0);
+		assertEquals(0, withoutDerivatives.getNewtonStepCount());
+		assertTrue(withDerivatives.getIterationCount() < withoutDerivatives.getIterationCount());
+	}
+
+	public void testReportsFailure() throws ParseException {
+		final EquationSolver solver = newSolver("x ^ 2 + 1");
+		solver.setMaximumBracketingSteps(20);
+		final Solution noRoot = solver.solve(new double[1], 0, 3);
+
+		assertFalse(noRoot.isConverged());
+		assertEquals(41, noRoot.getEvaluationCount());
+		// The closest point seen is returned, not the farthest.
+		assertTrue(Math.abs(noRoot.getRoot()) < 3);
+		assertTrue(noRoot.getResidual() < 10);
+		assertEquals(noRoot.getRoot() * noRoot.getRoot() + 1, noRoot.getResidual(), 0);
+		assertFalse(solver.solve(new double[1], 0, -1, 1).isConverged());
+
+		final EquationSolver cappedSolver = newSolver("x ^ 3 - 2 * x - 5");
+		cappedSolver.setDerivativesEnabled(false);
+		cappedSolver.setMaximumIterations(2);
+		final Solution capped = cappedSolver.solve(new double[1], 0, 0, 10);
+
+		assertFalse(capped.isConverged());
+		assertEquals(2, capped.getIterationCount());
+		assertEquals(4, capped.getEvaluationCount());
+	}
+
+	public void testFunctionTolerance() throws ParseException {
+		final EquationSolver solver = newSolver("x ^ 2");
+		solver.setFunctionTolerance(0.1);
+		final Solution solution = solver.solve(new double[1], 2, 1.4);
+
+		assertTrue(solution.isConverged());
+		assertEquals(1.4, solution.getRoot());
+		assertEquals(1, solution.getEvaluationCount());
+	}
+
+	public void testInvalidSettingsAreRejected() throws ParseException {
+		final EquationSolver solver = newSolver("x");
+
+		try {
+			solver.setAbsoluteTolerance(-1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+		try {
+			solver.setRelativeTolerance(Double.NaN);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+		try {
+			solver.setMaximumIterations(0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+		try {
+			new EquationSolver(new ExpressionCompiler().compile("x", NumberPrecision.DOUBLE), 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	private static EquationSolver newSolver(String expression) throws ParseException {
+		final CompiledExpression compiledExpression = new ExpressionCompiler().compile(expression,
+				NumberPrecision.DOUBLE);
+		return new EquationSolver(compiledExpression, compiledExpression.getSlot("x"));
+	}
+
+	private static void assertRoot(String expression, double target, double guess, double root)
+			throws ParseException {
+		for (boolean derivativesEnabled : new boolean[] { true, false }) {
+			final EquationSolver solver = newSolver(expression);
+			solver.setDerivativesEnabled(derivativesEnabled);
+			final Solution solution = solver.solve(new double[1], target, guess);
+
+			assertTrue(expression, solution.isConverged());
+			assertEquals(expression, root, solution.getRoot(), 1e-12);
+		}
+	}
+}
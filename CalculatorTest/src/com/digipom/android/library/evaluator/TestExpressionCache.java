@@ -0,0 +1,199 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestExpressionCache extends TestCase {
+	public void testRepeatedInputsHit() throws ParseException {
+		final ExpressionCache cache = new ExpressionCache(8);
+		final CompiledExpression compiledExpression = cache.compile("sin(x) + 1", NumberPrecision.DOUBLE);
+
+		assertSame(compiledExpression, cache.compile("sin(x) + 1", NumberPrecision.DOUBLE));
+		assertSame(compiledExpression, cache.compile("  SIN( X )+1 ", NumberPrecision.DOUBLE));
+		assertSame(compiledExpression, cache.compile(new StringBuilder("sin(x)+1"), NumberPrecision.DOUBLE));
+		assertNotSame(compiledExpression, cache.compile("sin(x) + 1", NumberPrecision.FLOAT));
+
+		assertEquals(3, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(2, cache.size());
+	}
+
+	public void testNormalization() {
+		assertEquals("sin(x)+1", ExpressionCache.normalize(" Sin (x) +\t1 "));
+		assertEquals("x-1.5e+3", ExpressionCache.normalize("x - 1.5E+3"));
+
+		// Whitespace between words separates tokens.
+		assertEquals("2 3", ExpressionCache.normalize("2   3"));
+		assertEquals("sin x", ExpressionCache.normalize("sin\nx"));
+
+		final String normalized = "ln(x)*2 3";
+		assertSame(normalized, ExpressionCache.normalize(normalized));
+	}
+
+	public void testSeparatedTokensAreDistinct() throws ParseException {
+		final ExpressionCache cache = new ExpressionCache(8);
+		assertEquals(23.0, new DoublePostfixEvaluator(cache.compile("23", NumberPrecision.DOUBLE)).evaluate(), 0);
+
+		try {
+			cache.compile("2 3", NumberPrecision.DOUBLE);
+			fail();
+		} catch (ParseException e) {
+			// Expected
+		}
+
+		// Failures aren't cached.
+		assertEquals(1, cache.size());
+		assertEquals(2, cache.getMissCount());
+	}
+
+	public void testEvictionKeepsRecentlyUsedEntries() throws ParseException {
+		final ExpressionCache cache = new ExpressionCache(3);
+		final CompiledExpression first = cache.compile("x + 1", NumberPrecision.DOUBLE);
+		cache.compile("x + 2", NumberPrecision.DOUBLE);
+		cache.compile("x + 3", NumberPrecision.DOUBLE);
+
+		// Using the first entry protects it from the next replacement.
+		cache.compile("x + 1", NumberPrecision.DOUBLE);
+		cache.compile("x + 4", NumberPrecision.DOUBLE);
+
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertSame(first, cache.compile("x + 1", NumberPrecision.DOUBLE));
+
+		for (int i = 0; i < 100; i++) {
+			cache.compile("x * " + i, NumberPrecision.BIG_DECIMAL);
+		}
+
+		assertEquals(3, cache.size());
+		assertEquals(101, cache.getEvictionCount());
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNotSame(first, cache.compile("x + 1", NumberPrecision.DOUBLE));
+	}
+
+	public void testEquivalentInputsShareOnePlan() throws ParseException {
+		final ExpressionCache cache = new ExpressionCache(8);
+		final CompiledExpression compiledExpression = cache.compile("x+y", NumberPrecision.DOUBLE);
+
+		assertSame(compiledExpression, cache.compile("y + x", NumberPrecision.DOUBLE));
+		assertSame(compiledExpression, cache.compile("(y)+(x)", NumberPrecision.DOUBLE));
+		assertEquals(2, cache.getCanonicalHitCount());
+
+		// The second spelling is now found by its text.
+		assertSame(compiledExpression, cache.compile("y+x", NumberPrecision.DOUBLE));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.size());
+
+		final CompiledExpression scaled = cache.compile("2*b - a", NumberPrecision.DOUBLE);
+		assertSame(scaled, cache.compile("b*2 - a", NumberPrecision.DOUBLE));
+
+		final double[] variables = new double[2];
+		variables[scaled.getSlot("a")] = 1;
+		variables[scaled.getSlot("b")] = 5;
+		assertEquals(9.0, new DoublePostfixEvaluator(scaled).evaluate(variables), 0);
+	}
+
+	public void testChainsAreRegroupedOnlyWithRelaxedMath() throws ParseException {
+		final ExpressionCache cache = new ExpressionCache(8);
+		assertNotSame(cache.compile("x+y+z", NumberPrecision.DOUBLE), cache.compile("z+y+x", NumberPrecision.DOUBLE));
+
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		compiler.setRelaxedMathEnabled(true);
+		final ExpressionCache relaxedCache = new ExpressionCache(compiler, 8);
+		assertSame(relaxedCache.compile("x+y+z", NumberPrecision.DOUBLE),
+				relaxedCache.compile("z+y+x", NumberPrecision.DOUBLE));
+		assertSame(relaxedCache.compile("a*(b*c)", NumberPrecision.FLOAT),
+				relaxedCache.compile("(c*a)*b", NumberPrecision.FLOAT));
+
+		// BigDecimal rounds each step, so it's never regrouped.
+		assertNotSame(relaxedCache.compile("x+y+z", NumberPrecision.BIG_DECIMAL),
+				relaxedCache.compile("z+y+x", NumberPrecision.BIG_DECIMAL));
+	}
+
+	public void testProgramsShareArrays() throws ParseException {
+		final ExpressionCache cache = new ExpressionCache(2);
+		final CompiledExpression first = cache.compile("sin(x) + 1", NumberPrecision.DOUBLE);
+		final CompiledExpression second = cache.compile("sin(x) + 2", NumberPrecision.DOUBLE);
+
+		assertSame(first.opcodes, second.opcodes);
+		assertSame(first.operands, second.operands);
+		assertSame(first.variableNames, second.variableNames);
+		assertNotSame(first.doubleConstants, second.doubleConstants);
+
+		// The arrays are released with the programs that use them, and
+		// replaced by arrays of the same number.
+		final int sharedArrayCount = cache.getSharedArrayCount();
+
+		for (int i = 2; i < 12; i++) {
+			cache.compile("cos(y) * " + i, NumberPrecision.DOUBLE);
+		}
+
+		assertEquals(sharedArrayCount, cache.getSharedArrayCount());
+		cache.clear();
+		assertEquals(0, cache.getSharedArrayCount());
+	}
+
+	public void testCompilerSettingsAreCopied() throws ParseException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		compiler.setOptimizationEnabled(false);
+		final ExpressionCache cache = new ExpressionCache(compiler, 8);
+		compiler.setOptimizationEnabled(true);
+
+		assertEquals(3, cache.compile("2 * 3", NumberPrecision.DOUBLE).getProgramLength());
+		assertEquals(1, new ExpressionCache(8).compile("2 * 3", NumberPrecision.DOUBLE).getProgramLength());
+	}
+
+	public void testConcurrentUse() throws Exception {
+		final ExpressionCache cache = new ExpressionCache(16);
+		final Thread[] threads = new Thread[4];
+		final Throwable[] failures = new Throwable[threads.length];
+
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 2000; j++) {
+							// More distinct inputs than entries, so threads
+							// evict each other's.
+							final int constant = (j * 7 + index) % 24;
+							final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(cache.compile("x + "
+									+ constant, NumberPrecision.DOUBLE));
+							assertEquals(constant + 1.0, evaluator.evaluate(new double[] { 1 }), 0);
+						}
+					} catch (Throwable t) {
+						failures[index] = t;
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			assertNull(failures[i]);
+		}
+
+		assertEquals(threads.length * 2000, cache.getHitCount() + cache.getCanonicalHitCount() + cache.getMissCount());
+		assertTrue(cache.size() <= 16);
+	}
+}
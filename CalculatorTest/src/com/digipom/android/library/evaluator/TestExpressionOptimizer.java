@@ -0,0 +1,214 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestExpressionOptimizer extends TestCase {
+	private final ExpressionCompiler compiler = new ExpressionCompiler();
+
+	public void testConstantFolding() throws ParseException {
+		assertProgramLength(1, "sqrt(4)", NumberPrecision.DOUBLE);
+		assertProgramLength(3, "2*3*x", NumberPrecision.DOUBLE);
+		assertProgramLength(1, "pow(2, 10) + 3^2", NumberPrecision.FLOAT);
+		assertEquals(1033.0, new DoublePostfixEvaluator(compiler.compile("pow(2, 10) + 3^2", NumberPrecision.DOUBLE))
+				.evaluate(), 0);
+	}
+
+	public void testIdentities() throws ParseException {
+		assertProgramLength(1, "x^1", NumberPrecision.DOUBLE);
+		assertProgramLength(1, "x*1", NumberPrecision.DOUBLE);
+		assertProgramLength(1, "1*x/1", NumberPrecision.FLOAT);
+		assertProgramLength(1, "--x", NumberPrecision.DOUBLE);
+		assertProgramLength(1, "pow(x, 1)", NumberPrecision.BIG_DECIMAL);
+		assertProgramLength(2, "x * -1", NumberPrecision.DOUBLE);
+		assertProgramLength(3, "-x * -y", NumberPrecision.DOUBLE);
+		assertProgramLength(2, "abs(-abs(x))", NumberPrecision.DOUBLE);
+
+		final CompiledExpression compiledExpression = compiler.compile("--x * 1 + 2 * 3", NumberPrecision.DOUBLE);
+		assertEquals(3, compiledExpression.toPostfix().length);
+		assertEquals(6, compiledExpression.getRemovedNodeCount());
+	}
+
+	public void testZeroIdentitiesAreGated() throws ParseException {
+		// -0.0 + 0 is 0.0, so x + 0 can't be simplified in floating point.
+		assertProgramLength(3, "x + 0", NumberPrecision.DOUBLE);
+		assertProgramLength(3, "0 - x", NumberPrecision.FLOAT);
+		assertProgramLength(1, "x - 0", NumberPrecision.DOUBLE);
+
+		final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(compiler.compile("x + 0",
+				NumberPrecision.DOUBLE));
+		assertEquals(0L, Double.doubleToRawLongBits(evaluator.evaluate(new double[] { -0.0 })));
+
+		// Nor in decimal, where adding 0 changes the scale of 1E+3.
+		assertProgramLength(3, "x + 0", NumberPrecision.BIG_DECIMAL);
+		assertProgramLength(3, "x - 0", NumberPrecision.BIG_DECIMAL);
+		assertProgramLength(3, "0 - x", NumberPrecision.BIG_DECIMAL);
+
+		final ExpressionCompiler unoptimizedCompiler = new ExpressionCompiler();
+		unoptimizedCompiler.setOptimizationEnabled(false);
+
+		for (String formula : new String[] { "x + 0", "0 + x", "x - 0", "0 - x", "1E+3 + 0" }) {
+			final BigDecimal[] slots = { new BigDecimal("1E+3") };
+			final BigDecimal expected = new BigDecimalPostfixEvaluator(unoptimizedCompiler.compile(formula,
+					NumberPrecision.BIG_DECIMAL)).evaluate(slots);
+			final BigDecimal actual = new BigDecimalPostfixEvaluator(compiler.compile(formula,
+					NumberPrecision.BIG_DECIMAL)).evaluate(slots);
+			assertEquals(formula, expected, actual);
+			assertEquals(formula, expected.toPlainString(), actual.toPlainString());
+		}
+	}
+
+	public void testDecimalArithmeticIsNotReordered() throws ParseException {
+		// Each step rounds to the math context, so 2 * x * 3 can round
+		// differently from x * 6.
+		assertProgramLength(5, "2 * x * 3", NumberPrecision.BIG_DECIMAL);
+		assertProgramLength(5, "1.5 + x + 2", NumberPrecision.BIG_DECIMAL);
+		assertProgramLength(5, "2 * x * 3", NumberPrecision.DOUBLE);
+
+		final BigDecimalPostfixEvaluator evaluator = new BigDecimalPostfixEvaluator(compiler.compile("1.5 + x + 2",
+				NumberPrecision.BIG_DECIMAL));
+		assertEquals(new BigDecimal("4.5"), evaluator.evaluate(new BigDecimal[] { BigDecimal.ONE }));
+	}
+
+	public void testDecimalScaleIsPreserved() throws ParseException {
+		// x * 1.0 changes the scale of x, so it must stay.
+		assertProgramLength(3, "x * 1.0", NumberPrecision.BIG_DECIMAL);
+	}
+
+	public void testDecimalFoldingIsExact() throws ParseException {
+		// Rounded results depend on the evaluator's math context, which isn't
+		// known until evaluation.
+		assertProgramLength(2, "sin(1)", NumberPrecision.BIG_DECIMAL);
+		assertProgramLength(3, "2^0.5", NumberPrecision.BIG_DECIMAL);
+		assertProgramLength(3, "1 / 3", NumberPrecision.BIG_DECIMAL);
+		assertProgramLength(3, "2^100", NumberPrecision.BIG_DECIMAL);
+		assertProgramLength(1, "abs(-2) * 2^3 / 4", NumberPrecision.BIG_DECIMAL);
+
+		final BigDecimalPostfixEvaluator evaluator = new BigDecimalPostfixEvaluator(compiler.compile("sqrt(2)",
+				NumberPrecision.BIG_DECIMAL), new MathContext(50));
+		assertEquals(50, evaluator.evaluate().precision());
+	}
+
+	public void testFoldingMatchesEvaluation() throws ParseException {
+		final String[] formulas = { "sin(2) + cos(3)", "ln(10) / sqrt(2)", "tan(0.5) ^ 3", "1 / 3 * 3" };
+		final ExpressionCompiler unoptimizedCompiler = new ExpressionCompiler();
+		unoptimizedCompiler.setOptimizationEnabled(false);
+
+		for (String formula : formulas) {
+			assertEquals(formula,
+					new DoublePostfixEvaluator(unoptimizedCompiler.compile(formula, NumberPrecision.DOUBLE)).evaluate(),
+					new DoublePostfixEvaluator(compiler.compile(formula, NumberPrecision.DOUBLE)).evaluate(), 0);
+			assertEquals(formula,
+					new FloatPostfixEvaluator(unoptimizedCompiler.compile(formula, NumberPrecision.FLOAT)).evaluate(),
+					new FloatPostfixEvaluator(compiler.compile(formula, NumberPrecision.FLOAT)).evaluate(), 0);
+			assertEquals(formula,
+					new BigDecimalPostfixEvaluator(unoptimizedCompiler.compile(formula, NumberPrecision.BIG_DECIMAL))
+							.evaluate(),
+					new BigDecimalPostfixEvaluator(compiler.compile(formula, NumberPrecision.BIG_DECIMAL)).evaluate());
+		}
+	}
+
+	public void testDeepExpressions() throws ParseException {
+		// Far deeper than the tree passes could recurse on a small stack.
+		final StringBuilder builder = new StringBuilder("x");
+
+		for (int i = 0; i < 20000; i++) {
+			builder.append("+x*2");
+		}
+
+		final String formula = builder.toString();
+		final double[] slots = { 0.5 };
+		assertEquals(20000.5, new DoublePostfixEvaluator(compiler.compile(formula, NumberPrecision.DOUBLE))
+				.evaluate(slots), 0);
+		assertEquals(20000.5, new DoublePostfixEvaluator(compiler.parse(formula).compile(NumberPrecision.DOUBLE))
+				.evaluate(slots), 0);
+		assertEquals(20000.5, new DoublePostfixEvaluator(new ExpressionCache(4).compile(formula,
+				NumberPrecision.DOUBLE)).evaluate(slots), 0);
+
+		// Shallower expressions are still optimized.
+		assertTrue(compiler.compile("x+x*2+x*2", NumberPrecision.DOUBLE).getLocalCount() > 0);
+	}
+
+	public void testCommonSubexpressions() throws ParseException {
+		CompiledExpression compiledExpression = compiler.compile("(x + y) * (x + y)", NumberPrecision.DOUBLE);
+		assertEquals(1, compiledExpression.getLocalCount());
+		assertEquals(6, compiledExpression.toPostfix().length);
+
+		compiledExpression = compiler.compile("abs(cos(x) + cos(y)) ^ 0.5 + cos(x) * cos(y)", NumberPrecision.DOUBLE);
+		assertEquals(2, compiledExpression.getLocalCount());
+
+		// Leaves aren't worth a local.
+		assertEquals(0, compiler.compile("x * x + x", NumberPrecision.DOUBLE).getLocalCount());
+	}
+
+	public void testCommonSubexpressionsMatchEvaluation() throws ParseException {
+		final String formula = "sin(cos(x) * cos(y)) + cos(x) * cos(y) / (sin(cos(x) * cos(y)) + 2)";
+		final ExpressionCompiler unoptimizedCompiler = new ExpressionCompiler();
+		unoptimizedCompiler.setOptimizationEnabled(false);
+
+		final DoublePostfixEvaluator expected = new DoublePostfixEvaluator(unoptimizedCompiler.compile(formula,
+				NumberPrecision.DOUBLE));
+		final DoublePostfixEvaluator actual = new DoublePostfixEvaluator(compiler.compile(formula,
+				NumberPrecision.DOUBLE));
+		final DoubleExpressionFunction function = new BytecodeCompiler().compile(actual);
+		final FloatPostfixEvaluator expectedFloat = new FloatPostfixEvaluator(unoptimizedCompiler.compile(formula,
+				NumberPrecision.FLOAT));
+		final FloatPostfixEvaluator actualFloat = new FloatPostfixEvaluator(compiler.compile(formula,
+				NumberPrecision.FLOAT));
+		final BigDecimalPostfixEvaluator expectedBigDecimal = new BigDecimalPostfixEvaluator(
+				unoptimizedCompiler.compile(formula, NumberPrecision.BIG_DECIMAL));
+		final BigDecimalPostfixEvaluator actualBigDecimal = new BigDecimalPostfixEvaluator(compiler.compile(formula,
+				NumberPrecision.BIG_DECIMAL));
+		assertEquals(2, actual.getCompiledExpression().getLocalCount());
+
+		final int rowCount = 1000;
+		final double[][] columns = new double[2][rowCount];
+		final double[] out = new double[rowCount];
+
+		for (int row = 0; row < rowCount; row++) {
+			columns[actual.getSlot("x")][row] = row * 0.01;
+			columns[actual.getSlot("y")][row] = row * -0.03;
+		}
+
+		actual.evaluate(columns, rowCount, out);
+
+		for (int row = 0; row < rowCount; row++) {
+			final double[] slots = { columns[0][row], columns[1][row] };
+			final float[] floatSlots = { (float) slots[0], (float) slots[1] };
+			final BigDecimal[] bigDecimalSlots = { new BigDecimal(slots[0]), new BigDecimal(slots[1]) };
+
+			assertEquals(expected.evaluate(slots), actual.evaluate(slots), 0);
+			assertEquals(expected.evaluate(slots), out[row], 0);
+			assertEquals(expected.evaluate(slots), function.apply(slots), 0);
+			assertEquals(expectedFloat.evaluate(floatSlots), actualFloat.evaluate(floatSlots), 0);
+			assertEquals(expectedBigDecimal.evaluate(bigDecimalSlots), actualBigDecimal.evaluate(bigDecimalSlots));
+		}
+	}
+
+	/**
+	 * Checks the length of the program before the peephole pass fuses
+	 * instructions, which is what the tree optimizations control.
+	 */
+	private void assertProgramLength(int expectedLength, String formula, NumberPrecision numberPrecision)
+			throws ParseException {
+		assertEquals(formula, expectedLength, compiler.compile(formula, numberPrecision).toPostfix().length);
+	}
+}
@@ -0,0 +1,102 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestExpressionTemplateCache extends TestCase {
+	public void testInputsWithTheSameShapeShareATemplate() throws ParseException {
+		final ExpressionTemplateCache cache = new ExpressionTemplateCache(8);
+		final CompiledExpression first = cache.compile("1250*1.07^5", NumberPrecision.BIG_DECIMAL);
+		final CompiledExpression second = cache.compile("1300 * 1.07 ^ 6", NumberPrecision.BIG_DECIMAL);
+
+		assertSame(first.opcodes, second.opcodes);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.size());
+
+		assertEquals(new BigDecimalPostfixEvaluator("1250*1.07^5").evaluate(),
+				new BigDecimalPostfixEvaluator(first).evaluate());
+		assertEquals(new BigDecimalPostfixEvaluator("1300*1.07^6").evaluate(),
+				new BigDecimalPostfixEvaluator(second).evaluate());
+	}
+
+	public void testEveryLiteralIsAParameter() throws ParseException {
+		final ExpressionTemplateCache cache = new ExpressionTemplateCache(8);
+		assertEquals(4.0, new DoublePostfixEvaluator(cache.compile("2*2", NumberPrecision.DOUBLE)).evaluate(), 0);
+		assertEquals(6.0, new DoublePostfixEvaluator(cache.compile("2*3", NumberPrecision.DOUBLE)).evaluate(), 0);
+		assertEquals(1, cache.getHitCount());
+
+		final float[] variables = { 1 };
+		cache.compile("sin(x) * 0.5 + x", NumberPrecision.FLOAT);
+		final CompiledExpression rebound = cache.compile("sin(x) * 2 + x", NumberPrecision.FLOAT);
+		assertEquals(new FloatPostfixEvaluator("sin(x) * 2 + x").evaluate(variables),
+				new FloatPostfixEvaluator(rebound).evaluate(variables), 0);
+		assertEquals(2, cache.getHitCount());
+	}
+
+	public void testDifferentShapesMiss() throws ParseException {
+		final ExpressionTemplateCache cache = new ExpressionTemplateCache(8);
+		final String[] inputs = { "1+2", "1-2", "-2", "1*(2)", "a+1", "b+1", "ab+1", "sin(1)", "cos(1)", "pow(1,2)" };
+
+		for (String input : inputs) {
+			cache.compile(input, NumberPrecision.DOUBLE);
+		}
+
+		assertEquals(0, cache.getHitCount());
+		assertEquals(inputs.length, cache.getMissCount());
+
+		// Each precision has its own templates.
+		cache.compile("3+4", NumberPrecision.FLOAT);
+		assertEquals(0, cache.getHitCount());
+	}
+
+	public void testLeastRecentlyUsedTemplateIsReplaced() throws ParseException {
+		final ExpressionTemplateCache cache = new ExpressionTemplateCache(2);
+		cache.compile("1+2", NumberPrecision.BIG_DECIMAL);
+		cache.compile("1*2", NumberPrecision.BIG_DECIMAL);
+		cache.compile("3+4", NumberPrecision.BIG_DECIMAL);
+		cache.compile("1/2", NumberPrecision.BIG_DECIMAL);
+
+		assertEquals(2, cache.size());
+		cache.compile("5+6", NumberPrecision.BIG_DECIMAL);
+		assertEquals(2, cache.getHitCount());
+
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	public void testFailuresAreNotCached() throws ParseException {
+		final ExpressionTemplateCache cache = new ExpressionTemplateCache(8);
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.compile("2 +", NumberPrecision.DOUBLE);
+				fail();
+			} catch (ParseException e) {
+				// Expected
+			}
+		}
+
+		assertEquals(0, cache.size());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(0, BigDecimal.ONE.compareTo(new BigDecimalPostfixEvaluator(cache.compile("2 + -1",
+				NumberPrecision.BIG_DECIMAL)).evaluate()));
+	}
+}
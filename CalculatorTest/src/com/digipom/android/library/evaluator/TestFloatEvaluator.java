@@ -17,7 +17,6 @@ package com.digipom.android.library.evaluator;
 import junit.framework.TestCase;
 import android.util.FloatMath;
 
-import com.digipom.android.library.evaluator.PostfixEvaluator.FlatToken;
 import com.digipom.android.library.evaluator.exception.ParseException;
 
 public class TestFloatEvaluator extends TestCase {
@@ -127,18 +126,51 @@ public class TestFloatEvaluator extends TestCase {
 		});
 	}
 	
+	public void testBatchEvaluate() throws ParseException {
+		final FloatPostfixEvaluator evaluator = new FloatPostfixEvaluator("x / y - pow(abs(cos(x) + cos(y)), 0.5)");
+		final int xSlot = evaluator.getSlot("x");
+		final int ySlot = evaluator.getSlot("y");
+
+		// Use a row count that isn't a multiple of the chunk size.
+		final int rowCount = RESOLUTION * RESOLUTION * 3 + 7;
+		final float[][] columns = new float[2][rowCount];
+		final float[] out = new float[rowCount];
+
+		for (int row = 0; row < rowCount; row++) {
+			columns[xSlot][row] = row % RESOLUTION;
+			columns[ySlot][row] = row / RESOLUTION + 1;
+		}
+
+		evaluator.evaluate(columns, rowCount, out);
+
+		final float[] slots = new float[2];
+
+		for (int row = 0; row < rowCount; row++) {
+			slots[xSlot] = columns[xSlot][row];
+			slots[ySlot] = columns[ySlot][row];
+			assertEquals(evaluator.evaluate(slots), out[row], 0);
+		}
+	}
+
 	private void testCombos(int range, FloatPostfixEvaluator evaluator, ZCommand zCommand) throws ParseException {
-		FlatToken yIdentifier = evaluator.getIdentifier("y");
-		FlatToken xIdentifier = evaluator.getIdentifier("x");
+		final float[] slots = new float[evaluator.getCompiledExpression().getVariableCount()];
+		final int ySlot = evaluator.getSlot("y");
+		final int xSlot = evaluator.getSlot("x");
 		
 		for (int y = 0; y < range; y++) {
-			yIdentifier.floatValue = y;
+			bind(slots, ySlot, y);
 			
 			for (int x = 0; x < range; x++) {
-				xIdentifier.floatValue = x;
+				bind(slots, xSlot, x);
 				 				
-				assertEquals(zCommand.execute(x, y), evaluator.evaluate(), 0.001);
+				assertEquals(zCommand.execute(x, y), evaluator.evaluate(slots), 0.001);
 			}
 		}
 	}
+
+	private static void bind(float[] slots, int slot, float value) {
+		if (slot >= 0) {
+			slots[slot] = value;
+		}
+	}
 }
@@ -0,0 +1,137 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestFunctionCompiler extends TestCase {
+	// Covers every node shape, with and without the peephole pass, and shared
+	// subexpressions stored in locals.
+	private static final String[] FORMULAS = { "x + y", "x - 2", "2 * x", "x / y * 3 - y", "-x + abs(y)",
+			"sin(x) * cos(y) / tan(x)", "ln(abs(x)) + sqrt(abs(y))", "x^2 + y^0.5", "x^y", "(x + y)^3 / (x + y)",
+			"sin(cos(x) * cos(y)) + cos(x) * cos(y) / (sin(cos(x) * cos(y)) + 2)", "7" };
+
+	public void testClosureTreeMatchesInterpreter() throws ParseException {
+		final ExpressionCompiler unoptimizedCompiler = new ExpressionCompiler();
+		unoptimizedCompiler.setOptimizationEnabled(false);
+		final ExpressionCompiler relaxedCompiler = new ExpressionCompiler();
+		relaxedCompiler.setRelaxedMathEnabled(true);
+
+		for (ExpressionCompiler compiler : new ExpressionCompiler[] { new ExpressionCompiler(), unoptimizedCompiler,
+				relaxedCompiler }) {
+			for (String formula : FORMULAS) {
+				assertBackendsAgree(formula, compiler);
+			}
+		}
+	}
+
+	public void testBackendSelection() throws ParseException {
+		final FunctionCompiler functionCompiler = new FunctionCompiler();
+		assertEquals(Backend.BYTECODE, functionCompiler.getBackend());
+
+		final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator("x * y + 1");
+
+		for (Backend backend : Backend.values()) {
+			functionCompiler.setBackend(backend);
+			assertEquals(backend.toString(), 7.0, functionCompiler.compile(evaluator).apply(new double[] { 2, 3 }), 0);
+		}
+
+		try {
+			functionCompiler.setBackend(null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testClosureTreeIsReentrant() throws Exception {
+		final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator("cos(x) * cos(x) + cos(x)");
+		final DoubleExpressionFunction function = new FunctionCompiler(Backend.CLOSURE_TREE).compile(evaluator);
+		final Thread[] threads = new Thread[4];
+		final Throwable[] failures = new Throwable[threads.length];
+
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int x = 0; x < 10000; x++) {
+							final double[] slots = { x + index };
+							assertEquals(evaluator.evaluate(slots), function.apply(slots), 0);
+						}
+					} catch (Throwable t) {
+						failures[index] = t;
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			assertNull(failures[i]);
+		}
+	}
+
+	public void testDeepExpressions() throws ParseException {
+		// Deep enough to overflow the stack when evaluated recursively.
+		final StringBuilder input = new StringBuilder("1");
+
+		for (int i = 0; i < 20000; i++) {
+			input.append("+x");
+		}
+
+		final FunctionCompiler functionCompiler = new FunctionCompiler(Backend.CLOSURE_TREE);
+		assertEquals(10001.0, functionCompiler.compile(new DoublePostfixEvaluator(input.toString())).apply(
+				new double[] { 0.5 }), 0);
+		assertEquals(10001.0f, functionCompiler.compile(new FloatPostfixEvaluator(input.toString())).apply(
+				new float[] { 0.5f }), 0);
+	}
+
+	private static void assertBackendsAgree(String formula, ExpressionCompiler compiler) throws ParseException {
+		final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(compiler.compile(formula,
+				NumberPrecision.DOUBLE));
+		final FloatPostfixEvaluator floatEvaluator = new FloatPostfixEvaluator(compiler.compile(formula,
+				NumberPrecision.FLOAT));
+		final double[] slots = new double[evaluator.getCompiledExpression().getVariableCount()];
+		final float[] floatSlots = new float[slots.length];
+		final Random random = new Random(42);
+
+		for (Backend backend : Backend.values()) {
+			final FunctionCompiler functionCompiler = new FunctionCompiler(backend);
+			final DoubleExpressionFunction function = functionCompiler.compile(evaluator);
+			final FloatExpressionFunction floatFunction = functionCompiler.compile(floatEvaluator);
+
+			for (int row = 0; row < 500; row++) {
+				for (int slot = 0; slot < slots.length; slot++) {
+					slots[slot] = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8) - 4);
+					floatSlots[slot] = (float) slots[slot];
+				}
+
+				final String message = formula + " with " + backend;
+				assertEquals(message, Double.doubleToLongBits(evaluator.evaluate(slots)),
+						Double.doubleToLongBits(function.apply(slots)));
+				assertEquals(message, Float.floatToIntBits(floatEvaluator.evaluate(floatSlots)),
+						Float.floatToIntBits(floatFunction.apply(floatSlots)));
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class TestParallelBatchEvaluator extends TestCase {
+	private static final int ROW_COUNT = 100003;
+	private static final String FORMULA = "pow(abs(cos(x) + cos(y)), 0.5)";
+
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		super.tearDown();
+	}
+
+	public void testDoubleMatchesSequential() throws Exception {
+		final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(FORMULA);
+		final double[][] columns = new double[2][ROW_COUNT];
+
+		for (int row = 0; row < ROW_COUNT; row++) {
+			columns[0][row] = row * 0.001;
+			columns[1][row] = row * -0.002;
+		}
+
+		final double[] expected = new double[ROW_COUNT];
+		final double[] actual = new double[ROW_COUNT];
+		evaluator.evaluate(columns, ROW_COUNT, expected);
+		new ParallelBatchEvaluator(executor, 1000).evaluate(evaluator, columns, ROW_COUNT, actual);
+
+		for (int row = 0; row < ROW_COUNT; row++) {
+			assertEquals(expected[row], actual[row], 0);
+		}
+	}
+
+	public void testNoWritesAfterAFailure() throws Exception {
+		final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(FORMULA);
+		// The calling thread's range runs past the end of the columns.
+		final double[][] columns = new double[2][ROW_COUNT - 1];
+		final double[] actual = new double[ROW_COUNT];
+
+		try {
+			new ParallelBatchEvaluator(executor, 1000).evaluate(evaluator, columns, ROW_COUNT, actual);
+			fail();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// Expected
+		}
+
+		final double[] snapshot = actual.clone();
+		Thread.sleep(50);
+
+		for (int row = 0; row < ROW_COUNT; row++) {
+			assertEquals(snapshot[row], actual[row], 0);
+		}
+	}
+
+	public void testFloatMatchesSequential() throws Exception {
+		final FloatPostfixEvaluator evaluator = new FloatPostfixEvaluator(FORMULA);
+		final float[][] columns = new float[2][ROW_COUNT];
+
+		for (int row = 0; row < ROW_COUNT; row++) {
+			columns[0][row] = row * 0.001f;
+			columns[1][row] = row * -0.002f;
+		}
+
+		final float[] expected = new float[ROW_COUNT];
+		final float[] actual = new float[ROW_COUNT];
+		evaluator.evaluate(columns, ROW_COUNT, expected);
+		new ParallelBatchEvaluator(executor).evaluate(evaluator, columns, ROW_COUNT, actual);
+
+		for (int row = 0; row < ROW_COUNT; row++) {
+			assertEquals(expected[row], actual[row], 0);
+		}
+	}
+}
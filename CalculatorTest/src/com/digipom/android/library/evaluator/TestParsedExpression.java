@@ -0,0 +1,90 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestParsedExpression extends TestCase {
+	private static final String[] FORMULAS = { "0.1 + 0.2", "0.1 + 0.10 * x", "1.0000000001 * x", "16777217 + x",
+			"1e+50 * x", "2.5e-3 ^ 2", "x ^ 2 + sin(x) * sin(x)", "-0.0 * x", "123456789012345678901234567890 / y",
+			"(a + b) / 3 - 0.3333333333333333333" };
+
+	public void testLoweringMatchesCompilingInEachPrecision() throws ParseException {
+		for (int settings = 0; settings < 4; settings++) {
+			final ExpressionCompiler compiler = new ExpressionCompiler();
+			compiler.setOptimizationEnabled((settings & 1) != 0);
+			compiler.setRelaxedMathEnabled((settings & 2) != 0);
+
+			for (String formula : FORMULAS) {
+				final ParsedExpression parsedExpression = compiler.parse(formula);
+
+				for (NumberPrecision numberPrecision : NumberPrecision.values()) {
+					assertSameProgram(formula, compiler.compile(formula, numberPrecision),
+							parsedExpression.compile(numberPrecision));
+				}
+			}
+		}
+	}
+
+	public void testEachPrecisionIsCompiledOnce() throws ParseException {
+		final ParsedExpression parsedExpression = new ExpressionCompiler().parse("1/3 + x");
+		assertFalse(parsedExpression.isCompiled(NumberPrecision.DOUBLE));
+
+		final CompiledExpression preview = parsedExpression.compile(NumberPrecision.DOUBLE);
+		assertTrue(parsedExpression.isCompiled(NumberPrecision.DOUBLE));
+		assertFalse(parsedExpression.isCompiled(NumberPrecision.BIG_DECIMAL));
+		assertSame(preview, parsedExpression.compile(NumberPrecision.DOUBLE));
+
+		assertEquals(1.0 / 3 + 1, new DoublePostfixEvaluator(preview).evaluate(new double[] { 1 }), 0);
+		final BigDecimal exact = new BigDecimalPostfixEvaluator(parsedExpression.compile(NumberPrecision.BIG_DECIMAL))
+				.evaluate(new BigDecimal[] { BigDecimal.ONE });
+		assertEquals(0, new BigDecimal("1.333333333333333333333333333333333").compareTo(exact));
+	}
+
+	public void testCompilerSettingsAreCopied() throws ParseException {
+		final ExpressionCompiler compiler = new ExpressionCompiler();
+		compiler.setOptimizationEnabled(false);
+		final ParsedExpression parsedExpression = compiler.parse("2 * 3");
+		compiler.setOptimizationEnabled(true);
+
+		assertEquals(3, parsedExpression.compile(NumberPrecision.FLOAT).getProgramLength());
+	}
+
+	public void testMalformedExpressionsFailToParse() {
+		try {
+			new ExpressionCompiler().parse("2 +");
+			fail();
+		} catch (ParseException e) {
+			// Expected
+		}
+	}
+
+	private static void assertSameProgram(String formula, CompiledExpression expected, CompiledExpression actual) {
+		assertEquals(formula, expected.numberPrecision, actual.numberPrecision);
+		assertTrue(formula, Arrays.equals(expected.opcodes, actual.opcodes));
+		assertTrue(formula, Arrays.equals(expected.operands, actual.operands));
+		assertTrue(formula, Arrays.equals(expected.floatConstants, actual.floatConstants));
+		assertTrue(formula, Arrays.equals(expected.doubleConstants, actual.doubleConstants));
+		assertTrue(formula, Arrays.equals(expected.bigDecimalConstants, actual.bigDecimalConstants));
+		assertTrue(formula, Arrays.equals(expected.variableNames, actual.variableNames));
+		assertEquals(formula, expected.localCount, actual.localCount);
+		assertEquals(formula, expected.maxStackDepth, actual.maxStackDepth);
+	}
+}
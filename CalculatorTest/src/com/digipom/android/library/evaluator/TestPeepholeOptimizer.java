@@ -0,0 +1,204 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestPeepholeOptimizer extends TestCase {
+	private static final String[] EXACT_FORMULAS = { "x^2", "x^0.5", "pow(x, 0.5)", "x^1 + y", "x / 8",
+			"x / 3", "x + y", "x - 2", "y * x / y", "sin(x)^2 + cos(x)^2", "(x + y) ^ 0.5 * 3" };
+
+	private final ExpressionCompiler compiler = new ExpressionCompiler();
+
+	public void testFusedInstructions() throws ParseException {
+		assertOpcodes("x + y", NumberPrecision.DOUBLE, Opcode.LOAD_VARIABLE, Opcode.ADD_VARIABLE);
+		assertOpcodes("x - 2", NumberPrecision.BIG_DECIMAL, Opcode.LOAD_VARIABLE, Opcode.SUBTRACT_CONSTANT);
+		assertOpcodes("x^2", NumberPrecision.FLOAT, Opcode.LOAD_VARIABLE, Opcode.SQUARE);
+		assertOpcodes("pow(x, 0.5)", NumberPrecision.DOUBLE, Opcode.LOAD_VARIABLE, Opcode.POWER_HALF);
+		assertOpcodes("x^3", NumberPrecision.BIG_DECIMAL, Opcode.LOAD_VARIABLE, Opcode.POWER_INTEGER);
+	}
+
+	public void testOnlyExactDivisionsAreReplaced() throws ParseException {
+		assertOpcodes("x / 8", NumberPrecision.DOUBLE, Opcode.LOAD_VARIABLE, Opcode.MULTIPLY_CONSTANT);
+		assertOpcodes("x / 0.25", NumberPrecision.FLOAT, Opcode.LOAD_VARIABLE, Opcode.MULTIPLY_CONSTANT);
+		assertOpcodes("x / 3", NumberPrecision.DOUBLE, Opcode.LOAD_VARIABLE, Opcode.DIVIDE_CONSTANT);
+		assertOpcodes("x / 8", NumberPrecision.BIG_DECIMAL, Opcode.LOAD_VARIABLE, Opcode.DIVIDE_CONSTANT);
+		assertOpcodes("x^3", NumberPrecision.DOUBLE, Opcode.LOAD_VARIABLE, Opcode.LOAD_CONSTANT, Opcode.POWER);
+		assertOpcodes("x^(-1)", NumberPrecision.DOUBLE, Opcode.LOAD_VARIABLE, Opcode.LOAD_CONSTANT, Opcode.POWER);
+	}
+
+	public void testRelaxedMath() throws ParseException {
+		final ExpressionCompiler relaxedCompiler = new ExpressionCompiler();
+		relaxedCompiler.setRelaxedMathEnabled(true);
+
+		CompiledExpression compiledExpression = relaxedCompiler.compile("x^5", NumberPrecision.DOUBLE);
+		assertEquals(Opcode.POWER_INTEGER, compiledExpression.opcodes[1]);
+		assertEquals(243.0, new DoublePostfixEvaluator(compiledExpression).evaluate(new double[] { 3 }), 0);
+
+		compiledExpression = relaxedCompiler.compile("x^(-1)", NumberPrecision.DOUBLE);
+		assertEquals(Opcode.RECIPROCAL, compiledExpression.opcodes[1]);
+
+		compiledExpression = relaxedCompiler.compile("x / 3", NumberPrecision.DOUBLE);
+		assertEquals(Opcode.MULTIPLY_CONSTANT, compiledExpression.opcodes[1]);
+		assertEquals(2.0, new DoublePostfixEvaluator(compiledExpression).evaluate(new double[] { 6 }), 1e-15);
+
+		// Division by zero has no reciprocal to multiply by.
+		compiledExpression = relaxedCompiler.compile("x / 0", NumberPrecision.DOUBLE);
+		assertEquals(Opcode.DIVIDE_CONSTANT, compiledExpression.opcodes[1]);
+	}
+
+	public void testDecimalIntegerPowersAreExact() throws ParseException {
+		final BigDecimalPostfixEvaluator evaluator = new BigDecimalPostfixEvaluator("x^3 + x^2");
+		assertEquals(new BigDecimal("2.541"), evaluator.evaluate(new BigDecimal[] { new BigDecimal("1.1") }));
+	}
+
+	public void testDoubleMatchesUnoptimized() throws ParseException {
+		final ExpressionCompiler unoptimizedCompiler = new ExpressionCompiler();
+		unoptimizedCompiler.setOptimizationEnabled(false);
+		final BytecodeCompiler bytecodeCompiler = new BytecodeCompiler();
+		final double[][] columns = doubleColumns();
+		final int rowCount = columns[0].length;
+
+		for (String formula : EXACT_FORMULAS) {
+			final DoublePostfixEvaluator expected = new DoublePostfixEvaluator(unoptimizedCompiler.compile(formula,
+					NumberPrecision.DOUBLE));
+			final DoublePostfixEvaluator actual = new DoublePostfixEvaluator(compiler.compile(formula,
+					NumberPrecision.DOUBLE));
+			final DoubleExpressionFunction function = bytecodeCompiler.compile(actual);
+			final double[] out = new double[rowCount];
+			actual.evaluate(columns, rowCount, out);
+
+			for (int row = 0; row < rowCount; row++) {
+				final double[] slots = { columns[0][row], columns[1][row] };
+				final long expectedBits = Double.doubleToLongBits(expected.evaluate(slots));
+				final String message = formula + " at " + slots[0] + ", " + slots[1];
+
+				assertEquals(message, expectedBits, Double.doubleToLongBits(actual.evaluate(slots)));
+				assertEquals(message, expectedBits, Double.doubleToLongBits(out[row]));
+				assertEquals(message, expectedBits, Double.doubleToLongBits(function.apply(slots)));
+			}
+		}
+	}
+
+	public void testFloatMatchesUnoptimized() throws ParseException {
+		final ExpressionCompiler unoptimizedCompiler = new ExpressionCompiler();
+		unoptimizedCompiler.setOptimizationEnabled(false);
+		final BytecodeCompiler bytecodeCompiler = new BytecodeCompiler();
+		final double[][] doubleColumns = doubleColumns();
+		final int rowCount = doubleColumns[0].length;
+		final float[][] columns = new float[2][rowCount];
+
+		for (int row = 0; row < rowCount; row++) {
+			columns[0][row] = (float) doubleColumns[0][row];
+			columns[1][row] = (float) doubleColumns[1][row];
+		}
+
+		for (String formula : EXACT_FORMULAS) {
+			final FloatPostfixEvaluator expected = new FloatPostfixEvaluator(unoptimizedCompiler.compile(formula,
+					NumberPrecision.FLOAT));
+			final FloatPostfixEvaluator actual = new FloatPostfixEvaluator(compiler.compile(formula,
+					NumberPrecision.FLOAT));
+			final FloatExpressionFunction function = bytecodeCompiler.compile(actual);
+			final float[] out = new float[rowCount];
+			actual.evaluate(columns, rowCount, out);
+
+			for (int row = 0; row < rowCount; row++) {
+				final float[] slots = { columns[0][row], columns[1][row] };
+				final int expectedBits = Float.floatToIntBits(expected.evaluate(slots));
+				final String message = formula + " at " + slots[0] + ", " + slots[1];
+
+				assertEquals(message, expectedBits, Float.floatToIntBits(actual.evaluate(slots)));
+				assertEquals(message, expectedBits, Float.floatToIntBits(out[row]));
+				assertEquals(message, expectedBits, Float.floatToIntBits(function.apply(slots)));
+			}
+		}
+	}
+
+	public void testRelaxedBackendsAgree() throws ParseException {
+		final ExpressionCompiler relaxedCompiler = new ExpressionCompiler();
+		relaxedCompiler.setRelaxedMathEnabled(true);
+		final double[][] columns = doubleColumns();
+		final int rowCount = columns[0].length;
+
+		for (String formula : new String[] { "x^3 + y^7", "x^64 / 3", "(x + y)^12 * x^(-1)" }) {
+			final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(relaxedCompiler.compile(formula,
+					NumberPrecision.DOUBLE));
+			final DoubleExpressionFunction function = new BytecodeCompiler().compile(evaluator);
+			final double[] out = new double[rowCount];
+			evaluator.evaluate(columns, rowCount, out);
+
+			for (int row = 0; row < rowCount; row++) {
+				final double[] slots = { columns[0][row], columns[1][row] };
+				final long expectedBits = Double.doubleToLongBits(evaluator.evaluate(slots));
+
+				assertEquals(formula, expectedBits, Double.doubleToLongBits(out[row]));
+				assertEquals(formula, expectedBits, Double.doubleToLongBits(function.apply(slots)));
+			}
+		}
+
+		final FloatPostfixEvaluator evaluator = new FloatPostfixEvaluator(relaxedCompiler.compile(
+				"x^5 * y^(-1) + x^0.5", NumberPrecision.FLOAT));
+		final FloatExpressionFunction function = new BytecodeCompiler().compile(evaluator);
+
+		for (int row = 0; row < rowCount; row++) {
+			final float[] slots = { (float) columns[0][row], (float) columns[1][row] };
+			assertEquals(Float.floatToIntBits(evaluator.evaluate(slots)), Float.floatToIntBits(function.apply(slots)));
+		}
+	}
+
+	private void assertOpcodes(String formula, NumberPrecision numberPrecision, int... expectedOpcodes)
+			throws ParseException {
+		final int[] opcodes = compiler.compile(formula, numberPrecision).opcodes;
+		assertEquals(formula, expectedOpcodes.length, opcodes.length);
+
+		for (int i = 0; i < opcodes.length; i++) {
+			assertEquals(formula, expectedOpcodes[i], opcodes[i]);
+		}
+	}
+
+	/**
+	 * Returns special values followed by random ones, for x and y.
+	 */
+	private static double[][] doubleColumns() {
+		final double[] specialValues = { 0.0, -0.0, 1.0, -1.0, 2.0, 0.5, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, Double.NaN, Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE,
+				1e-310, 1e300, -1e300 };
+		final int rowCount = specialValues.length * specialValues.length + 2000;
+		final double[][] columns = new double[2][rowCount];
+		int row = 0;
+
+		for (double x : specialValues) {
+			for (double y : specialValues) {
+				columns[0][row] = x;
+				columns[1][row] = y;
+				row++;
+			}
+		}
+
+		final Random random = new Random(42);
+
+		for (; row < rowCount; row++) {
+			columns[0][row] = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 10);
+			columns[1][row] = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 10);
+		}
+
+		return columns;
+	}
+}
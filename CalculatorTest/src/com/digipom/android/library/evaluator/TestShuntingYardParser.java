@@ -14,65 +14,66 @@
 
 package com.digipom.android.library.evaluator;
 
-import java.util.List;
-
 import android.test.AndroidTestCase;
 
 import com.digipom.android.library.evaluator.exception.ParseException;
-import com.digipom.android.library.evaluator.lexer.Identifier;
-import com.digipom.android.library.evaluator.lexer.NumberLiteral;
-import com.digipom.android.library.evaluator.lexer.Operator;
-import com.digipom.android.library.evaluator.lexer.Token;
 
 public class TestShuntingYardParser extends AndroidTestCase {
 	public void testSimpleExpression() throws ParseException {
-		final ShuntingYardParser shuntingYardParser = new ShuntingYardParser("a + b", NumberPrecision.FLOAT);
-		final List<Token> output = shuntingYardParser.parse();
-
-		assertTrue(output.get(0) instanceof Identifier);
-		assertTrue(output.get(1) instanceof Identifier);
-		assertTrue(output.get(2) == Operator.ADD);
+		assertProgram("a + b", Opcode.LOAD_VARIABLE, Opcode.LOAD_VARIABLE, Opcode.ADD);
 	}
 
 	public void testOperatorPrecedence() throws ParseException {
-		final ShuntingYardParser shuntingYardParser = new ShuntingYardParser("a + b * 5", NumberPrecision.FLOAT);
-		final List<Token> output = shuntingYardParser.parse();
-
-		assertTrue(output.get(0) instanceof Identifier);
-		assertTrue(output.get(1) instanceof Identifier);
-		assertTrue(output.get(2) instanceof NumberLiteral);
-		assertTrue(output.get(3) == Operator.MULTIPLY);
-		assertTrue(output.get(4) == Operator.ADD);
+		assertProgram("a + b * 5", Opcode.LOAD_VARIABLE, Opcode.LOAD_VARIABLE, Opcode.LOAD_CONSTANT,
+				Opcode.MULTIPLY, Opcode.ADD);
 	}
 
 	public void testNegation() throws ParseException {
-		final ShuntingYardParser shuntingYardParser = new ShuntingYardParser("-a + b", NumberPrecision.FLOAT);
-		final List<Token> output = shuntingYardParser.parse();
-
-		assertTrue(output.get(0) instanceof Identifier);
-		assertTrue(output.get(1) == Operator.NEGATION);
-		assertTrue(output.get(2) instanceof Identifier);
-		assertTrue(output.get(3) == Operator.ADD);
+		assertProgram("-a + b", Opcode.LOAD_VARIABLE, Opcode.NEGATE, Opcode.LOAD_VARIABLE, Opcode.ADD);
 	}
 
 	public void testBrackets() throws ParseException {
-
-		final ShuntingYardParser shuntingYardParser = new ShuntingYardParser("(a+b)*(5-x)/(-y-2)",
-				NumberPrecision.FLOAT);
 		// a b + 5 x - * y .- 2 - /
-		final List<Token> output = shuntingYardParser.parse();
+		assertProgram("(a+b)*(5-x)/(-y-2)", Opcode.LOAD_VARIABLE, Opcode.LOAD_VARIABLE, Opcode.ADD,
+				Opcode.LOAD_CONSTANT, Opcode.LOAD_VARIABLE, Opcode.SUBTRACT, Opcode.MULTIPLY, Opcode.LOAD_VARIABLE,
+				Opcode.NEGATE, Opcode.LOAD_CONSTANT, Opcode.SUBTRACT, Opcode.DIVIDE);
+	}
+
+	public void testFunctions() throws ParseException {
+		assertProgram("pow(sin(x), 2) ^ 3 ^ 2", Opcode.LOAD_VARIABLE, Opcode.SIN, Opcode.LOAD_CONSTANT,
+				Opcode.POWER, Opcode.LOAD_CONSTANT, Opcode.LOAD_CONSTANT, Opcode.POWER, Opcode.POWER);
+	}
+
+	public void testOperandsAreResolved() throws ParseException {
+		final CompiledExpression compiledExpression = new ShuntingYardParser("y * 2 + x * 2 + Y",
+				NumberPrecision.DOUBLE).parse();
+
+		assertEquals(2, compiledExpression.variableNames.length);
+		assertEquals("y", compiledExpression.variableNames[0]);
+		assertEquals("x", compiledExpression.variableNames[1]);
+		assertEquals(0, compiledExpression.operands[4]);
+		assertEquals(1, compiledExpression.doubleConstants.length);
+		assertEquals(2.0, compiledExpression.doubleConstants[0]);
+		assertEquals(3, compiledExpression.getMaxStackDepth());
+	}
+
+	public void testMalformedExpressions() {
+		for (String input : new String[] { "", "x y", "x +", "pow(x)", "(x", "x)", "x, y", "sin()" }) {
+			try {
+				new ShuntingYardParser(input, NumberPrecision.DOUBLE).parse();
+				fail(input);
+			} catch (ParseException e) {
+				// Expected
+			}
+		}
+	}
+
+	private static void assertProgram(String input, int... expectedOpcodes) throws ParseException {
+		final int[] opcodes = new ShuntingYardParser(input, NumberPrecision.FLOAT).parse().opcodes;
+		assertEquals(input, expectedOpcodes.length, opcodes.length);
 
-		assertTrue(output.get(0) instanceof Identifier);
-		assertTrue(output.get(1) instanceof Identifier);
-		assertTrue(output.get(2) == Operator.ADD);
-		assertTrue(output.get(3) instanceof NumberLiteral);
-		assertTrue(output.get(4) instanceof Identifier);
-		assertTrue(output.get(5) == Operator.SUBTRACT);
-		assertTrue(output.get(6) == Operator.MULTIPLY);
-		assertTrue(output.get(7) instanceof Identifier);
-		assertTrue(output.get(8) == Operator.NEGATION);
-		assertTrue(output.get(9) instanceof NumberLiteral);
-		assertTrue(output.get(10) == Operator.SUBTRACT);
-		assertTrue(output.get(11) == Operator.DIVIDE);
+		for (int i = 0; i < opcodes.length; i++) {
+			assertEquals(input, expectedOpcodes[i], opcodes[i]);
+		}
 	}
 }
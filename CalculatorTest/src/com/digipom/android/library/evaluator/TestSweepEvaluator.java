@@ -0,0 +1,149 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestSweepEvaluator extends TestCase {
+	private static final String[] FORMULAS = { "x + y", "sin(y) + cos(x)", "pow(abs(cos(x) + cos(y)), 0.5)",
+			"abs(cos(x) + cos(y)) ^ 0.5", "x^2 * y^2", "sin(y) * cos(y) + x * sin(y) + 2" };
+
+	public void testHoistedCount() throws ParseException {
+		assertEquals(1, new DoubleSweepEvaluator("sin(y) + cos(x)", "y", "x").getHoistedCount());
+		assertEquals(0, new DoubleSweepEvaluator("x + y", "y", "x").getHoistedCount());
+		assertEquals(2, new DoubleSweepEvaluator("sin(y) * cos(y) + x * sin(y)", "y", "x").getHoistedCount());
+	}
+
+	public void testDoubleMatchesPerRow() throws ParseException {
+		final double[] ys = axis(37, -2.5);
+		final double[] xs = axis(300, 0.75);
+
+		for (String formula : FORMULAS) {
+			final CompiledExpression compiledExpression = new ExpressionCompiler().compile(formula,
+					NumberPrecision.DOUBLE);
+			final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(compiledExpression);
+			final double[] out = new double[ys.length * xs.length];
+			new DoubleSweepEvaluator(compiledExpression, "y", "x").evaluate(new double[2], new double[][] { ys, xs },
+					out);
+
+			final double[] slots = new double[2];
+
+			for (int y = 0; y < ys.length; y++) {
+				slots[evaluator.getSlot("y")] = ys[y];
+
+				for (int x = 0; x < xs.length; x++) {
+					slots[evaluator.getSlot("x")] = xs[x];
+					assertEquals(formula, evaluator.evaluate(slots), out[y * xs.length + x], 0);
+				}
+			}
+		}
+	}
+
+	public void testDoubleThreeDimensions() throws ParseException {
+		final String formula = "sin(z) * cos(y) + sqrt(abs(z * y)) * x + a";
+		final DoublePostfixEvaluator evaluator = new DoublePostfixEvaluator(formula);
+		final double[] zs = axis(5, 1.5);
+		final double[] ys = axis(7, -0.5);
+		final double[] xs = axis(11, 0.25);
+
+		final double[] slots = new double[4];
+		slots[evaluator.getSlot("a")] = 10;
+
+		final DoubleSweepEvaluator sweepEvaluator = new DoubleSweepEvaluator(evaluator.getCompiledExpression(),
+				"z", "y", "x");
+		final double[] out = new double[zs.length * ys.length * xs.length];
+		sweepEvaluator.evaluate(slots, new double[][] { zs, ys, xs }, out);
+		assertEquals(3, sweepEvaluator.getHoistedCount());
+
+		int index = 0;
+
+		for (double z : zs) {
+			slots[evaluator.getSlot("z")] = z;
+
+			for (double y : ys) {
+				slots[evaluator.getSlot("y")] = y;
+
+				for (double x : xs) {
+					slots[evaluator.getSlot("x")] = x;
+					assertEquals(evaluator.evaluate(slots), out[index++], 0);
+				}
+			}
+		}
+	}
+
+	public void testFloatMatchesPerRow() throws ParseException {
+		final float[] ys = new float[19];
+		final float[] xs = new float[600];
+
+		for (int i = 0; i < ys.length; i++) {
+			ys[i] = i * -0.3f;
+		}
+
+		for (int i = 0; i < xs.length; i++) {
+			xs[i] = i * 0.01f;
+		}
+
+		for (String formula : FORMULAS) {
+			final FloatPostfixEvaluator evaluator = new FloatPostfixEvaluator(formula);
+			final float[] out = new float[ys.length * xs.length];
+			new FloatSweepEvaluator(evaluator.getCompiledExpression(), "y", "x").evaluate(new float[2],
+					new float[][] { ys, xs }, out);
+
+			final float[] slots = new float[2];
+
+			for (int y = 0; y < ys.length; y++) {
+				slots[evaluator.getSlot("y")] = ys[y];
+
+				for (int x = 0; x < xs.length; x++) {
+					slots[evaluator.getSlot("x")] = xs[x];
+					assertEquals(formula, evaluator.evaluate(slots), out[y * xs.length + x], 0);
+				}
+			}
+		}
+	}
+
+	public void testUnreadSweepVariable() throws ParseException {
+		final double[] out = new double[6];
+		new DoubleSweepEvaluator("2 * y", "y", "x").evaluate(new double[1], new double[][] { { 1, 2 }, { 0, 0, 0 } },
+				out);
+
+		assertEquals(2.0, out[0], 0);
+		assertEquals(2.0, out[2], 0);
+		assertEquals(4.0, out[3], 0);
+		assertEquals(4.0, out[5], 0);
+	}
+
+	public void testWrongAxisCount() throws ParseException {
+		try {
+			new DoubleSweepEvaluator("x + y", "y", "x").evaluate(new double[2], new double[][] { { 1 } },
+					new double[1]);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	private static double[] axis(int length, double step) {
+		final double[] values = new double[length];
+
+		for (int i = 0; i < length; i++) {
+			values[i] = i * step;
+		}
+
+		return values;
+	}
+}
@@ -0,0 +1,187 @@
+//   Copyright 2012 Digipom Inc.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.digipom.android.library.evaluator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.TestCase;
+
+import com.digipom.android.library.evaluator.exception.ParseException;
+
+public class TestTieredCompiler extends TestCase {
+	private static final Executor DIRECT_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final List<String> transitions = new ArrayList<String>();
+	private final TieredCompiler compiler = new TieredCompiler();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		compiler.setClosureTreeThreshold(10);
+		compiler.setBytecodeThreshold(100);
+		compiler.setExecutor(DIRECT_EXECUTOR);
+		compiler.setTierListener(new TierListener() {
+			@Override
+			public void onTierChanged(String input, Backend fromTier, Backend toTier, long evaluationCount,
+					long compileNanos) {
+				transitions.add(input + ": " + fromTier + " -> " + toTier + " at " + evaluationCount);
+			}
+		});
+	}
+
+	public void testPromotion() throws ParseException {
+		final TieredDoubleFunction function = compiler.compileDouble("sin(x) * sin(x) + 2 * 3");
+		final DoublePostfixEvaluator expected = new DoublePostfixEvaluator("sin(x) * sin(x) + 2 * 3");
+		assertEquals(Backend.INTERPRETER, function.getTier());
+
+		for (int i = 0; i < 200; i++) {
+			final double[] slots = { i * 0.1 };
+			assertEquals(Double.doubleToLongBits(expected.evaluate(slots)),
+					Double.doubleToLongBits(function.apply(slots)));
+
+			if (i == 8) {
+				assertEquals(Backend.INTERPRETER, function.getTier());
+			} else if (i == 9) {
+				assertEquals(Backend.CLOSURE_TREE, function.getTier());
+			}
+		}
+
+		assertEquals(200, function.getEvaluationCount());
+
+		if (BytecodeCompiler.isAvailable()) {
+			assertEquals(Backend.BYTECODE, function.getTier());
+			assertEquals(2, transitions.size());
+			assertEquals("sin(x) * sin(x) + 2 * 3: CLOSURE_TREE -> BYTECODE at 100", transitions.get(1));
+		} else {
+			assertEquals(Backend.CLOSURE_TREE, function.getTier());
+			assertEquals(1, transitions.size());
+		}
+
+		assertEquals("sin(x) * sin(x) + 2 * 3: INTERPRETER -> CLOSURE_TREE at 10", transitions.get(0));
+	}
+
+	public void testFloatPromotion() throws ParseException {
+		compiler.setBytecodeThreshold(Integer.MAX_VALUE);
+		final TieredFloatFunction function = compiler.compileFloat("x / 8 + y^2");
+		final float[] slots = new float[2];
+		slots[function.getSlot("x")] = 3;
+		slots[function.getSlot("y")] = 0.5f;
+
+		for (int i = 0; i < 50; i++) {
+			assertEquals(0.625f, function.apply(slots), 0);
+		}
+
+		assertEquals(Backend.CLOSURE_TREE, function.getTier());
+		assertEquals(1, transitions.size());
+	}
+
+	public void testBackgroundPromotion() throws Exception {
+		compiler.setExecutor(null);
+		final TieredDoubleFunction function = compiler.compileDouble("x + 1");
+		final long deadline = System.currentTimeMillis() + 10000;
+
+		while (function.getTier() == Backend.INTERPRETER && System.currentTimeMillis() < deadline) {
+			assertEquals(3.0, function.apply(new double[] { 2 }), 0);
+			Thread.sleep(1);
+		}
+
+		assertFalse(function.getTier() == Backend.INTERPRETER);
+	}
+
+	public void testRejectedPromotionIsRetried() throws ParseException {
+		final int[] rejections = new int[1];
+		compiler.setBytecodeThreshold(Integer.MAX_VALUE);
+		compiler.setExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if (rejections[0]++ == 0) {
+					throw new RejectedExecutionException();
+				}
+
+				command.run();
+			}
+		});
+		final TieredDoubleFunction function = compiler.compileDouble("x + 1");
+
+		for (int i = 0; i < 19; i++) {
+			assertEquals(3.0, function.apply(new double[] { 2 }), 0);
+		}
+
+		assertEquals(Backend.INTERPRETER, function.getTier());
+		assertEquals(1, rejections[0]);
+
+		assertEquals(3.0, function.apply(new double[] { 2 }), 0);
+		assertEquals(Backend.CLOSURE_TREE, function.getTier());
+		assertEquals(2, rejections[0]);
+	}
+
+	public void testDeepProgramsStayInterpreted() throws ParseException {
+		final StringBuilder input = new StringBuilder("1");
+
+		for (int i = 0; i < 20000; i++) {
+			input.append("+x");
+		}
+
+		final TieredDoubleFunction function = compiler.compileDouble(input.toString());
+
+		for (int i = 0; i < 200; i++) {
+			assertEquals(10001.0, function.apply(new double[] { 0.5 }), 0);
+		}
+
+		assertEquals(Backend.INTERPRETER, function.getTier());
+		assertTrue(transitions.isEmpty());
+	}
+
+	public void testFailedPromotionIsNotRetried() throws ParseException {
+		final int[] promotions = new int[1];
+		compiler.setExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				promotions[0]++;
+				command.run();
+			}
+		});
+		final TieredFunction function = new TieredFunction("x + 1", NumberPrecision.DOUBLE, compiler) {
+			@Override
+			void install(CompiledExpression program, Backend backend) {
+				throw new IllegalStateException();
+			}
+		};
+
+		for (int i = 0; i < 200; i++) {
+			function.countEvaluation();
+		}
+
+		assertEquals(Backend.INTERPRETER, function.getTier());
+		assertEquals(1, promotions[0]);
+	}
+
+	public void testInvalidThreshold() {
+		try {
+			compiler.setClosureTreeThreshold(0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
@@ -14,6 +14,9 @@
 
 package com.digipom.android.library.evaluator.lexer;
 
+import java.math.BigDecimal;
+import java.util.Random;
+
 import junit.framework.TestCase;
 
 import com.digipom.android.library.evaluator.NumberPrecision;
@@ -225,4 +228,94 @@ public class TestLexer extends TestCase {
 
 		assertEquals(lexer.nextToken(), Token.EOF);
 	}
+
+	public void testFunctionsMatchInAnyCase() throws ParseException {
+		final Lexer lexer = new Lexer("SIN(X) + Sqrt(x) + lN(xs) + cosine", NumberPrecision.DOUBLE);
+
+		assertEquals(lexer.nextToken(), PredefinedFunction.SIN);
+		assertEquals(lexer.nextToken(), Parenthesis.OPEN);
+		final Token x = lexer.nextToken();
+		assertEquals(((Identifier) x).name, "x");
+		assertEquals(lexer.nextToken(), Parenthesis.CLOSE);
+		assertEquals(lexer.nextToken(), Operator.ADD);
+		assertEquals(lexer.nextToken(), PredefinedFunction.SQRT);
+		assertEquals(lexer.nextToken(), Parenthesis.OPEN);
+
+		// The same identifier, in either case.
+		assertSame(x, lexer.nextToken());
+		assertEquals(lexer.nextToken(), Parenthesis.CLOSE);
+		assertEquals(lexer.nextToken(), Operator.ADD);
+		assertEquals(lexer.nextToken(), PredefinedFunction.LN);
+		assertEquals(lexer.nextToken(), Parenthesis.OPEN);
+		assertEquals(((Identifier) lexer.nextToken()).name, "xs");
+		assertEquals(lexer.nextToken(), Parenthesis.CLOSE);
+		assertEquals(lexer.nextToken(), Operator.ADD);
+		assertEquals(((Identifier) lexer.nextToken()).name, "cosine");
+		assertEquals(lexer.nextToken(), Token.EOF);
+	}
+
+	public void testLexCharArray() throws ParseException {
+		final Lexer lexer = new Lexer("  2.5*y ".toCharArray(), NumberPrecision.BIG_DECIMAL);
+
+		assertEquals(((BigDecimalNumberLiteral) lexer.nextToken()).value, new BigDecimal("2.5"));
+		assertEquals(lexer.nextToken(), Operator.MULTIPLY);
+		assertEquals(((Identifier) lexer.nextToken()).name, "y");
+		assertEquals(lexer.nextToken(), Token.EOF);
+	}
+
+	public void testSubtractionAfterParenthesis() throws ParseException {
+		final Lexer lexer = new Lexer("(x)-1", NumberPrecision.DOUBLE);
+
+		assertEquals(lexer.nextToken(), Parenthesis.OPEN);
+		assertTrue(lexer.nextToken() instanceof Identifier);
+		assertEquals(lexer.nextToken(), Parenthesis.CLOSE);
+		assertEquals(lexer.nextToken(), Operator.SUBTRACT);
+	}
+
+	public void testNumbersMatchStringParsing() throws ParseException {
+		final Random random = new Random(42);
+		final String[] literals = new String[2000];
+		final String[] fixedLiterals = { "0", "0.0", "007", "1.", "0.1", "1.50", "123456789012345678",
+				"1234567890123456789", "12345678901234567890.123", "9007199254740993", "16777217",
+				"0.30000000000000004", "1.7976931348623157E+308", "4.9E-324", "1E+400", "2.5e-3", "1e+22",
+				"1e+23" };
+		System.arraycopy(fixedLiterals, 0, literals, 0, fixedLiterals.length);
+
+		for (int i = fixedLiterals.length; i < literals.length; i++) {
+			final StringBuilder builder = new StringBuilder();
+			builder.append(random.nextInt(100000));
+
+			if (random.nextBoolean()) {
+				builder.append('.').append(random.nextInt(1000000000));
+			}
+
+			if (random.nextInt(4) == 0) {
+				builder.append(random.nextBoolean() ? "E+" : "E-").append(random.nextInt(40));
+			}
+
+			literals[i] = builder.toString();
+		}
+
+		for (String literal : literals) {
+			final BigDecimal expected = new BigDecimal(literal);
+
+			assertEquals(literal, expected, ((BigDecimalNumberLiteral) new Lexer(literal, NumberPrecision.BIG_DECIMAL)
+					.nextToken()).value);
+			assertEquals(literal, Double.parseDouble(literal), ((DoubleNumberLiteral) new Lexer(literal,
+					NumberPrecision.DOUBLE).nextToken()).value, 0);
+			assertEquals(literal, Float.parseFloat(literal), ((FloatNumberLiteral) new Lexer(literal,
+					NumberPrecision.FLOAT).nextToken()).value, 0);
+		}
+	}
+
+	public void testMalformedNumbers() {
+		for (String input : new String[] { "1.2.3", "2E5", "2E+", "1e" }) {
+			try {
+				new Lexer(input, NumberPrecision.DOUBLE).nextToken();
+				fail(input);
+			} catch (ParseException e) {
+				// Expected
+			}
+		}
+	}
 }